@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import ngsep.alignments.io.ReadAlignmentFileWriter;
@@ -39,6 +40,8 @@ import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.ReferenceGenomeFMIndex;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.PipelineMetrics;
+import ngsep.main.PipelineMetrics.StageTimer;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -63,6 +66,7 @@ public class ReadsAligner {
 	private boolean onlyPositiveStrand = false;
 
 	private ReferenceGenomeFMIndex fMIndex;
+	private PipelineMetrics metrics = new PipelineMetrics("ReadsAligner");
 	public static final int DEFAULT_PAIREND_LENGTH_MAX=500;
 	public static final int DEFAULT_MAX_ALIGNMENTS=100;
 
@@ -87,13 +91,13 @@ public class ReadsAligner {
 		String fMIndexFile = args[i++];
 		String outFile = args[i++];
 		String readsFile1 = args[i++];
-		String readsFile2="";
-		if(isPairendParameters(args)) readsFile2 = args[i++];
+		String readsFile2 = null;
+		if(i<args.length) readsFile2 = args[i++];
 		instance.fMIndex = ReferenceGenomeFMIndex.loadFromBinaries(fMIndexFile);
 		QualifiedSequenceList sequences = instance.fMIndex.getSequencesMetadata();
 		try (PrintStream out = new PrintStream(outFile);
 				ReadAlignmentFileWriter writer = new ReadAlignmentFileWriter(sequences, out)){
-			if(isPairendParameters(args))
+			if(readsFile2!=null)
 			{
 				instance.alignReads(readsFile1,readsFile2, writer);
 			}
@@ -103,10 +107,6 @@ public class ReadsAligner {
 		}
 	}
 
-	private static boolean isPairendParameters(String[] args) {
-		return (args.length>5 &&(args[0].equals("-t")||args[2].equals("-t")) )||(args.length>3 && (!args[0].equals("-t")&&!args[0].equals("-p")));
-	}
-
 	public Map<String, List<GenomicRegion>> loadTRF(String tandemRepeatsFile) {
 		SimpleGenomicRegionFileHandler handler = new SimpleGenomicRegionFileHandler();
 		try {
@@ -200,6 +200,31 @@ public class ReadsAligner {
 		System.out.println("setTandemRepeatsFile: "+tandemRepeatsFile);
 		this.tandemRepeatsFile = tandemRepeatsFile;
 	}
+	
+	/**
+	 * @return the throughput metrics of the alignment process
+	 */
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of seconds between log lines reporting throughput metrics
+	 */
+	public int getMetricsInterval() {
+		return metrics.getLogInterval();
+	}
+
+	/**
+	 * @param metricsInterval the number of seconds between log lines reporting throughput metrics. Zero disables the report
+	 */
+	public void setMetricsInterval(int metricsInterval) {
+		metrics.setLogInterval(metricsInterval);
+	}
+	
+	public void setMetricsInterval(Integer metricsInterval) {
+		this.setMetricsInterval(metricsInterval.intValue());
+	}
 
 	/**
 	 * Aligns readsFile with the fMIndexFile
@@ -214,13 +239,26 @@ public class ReadsAligner {
 		int readsAligned = 0;
 		int uniqueAlignments=0;
 		long time = System.currentTimeMillis();
+		LongAdder readsCounter = metrics.getCounter("reads");
+		LongAdder alignedCounter = metrics.getCounter("alignedReads");
+		StageTimer loadTimer = metrics.getTimer("load");
+		StageTimer alignTimer = metrics.getTimer("align");
+		StageTimer writeTimer = metrics.getTimer("write");
+		metrics.setLog(log);
+		metrics.start();
 		try (FastqFileReader reader = new FastqFileReader(readsFile)) {
 			//Load as DNAMaskedSequence to allow reverse complement
 			reader.setSequenceType(DNAMaskedSequence.class);
 			Iterator<RawRead> it = reader.iterator();
-			while(it.hasNext()) {
+			while(true) {
+				long stageStart = System.nanoTime();
+				if(!it.hasNext()) break;
 				RawRead read = it.next();
+				loadTimer.recordSince(stageStart);
+				stageStart = System.nanoTime();
 				List<ReadAlignment> alns = alignRead(read);
+				alignTimer.recordSince(stageStart);
+				stageStart = System.nanoTime();
 				//System.out.println("Alignments for: "+read.getName()+" "+alns.size());
 				for(ReadAlignment aln:alns) writer.write(aln);
 				if(alns.size()==0) {
@@ -230,12 +268,19 @@ public class ReadsAligner {
 					alnNoMap.setQualityScores(read.getQualityScores());
 					writer.write(alnNoMap);
 				}
+				writeTimer.recordSince(stageStart);
 				int numAlns = alns.size();
 				totalReads++;
-				if(numAlns>0) readsAligned++;
+				readsCounter.increment();
+				if(numAlns>0) {
+					readsAligned++;
+					alignedCounter.increment();
+				}
 				if(numAlns==1) uniqueAlignments++;
 				if(totalReads%100000==0) log.info("Processed "+totalReads+" reads. Aligned: "+readsAligned);
 			}
+		} finally {
+			metrics.stop();
 		}
 		log.info("Total reads: "+totalReads);
 		log.info("Reads aligned: "+readsAligned);
@@ -264,24 +309,42 @@ public class ReadsAligner {
 		int single = 0;
 		int uniqueAlignments=0;
 		long time = System.currentTimeMillis();
+		LongAdder readsCounter = metrics.getCounter("reads");
+		LongAdder alignedCounter = metrics.getCounter("alignedPairs");
+		StageTimer loadTimer = metrics.getTimer("load");
+		StageTimer alignTimer = metrics.getTimer("align");
+		StageTimer pairTimer = metrics.getTimer("pair");
+		StageTimer writeTimer = metrics.getTimer("write");
+		metrics.setLog(log);
+		metrics.start();
 		try (FastqFileReader reader1 = new FastqFileReader(readsFile1); FastqFileReader reader2 = new FastqFileReader(readsFile2)) {
 			reader1.setSequenceType(DNAMaskedSequence.class);
 			reader2.setSequenceType(DNAMaskedSequence.class);
 			//Load as DNAMaskedSequence to allow reverse complement
 			Iterator<RawRead> it1 = reader1.iterator();
 			Iterator<RawRead> it2 = reader2.iterator();
-			while(it1.hasNext() && it2.hasNext()) {
+			while(true) {
 				//TODO handle parallel excution handle println bottleneck
 				//https://stackoverflow.com/questions/37035720/how-to-use-multiple-cores-with-java
+				long stageStart = System.nanoTime();
+				if(!it1.hasNext() || !it2.hasNext()) break;
 				RawRead read1 = it1.next();
 				RawRead read2 = it2.next();
+				loadTimer.recordSince(stageStart);
+				readsCounter.add(2);
+				stageStart = System.nanoTime();
 				List<ReadAlignment> alns1 = alignRead(read1);
 				List<ReadAlignment> alns2 = alignRead(read2);
+				alignTimer.recordSince(stageStart);
+				stageStart = System.nanoTime();
 				if(alns1.size()==0||alns2.size()==0) {
 					ArrayList<ReadAlignment> unMapped = processUnMapped(read1, alns1,read2,alns2);
+					pairTimer.recordSince(stageStart);
+					stageStart = System.nanoTime();
 					for (int i = 0; i < Math.min(unMapped.size(),DEFAULT_MAX_ALIGNMENTS); i++) {
 						writer.write(unMapped.get(i));
 					}
+					writeTimer.recordSince(stageStart);
 				}else {
 					boolean onlyProper=true;
 					List<ReadAlignment> alns = new ArrayList<ReadAlignment>();
@@ -302,10 +365,16 @@ public class ReadsAligner {
 						proper++;
 						addPairAlignments(alns, pairAlns);
 					}
+					pairTimer.recordSince(stageStart);
+					stageStart = System.nanoTime();
 					for(ReadAlignment aln:alns) writer.write(aln);	
+					writeTimer.recordSince(stageStart);
 					int numAlns = alns.size();
 					totalReads++;
-					if(numAlns>0) readsAligned++;
+					if(numAlns>0) {
+						readsAligned++;
+						alignedCounter.increment();
+					}
 					if(numAlns==1) uniqueAlignments++;
 					if(totalReads%100000==0) {
 						log.info("Processed "+totalReads+" reads. Aligned: "+readsAligned);
@@ -316,6 +385,8 @@ public class ReadsAligner {
 				}
 			}
 
+		} finally {
+			metrics.stop();
 		}
 		log.info("Total reads: "+totalReads);
 		log.info("Reads aligned proper: "+proper);
@@ -57,6 +57,7 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	
 	private Logger log = Logger.getLogger(ReadAlignmentFileReader.class.getName());
 	
+	private SamReader reader;
 	private SAMRecordIterator it; 
 	
 	private ReadAlignmentFileIterator currentIterator = null;
@@ -133,7 +134,34 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 	}
 	@Override
 	public void close() throws IOException {
+		if(it!=null) {
+			it.close();
+			it = null;
+		}
+		reader.close();
+	}
+	/**
+	 * @return boolean true if the file has an index that allows to query alignments by sequence
+	 */
+	public boolean isIndexed() {
+		return reader.hasIndex();
+	}
+	/**
+	 * Creates an iterator over the alignments to the given sequence using the index of the file.
+	 * Any previous iteration is finished 
+	 * @param sequenceName Name of the sequence to query
+	 * @return Iterator<ReadAlignment> Alignments to the given sequence. Empty if the sequence is not present in the file header
+	 */
+	public Iterator<ReadAlignment> query(String sequenceName) {
+		if (it == null) {
+			throw new IllegalStateException("File reader is closed");
+		}
+		if(!reader.hasIndex()) throw new IllegalStateException("Queries require an indexed alignments file");
+		if(reader.getFileHeader().getSequenceIndex(sequenceName)<0) return Collections.emptyIterator();
 		it.close();
+		it = reader.query(sequenceName, 0, 0, false);
+		currentIterator = new ReadAlignmentFileIterator();
+		return currentIterator;
 	}
 
 	@Override
@@ -154,7 +182,7 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 			stream = new FileInputStream(file);
 		}
 		//TODO: Use stream
-		SamReader reader = SamReaderFactory.makeDefault().open(file);
+		reader = SamReaderFactory.makeDefault().open(file);
 		SAMFileHeader header = reader.getFileHeader();
 		if(header != null) loadHeader(header);
 		it = reader.iterator();
@@ -0,0 +1,31 @@
+package ngsep.assembly;
+
+import java.io.Serializable;
+
+class Alignment implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private int overlap;
+	private double rate;
+
+	public Alignment(int overlap, double rate) {
+		this.overlap = overlap;
+		this.rate = rate;
+	}
+
+	public int getOverlap() {
+		return overlap;
+	}
+
+	public void setOverlap(int overlap) {
+		this.overlap = overlap;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+}
@@ -0,0 +1,486 @@
+package ngsep.assembly;
+
+/**
+ * Global alignment with affine gap penalties restricted to a band of diagonals.
+ * Scores follow the same model of {@link AlignmentAffineGap}: the first
+ * position of a gap costs openGap and the following positions cost extGap.
+ * Memory is linear in the length of the sequences because the alignment is
+ * calculated dividing the problem by the middle row (Hirschberg's strategy
+ * extended to affine gaps by Myers and Miller). Small subproblems are solved
+ * with a full traceback. Buffers are reused between alignments, so instances
+ * are not thread safe
+ */
+public class AlignmentAffineGapBanded {
+	public static final int DEFAULT_BAND_WIDTH = 100;
+
+	private static final int NEG = Integer.MIN_VALUE / 4;
+	private static final int STATE_MATCH = 0;
+	// Gap in the second sequence consuming characters of the first sequence
+	private static final int STATE_GAP2 = 1;
+	// Gap in the first sequence consuming characters of the second sequence
+	private static final int STATE_GAP1 = 2;
+	private static final int STATE_ANY = -1;
+	// Maximum number of cells of subproblems solved with a full traceback
+	private static final int MAX_BASE_CELLS = 1 << 22;
+
+	private int match;
+	private int openGap;
+	private int extGap;
+	private int mismatch;
+	private int bandWidth = DEFAULT_BAND_WIDTH;
+
+	// Current problem. Characters are copied to reusable arrays
+	private char[] s1 = new char[0];
+	private char[] s2 = new char[0];
+	private int minDiagonal;
+	private int maxDiagonal;
+	private StringBuilder aligned1 = new StringBuilder();
+	private StringBuilder aligned2 = new StringBuilder();
+	private int score;
+
+	// Reusable rows for the forward and backward passes. One array per state
+	private int[][] forward = new int[3][0];
+	private int[][] forwardPrev = new int[3][0];
+	private int[][] backward = new int[3][0];
+	private int[][] backwardNext = new int[3][0];
+	// Reusable traceback for small subproblems. Each byte has two bits with the
+	// previous state of each state
+	private byte[] traceback = new byte[0];
+	private char[] ops1 = new char[0];
+	private char[] ops2 = new char[0];
+
+	public AlignmentAffineGapBanded(int match, int openGap, int extGap, int mismatch) {
+		this.match = match;
+		this.openGap = openGap;
+		this.extGap = extGap;
+		this.mismatch = mismatch;
+	}
+
+	/**
+	 * @return the number of diagonals added to each side of the band
+	 */
+	public int getBandWidth() {
+		return bandWidth;
+	}
+
+	/**
+	 * @param bandWidth the number of diagonals added to each side of the band
+	 */
+	public void setBandWidth(int bandWidth) {
+		this.bandWidth = bandWidth;
+	}
+
+	/**
+	 * @return the score of the last alignment
+	 */
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Aligns two sequences within a band around the diagonals connecting the start
+	 * and the end of both sequences
+	 *
+	 * @param s1 first sequence
+	 * @param s2 second sequence
+	 * @return String[] aligned sequences including gaps
+	 */
+	public String[] getAlignment(CharSequence s1, CharSequence s2) {
+		int diff = s2.length() - s1.length();
+		return getAlignment(s1, s2, Math.min(0, diff) - bandWidth, Math.max(0, diff) + bandWidth);
+	}
+
+	/**
+	 * Aligns two sequences allowing only cells (i,j) such that j-i is between the
+	 * given diagonals
+	 *
+	 * @param s1          first sequence
+	 * @param s2          second sequence
+	 * @param minDiagonal minimum value of j-i. Must be at most
+	 *                    min(0,s2.length()-s1.length())
+	 * @param maxDiagonal maximum value of j-i. Must be at least
+	 *                    max(0,s2.length()-s1.length())
+	 * @return String[] aligned sequences including gaps
+	 */
+	public String[] getAlignment(CharSequence s1, CharSequence s2, int minDiagonal, int maxDiagonal) {
+		int n = s1.length();
+		int m = s2.length();
+		if (minDiagonal > Math.min(0, m - n) || maxDiagonal < Math.max(0, m - n))
+			throw new IllegalArgumentException("Band " + minDiagonal + "-" + maxDiagonal
+					+ " does not include the start and the end of sequences with lengths " + n + " and " + m);
+		this.s1 = copy(s1, this.s1);
+		this.s2 = copy(s2, this.s2);
+		this.minDiagonal = Math.max(minDiagonal, -n);
+		this.maxDiagonal = Math.min(maxDiagonal, m);
+		ensureCapacity(m + 1);
+		aligned1.setLength(0);
+		aligned2.setLength(0);
+		score = align(0, 0, STATE_MATCH, n, m, STATE_ANY);
+		String[] answer = { aligned1.toString(), aligned2.toString() };
+		return answer;
+	}
+
+	private static char[] copy(CharSequence seq, char[] buffer) {
+		int n = seq.length();
+		if (buffer.length < n)
+			buffer = new char[Math.max(n, 2 * buffer.length)];
+		for (int i = 0; i < n; i++)
+			buffer[i] = seq.charAt(i);
+		return buffer;
+	}
+
+	private void ensureCapacity(int columns) {
+		if (forward[0].length >= columns)
+			return;
+		for (int s = 0; s < 3; s++) {
+			forward[s] = new int[columns];
+			forwardPrev[s] = new int[columns];
+			backward[s] = new int[columns];
+			backwardNext[s] = new int[columns];
+		}
+	}
+
+	private int low(int i, int j1) {
+		return Math.max(j1, i + minDiagonal);
+	}
+
+	private int high(int i, int j2) {
+		return Math.min(j2, i + maxDiagonal);
+	}
+	/**
+	 * Traceback rows only store the cells within the band if the band is narrower than the subproblem
+	 */
+	private int tracebackRowLength(int j1, int j2) {
+		return Math.min(j2 - j1 + 1, maxDiagonal - minDiagonal + 1);
+	}
+	private int tracebackRowStart(int i, int i1, int j1, int j2) {
+		int columns = j2 - j1 + 1;
+		int bandLength = maxDiagonal - minDiagonal + 1;
+		if (columns <= bandLength)
+			return (i - i1) * columns - j1;
+		return (i - i1) * bandLength - i - minDiagonal;
+	}
+
+	private int getMatchScore(char a, char b) {
+		if (a == b)
+			return match;
+		else
+			return -mismatch;
+	}
+
+	/**
+	 * Aligns the segment of s1 between i1 and i2 with the segment of s2 between j1
+	 * and j2 and appends the result to the aligned sequences
+	 *
+	 * @return int score of the alignment
+	 */
+	private int align(int i1, int j1, int startState, int i2, int j2, int endState) {
+		if (i2 - i1 <= 1 || (long) (i2 - i1 + 1) * tracebackRowLength(j1, j2) <= MAX_BASE_CELLS)
+			return alignWithTraceback(i1, j1, startState, i2, j2, endState);
+		int imid = (i1 + i2) / 2;
+		calculateForward(i1, j1, startState, imid, j2);
+		calculateBackward(imid, j1, i2, j2, endState);
+		int best = NEG;
+		int bestJ = -1;
+		int bestState = -1;
+		int lo = low(imid, j1);
+		int hi = high(imid, j2);
+		for (int j = lo; j <= hi; j++) {
+			int k = j - j1;
+			for (int s = 0; s < 3; s++) {
+				int value = forward[s][k] + backward[s][k];
+				if (value > best) {
+					best = value;
+					bestJ = j;
+					bestState = s;
+				}
+			}
+		}
+		if (bestJ < 0)
+			throw new RuntimeException("Alignment not found within the band between rows " + i1 + " and " + i2);
+		align(i1, j1, startState, imid, bestJ, bestState);
+		align(imid, bestJ, bestState, i2, j2, endState);
+		return best;
+	}
+
+	/**
+	 * Calculates in the forward arrays the best scores of alignments starting at
+	 * (i1,j1) and ending at each cell of row i2 in each state
+	 */
+	private void calculateForward(int i1, int j1, int startState, int i2, int j2) {
+		int[][] cur = forwardPrev;
+		int[][] prev = forward;
+		for (int i = i1; i <= i2; i++) {
+			int[][] tmp = prev;
+			prev = cur;
+			cur = tmp;
+			int lo = low(i, j1);
+			int hi = high(i, j2);
+			int[] cM = cur[STATE_MATCH];
+			int[] cX = cur[STATE_GAP2];
+			int[] cY = cur[STATE_GAP1];
+			int[] pM = prev[STATE_MATCH];
+			int[] pX = prev[STATE_GAP2];
+			int[] pY = prev[STATE_GAP1];
+			char c1 = i > i1 ? s1[i - 1] : 0;
+			for (int j = lo; j <= hi; j++) {
+				int k = j - j1;
+				if (i == i1 && j == j1) {
+					cM[k] = (startState == STATE_MATCH) ? 0 : NEG;
+					cX[k] = (startState == STATE_GAP2) ? 0 : NEG;
+					cY[k] = (startState == STATE_GAP1) ? 0 : NEG;
+					continue;
+				}
+				if (i > i1 && j > j1)
+					cM[k] = Math.max(NEG, max(pM[k - 1], pX[k - 1], pY[k - 1]) + getMatchScore(c1, s2[j - 1]));
+				else
+					cM[k] = NEG;
+				if (i > i1)
+					cX[k] = Math.max(NEG, max(pM[k] - openGap, pX[k] - extGap, pY[k] - openGap));
+				else
+					cX[k] = NEG;
+				if (j > lo)
+					cY[k] = Math.max(NEG, max(cM[k - 1] - openGap, cX[k - 1] - openGap, cY[k - 1] - extGap));
+				else
+					cY[k] = NEG;
+			}
+			setBorders(cur, lo - j1 - 1, hi - j1 + 1, j2 - j1);
+		}
+		if (cur != forward) {
+			forwardPrev = forward;
+			forward = cur;
+		}
+	}
+
+	/**
+	 * Calculates in the backward arrays the best scores of alignments starting at
+	 * each cell of row i1 in each state and ending at (i2,j2)
+	 */
+	private void calculateBackward(int i1, int j1, int i2, int j2, int endState) {
+		int[][] cur = backwardNext;
+		int[][] next = backward;
+		for (int i = i2; i >= i1; i--) {
+			int[][] tmp = next;
+			next = cur;
+			cur = tmp;
+			int lo = low(i, j1);
+			int hi = high(i, j2);
+			int[] cM = cur[STATE_MATCH];
+			int[] cX = cur[STATE_GAP2];
+			int[] cY = cur[STATE_GAP1];
+			int[] nM = next[STATE_MATCH];
+			int[] nX = next[STATE_GAP2];
+			char c1 = i < i2 ? s1[i] : 0;
+			for (int j = hi; j >= lo; j--) {
+				int k = j - j1;
+				if (i == i2 && j == j2) {
+					cM[k] = (endState == STATE_ANY || endState == STATE_MATCH) ? 0 : NEG;
+					cX[k] = (endState == STATE_ANY || endState == STATE_GAP2) ? 0 : NEG;
+					cY[k] = (endState == STATE_ANY || endState == STATE_GAP1) ? 0 : NEG;
+					continue;
+				}
+				int diagonal = (i < i2 && j < j2) ? nM[k + 1] + getMatchScore(c1, s2[j]) : NEG;
+				int vertical = (i < i2) ? nX[k] : NEG;
+				int horizontal = (j < hi) ? cY[k + 1] : NEG;
+				cM[k] = Math.max(NEG, max(diagonal, vertical - openGap, horizontal - openGap));
+				cX[k] = Math.max(NEG, max(diagonal, vertical - extGap, horizontal - openGap));
+				cY[k] = Math.max(NEG, max(diagonal, vertical - openGap, horizontal - extGap));
+			}
+			setBorders(cur, lo - j1 - 1, hi - j1 + 1, j2 - j1);
+		}
+		if (cur != backward) {
+			backwardNext = backward;
+			backward = cur;
+		}
+	}
+
+	private static void setBorders(int[][] row, int before, int after, int last) {
+		for (int s = 0; s < 3; s++) {
+			if (before >= 0)
+				row[s][before] = NEG;
+			if (after <= last)
+				row[s][after] = NEG;
+		}
+	}
+
+	private static int max(int a, int b, int c) {
+		return Math.max(a, Math.max(b, c));
+	}
+
+	/**
+	 * Solves a small subproblem storing the traceback of every cell within the band
+	 */
+	private int alignWithTraceback(int i1, int j1, int startState, int i2, int j2, int endState) {
+		int rowLength = tracebackRowLength(j1, j2);
+		int cells = (i2 - i1 + 1) * rowLength;
+		if (traceback.length < cells)
+			traceback = new byte[Math.max(cells, Math.min(2 * traceback.length, MAX_BASE_CELLS))];
+		byte[] tb = traceback;
+		int[][] cur = forwardPrev;
+		int[][] prev = forward;
+		for (int i = i1; i <= i2; i++) {
+			int[][] tmp = prev;
+			prev = cur;
+			cur = tmp;
+			int lo = low(i, j1);
+			int hi = high(i, j2);
+			int[] cM = cur[STATE_MATCH];
+			int[] cX = cur[STATE_GAP2];
+			int[] cY = cur[STATE_GAP1];
+			int[] pM = prev[STATE_MATCH];
+			int[] pX = prev[STATE_GAP2];
+			int[] pY = prev[STATE_GAP1];
+			char c1 = i > i1 ? s1[i - 1] : 0;
+			int rowStart = tracebackRowStart(i, i1, j1, j2);
+			for (int j = lo; j <= hi; j++) {
+				int k = j - j1;
+				int cell = rowStart + j;
+				int from = 0;
+				if (i == i1 && j == j1) {
+					cM[k] = (startState == STATE_MATCH) ? 0 : NEG;
+					cX[k] = (startState == STATE_GAP2) ? 0 : NEG;
+					cY[k] = (startState == STATE_GAP1) ? 0 : NEG;
+					continue;
+				}
+				if (i > i1 && j > j1) {
+					int matchScore = getMatchScore(c1, s2[j - 1]);
+					int best = pM[k - 1];
+					int fromM = STATE_MATCH;
+					if (pX[k - 1] > best) {
+						best = pX[k - 1];
+						fromM = STATE_GAP2;
+					}
+					if (pY[k - 1] > best) {
+						best = pY[k - 1];
+						fromM = STATE_GAP1;
+					}
+					cM[k] = Math.max(NEG, best + matchScore);
+					from = fromM;
+				} else
+					cM[k] = NEG;
+				if (i > i1) {
+					int best = pM[k] - openGap;
+					int fromX = STATE_MATCH;
+					if (pX[k] - extGap > best) {
+						best = pX[k] - extGap;
+						fromX = STATE_GAP2;
+					}
+					if (pY[k] - openGap > best) {
+						best = pY[k] - openGap;
+						fromX = STATE_GAP1;
+					}
+					cX[k] = Math.max(NEG, best);
+					from |= fromX << 2;
+				} else
+					cX[k] = NEG;
+				if (j > lo) {
+					int best = cM[k - 1] - openGap;
+					int fromY = STATE_MATCH;
+					if (cX[k - 1] - openGap > best) {
+						best = cX[k - 1] - openGap;
+						fromY = STATE_GAP2;
+					}
+					if (cY[k - 1] - extGap > best) {
+						best = cY[k - 1] - extGap;
+						fromY = STATE_GAP1;
+					}
+					cY[k] = Math.max(NEG, best);
+					from |= fromY << 4;
+				} else
+					cY[k] = NEG;
+				tb[cell] = (byte) from;
+			}
+			setBorders(cur, lo - j1 - 1, hi - j1 + 1, j2 - j1);
+		}
+		int k = j2 - j1;
+		int state = endState;
+		if (state == STATE_ANY) {
+			state = STATE_MATCH;
+			if (cur[STATE_GAP2][k] > cur[state][k])
+				state = STATE_GAP2;
+			if (cur[STATE_GAP1][k] > cur[state][k])
+				state = STATE_GAP1;
+		}
+		int answer = cur[state][k];
+		// Traceback from the end of the subproblem
+		int maxOps = (i2 - i1) + (j2 - j1);
+		if (ops1.length < maxOps) {
+			ops1 = new char[Math.max(maxOps, 2 * ops1.length)];
+			ops2 = new char[ops1.length];
+		}
+		int numOps = 0;
+		int i = i2;
+		int j = j2;
+		while (i > i1 || j > j1) {
+			int cell = tracebackRowStart(i, i1, j1, j2) + j;
+			if (state == STATE_MATCH) {
+				ops1[numOps] = s1[i - 1];
+				ops2[numOps] = s2[j - 1];
+				state = tb[cell] & 3;
+				i--;
+				j--;
+			} else if (state == STATE_GAP2) {
+				ops1[numOps] = s1[i - 1];
+				ops2[numOps] = '-';
+				state = (tb[cell] >> 2) & 3;
+				i--;
+			} else {
+				ops1[numOps] = '-';
+				ops2[numOps] = s2[j - 1];
+				state = (tb[cell] >> 4) & 3;
+				j--;
+			}
+			numOps++;
+		}
+		for (int l = numOps - 1; l >= 0; l--) {
+			aligned1.append(ops1[l]);
+			aligned2.append(ops2[l]);
+		}
+		return answer;
+	}
+
+	/**
+	 * Releases the buffers used by this aligner
+	 */
+	public void clearBuffers() {
+		for (int s = 0; s < 3; s++) {
+			forward[s] = new int[0];
+			forwardPrev[s] = new int[0];
+			backward[s] = new int[0];
+			backwardNext[s] = new int[0];
+		}
+		traceback = new byte[0];
+		ops1 = new char[0];
+		ops2 = new char[0];
+		s1 = new char[0];
+		s2 = new char[0];
+		aligned1 = new StringBuilder();
+		aligned2 = new StringBuilder();
+	}
+
+	/**
+	 * Calculates the score of an alignment with the scores of this aligner
+	 *
+	 * @param alignment aligned sequences including gaps
+	 * @return int score of the alignment
+	 */
+	public int calculateScore(String[] alignment) {
+		int answer = 0;
+		int state = STATE_MATCH;
+		for (int i = 0; i < alignment[0].length(); i++) {
+			char a = alignment[0].charAt(i);
+			char b = alignment[1].charAt(i);
+			if (a == '-') {
+				answer -= (state == STATE_GAP1) ? extGap : openGap;
+				state = STATE_GAP1;
+			} else if (b == '-') {
+				answer -= (state == STATE_GAP2) ? extGap : openGap;
+				state = STATE_GAP2;
+			} else {
+				answer += getMatchScore(a, b);
+				state = STATE_MATCH;
+			}
+		}
+		return answer;
+	}
+}
@@ -49,6 +49,8 @@ public class Assembler {
 
 			case withGraph:
 				graph = timeIt("  Load the graph", () -> {
+					if (CompactAssemblyGraph.isBinaryGraph(fileIn))
+						return CompactAssemblyGraph.load(fileIn).getAssemblyGraph();
 					SimplifiedAssemblyGraph sag = new SimplifiedAssemblyGraph(fileIn);
 					sag.removeDuplicatedEmbeddes();
 					return sag.getAssemblyGraph();
@@ -165,6 +167,8 @@ public class Assembler {
 			AssemblyConfiguration config = (args.length > 4)
 					? new AssemblyConfiguration(Double.valueOf(args[3]), Double.valueOf(args[4]))
 					: new AssemblyConfiguration();
+			if (args.length > 5)
+				config.setNumThreads(Integer.parseInt(args[5]));
 			new Assembler(args[0], args[1], option, config);
 		} catch (IllegalArgumentException e) {
 			System.out.println(
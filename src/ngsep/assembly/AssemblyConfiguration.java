@@ -40,6 +40,10 @@ public class AssemblyConfiguration {
 	 * Configuration of consensus step
 	 */
 	private ConsensusConfiguration consuensusConfigurations;
+	/**
+	 * Number of threads used by the steps that can run in parallel
+	 */
+	private int numThreads = 1;
 
 	AssemblyConfiguration() {
 		this(DEFAULT_RATE_OF_CHANGES, DEFAULT_RATE_OF_INDELS);
@@ -121,6 +125,22 @@ public class AssemblyConfiguration {
 		}
 	}
 
+	/**
+	 * @return the number of threads used by the steps that can run in parallel
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads to use. Must be at least one
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Invalid number of threads: " + numThreads);
+		this.numThreads = numThreads;
+	}
+
 	public OverlapConfiguration overlap() {
 		return overlapConfigurations;
 	}
@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -19,7 +17,8 @@ public class AssemblyGraph {
 	private List<AssemblyVertex> vertices;
 
 	private List<AssemblyEdge> edges = new ArrayList<>();
-	private Map<Integer, List<AssemblyEmbedded>> embeddedSequences = new HashMap<>();
+	// Embedded sequences indexed by the position of the read containing them
+	private List<List<AssemblyEmbedded>> embeddedSequences;
 
 	// Indexes in the vertices list
 	private List<List<AssemblyEdge>> paths = new ArrayList<List<AssemblyEdge>>();
@@ -28,6 +27,7 @@ public class AssemblyGraph {
 		this.sequences = Collections.unmodifiableList(sequences);
 		vertices = new ArrayList<>();
 		edges = new ArrayList<>();
+		embeddedSequences = new ArrayList<>(Collections.nCopies(sequences.size(), (List<AssemblyEmbedded>) null));
 		for (CharSequence seq : sequences) {
 			AssemblyVertex vS = new AssemblyVertex(seq, true, vertices.size());
 			vertices.add(vS);
@@ -56,7 +56,11 @@ public class AssemblyGraph {
 	}
 
 	public void addEmbedded(int ind, AssemblyEmbedded embedded) {
-		List<AssemblyEmbedded> list = embeddedSequences.computeIfAbsent(ind, key -> new LinkedList<>());
+		List<AssemblyEmbedded> list = embeddedSequences.get(ind);
+		if (list == null) {
+			list = new ArrayList<>();
+			embeddedSequences.set(ind, list);
+		}
 		list.add(embedded);
 	}
 
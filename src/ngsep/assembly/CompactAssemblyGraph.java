@@ -0,0 +1,412 @@
+package ngsep.assembly;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import ngsep.sequences.DNAMaskedSequence;
+
+/**
+ * Immutable version of the {@link SimplifiedAssemblyGraph} storing edges and
+ * embedded relationships in compressed sparse row format. Vertices are numbered
+ * as in the simplified graph: two times the id of the read for the start of the
+ * read and two times the id plus one for the end. Edges of each vertex are
+ * stored consecutively in primitive arrays and sorted by target vertex, so the
+ * graph can be traversed without creating or boxing objects. The graph can be
+ * saved in a binary format that is memory mapped for loading
+ */
+public class CompactAssemblyGraph {
+	private static final byte[] MAGIC = "NGSEPAG".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+
+	private List<CharSequence> sequences;
+
+	// Edges of vertex v are stored between edgeStarts[v] and edgeStarts[v+1]
+	private int[] edgeStarts;
+	private int[] targets;
+	private int[] overlaps;
+	private double[] rates;
+
+	private BitSet embedded;
+	// Embedded reads of read i are stored between embeddedStarts[i] and
+	// embeddedStarts[i+1]
+	private int[] embeddedStarts;
+	private int[] embeddedIds;
+	private int[] embeddedPositions;
+	private BitSet embeddedReversed;
+	private double[] embeddedRates;
+
+	private CompactAssemblyGraph() {
+	}
+
+	/**
+	 * Creates a compact copy of the given graph
+	 *
+	 * @param graph Graph to copy
+	 */
+	public CompactAssemblyGraph(SimplifiedAssemblyGraph graph) {
+		sequences = graph.getSequences();
+		int n = sequences.size();
+		Map<Integer, Map<Integer, Alignment>> edges = graph.getEdges();
+		edgeStarts = new int[2 * n + 1];
+		for (Entry<Integer, Map<Integer, Alignment>> entry : edges.entrySet())
+			edgeStarts[entry.getKey() + 1] = entry.getValue().size();
+		cumulativeSum(edgeStarts);
+		int m = edgeStarts[2 * n];
+		targets = new int[m];
+		overlaps = new int[m];
+		rates = new double[m];
+		for (Entry<Integer, Map<Integer, Alignment>> entry : edges.entrySet()) {
+			int first = edgeStarts[entry.getKey()];
+			int k = first;
+			for (int target : entry.getValue().keySet())
+				targets[k++] = target;
+			Arrays.sort(targets, first, k);
+			for (int i = first; i < k; i++) {
+				Alignment aln = entry.getValue().get(targets[i]);
+				overlaps[i] = aln.getOverlap();
+				rates[i] = aln.getRate();
+			}
+		}
+
+		embedded = (BitSet) graph.getEmbeddedReads().clone();
+		Map<Integer, Map<Integer, Embedded>> embeddedMap = graph.getEmbbeded();
+		embeddedStarts = new int[n + 1];
+		for (Entry<Integer, Map<Integer, Embedded>> entry : embeddedMap.entrySet())
+			embeddedStarts[entry.getKey() + 1] = entry.getValue().size();
+		cumulativeSum(embeddedStarts);
+		int e = embeddedStarts[n];
+		embeddedIds = new int[e];
+		embeddedPositions = new int[e];
+		embeddedReversed = new BitSet(e);
+		embeddedRates = new double[e];
+		for (Entry<Integer, Map<Integer, Embedded>> entry : embeddedMap.entrySet()) {
+			int first = embeddedStarts[entry.getKey()];
+			int k = first;
+			for (int id : entry.getValue().keySet())
+				embeddedIds[k++] = id;
+			Arrays.sort(embeddedIds, first, k);
+			for (int i = first; i < k; i++) {
+				Embedded emb = entry.getValue().get(embeddedIds[i]);
+				embeddedPositions[i] = emb.getPos();
+				embeddedReversed.set(i, emb.isReversed());
+				embeddedRates[i] = emb.getRate();
+			}
+		}
+	}
+
+	private static void cumulativeSum(int[] array) {
+		for (int i = 1; i < array.length; i++)
+			array[i] += array[i - 1];
+	}
+
+	public List<CharSequence> getSequences() {
+		return sequences;
+	}
+
+	/**
+	 * @return number of reads in the graph including embedded reads
+	 */
+	public int getNumReads() {
+		return sequences.size();
+	}
+
+	/**
+	 * @return number of vertices. Two per read
+	 */
+	public int getNumVertices() {
+		return edgeStarts.length - 1;
+	}
+
+	/**
+	 * @return number of stored edges. Each edge is stored once for each vertex
+	 */
+	public int getNumEdgeEntries() {
+		return targets.length;
+	}
+
+	/**
+	 * @param vertex id of the vertex
+	 * @return position of the first edge of the vertex
+	 */
+	public int getFirstEdge(int vertex) {
+		return edgeStarts[vertex];
+	}
+
+	/**
+	 * @param vertex id of the vertex
+	 * @return position after the last edge of the vertex
+	 */
+	public int getEndEdges(int vertex) {
+		return edgeStarts[vertex + 1];
+	}
+
+	/**
+	 * @param edge position of the edge obtained from getFirstEdge and getEndEdges
+	 * @return vertex connected by the edge
+	 */
+	public int getTarget(int edge) {
+		return targets[edge];
+	}
+
+	public int getOverlap(int edge) {
+		return overlaps[edge];
+	}
+
+	public double getRate(int edge) {
+		return rates[edge];
+	}
+
+	public boolean isEmbedded(int readId) {
+		return embedded.get(readId);
+	}
+
+	public int getNumEmbedded() {
+		return embedded.cardinality();
+	}
+
+	/**
+	 * @param readId id of the read
+	 * @return position of the first read embedded in the given read
+	 */
+	public int getFirstEmbedded(int readId) {
+		return embeddedStarts[readId];
+	}
+
+	/**
+	 * @param readId id of the read
+	 * @return position after the last read embedded in the given read
+	 */
+	public int getEndEmbedded(int readId) {
+		return embeddedStarts[readId + 1];
+	}
+
+	public int getEmbeddedId(int pos) {
+		return embeddedIds[pos];
+	}
+
+	public int getEmbeddedPosition(int pos) {
+		return embeddedPositions[pos];
+	}
+
+	public boolean isEmbeddedReversed(int pos) {
+		return embeddedReversed.get(pos);
+	}
+
+	public double getEmbeddedRate(int pos) {
+		return embeddedRates[pos];
+	}
+
+	public void printInfo() {
+		System.out.println("Embedded: " + getNumEmbedded());
+		int vertices = 0;
+		for (int v = 0; v < getNumVertices(); v++)
+			if (edgeStarts[v + 1] > edgeStarts[v])
+				vertices++;
+		System.out.println("Vertex: " + vertices);
+		System.out.println("Edges: " + targets.length);
+	}
+
+	/**
+	 * Builds the graph used to calculate layouts. Embedded reads are removed from
+	 * the list of reads and assigned to the reads containing them. Each embedded
+	 * read is assigned only once. Edges involving embedded reads are ignored
+	 *
+	 * @return AssemblyGraph graph with the reads that are not embedded
+	 */
+	public AssemblyGraph getAssemblyGraph() {
+		int n = sequences.size();
+		int[] map = new int[n];
+		List<CharSequence> list = new ArrayList<>(n - getNumEmbedded());
+		for (int i = 0; i < n; i++) {
+			map[i] = list.size();
+			if (!embedded.get(i))
+				list.add(sequences.get(i));
+		}
+		AssemblyGraph assemblyGraph = new AssemblyGraph(list);
+		BitSet assigned = new BitSet(n);
+		for (int parentId = 0; parentId < n; parentId++) {
+			if (embedded.get(parentId))
+				continue;
+			for (int i = embeddedStarts[parentId]; i < embeddedStarts[parentId + 1]; i++) {
+				int embeddedId = embeddedIds[i];
+				if (assigned.get(embeddedId))
+					continue;
+				assigned.set(embeddedId);
+				assemblyGraph.addEmbedded(map[parentId], new AssemblyEmbedded(sequences.get(embeddedId),
+						embeddedPositions[i], embeddedReversed.get(i)));
+			}
+		}
+		for (int v1 = 0; v1 < getNumVertices(); v1++) {
+			if (embedded.get(v1 >> 1))
+				continue;
+			for (int i = edgeStarts[v1]; i < edgeStarts[v1 + 1]; i++) {
+				int v2 = targets[i];
+				if (v1 < v2 && !embedded.get(v2 >> 1)) {
+					AssemblyVertex vertex1 = assemblyGraph.getVertex(map[v1 >> 1], (v1 & 1) == 0);
+					AssemblyVertex vertex2 = assemblyGraph.getVertex(map[v2 >> 1], (v2 & 1) == 0);
+					assemblyGraph.addEdge(vertex1, vertex2, overlaps[i]);
+				}
+			}
+		}
+		return assemblyGraph;
+	}
+
+	/**
+	 * Checks if the given file has been created with the save method of this class
+	 *
+	 * @param path Name of the file to check
+	 * @return boolean true if the file starts with the header of binary graphs
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isBinaryGraph(String path) throws IOException {
+		byte[] start = new byte[MAGIC.length];
+		try (FileInputStream in = new FileInputStream(path)) {
+			int n = 0;
+			while (n < start.length) {
+				int r = in.read(start, n, start.length - n);
+				if (r < 0)
+					return false;
+				n += r;
+			}
+		}
+		return Arrays.equals(start, MAGIC);
+	}
+
+	/**
+	 * Saves the graph in binary format including the sequences of the reads
+	 *
+	 * @param path Name of the output file
+	 * @throws IOException If the file can not be written
+	 */
+	public void save(String path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sequences.size());
+			for (CharSequence seq : sequences) {
+				byte[] bytes = seq.toString().getBytes(StandardCharsets.US_ASCII);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.writeInt(targets.length);
+			writeInts(out, edgeStarts);
+			writeInts(out, targets);
+			writeInts(out, overlaps);
+			writeDoubles(out, rates);
+			writeBitSet(out, embedded);
+			out.writeInt(embeddedIds.length);
+			writeInts(out, embeddedStarts);
+			writeInts(out, embeddedIds);
+			writeInts(out, embeddedPositions);
+			writeBitSet(out, embeddedReversed);
+			writeDoubles(out, embeddedRates);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int v : values)
+			out.writeInt(v);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		for (double v : values)
+			out.writeDouble(v);
+	}
+
+	private static void writeBitSet(DataOutputStream out, BitSet bits) throws IOException {
+		long[] words = bits.toLongArray();
+		out.writeInt(words.length);
+		for (long w : words)
+			out.writeLong(w);
+	}
+
+	/**
+	 * Loads a graph saved in binary format. The file is memory mapped and primitive
+	 * arrays are filled with bulk reads
+	 *
+	 * @param path Name of the binary file
+	 * @return CompactAssemblyGraph graph stored in the file
+	 * @throws IOException If the file can not be read or if it does not have the
+	 *                     expected format
+	 */
+	public static CompactAssemblyGraph load(String path) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Binary graph at " + path + " is too large to be mapped: " + channel.size() + " bytes");
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return load(buffer, path);
+		}
+	}
+
+	private static CompactAssemblyGraph load(ByteBuffer buffer, String path) throws IOException {
+		byte[] start = new byte[MAGIC.length];
+		if (buffer.remaining() < MAGIC.length + 4)
+			throw new IOException("File " + path + " is not a binary assembly graph");
+		buffer.get(start);
+		if (!Arrays.equals(start, MAGIC))
+			throw new IOException("File " + path + " is not a binary assembly graph");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version " + version + " of binary assembly graph " + path + ". Expected: " + VERSION);
+		CompactAssemblyGraph graph = new CompactAssemblyGraph();
+		int n = buffer.getInt();
+		graph.sequences = new ArrayList<>(n);
+		byte[] bytes = new byte[0];
+		for (int i = 0; i < n; i++) {
+			int length = buffer.getInt();
+			if (bytes.length < length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			buffer.get(bytes, 0, length);
+			graph.sequences.add(new DNAMaskedSequence(new String(bytes, 0, length, StandardCharsets.US_ASCII)));
+		}
+		int m = buffer.getInt();
+		graph.edgeStarts = readInts(buffer, 2 * n + 1);
+		graph.targets = readInts(buffer, m);
+		graph.overlaps = readInts(buffer, m);
+		graph.rates = readDoubles(buffer, m);
+		graph.embedded = readBitSet(buffer);
+		int e = buffer.getInt();
+		graph.embeddedStarts = readInts(buffer, n + 1);
+		graph.embeddedIds = readInts(buffer, e);
+		graph.embeddedPositions = readInts(buffer, e);
+		graph.embeddedReversed = readBitSet(buffer);
+		graph.embeddedRates = readDoubles(buffer, e);
+		return graph;
+	}
+
+	private static int[] readInts(ByteBuffer buffer, int n) {
+		int[] answer = new int[n];
+		buffer.asIntBuffer().get(answer);
+		buffer.position(buffer.position() + 4 * n);
+		return answer;
+	}
+
+	private static double[] readDoubles(ByteBuffer buffer, int n) {
+		double[] answer = new double[n];
+		buffer.asDoubleBuffer().get(answer);
+		buffer.position(buffer.position() + 8 * n);
+		return answer;
+	}
+
+	private static BitSet readBitSet(ByteBuffer buffer) {
+		int n = buffer.getInt();
+		long[] words = new long[n];
+		buffer.asLongBuffer().get(words);
+		buffer.position(buffer.position() + 8 * n);
+		return BitSet.valueOf(words);
+	}
+}
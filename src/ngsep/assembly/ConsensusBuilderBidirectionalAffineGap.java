@@ -1,138 +1,185 @@
 package ngsep.assembly;
 
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Builds the consensus of each path aligning the end of the current consensus with the start
+ * of the next read using a banded affine gap alignment. Paths are independent, so the consensus
+ * of different paths can be calculated in parallel
+ */
 public class ConsensusBuilderBidirectionalAffineGap implements ConsensusBuilder {
+	public static final int DEF_MIN_BAND_WIDTH = 50;
+	public static final double DEF_BAND_FRACTION = 0.05;
 	int match = 2;
 	int openGap = 20;
 	int extGap = 1;
 	int mismatch = 8;
-	boolean startConsensus = true;
-	
+	int minBandWidth = DEF_MIN_BAND_WIDTH;
+	double bandFraction = DEF_BAND_FRACTION;
+	int numThreads = 1;
+
+	//Alignment buffers are reused by each thread
+	private final ThreadLocal<AlignmentAffineGapBanded> aligners = ThreadLocal.withInitial(() -> new AlignmentAffineGapBanded(match, openGap, extGap, mismatch));
+
+	/**
+	 * @return the number of threads used to build the consensus of different paths
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to build the consensus of different paths
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+
 	@Override
-	public List<CharSequence> makeConsensus(AssemblyGraph graph) 
+	public List<CharSequence> makeConsensus(AssemblyGraph graph)
 	{
+		List<List<AssemblyEdge>> paths = graph.getPaths();
+		if(numThreads == 1 || paths.size() < 2) {
+			List<CharSequence> consensusList = new ArrayList<CharSequence>();
+			for(List<AssemblyEdge> path:paths) consensusList.add(makeConsensus(graph, path));
+			return consensusList;
+		}
+		return makeConsensusParallel(graph, paths);
+	}
+
+	private List<CharSequence> makeConsensusParallel(AssemblyGraph graph, List<List<AssemblyEdge>> paths) {
 		List<CharSequence> consensusList = new ArrayList<CharSequence>();
-		for(int i = 0; i < graph.getPaths().size(); i++)
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Results are retrieved in the order of the paths. Pending tasks are limited to keep memory bounded
+		LinkedList<Future<CharSequence>> pending = new LinkedList<>();
+		try {
+			for(List<AssemblyEdge> path:paths) {
+				pending.add(pool.submit(() -> makeConsensus(graph, path)));
+				if(pending.size() >= 2*numThreads) consensusList.add(pending.removeFirst().get());
+			}
+			while(pending.size()>0) consensusList.add(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Consensus construction interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+		return consensusList;
+	}
+
+	private CharSequence makeConsensus(AssemblyGraph graph, List<AssemblyEdge> path)
+	{
+		StringBuilder consensus = new StringBuilder();
+		AlignmentAffineGapBanded aligner = aligners.get();
+		AssemblyVertex lastVertex = null;
+		for(int j = 0; j < path.size(); j++)
 		{
-			List<AssemblyEdge> path = graph.getPaths().get(i);
-			String consensus = "";
-			startConsensus = true;
-			for(int j = 0; j < path.size(); j++)
+			//Needed to find which is the origin vertex
+			AssemblyEdge edge = path.get(j);
+			AssemblyVertex a = edge.getVertex1();
+			AssemblyVertex b = edge.getVertex2();
+			//If the first edge is being checked, compare to the second edge to find the origin vertex
+			if(j == 0 && path.size() > 1)
 			{
-				AssemblyEdge previousEdge = null;
-				if(j > 0)
-					previousEdge = path.get(j - 1);
-				AssemblyEdge edge = path.get(j);
-				AssemblyVertex a = edge.getVertex1();
-				AssemblyVertex b = edge.getVertex2();
-				if(previousEdge == null && path.size() > j + 1)
+				AssemblyEdge nextEdge = path.get(j + 1);
+				//The common vertex is the second vertex of the path
+				if(nextEdge.getVertex1().getIndex() == edge.getVertex1().getIndex() || nextEdge.getVertex2().getIndex() == edge.getVertex1().getIndex())
 				{
-					previousEdge = path.get(j + 1);
-					if(previousEdge.getVertex1().getIndex() == edge.getVertex1().getIndex() || previousEdge.getVertex2().getIndex() == edge.getVertex1().getIndex())
-					{
-						a = edge.getVertex2();
-						b = edge.getVertex1();
-					}
+					a = edge.getVertex2();
+					b = edge.getVertex1();
 				}
-				else if (previousEdge != null)
-				{
-					if(previousEdge.getVertex1().getIndex() == edge.getVertex2().getIndex() || previousEdge.getVertex2().getIndex() == edge.getVertex2().getIndex())
-					{
-						a = edge.getVertex2();
-						b = edge.getVertex1();
-					}
+			}
+			else if(lastVertex == b)
+			{
+				//The common vertex is the first vertex to be compared
+				a = edge.getVertex2();
+				b = edge.getVertex1();
+			}
+			if(j > 0 && lastVertex != a)
+			{
+				throw new RuntimeException("Inconsistency found in path");
+			}
+			if(j == 0)
+			{
+				consensus.append(a.isStart() ? a.getRead().toString(): reverseComplement(a.getRead().toString()));
+			}
+			else if(a.getRead() != b.getRead())
+			{
+				//If the second string isn't start, then the reverse complement is added to the consensus
+				String nextSequence = b.isStart() ? b.getRead().toString(): reverseComplement(b.getRead().toString());
+				int overlap = Math.min(edge.getOverlap(), Math.min(nextSequence.length(), consensus.length()));
+				if(overlap > 0) {
+					//The expected diagonal is given by the overlap, so only a band around it is aligned
+					String tail = consensus.substring(consensus.length() - overlap);
+					String overlapSegment = nextSequence.substring(0, overlap);
+					aligner.setBandWidth(Math.max(minBandWidth, (int) (bandFraction * overlap)));
+					String[] alignment = aligner.getAlignment(tail, overlapSegment);
+					String joined = joinedString(graph.getEmbedded(a.getIndex()/2), graph.getEmbedded(b.getIndex()/2), alignment);
+					consensus.setLength(consensus.length() - overlap);
+					consensus.append(joined);
 				}
-				String s1 = a.isStart() ? a.getRead().toString() : complementaryStrand(a.getRead().toString());
-				String s2 = b.isStart() ? b.getRead().toString() : complementaryStrand(b.getRead().toString());
-				AlignmentAffineGap alignment = new AlignmentAffineGap(match, openGap, extGap, mismatch);
-				String[] alignments = alignment.getAlignment(s1, s2);	
-				System.out.println(alignments[0]);
-				System.out.println(alignments[1]);
-				//consensus = consensus.concat(joinedString(graph.getEmbedded(a.getIndex()), graph.getEmbedded(j+1), alignmentOrig));
+				consensus.append(nextSequence, overlap, nextSequence.length());
 			}
-			consensusList.add(consensus);
-		}	
-		return consensusList;
+			lastVertex = b;
+		}
+		return consensus;
 	}
-	
+
+	/**
+	 * Joins the two aligned sequences. Mismatches are resolved in favor of the read having more embedded reads
+	 * @param embedded1 Reads embedded in the first read
+	 * @param embedded2 Reads embedded in the second read
+	 * @param alignment Aligned segments of the consensus and the next read
+	 * @return String consensus of the aligned segments
+	 */
 	private String joinedString(List<AssemblyEmbedded> embedded1, List<AssemblyEmbedded> embedded2, String[] alignment)
 	{
-		StringBuilder finalString = new StringBuilder();
-		int i = 0;
-		if(!startConsensus)
-		{
-			for(i = alignment[0].length() - 1; i >= 0; i--)
-			{
-				char b = alignment[0].charAt(i);
-				if(b != '-')
-					break;
-			}
-			i++;
-		}
-		else
-			startConsensus = false;
-		
-		for (; i < alignment[0].length(); i++) 
+		StringBuilder finalString = new StringBuilder(alignment[0].length());
+		for (int i = 0; i < alignment[0].length(); i++)
 		{
 			char a = alignment[0].charAt(i);
 			char b = alignment[1].charAt(i);
-			if(a == '-' && b != '-')
+			if(a == '-')
 			{
 				finalString.append(b);
 			}
-			else if(a != '-' && b == '-')
+			else if(b == '-' || a == b)
 			{
 				finalString.append(a);
 			}
-			else if(a == b)
-			{
-				finalString.append(a);
-			}
-			else if(a != b)
+			else
 			{
 				if(embedded1 != null && embedded2 != null)
-					finalString.append(embedded1.size() > embedded2.size() ? a : b);
-				else if (embedded1 != null)
+					finalString.append(embedded1.size() >= embedded2.size() ? a : b);
+				else if (embedded1 != null || embedded2 == null)
 					finalString.append(a);
-				else 
+				else
 					finalString.append(b);
 			}
 		}
-		boolean stop = false;
 		return finalString.toString();
 	}
-	
-	private void printAlignmentMatrix(int[][] matrix, String s1, String s2)
-	{
-		System.out.print("\t-\t");
-		for (int i = 0; i < s2.length(); i++) {
-			System.out.print(s2.charAt(i) + "\t");
-		}
-		System.out.println();
-		for (int i = 0; i < matrix.length; i++) {
-			if(i == 0)
-				System.out.print("-\t");
-			else 
-				System.out.print(s1.charAt(i - 1) + "\t");
-		    for (int j = 0; j < matrix[i].length; j++) {
-		        System.out.print(matrix[i][j] + "\t");
-		    }
-		    System.out.println();
-		}
-	}
-	
-	private String complementaryStrand(String s)
+
+	private String reverseComplement(String s)
 	{
 		StringBuilder complementaryStrand = new StringBuilder();
 		for(int i = 0; i < s.length(); i++)
 		{
 			complementaryStrand.append(complementaryBase(s.charAt(i)));
 		}
-		return complementaryStrand.toString();
+		return complementaryStrand.reverse().toString();
 	}
-	
+
 	private char complementaryBase(char b)
 	{
 		char complementaryBase;
@@ -17,12 +17,12 @@ public class ConsensusBuilderBidirectionalFMIndex implements ConsensusBuilder {
 	int mismatch;
 	int windowSize;
 	int tolerance;
-	AlignmentAffineGap aligner;
+	AlignmentAffineGapBanded aligner;
 	boolean startConsensus = true;
 	
 	public ConsensusBuilderBidirectionalFMIndex() 
 	{
-		aligner = new AlignmentAffineGap(match, openGap, extGap, mismatch);
+		aligner = new AlignmentAffineGapBanded(match, openGap, extGap, mismatch);
 	}
 	
 	@Override
@@ -10,12 +10,12 @@ public class ConsensusBuilderBidirectionalNoGaps implements ConsensusBuilder {
 	int mismatch;
 	int windowSize;
 	int tolerance;
-	AlignmentAffineGap aligner;
+	AlignmentAffineGapBanded aligner;
 	boolean startConsensus = true;
 	
 	public ConsensusBuilderBidirectionalNoGaps() 
 	{
-		aligner = new AlignmentAffineGap(match, openGap, extGap, mismatch);
+		aligner = new AlignmentAffineGapBanded(match, openGap, extGap, mismatch);
 	}
 	
 	@Override
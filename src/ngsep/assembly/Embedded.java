@@ -0,0 +1,42 @@
+package ngsep.assembly;
+
+import java.io.Serializable;
+
+class Embedded implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private int pos;
+	private boolean reversed;
+	private double rate;
+
+	public Embedded(int pos, boolean reversed, double rate) {
+		this.pos = pos;
+		this.reversed = reversed;
+		this.rate = rate;
+	}
+
+	public int getPos() {
+		return pos;
+	}
+
+	public void setPos(int pos) {
+		this.pos = pos;
+	}
+
+	public boolean isReversed() {
+		return reversed;
+	}
+
+	public void setReversed(boolean reversed) {
+		this.reversed = reversed;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+}
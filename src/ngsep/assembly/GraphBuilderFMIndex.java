@@ -1,13 +1,19 @@
 package ngsep.assembly;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import ngsep.alignments.ReadAlignment;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
+
 import ngsep.sequences.FMIndex;
 
 import static ngsep.assembly.TimeUtilities.progress;
@@ -17,6 +23,7 @@ import static ngsep.assembly.TimeUtilities.timeIt;
 public class GraphBuilderFMIndex implements GraphBuilder {
 	private final static int TALLY_DISTANCE = 100;// *64
 	private final static int SUFFIX_FRACTION = 16;
+	private final static int READS_PER_TASK = 100;
 
 	private FMIndex index;
 	private KmerIterator kmerIterator;
@@ -24,7 +31,6 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 	private AssemblyConfiguration config;
 
 	private SimplifiedAssemblyGraph assemblyGraph;
-	private Map<Integer, List<int[]>> hits;
 
 	@Override
 	public AssemblyGraph buildAssemblyGraph(List<CharSequence> sequences) {
@@ -46,7 +52,6 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 		timeGroup("    Indentify overlaps", () -> {
 			kmerIterator = new KmerIterator(config);
 			assemblyGraph = new SimplifiedAssemblyGraph(sequences);
-			hits = new HashMap<Integer, List<int[]>>(sequences.size());
 
 			printRates();
 			timeIt("      Find overlaps ", () -> findOverlapsAndEmbedded());
@@ -90,7 +95,12 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 	}
 
 	public void findOverlapsAndEmbedded() {
-		HitsAligner aligner = new TreesHitAligner(assemblyGraph, config, sequences);
+		if (config.getNumThreads() > 1) {
+			findOverlapsAndEmbeddedParallel();
+			return;
+		}
+		OverlapsFinder finder = new OverlapsFinder(assemblyGraph::isEmbedded);
+		finder.setCollector(assemblyGraph);
 		for (int seqId = 0, excp = 0; seqId < sequences.size(); seqId++) {
 			progress("      Find overlaps ", seqId + assemblyGraph.amuontOfEmbeddedSequences() - excp,
 					sequences.size());
@@ -98,29 +108,169 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 				excp++;
 				continue;
 			}
+			finder.findOverlaps(seqId);
+		}
+	}
 
-			calculateHits(seqId, kmerIterator.positiveStrand(sequences.get(seqId)));
-			for (Entry<Integer, List<int[]>> entry : hits.entrySet())
-				if (entry.getValue().size() > 1)
-					aligner.Aling(seqId, entry.getKey(), false, entry.getValue());
+	/**
+	 * Finds overlaps processing blocks of reads in different threads. Each thread
+	 * stores the overlaps of its block in a buffer. Buffers are added to the graph
+	 * in the order of the reads, skipping alignments involving reads that are
+	 * embedded when the alignment is added. The single thread search applies the
+	 * same rule before each alignment
+	 */
+	private void findOverlapsAndEmbeddedParallel() {
+		int numThreads = config.getNumThreads();
+		int n = sequences.size();
+		// Embedded reads already added to the graph. Used by the threads to avoid
+		// unnecessary work
+		AtomicIntegerArray embedded = new AtomicIntegerArray(n);
+		ThreadLocal<OverlapsFinder> finders = ThreadLocal
+				.withInitial(() -> new OverlapsFinder((id) -> embedded.get(id) != 0));
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<OverlapsBuffer>> pending = new LinkedList<>();
+		try {
+			int next = 0;
+			int merged = 0;
+			while (merged < n) {
+				while (next < n && pending.size() < 2 * numThreads) {
+					int first = next;
+					int last = Math.min(n, first + READS_PER_TASK);
+					pending.add(pool.submit(() -> finders.get().findOverlaps(first, last)));
+					next = last;
+				}
+				OverlapsBuffer buffer = pending.removeFirst().get();
+				buffer.addTo(assemblyGraph, (id) -> embedded.set(id, 1));
+				merged = Math.min(n, merged + READS_PER_TASK);
+				progress("      Find overlaps ", merged, n);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Overlaps search interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error finding overlaps", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Finds the overlaps of one read at a time. Hits are stored in primitive arrays
+	 * that are reused between reads. Instances are not thread safe
+	 */
+	private class OverlapsFinder {
+		private IntPredicate isEmbedded;
+		private HitsAligner aligner;
+		private OverlapsBuffer buffer;
+
+		// Hits of the current read: id of the read with the hit, position in the
+		// current read and position in the other read
+		private int[] hitsLec = new int[1000];
+		private int[] hitsPosRef = new int[1000];
+		private int[] hitsPosLec = new int[1000];
+		private long[] order = new long[1000];
+		private int numHits = 0;
 
+		/**
+		 * @param isEmbedded tells if a read is already known to be embedded
+		 */
+		public OverlapsFinder(IntPredicate isEmbedded) {
+			this.isEmbedded = isEmbedded;
+		}
+
+		/**
+		 * @param collector receives the overlaps found by the following calls to
+		 *                  findOverlaps
+		 */
+		public void setCollector(OverlapsCollector collector) {
+			aligner = new TreesHitAligner(collector, config, sequences);
+		}
+
+		/**
+		 * Finds the overlaps of a block of reads
+		 * 
+		 * @param first id of the first read
+		 * @param last  id of the read after the last read of the block
+		 * @return OverlapsBuffer with the overlaps found for the block
+		 */
+		public OverlapsBuffer findOverlaps(int first, int last) {
+			buffer = new OverlapsBuffer();
+			setCollector(buffer);
+			for (int seqId = first; seqId < last; seqId++) {
+				if (isEmbedded.test(seqId))
+					continue;
+				findOverlaps(seqId);
+			}
+			OverlapsBuffer answer = buffer;
+			buffer = null;
+			return answer;
+		}
+
+		/**
+		 * Finds the overlaps of a read with the following reads
+		 * 
+		 * @param seqId id of the read
+		 */
+		public void findOverlaps(int seqId) {
+			calculateHits(seqId, kmerIterator.positiveStrand(sequences.get(seqId)));
+			alignHits(seqId, false);
+			if (isEmbedded.test(seqId))
+				return;
 			calculateHits(seqId, kmerIterator.negativeStrand(sequences.get(seqId)));
-			for (Entry<Integer, List<int[]>> entry : hits.entrySet())
-				if (entry.getValue().size() > 1)
-					aligner.Aling(seqId, entry.getKey(), true, entry.getValue());
+			alignHits(seqId, true);
 		}
-	}
 
-	private void calculateHits(int id_Ref, Iterable<Entry<Integer, String>> kmerIters) {
-		hits.clear();
-		for (Entry<Integer, String> entry : kmerIters) {
-			int pos_Ref = entry.getKey();
-			for (ReadAlignment readAlignment : index.search(entry.getValue())) {
-				int id_Lec = Integer.parseInt(readAlignment.getSequenceName());
-				int pos_Lec = readAlignment.getFirst();
+		private void calculateHits(int id_Ref, Iterable<Entry<Integer, String>> kmerIters) {
+			numHits = 0;
+			for (Entry<Integer, String> entry : kmerIters) {
+				int pos_Ref = entry.getKey();
+				int[] matches = index.searchSequenceIndexesAndOffsets(entry.getValue());
+				for (int i = 0; i < matches.length; i += 2) {
+					int id_Lec = matches[i];
+					if (id_Ref < id_Lec && !isEmbedded.test(id_Lec))
+						addHit(id_Lec, pos_Ref, matches[i + 1]);
+				}
+			}
+		}
+
+		private void addHit(int id_Lec, int pos_Ref, int pos_Lec) {
+			if (numHits == hitsLec.length) {
+				int size = 2 * numHits;
+				hitsLec = Arrays.copyOf(hitsLec, size);
+				hitsPosRef = Arrays.copyOf(hitsPosRef, size);
+				hitsPosLec = Arrays.copyOf(hitsPosLec, size);
+				order = new long[size];
+			}
+			hitsLec[numHits] = id_Lec;
+			hitsPosRef[numHits] = pos_Ref;
+			hitsPosLec[numHits] = pos_Lec;
+			numHits++;
+		}
 
-				if (id_Ref < id_Lec && !assemblyGraph.isEmbedded(id_Lec))
-					hits.computeIfAbsent(id_Lec, x -> new LinkedList<int[]>()).add(new int[] { pos_Ref, pos_Lec });
+		/**
+		 * Groups the hits by read keeping the order in which they were found and
+		 * aligns the reads in increasing order of id. Alignments stop if the
+		 * current read becomes embedded and reads embedded after the hits were
+		 * calculated are not aligned
+		 */
+		private void alignHits(int id_Ref, boolean isReverse) {
+			for (int i = 0; i < numHits; i++)
+				order[i] = ((long) hitsLec[i] << 32) | i;
+			Arrays.sort(order, 0, numHits);
+			List<int[]> readHits = new ArrayList<>();
+			for (int i = 0; i < numHits;) {
+				int id_Lec = (int) (order[i] >>> 32);
+				readHits.clear();
+				for (; i < numHits && (int) (order[i] >>> 32) == id_Lec; i++) {
+					int j = (int) order[i];
+					readHits.add(new int[] { hitsPosRef[j], hitsPosLec[j] });
+				}
+				if (isEmbedded.test(id_Ref))
+					return;
+				if (readHits.size() > 1 && !isEmbedded.test(id_Lec)) {
+					if (buffer != null)
+						buffer.startAlignment(id_Ref, id_Lec);
+					aligner.Aling(id_Ref, id_Lec, isReverse, readHits);
+				}
 			}
 		}
 	}
@@ -132,6 +282,8 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 			AssemblyConfiguration config = (args.length > 3)
 					? new AssemblyConfiguration(Double.valueOf(args[2]), Double.valueOf(args[3]))
 					: new AssemblyConfiguration();
+			if (args.length > 4)
+				config.setNumThreads(Integer.parseInt(args[4]));
 			GraphBuilderFMIndex builder = new GraphBuilderFMIndex();
 			builder.setConfig(config);
 			return builder.buildSimplifiedAssemblyGraph(sequences);
@@ -139,7 +291,7 @@ public class GraphBuilderFMIndex implements GraphBuilder {
 
 		timeIt("Save the Graph", () -> {
 			try {
-				assemblyGraph.save(args[1]);
+				assemblyGraph.compact().save(args[1]);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -22,7 +22,7 @@ public interface HitsAligner {
 }
 
 class TreesHitAligner implements HitsAligner {
-	private SimplifiedAssemblyGraph sag;
+	private OverlapsCollector sag;
 	private AssemblyConfiguration config;
 	private List<CharSequence> sequences;
 
@@ -41,7 +41,7 @@ class TreesHitAligner implements HitsAligner {
 	private Stack<Integer> keys = new Stack<>();
 	private Stack<int[]> values = new Stack<>();
 
-	public TreesHitAligner(SimplifiedAssemblyGraph sag, AssemblyConfiguration config, List<CharSequence> sequences) {
+	public TreesHitAligner(OverlapsCollector sag, AssemblyConfiguration config, List<CharSequence> sequences) {
 		this.sag = sag;
 		this.config = config;
 		this.sequences = sequences;
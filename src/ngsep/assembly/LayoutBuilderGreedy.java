@@ -1,131 +1,143 @@
 package ngsep.assembly;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
-public class LayoutBuilderGreedy implements LayourBuilder 
-{	
+public class LayoutBuilderGreedy implements LayourBuilder
+{
 	@Override
 	public void findPaths(AssemblyGraph graph) {
-		//Hashmap of edges per vertex
-		Map<AssemblyVertex, List<AssemblyEdge>> edges = new HashMap<AssemblyVertex, List<AssemblyEdge>>(); 
-		//Adds the current edge to both vertices if they don't have it already in their list of edges
-		for (AssemblyEdge assemblyEdge : graph.getEdges()) 
+		List<AssemblyEdge> graphEdges = graph.getEdges();
+		int numVertices = graph.getVertices().size();
+		int numEdges = graphEdges.size();
+		//Vertices of each edge and edges of each vertex in compressed sparse row format
+		int [] edgeVertex1 = new int[numEdges];
+		int [] edgeVertex2 = new int[numEdges];
+		int [] edgeOverlaps = new int[numEdges];
+		int [] vertexStarts = new int[numVertices+1];
+		for (int e = 0; e < numEdges; e++)
 		{
-			AssemblyVertex v1 = assemblyEdge.getVertex1();
-			AssemblyVertex v2 = assemblyEdge.getVertex2();
-			
-			edges.computeIfAbsent(v1, (AssemblyVertex x) -> new ArrayList<AssemblyEdge>()).add(assemblyEdge);
-			edges.computeIfAbsent(v2, (AssemblyVertex x) -> new ArrayList<AssemblyEdge>()).add(assemblyEdge);
+			AssemblyEdge assemblyEdge = graphEdges.get(e);
+			edgeVertex1[e] = assemblyEdge.getVertex1().getIndex();
+			edgeVertex2[e] = assemblyEdge.getVertex2().getIndex();
+			edgeOverlaps[e] = assemblyEdge.getOverlap();
+			vertexStarts[edgeVertex1[e]+1]++;
+			vertexStarts[edgeVertex2[e]+1]++;
 		}
-		
-		//List of globally used vertices 
-		Set<Integer> usedVerticesGlobal = new HashSet<Integer>(); 
+		for (int v = 0; v < numVertices; v++) vertexStarts[v+1]+=vertexStarts[v];
+		//Adds the current edge to both vertices keeping the order of the edges in the graph
+		int [] vertexEdges = new int[vertexStarts[numVertices]];
+		int [] next = Arrays.copyOf(vertexStarts, numVertices);
+		for (int e = 0; e < numEdges; e++)
+		{
+			vertexEdges[next[edgeVertex1[e]]++] = e;
+			vertexEdges[next[edgeVertex2[e]]++] = e;
+		}
+
+		//Globally used vertices. Edges with an used vertex are not available
+		boolean [] usedVerticesGlobal = new boolean[numVertices];
+		int numUsedGlobal = 0;
+		//Marks to count distinct linked vertices and to identify locally used vertices
+		int [] marks = new int[numVertices];
+		int mark = 0;
+		int [] numLinked = new int[numVertices];
 		//Creates contigs until all the vertices are used or don't have available edges
-		while(usedVerticesGlobal.size() < graph.getVertices().size() && edges.values().stream().filter(e -> e.size() > 0).count() > 0)
-		{			
+		while(numUsedGlobal < numVertices)
+		{
 			//Look for the vertices with the least linked vertices
-			List<AssemblyVertex> origins = new ArrayList<AssemblyVertex>();
-			for(int i = 1; i < Integer.MAX_VALUE && origins.size() == 0; i++)
+			int minLinked = Integer.MAX_VALUE;
+			for(int v = 0; v < numVertices; v++)
 			{
-				for(Entry<AssemblyVertex, List<AssemblyEdge>> entry : edges.entrySet())
+				numLinked[v] = 0;
+				if(usedVerticesGlobal[v]) continue;
+				mark = nextMark(marks, mark);
+				for(int i = vertexStarts[v]; i < vertexStarts[v+1]; i++)
 				{
-					//Set of linked vertices to the vertex
-					Set<Integer> vertices = new HashSet<Integer>();
-					for(AssemblyEdge edge : entry.getValue())
-					{
-						vertices.add(edge.getVertex1().getIndex() == entry.getKey().getIndex() ? edge.getVertex2().getIndex() : edge.getVertex1().getIndex());
-					}
-					String seq = entry.getKey().getRead().toString();
-					if(vertices.size() == i)
-					{
-						origins.add(entry.getKey());
-					}
+					int e = vertexEdges[i];
+					int other = edgeVertex1[e] == v ? edgeVertex2[e] : edgeVertex1[e];
+					if(usedVerticesGlobal[other] || marks[other] == mark) continue;
+					marks[other] = mark;
+					numLinked[v]++;
 				}
+				if(numLinked[v] > 0 && numLinked[v] < minLinked) minLinked = numLinked[v];
 			}
-			
+			//No vertex has available edges
+			if(minLinked == Integer.MAX_VALUE) break;
+
 			//Add path for every origin, picks the largest overlap with an unused node.
-			//List of lists of used vertices
-			List<Set<Integer>> usedVerticesList = new ArrayList<Set<Integer>>(); 
-			//List of lists of possible paths. The one with the most edges visited is chosen.
-			List<List<AssemblyEdge>> paths = new ArrayList<List<AssemblyEdge>>(); 
 			//Check every origin found and look for the one with most edges visited
-			for(AssemblyVertex origin : origins) 
+			int [] maxPath = null;
+			int [] maxUsedVertices = null;
+			int [] path = new int[16];
+			int [] usedVerticesLocal = new int[16];
+			for(int origin = 0; origin < numVertices; origin++)
 			{
+				if(usedVerticesGlobal[origin] || numLinked[origin] != minLinked) continue;
 				//Chosen path for origin
-				List<AssemblyEdge> ans = new LinkedList<AssemblyEdge>();
-				//List of used vertices is initialized with the already accepted used vertices
-				Set<Integer> usedVerticesLocal = new HashSet<Integer>();
-				usedVerticesLocal.addAll(usedVerticesGlobal);
+				int pathLength = 0;
+				//Used vertices are the already accepted used vertices plus the vertices marked for this origin
+				mark = nextMark(marks, mark);
+				int numUsedLocal = 0;
 				//First used vertex is the origin
-				usedVerticesLocal.add(origin.getIndex());
-				boolean end = false;
-				AssemblyVertex pre = origin;
-				while(!end)
+				marks[origin] = mark;
+				usedVerticesLocal[numUsedLocal++] = origin;
+				int pre = origin;
+				while(true)
 				{
-					AssemblyEdge max = null;
+					int max = -1;
 					//Picks the edge with the longest overlap for the current vertex
-					for(AssemblyEdge e : edges.get(pre))
+					for(int i = vertexStarts[pre]; i < vertexStarts[pre+1]; i++)
 					{
-						AssemblyVertex post = e.getVertex1().getIndex() == pre.getIndex() ? e.getVertex2() : e.getVertex1();
-						if((max == null || e.getOverlap() > max.getOverlap()) && !usedVerticesLocal.contains(post.getIndex()))
+						int e = vertexEdges[i];
+						if(usedVerticesGlobal[edgeVertex1[e]] || usedVerticesGlobal[edgeVertex2[e]]) continue;
+						int post = edgeVertex1[e] == pre ? edgeVertex2[e] : edgeVertex1[e];
+						if((max == -1 || edgeOverlaps[e] > edgeOverlaps[max]) && marks[post] != mark)
 							max = e;
 					}
 					//If there's no edge found, the path ends
-					if(max == null)
-						end = true;
-					else
-					{
-						ans.add(max);
-						usedVerticesLocal.add(pre.getIndex());
-						pre = max.getVertex1().getIndex() == pre.getIndex() ? max.getVertex2() : max.getVertex1();
+					if(max == -1) break;
+					if(pathLength == path.length) path = Arrays.copyOf(path, 2*pathLength);
+					path[pathLength++] = max;
+					if(marks[pre] != mark) {
+						marks[pre] = mark;
+						if(numUsedLocal == usedVerticesLocal.length) usedVerticesLocal = Arrays.copyOf(usedVerticesLocal, 2*numUsedLocal);
+						usedVerticesLocal[numUsedLocal++] = pre;
 					}
+					pre = edgeVertex1[max] == pre ? edgeVertex2[max] : edgeVertex1[max];
 				}
-				paths.add(ans);
-				usedVerticesList.add(usedVerticesLocal);
-			}
-			
-			//Picks the longest path among the possible origins
-			List<AssemblyEdge> maxPath = null;
-			Set<Integer> maxUsedVertices = null;
-			for(int i = 0; i < paths.size(); i++)
-			{
-				List<AssemblyEdge> path = paths.get(i);
-				if(maxPath == null || maxPath.size() < path.size())
+				//Picks the longest path among the possible origins
+				if(maxPath == null || maxPath.length < pathLength)
 				{
-					maxPath = path;
-					maxUsedVertices = usedVerticesList.get(i);
+					maxPath = Arrays.copyOf(path, pathLength);
+					maxUsedVertices = Arrays.copyOf(usedVerticesLocal, numUsedLocal);
 				}
 			}
-			//Adds the longest path to the list of paths of the graph if it has more than one edge
-			if(maxPath != null && maxPath.size() > 5)
+			//Adds the longest path to the list of paths of the graph if it has more than five edges
+			if(maxPath.length > 5)
+			{
+				List<AssemblyEdge> pathEdges = new LinkedList<AssemblyEdge>();
+				for(int e:maxPath) pathEdges.add(graphEdges.get(e));
+				graph.addPath(pathEdges);
+			}
+			for(int v:maxUsedVertices)
 			{
-				graph.addPath(maxPath);
+				if(!usedVerticesGlobal[v]) numUsedGlobal++;
+				usedVerticesGlobal[v] = true;
 			}
-			usedVerticesGlobal.addAll(maxUsedVertices);
 			//If the maximum path has 5 vertices, don't build more contigs
-			if (maxPath.size() <= 5)
+			if (maxPath.length <= 5)
 			{
 				break;
 			}
-			
+		}
+	}
 
-			//Remove from map all vertices that exist in the used vertices list
-			edges.entrySet().removeIf(e -> usedVerticesGlobal.contains(e.getKey().getIndex()));
-			//Remove from map all edges that have an used vertex
-			for(Entry<AssemblyVertex, List<AssemblyEdge>> entry : edges.entrySet())
-			{
-				entry.getValue().removeIf(e -> 
-					usedVerticesGlobal.contains(e.getVertex1().getIndex()) ||
-					usedVerticesGlobal.contains(e.getVertex2().getIndex())
-				);
-			}
+	private static int nextMark(int [] marks, int mark) {
+		if(mark == Integer.MAX_VALUE) {
+			Arrays.fill(marks, 0);
+			mark = 0;
 		}
+		return mark+1;
 	}
 }
@@ -0,0 +1,88 @@
+package ngsep.assembly;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Stores in primitive arrays the overlaps found by one thread for a block of
+ * reads, so that they can be added later to the {@link SimplifiedAssemblyGraph}
+ * in the same order in which a single thread would add them
+ */
+class OverlapsBuffer implements OverlapsCollector {
+	private static final int EDGE = 0;
+	private static final int EMBEDDED = 1;
+	private static final int FIELDS = 7;
+
+	/**
+	 * For each event: type, id of the reference read, id of the aligned read and
+	 * four values that depend on the type
+	 */
+	private int[] values = new int[FIELDS * 64];
+	private double[] rates = new double[64];
+	private int size = 0;
+
+	private int currentRef;
+	private int currentLec;
+
+	/**
+	 * Sets the pair of reads aligned by the following calls to addEdge and
+	 * addEmbedded
+	 * 
+	 * @param idRef id of the read used to search kmers
+	 * @param idLec id of the read having the hits
+	 */
+	public void startAlignment(int idRef, int idLec) {
+		currentRef = idRef;
+		currentLec = idLec;
+	}
+
+	@Override
+	public void addEdge(int id, int id2, int weigth, double rate) {
+		add(EDGE, id, id2, weigth, 0, rate);
+	}
+
+	@Override
+	public void addEmbedded(int id, int idEmb, int pos, boolean reversed, double rate) {
+		add(EMBEDDED, id, idEmb, pos, reversed ? 1 : 0, rate);
+	}
+
+	private void add(int type, int v1, int v2, int v3, int v4, double rate) {
+		if (size == rates.length) {
+			rates = Arrays.copyOf(rates, 2 * size);
+			values = Arrays.copyOf(values, FIELDS * 2 * size);
+		}
+		int i = FIELDS * size;
+		values[i] = type;
+		values[i + 1] = currentRef;
+		values[i + 2] = currentLec;
+		values[i + 3] = v1;
+		values[i + 4] = v2;
+		values[i + 5] = v3;
+		values[i + 6] = v4;
+		rates[size] = rate;
+		size++;
+	}
+
+	/**
+	 * Adds the stored events to the given graph. Alignments involving reads that
+	 * are embedded when the event is added are skipped. This is the rule applied
+	 * by the single thread search before each alignment
+	 * 
+	 * @param graph            the graph to update
+	 * @param embeddedListener receives the ids of the reads added to the graph as
+	 *                         embedded
+	 */
+	public void addTo(SimplifiedAssemblyGraph graph, IntConsumer embeddedListener) {
+		for (int k = 0; k < size; k++) {
+			int i = FIELDS * k;
+			if (graph.isEmbedded(values[i + 1]) || graph.isEmbedded(values[i + 2]))
+				continue;
+			if (values[i] == EDGE) {
+				graph.addEdge(values[i + 3], values[i + 4], values[i + 5], rates[k]);
+			} else {
+				graph.addEmbedded(values[i + 3], values[i + 4], values[i + 5], values[i + 6] == 1, rates[k]);
+				embeddedListener.accept(values[i + 4]);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package ngsep.assembly;
+
+/**
+ * Receives the overlaps and embedded relationships identified by a
+ * {@link HitsAligner}
+ */
+interface OverlapsCollector {
+	/**
+	 * Adds an overlap between two vertices
+	 * 
+	 * @param id     first vertex. Two times the sequence id plus one for the end
+	 * @param id2    second vertex. Two times the sequence id plus one for the end
+	 * @param weigth length of the overlap
+	 * @param rate   rate of kmers supporting the overlap
+	 */
+	void addEdge(int id, int id2, int weigth, double rate);
+
+	/**
+	 * Adds a sequence embedded in another sequence
+	 * 
+	 * @param id       id of the sequence containing the embedded sequence
+	 * @param idEmb    id of the embedded sequence
+	 * @param pos      position of the embedded sequence
+	 * @param reversed if the embedded sequence is reverse complemented
+	 * @param rate     rate of kmers supporting the relationship
+	 */
+	void addEmbedded(int id, int idEmb, int pos, boolean reversed, double rate);
+}
@@ -19,7 +19,7 @@ public class SelfAlignment
 	public static String[] selfAlign(String mainRead, List<AssemblyEmbedded> embeddedReads, boolean reverse, int match, int openGap, int extGap, int mismatch)
 	{
 		StringBuilder[] alignmentsB = new StringBuilder[embeddedReads.size() + 1];
-		AlignmentAffineGap aligner = new AlignmentAffineGap(match, openGap, extGap, mismatch);
+		AlignmentAffineGapBanded aligner = new AlignmentAffineGapBanded(match, openGap, extGap, mismatch);
 		for(int i = 0; i < embeddedReads.size(); i++)
 		{
 			AssemblyEmbedded embeddedRead = embeddedReads.get(i);
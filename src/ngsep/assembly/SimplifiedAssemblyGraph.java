@@ -8,6 +8,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -19,19 +21,20 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.Map.Entry;
 
-public class SimplifiedAssemblyGraph implements Serializable {
+public class SimplifiedAssemblyGraph implements Serializable, OverlapsCollector {
 	private static final long serialVersionUID = 1L;
 
 	private List<CharSequence> sequences;
 	private Map<Integer, Map<Integer, Alignment>> edges;
 	private Map<Integer, Map<Integer, Embedded>> embbeded;
-	private Set<Integer> isEmbbeded;
+	private BitSet isEmbbeded;
+	private int numEmbedded;
 
 	public SimplifiedAssemblyGraph(List<CharSequence> sequences) {
 		this.sequences = sequences;
 		edges = new HashMap<Integer, Map<Integer, Alignment>>();
 		embbeded = new HashMap<Integer, Map<Integer, Embedded>>();
-		isEmbbeded = new HashSet<Integer>();
+		isEmbbeded = new BitSet(sequences.size());
 		for (int i = 0; i < sequences.size(); i++)
 			addEdge(i << 1, (i << 1) + 1, sequences.get(i).length(), 1);
 	}
@@ -46,18 +49,23 @@ public class SimplifiedAssemblyGraph implements Serializable {
 	}
 
 	public int amuontOfEmbeddedSequences() {
-		return isEmbbeded.size();
+		return numEmbedded;
 	}
 
 	public boolean isEmbedded(int id) {
-		return this.isEmbbeded.contains(id);
+		return this.isEmbbeded.get(id);
 	}
 
+	@Override
 	public void addEmbedded(int id, int idEmb, int pos, boolean reversed, double rate) {
-		isEmbbeded.add(idEmb);
+		if (!isEmbbeded.get(idEmb)) {
+			isEmbbeded.set(idEmb);
+			numEmbedded++;
+		}
 		embbeded.computeIfAbsent(id, (x) -> new HashMap<>()).put(idEmb, new Embedded(pos, reversed, rate));
 	}
 
+	@Override
 	public void addEdge(int id, int id2, int weigth, double rate) {
 		Alignment aln = new Alignment(weigth, rate);
 		edges.computeIfAbsent(id, (x) -> new HashMap<>()).put(id2, aln);
@@ -103,8 +111,8 @@ public class SimplifiedAssemblyGraph implements Serializable {
 		int[] map = new int[sequences.size()];
 		Arrays.fill(map, 1);
 
-		System.out.println(this.isEmbbeded.size());
-		for (int i : isEmbbeded) {
+		System.out.println(numEmbedded);
+		for (int i = isEmbbeded.nextSetBit(0); i >= 0; i = isEmbbeded.nextSetBit(i + 1)) {
 			queue.add(i);
 			map[i] = 0;
 		}
@@ -197,10 +205,26 @@ public class SimplifiedAssemblyGraph implements Serializable {
 			sequences = (List<CharSequence>) ois.readObject();
 			edges = (Map<Integer, Map<Integer, Alignment>>) ois.readObject();
 			embbeded = (Map<Integer, Map<Integer, Embedded>>) ois.readObject();
-			isEmbbeded = (Set<Integer>) ois.readObject();
+			Object embeddedIds = ois.readObject();
+			if (embeddedIds instanceof BitSet)
+				isEmbbeded = (BitSet) embeddedIds;
+			else {
+				// Graphs saved by previous versions store the embedded ids in a set
+				isEmbbeded = new BitSet(sequences.size());
+				for (int id : (Collection<Integer>) embeddedIds)
+					isEmbbeded.set(id);
+			}
+			numEmbedded = isEmbbeded.cardinality();
 		}
 	}
 
+	/**
+	 * @return a copy of this graph in compressed sparse row format
+	 */
+	public CompactAssemblyGraph compact() {
+		return new CompactAssemblyGraph(this);
+	}
+
 	public void save(String path) throws FileNotFoundException, IOException {
 		try (ObjectOutputStream obs = new ObjectOutputStream(new FileOutputStream(path))) {
 			obs.writeObject(sequences);
@@ -235,79 +259,11 @@ public class SimplifiedAssemblyGraph implements Serializable {
 		this.embbeded = embbeded;
 	}
 
-	public Set<Integer> getIsEmbbeded() {
+	/**
+	 * @return the ids of the embedded reads
+	 */
+	public BitSet getEmbeddedReads() {
 		return isEmbbeded;
 	}
 
-	public void setIsEmbbeded(Set<Integer> isEmbbeded) {
-		this.isEmbbeded = isEmbbeded;
-	}
-
-}
-
-class Alignment implements Serializable {
-	private static final long serialVersionUID = 1L;
-
-	private int overlap;
-	private double rate;
-
-	public Alignment(int overlap, double rate) {
-		this.overlap = overlap;
-		this.rate = rate;
-	}
-
-	public int getOverlap() {
-		return overlap;
-	}
-
-	public void setOverlap(int overlap) {
-		this.overlap = overlap;
-	}
-
-	public double getRate() {
-		return rate;
-	}
-
-	public void setRate(double rate) {
-		this.rate = rate;
-	}
-}
-
-class Embedded implements Serializable {
-	private static final long serialVersionUID = 1L;
-
-	private int pos;
-	private boolean reversed;
-	private double rate;
-
-	public Embedded(int pos, boolean reversed, double rate) {
-		this.pos = pos;
-		this.reversed = reversed;
-		this.rate = rate;
-	}
-
-	public int getPos() {
-		return pos;
-	}
-
-	public void setPos(int pos) {
-		this.pos = pos;
-	}
-
-	public boolean isReversed() {
-		return reversed;
-	}
-
-	public void setReversed(boolean reversed) {
-		this.reversed = reversed;
-	}
-
-	public double getRate() {
-		return rate;
-	}
-
-	public void setRate(double rate) {
-		this.rate = rate;
-	}
-
 }
\ No newline at end of file
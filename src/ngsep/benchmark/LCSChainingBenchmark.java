@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.benchmark;
+
+import java.util.Random;
+import java.util.SortedSet;
+
+import ngsep.genome.GenomesAligner;
+
+/**
+ * Compares running times and results of the dynamic programming and the patience sorting implementations
+ * of the LCS used to align orthology units. Input arrays simulate collinear chromosomes with local rearrangements
+ * Usage: LCSChainingBenchmark [sizes]
+ * @author Jorge Duitama
+ */
+public class LCSChainingBenchmark {
+
+	public static void main(String[] args) {
+		int [] sizes = {1000, 2000, 5000, 10000};
+		if(args.length>0) {
+			sizes = new int [args.length];
+			for(int i=0;i<args.length;i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+		GenomesAligner aligner = new GenomesAligner();
+		Random random = new Random(42);
+		System.out.println("Size\tTimeDP(ms)\tLengthDP\tTimePatience(ms)\tLengthPatience\tEqualSets");
+		for(int n:sizes) {
+			int [] indexesMap = simulateIndexes(n, random);
+			long time = System.currentTimeMillis();
+			SortedSet<Integer> lcsDP = aligner.findLCSDynamicProgramming(indexesMap);
+			long timeDP = System.currentTimeMillis()-time;
+			time = System.currentTimeMillis();
+			SortedSet<Integer> lcs = aligner.findLCS(indexesMap);
+			long timePatience = System.currentTimeMillis()-time;
+			if(!isIncreasing(indexesMap, lcs)) throw new RuntimeException("Invalid subsequence calculated for size "+n);
+			System.out.println(n+"\t"+timeDP+"\t"+lcsDP.size()+"\t"+timePatience+"\t"+lcs.size()+"\t"+lcsDP.equals(lcs));
+		}
+	}
+
+	/**
+	 * Simulates the positions in a second genome of units sorted in the first genome
+	 * @param n Number of units
+	 * @param random Random numbers generator
+	 * @return int [] Permutation of the numbers from 0 to n-1 with inversions of random segments
+	 */
+	private static int [] simulateIndexes(int n, Random random) {
+		int [] answer = new int [n];
+		for(int i=0;i<n;i++) answer[i] = i;
+		for(int k=0;k<n/20;k++) {
+			int first = random.nextInt(n);
+			int last = Math.min(n-1, first+random.nextInt(10));
+			for(int i=first, j=last;i<j;i++,j--) {
+				int tmp = answer[i];
+				answer[i] = answer[j];
+				answer[j] = tmp;
+			}
+		}
+		return answer;
+	}
+
+	private static boolean isIncreasing(int [] indexesMap, SortedSet<Integer> positions) {
+		int last = -1;
+		for(int i:positions) {
+			if(indexesMap[i]<=last) return false;
+			last = indexesMap[i];
+		}
+		return true;
+	}
+}
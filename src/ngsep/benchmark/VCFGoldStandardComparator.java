@@ -29,10 +29,17 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionImpl;
+import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
@@ -65,10 +72,13 @@ public class VCFGoldStandardComparator {
 	private ReferenceGenome genome;
 	private Map<String, List<GenomicRegion>> complexRegions;
 	private Map<String, List<GenomicRegion>> confidenceRegions;
+	//Interval index used to find the confidence regions containing clusters and calls
+	private GenomicRegionSortedCollection<GenomicRegion> confidenceRegionsIndex;
 	private boolean genomicVCF = false;
 	
 	private int mode = 0;
 	private short minQuality = 0;
+	private int numThreads = 1;
 	
 	//Calculated statistics
 	private long confidenceRegionsLength = 0;
@@ -76,6 +86,9 @@ public class VCFGoldStandardComparator {
 	private Distribution distClusterSizeGS = new Distribution(0, 10, 1);
 	private Distribution distClusterTestHet = new Distribution(0, 10, 1);
 	private Distribution distClusterSpan = new Distribution(0, 1000, 100);
+	//Progress of the comparison. Shared by the comparators of different sequences
+	private AtomicInteger countProcessedClusters = new AtomicInteger();
+	private AtomicBoolean canceled = new AtomicBoolean(false);
 	
 
 	VCFFileWriter writer = new VCFFileWriter();
@@ -148,6 +161,25 @@ public class VCFGoldStandardComparator {
 	public void setGenomicVCF(Boolean genomicVCF) {
 		this.setGenomicVCF(genomicVCF.booleanValue());
 	}
+	
+	/**
+	 * @return the number of threads used to compare different sequences
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to compare different sequences
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 	/**
 	 * @return the complexRegions of a sequence
 	 */
@@ -223,6 +255,14 @@ public class VCFGoldStandardComparator {
 		
 	}
 
+	/**
+	 * Compares the calls of the test file with the calls of the gold standard. Gold standard and test calls
+	 * are read sequentially and grouped by sequence. If more than one thread is available, each sequence
+	 * is compared by a different comparator and the statistics are merged in the order of the sequences
+	 * @param vcfGS Gold standard VCF file
+	 * @param vcfTest VCF file with the calls to test
+	 * @throws IOException If the files can not be read
+	 */
 	public void compareFiles(String vcfGS, String vcfTest) throws IOException {
 		log.info("Comparing gold standard variant file "+vcfGS+ " with test file "+vcfTest);
 		QualifiedSequenceList sequenceNames = genome.getSequencesMetadata();
@@ -236,109 +276,176 @@ public class VCFGoldStandardComparator {
 			log.info("No confidence regions were provided. Assuming that the gold standard is complete over the entire genome");
 			confidenceRegionsLength = genome.getTotalLength();
 			countNonGSAsFP = true;
+		} else {
+			confidenceRegionsIndex = new GenomicRegionSortedCollection<>(sequenceNames);
+			for(List<GenomicRegion> regions:confidenceRegions.values()) confidenceRegionsIndex.addAll(regions);
+			//Indexes are built before the comparison to allow concurrent queries
+			confidenceRegionsIndex.forceSort();
 		}
 		initCounts(countNonGSAsFP);
+		countProcessedClusters.set(0);
+		canceled.set(false);
+		//Debug modes print variants and hence sequences are compared in order
+		boolean parallel = numThreads>1 && mode==0;
+		ExecutorService pool = parallel?Executors.newFixedThreadPool(numThreads):null;
+		LinkedList<Future<VCFGoldStandardComparator>> pending = new LinkedList<>();
 		try (VCFFileReader inGS = new VCFFileReader(vcfGS);
 			 VCFFileReader inTest = new VCFFileReader(vcfTest)) {
 			inGS.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
 			inGS.setSequences(sequenceNames);
 			inTest.setSequences(sequenceNames);
-			LinkedList<GenomicRegion> confidenceRegionsSeq=new LinkedList<>();
-			List<GenomicRegion> complexRegionsSeq=null;
-			int pIdx = 0;
-			List<CalledGenomicVariant> gsCalls = new ArrayList<>();
-			
 			int sequenceIdx = -1;
-			int seqLen = 0;
-			int clusterFirst = 0;
-			int clusterLast = 0;
-			byte clusterType = GenomicVariant.TYPE_UNDETERMINED;
-			
+			SequenceCalls sequenceCalls = null;
 			
 			Iterator<VCFRecord> itGS = inGS.iterator();
 			VCFRecord recordGS = loadNextRecord(itGS, false);
-			//System.out.println("First GS record: "+recordGS.getFirst());
 			
 			Iterator<VCFRecord> itTest = inTest.iterator();
-			LinkedList<CalledGenomicVariant> testCallsSequence = new LinkedList<>();
 			VCFRecord firstRecordNextSequence = loadNextRecord(itTest, false);
 			
-			int countProcessedClusters = 0;
 			while(recordGS!=null) {
 				int nextSeqIdxGS = sequenceNames.indexOf(recordGS.getSequenceName());
 				if(nextSeqIdxGS>sequenceIdx) {
-					if(sequenceIdx>=0) processClusterCalls (gsCalls, clusterFirst, clusterLast, clusterType, testCallsSequence, confidenceRegionsSeq, seqLen);
-					countProcessedClusters++;
+					if(sequenceCalls!=null) compareSequence(sequenceCalls, false, countNonGSAsFP, pool, pending);
+					if(canceled.get()) {
+						log.info("Process canceled");
+						return;
+					}
 					sequenceIdx = nextSeqIdxGS;
 					QualifiedSequence seqObj = sequenceNames.get(sequenceIdx); 
 					String sequenceName = seqObj.getName();
-					seqLen = seqObj.getLength();
 					log.info("Starting sequence "+sequenceName);
-					
-					testCallsSequence.clear();
+					sequenceCalls = new SequenceCalls(seqObj);
 					if(firstRecordNextSequence!=null && firstRecordNextSequence.getSequenceName().equals(sequenceName)) {
 						CalledGenomicVariant callTest = firstRecordNextSequence.getCalls().get(0);
-						testCallsSequence.add(callTest);
-						firstRecordNextSequence = loadTestCallsSequence(itTest, sequenceName, testCallsSequence);
+						sequenceCalls.testCalls.add(callTest);
+						firstRecordNextSequence = loadTestCallsSequence(itTest, sequenceName, sequenceCalls.testCalls);
 					}
-					
-					if(confidenceRegions!=null) {
-						confidenceRegionsSeq.clear(); 
-						List<GenomicRegion> crsl = confidenceRegions.get(sequenceName);
-						if(crsl!=null) confidenceRegionsSeq.addAll(crsl);
-					}
-					if(complexRegions!=null) complexRegionsSeq = complexRegions.get(sequenceName);
-					pIdx = 0;
-					gsCalls.clear();
-					clusterFirst=clusterLast=0;
-					clusterType = GenomicVariant.TYPE_UNDETERMINED;
 				} else if (nextSeqIdxGS<sequenceIdx) {
 					log.severe("Disorder detected in gold standard after sequence name: "+sequenceNames.get(sequenceIdx).getName());
 					break;
 				}
-				if(complexRegionsSeq!=null) {
-					for(;pIdx<complexRegionsSeq.size();pIdx++) {
-						GenomicRegion region = complexRegionsSeq.get(pIdx);
-						if(clusterLast+DEF_MIN_CLUSTER_DISTANCE<=region.getFirst()) break;
-						if(clusterFirst<region.getLast()+DEF_MIN_CLUSTER_DISTANCE) {
-							clusterType = GenomicVariant.TYPE_STR;
-							clusterLast = Math.max(clusterLast, region.getLast());
-							clusterFirst = Math.min(clusterFirst, region.getFirst());
-						}
-					}
-				}
-				int nextClusterFirst = clusterLast+Math.max(DEF_MIN_CLUSTER_DISTANCE, clusterLast-clusterFirst+1);
-				nextClusterFirst = Math.min(nextClusterFirst, clusterLast+DEF_MAX_CLUSTER_DISTANCE);
-				
-				boolean gsClose = nextClusterFirst>recordGS.getFirst();
-				if (!gsClose) {
-					processClusterCalls (gsCalls, clusterFirst, clusterLast, clusterType, testCallsSequence, confidenceRegionsSeq, seqLen);
-					countProcessedClusters++;
-					gsCalls.clear();
-					clusterFirst = clusterLast = 0;
-					clusterType = GenomicVariant.TYPE_UNDETERMINED;
-				}
-				CalledGenomicVariant callGS = recordGS.getCalls().get(0);
-				gsCalls.add(callGS);
-				if(clusterType==GenomicVariant.TYPE_UNDETERMINED) clusterType = loadType(callGS);
-				//Default type for cluster calls
-				if(gsCalls.size()>1) clusterType= GenomicVariant.TYPE_STR;
-				
-				if(clusterFirst == 0 ) clusterFirst = recordGS.getFirst();
-				else clusterFirst = Math.min(clusterFirst, recordGS.getFirst());
-				clusterLast = Math.max(clusterLast, recordGS.getLast());
+				sequenceCalls.gsCalls.add(recordGS.getCalls().get(0));
 				recordGS = loadNextRecord(itGS, false);
-				if(countProcessedClusters%10000==0) log.info("Processed "+countProcessedClusters+" clusters. Current cluster coordinates "+sequenceNames.get(sequenceIdx).getName()+": "+clusterFirst+"-"+clusterLast);
-				if (progressNotifier!=null && countProcessedClusters%1000==0) {
-					int progress = countProcessedClusters/1000;
-					if (!progressNotifier.keepRunning(progress)) {
-						log.info("Process canceled");
-						return;
+			}
+			if(sequenceCalls!=null) compareSequence(sequenceCalls, true, countNonGSAsFP, pool, pending);
+			while(pending.size()>0) merge(pending.removeFirst().get());
+			if(canceled.get()) log.info("Process canceled");
+		} catch (InterruptedException e) {
+			throw new IOException("Comparison interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Compares the calls of one sequence. If a pool is provided, the comparison is submitted to the pool
+	 * using a new comparator and finished comparisons are merged in order
+	 */
+	private void compareSequence(SequenceCalls sequenceCalls, boolean lastSequence, boolean countNonGSAsFP, ExecutorService pool, LinkedList<Future<VCFGoldStandardComparator>> pending) throws InterruptedException, ExecutionException {
+		if(pool==null) {
+			compareSequence(sequenceCalls, lastSequence);
+			return;
+		}
+		VCFGoldStandardComparator comparator = createSequenceComparator(countNonGSAsFP);
+		pending.add(pool.submit(() -> {
+			comparator.compareSequence(sequenceCalls, lastSequence);
+			return comparator;
+		}));
+		if(pending.size()>=2*numThreads) merge(pending.removeFirst().get());
+	}
+	
+	private VCFGoldStandardComparator createSequenceComparator(boolean countNonGSAsFP) {
+		VCFGoldStandardComparator comparator = new VCFGoldStandardComparator();
+		comparator.log = log;
+		comparator.progressNotifier = progressNotifier;
+		comparator.genome = genome;
+		comparator.complexRegions = complexRegions;
+		comparator.confidenceRegions = confidenceRegions;
+		comparator.confidenceRegionsIndex = confidenceRegionsIndex;
+		comparator.confidenceRegionsLength = confidenceRegionsLength;
+		comparator.mode = mode;
+		comparator.minQuality = minQuality;
+		comparator.countProcessedClusters = countProcessedClusters;
+		comparator.canceled = canceled;
+		comparator.createCounts(countNonGSAsFP);
+		return comparator;
+	}
+	
+	private void merge(VCFGoldStandardComparator other) {
+		for(Map.Entry<Byte, GoldStandardComparisonCounts> entry:countsPerType.entrySet()) {
+			entry.getValue().merge(other.countsPerType.get(entry.getKey()));
+		}
+		distClusterSizeGS.merge(other.distClusterSizeGS);
+		distClusterTestHet.merge(other.distClusterTestHet);
+		distClusterSpan.merge(other.distClusterSpan);
+	}
+	
+	/**
+	 * Builds the clusters of gold standard calls of one sequence and compares each cluster with the test calls
+	 * @param sequenceCalls Gold standard and test calls of the sequence
+	 * @param lastSequence Tells if this is the last sequence of the gold standard. The last cluster of this sequence spans until the end of the sequence
+	 */
+	private void compareSequence(SequenceCalls sequenceCalls, boolean lastSequence) {
+		String sequenceName = sequenceCalls.sequence.getName();
+		int seqLen = sequenceCalls.sequence.getLength();
+		LinkedList<CalledGenomicVariant> testCallsSequence = sequenceCalls.testCalls;
+		List<GenomicRegion> complexRegionsSeq = null;
+		if(complexRegions!=null) complexRegionsSeq = complexRegions.get(sequenceName);
+		int pIdx = 0;
+		List<CalledGenomicVariant> gsCalls = new ArrayList<>();
+		int clusterFirst = 0;
+		int clusterLast = 0;
+		byte clusterType = GenomicVariant.TYPE_UNDETERMINED;
+		for(CalledGenomicVariant callGS:sequenceCalls.gsCalls) {
+			if(complexRegionsSeq!=null) {
+				for(;pIdx<complexRegionsSeq.size();pIdx++) {
+					GenomicRegion region = complexRegionsSeq.get(pIdx);
+					if(clusterLast+DEF_MIN_CLUSTER_DISTANCE<=region.getFirst()) break;
+					if(clusterFirst<region.getLast()+DEF_MIN_CLUSTER_DISTANCE) {
+						clusterType = GenomicVariant.TYPE_STR;
+						clusterLast = Math.max(clusterLast, region.getLast());
+						clusterFirst = Math.min(clusterFirst, region.getFirst());
 					}
 				}
 			}
-			processClusterCalls (gsCalls, clusterFirst, sequenceNames.get(sequenceIdx).getLength(), clusterType, testCallsSequence, confidenceRegionsSeq, seqLen );
+			int nextClusterFirst = clusterLast+Math.max(DEF_MIN_CLUSTER_DISTANCE, clusterLast-clusterFirst+1);
+			nextClusterFirst = Math.min(nextClusterFirst, clusterLast+DEF_MAX_CLUSTER_DISTANCE);
+			
+			boolean gsClose = nextClusterFirst>callGS.getFirst();
+			if (!gsClose) {
+				processClusterCalls (sequenceName, gsCalls, clusterFirst, clusterLast, clusterType, testCallsSequence, seqLen);
+				if(!updateProgress(sequenceName, clusterFirst, clusterLast)) return;
+				gsCalls.clear();
+				clusterFirst = clusterLast = 0;
+				clusterType = GenomicVariant.TYPE_UNDETERMINED;
+			}
+			gsCalls.add(callGS);
+			if(clusterType==GenomicVariant.TYPE_UNDETERMINED) clusterType = loadType(callGS);
+			//Default type for cluster calls
+			if(gsCalls.size()>1) clusterType= GenomicVariant.TYPE_STR;
+			
+			if(clusterFirst == 0 ) clusterFirst = callGS.getFirst();
+			else clusterFirst = Math.min(clusterFirst, callGS.getFirst());
+			clusterLast = Math.max(clusterLast, callGS.getLast());
+		}
+		processClusterCalls (sequenceName, gsCalls, clusterFirst, lastSequence?seqLen:clusterLast, clusterType, testCallsSequence, seqLen);
+		updateProgress(sequenceName, clusterFirst, clusterLast);
+	}
+	
+	private boolean updateProgress(String sequenceName, int clusterFirst, int clusterLast) {
+		int count = countProcessedClusters.incrementAndGet();
+		if(count%10000==0) log.info("Processed "+count+" clusters. Current cluster coordinates "+sequenceName+": "+clusterFirst+"-"+clusterLast);
+		if (progressNotifier!=null && count%1000==0) {
+			synchronized (progressNotifier) {
+				if (!progressNotifier.keepRunning(count/1000)) canceled.set(true);
+			}
 		}
+		return !canceled.get();
 	}
 
 	private VCFRecord loadTestCallsSequence(Iterator<VCFRecord> itTest, String seqName, LinkedList<CalledGenomicVariant> testCallsSequence) {
@@ -352,11 +459,14 @@ public class VCFGoldStandardComparator {
 	}
 
 	private void initCounts(boolean countNonGSAsFP) {
+		log.info("Confident MBP: "+((double)confidenceRegionsLength/1000000.0));
+		createCounts(countNonGSAsFP);
+	}
+	private void createCounts(boolean countNonGSAsFP) {
 		countsPerType.put(GenomicVariant.TYPE_BIALLELIC_SNV, new GoldStandardComparisonCounts());
 		countsPerType.put(GenomicVariant.TYPE_INDEL, new GoldStandardComparisonCounts());
 		countsPerType.put(GenomicVariant.TYPE_STR, new GoldStandardComparisonCounts());
 		double confidentMbp = (double)confidenceRegionsLength/1000000.0;
-		log.info("Confident MBP: "+confidentMbp);
 		for(GoldStandardComparisonCounts counts:countsPerType.values()) {
 			counts.setCountNonGSAsFP(countNonGSAsFP);
 			counts.setConfidentMbp(confidentMbp);
@@ -379,7 +489,7 @@ public class VCFGoldStandardComparator {
 		return record;
 	}
 
-	private void processClusterCalls(List<CalledGenomicVariant> gsCalls, int clusterFirst, int clusterLast, byte clusterGSType, LinkedList<CalledGenomicVariant> testCallsSeq, LinkedList<GenomicRegion> confidenceRegionsSeq, int sequenceLength) {	
+	private void processClusterCalls(String sequenceName, List<CalledGenomicVariant> gsCalls, int clusterFirst, int clusterLast, byte clusterGSType, LinkedList<CalledGenomicVariant> testCallsSeq, int sequenceLength) {	
 		int lastRowCounts = GoldStandardComparisonCounts.NUM_ROWS_COUNTS-1;
 		if(gsCalls.size()==0) return;
 		List<CalledGenomicVariant> testCallsCluster = new ArrayList<>();
@@ -391,7 +501,7 @@ public class VCFGoldStandardComparator {
 			CalledGenomicVariant testCall = testCallsSeq.peek();
 			if(clusterFirst == 567239) log.info("Cluster limits: "+clusterFirst+"-"+clusterLast+" GS size: "+gsCalls.size()+ " cluster type: "+clusterGSType+" test call: "+testCall.getFirst()+"-"+testCall.getLast());
 			if(testCall.getLast()+DEF_MIN_CLUSTER_DISTANCE<=clusterFirst) {
-				processPossibleFalsePositive(testCall, confidenceRegionsSeq, lastRowCounts);
+				processPossibleFalsePositive(testCall, lastRowCounts);
 				testCallsSeq.removeFirst();
 				continue;
 			} else if(testCall.getFirst()>=clusterLast+DEF_MIN_CLUSTER_DISTANCE) break;
@@ -404,17 +514,7 @@ public class VCFGoldStandardComparator {
 			
 		
 		//if(gsCalls.size()>0 && testCalls.size()>0) System.out.println("GS Calls: "+gsCalls.size()+" test calls: "+testCalls.size()+" first: "+clusterFirst+" first gs call: "+gsCalls.get(0).getFirst()+" first test call: "+testCalls.get(0).getFirst());
-		while(confidenceRegionsSeq.size()>0) {
-			GenomicRegion nextConfident = confidenceRegionsSeq.peek();
-			if(nextConfident.getLast()<clusterFirst) confidenceRegionsSeq.removeFirst();
-			else break;
-		}
-		boolean clusterInConfidenceRegion = false;
-		for(GenomicRegion r:confidenceRegionsSeq) {
-			if(r.getFirst()<=clusterFirst && r.getLast()>=clusterLast) clusterInConfidenceRegion = true;
-			else if (r.getFirst()>clusterFirst) break;
-		}
-		if (confidenceRegions!=null && !clusterInConfidenceRegion) return;
+		if (confidenceRegions!=null && !isInConfidenceRegion(sequenceName, clusterFirst, clusterLast)) return;
 		distClusterSizeGS.processDatapoint(gsCalls.size());
 		distClusterTestHet.processDatapoint(heterozygous);
 		distClusterSpan.processDatapoint(clusterLast-clusterFirst+1);
@@ -440,7 +540,7 @@ public class VCFGoldStandardComparator {
 					}
 				} else {
 					//Isolated SNV calls in different close positions or with different alternative alleles
-					processPossibleFalsePositive(firstTest, confidenceRegionsSeq, lastRowCounts);
+					processPossibleFalsePositive(firstTest, lastRowCounts);
 					processFalseNegativeCluster(gsCalls, clusterGSType, lastRowCounts);
 				}
 			} else {
@@ -488,14 +588,25 @@ public class VCFGoldStandardComparator {
 
 	
 
-	private void processPossibleFalsePositive(CalledGenomicVariant call, LinkedList<GenomicRegion> confidenceRegionsSeq, int lastRowCounts) {
-		boolean clusterInConfidenceRegion = false;
-		for(GenomicRegion r:confidenceRegionsSeq) {
-			if(r.getFirst()<=call.getFirst() && r.getLast()>=call.getLast()) clusterInConfidenceRegion = true;
-			else if (r.getFirst()>call.getLast()) break;
-		}
+	/**
+	 * Tells if the given interval is contained in a confidence region
+	 * @param sequenceName Name of the sequence
+	 * @param first First position of the interval
+	 * @param last Last position of the interval
+	 * @return boolean true if at least one confidence region contains the interval
+	 */
+	private boolean isInConfidenceRegion(String sequenceName, int first, int last) {
+		if(confidenceRegionsIndex==null) return false;
+		boolean [] answer = {false};
+		confidenceRegionsIndex.visitSpanningRegions(sequenceName, first, last, (r) -> {
+			if(r.getFirst()<=first && r.getLast()>=last) answer[0] = true;
+		});
+		return answer[0];
+	}
+	
+	private void processPossibleFalsePositive(CalledGenomicVariant call, int lastRowCounts) {
 		int n = 0;
-		if (confidenceRegions!=null && !clusterInConfidenceRegion) n=12;
+		if (confidenceRegions!=null && !isInConfidenceRegion(call.getSequenceName(), call.getFirst(), call.getLast())) n=12;
 		int genotypeTest = getGenotypeNumber(call);
 		short qualTest = loadGenotypeQuality(call);
 		byte typeTest = loadType(call); 
@@ -591,6 +702,17 @@ public class VCFGoldStandardComparator {
 		return quality;
 	}
 }
+/**
+ * Gold standard and test calls of one sequence
+ */
+class SequenceCalls {
+	final QualifiedSequence sequence;
+	final List<CalledGenomicVariant> gsCalls = new ArrayList<>();
+	final LinkedList<CalledGenomicVariant> testCalls = new LinkedList<>();
+	SequenceCalls(QualifiedSequence sequence) {
+		this.sequence = sequence;
+	}
+}
 class GoldStandardComparisonCounts {
 	public static final int NUM_ROWS_COUNTS = 10;
 	private int [][] counts;
@@ -639,6 +761,18 @@ class GoldStandardComparisonCounts {
 		}	
 	}
 	
+	/**
+	 * Adds the counts of the given object to the counts of this object
+	 * @param other Counts to add
+	 */
+	public void merge(GoldStandardComparisonCounts other) {
+		for(int i=0;i<counts.length;i++) {
+			for(int j=0;j<counts[i].length;j++) {
+				counts[i][j]+=other.counts[i][j];
+			}
+		}
+	}
+	
 	public void print(PrintStream out) {
 		for (int i=0;i<counts.length; i++) {
 			out.print(""+(i*10));
@@ -21,11 +21,41 @@ public class Dendrogram {
 	    this.children.addAll(children);
 	}
 	
-	public void printTree(final PrintStream ps) {    
-		ps.print(label);
-		for(DendrogramEdge edge:children) {
-			Dendrogram child = edge.getDestination();
-			child.printTree(ps);
+	public String getLabel() {
+		return label;
+	}
+	
+	public List<DendrogramEdge> getChildren() {
+		return children;
+	}
+	
+	public void addChild(DendrogramEdge edge) {
+		children.add(edge);
+	}
+	
+	/**
+	 * Prints this dendrogram in Newick format
+	 * @param ps Stream to print the tree
+	 */
+	public void printTree(final PrintStream ps) {
+		StringBuilder newick = new StringBuilder();
+		appendNewick(newick);
+		newick.append(";");
+		ps.println(newick.toString());
+	}
+	
+	private void appendNewick(StringBuilder newick) {
+		if(children.size()>0) {
+			newick.append("(");
+			for(int i=0;i<children.size();i++) {
+				DendrogramEdge edge = children.get(i);
+				if(i>0) newick.append(",");
+				edge.getDestination().appendNewick(newick);
+				newick.append(":");
+				newick.append(edge.getWeight());
+			}
+			newick.append(")");
 		}
+		if(label!=null) newick.append(label);
 	}
-}
\ No newline at end of file
+}
@@ -1,9 +1,9 @@
 package ngsep.clustering;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
@@ -14,6 +14,7 @@ public class NeighborJoining implements DistanceMatrixClustering {
 
 	private Logger log = Logger.getLogger(NeighborJoining.class.getName());
 	private ProgressNotifier progressNotifier=null;
+	private int numThreads = 1;
 	
 	
 	public Logger getLog() {
@@ -41,160 +42,201 @@ public class NeighborJoining implements DistanceMatrixClustering {
 		String matrixFile = args[k++];
 	 	DistanceMatrix dm = new DistanceMatrix(matrixFile);
 		Dendrogram njTree = nj.buildDendrogram(dm);
-		njTree.printTree(System.out);	
+		if(njTree!=null) njTree.printTree(System.out);	
 	}
 	
 	
+	/**
+	 * Builds the Neighbor-Joining tree. The algorithm runs in place on a packed lower triangular
+	 * matrix that is compacted after each join, maintaining the row sums and labeling
+	 * the tree nodes with integer ids. The Newick representation is only built when the tree is printed
+	 * @param distances Matrix of distances between the objects to cluster
+	 * @return Dendrogram Unrooted tree represented by a root with three children. Null if the process is cancelled
+	 */
 	public Dendrogram buildDendrogram(DistanceMatrix distances) {
-	
-		double iterableMatrix[][] = distances.getDistances();
-		
-		int nSamples = distances.getNumSamples();
-		
-		int nodesToAssign = nSamples;
-		
-		Map<String, Dendrogram> nodesMerged = new HashMap<>();
-		
-		Dendrogram njTree = new Dendrogram("");
-		
-		ArrayList<String> nodesList = new ArrayList<>(distances.getIds());
-		
-		
-		while(nodesToAssign>2){
-			
-			double njMatrix[][]= new double[nodesToAssign][nodesToAssign];
-			double totalDistance[]= new double[nodesToAssign];
-			
-			//Calculate total distance array
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < nodesToAssign; j++){
-					totalDistance[i] += iterableMatrix[i][j];
-				}  
-			}
-			
-			//Compute Neighbor Joining matrix
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < i; j++){
-					njMatrix[i][j] = njMatrix[j][i] = ((nodesToAssign - 2) * iterableMatrix[i][j]) - totalDistance[i] - totalDistance[j];
-				}  
-			}
-			
-			int rowMin = -1;
-			int colMin = -1;
-			double minValue = Float.POSITIVE_INFINITY;
-			
-			//Minimum value in matrix
-			//need to be improve searching only in the triangle
-			for(int i=0;i < nodesToAssign; i++){
-				for(int j=0;j < nodesToAssign; j++){
-					if(njMatrix[i][j]<minValue && i != j){
-						rowMin = i;
-						colMin = j;
-						minValue = njMatrix[i][j];
-					}
-				}  
+		double [][] fullMatrix = distances.getDistances();
+		List<String> ids = distances.getIds();
+		int n = distances.getNumSamples();
+		if(n==0) return new Dendrogram("");
+		//Tree nodes created so far. Leaves take the first n ids
+		List<Dendrogram> treeNodes = new ArrayList<>(2*n);
+		for(int i=0;i<n;i++) treeNodes.add(new Dendrogram(ids.get(i)));
+		if(n==1) return treeNodes.get(0);
+		if(n==2) {
+			List<DendrogramEdge> children = new ArrayList<>();
+			double d = fullMatrix[1][0];
+			children.add(new DendrogramEdge(d/2, null, treeNodes.get(0)));
+			children.add(new DendrogramEdge(d/2, null, treeNodes.get(1)));
+			return new Dendrogram("", children);
+		}
+		//Packed lower triangular matrix. Distance between slots i>j is at i*(i-1)/2+j
+		long matrixSize = (long)n*(n-1)/2;
+		if(matrixSize>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Too many samples to build the Neighbor-Joining tree: "+n);
+		double [] matrix = new double[(int)matrixSize];
+		for(int i=1;i<n;i++) {
+			int base = getRowStart(i);
+			for(int j=0;j<i;j++) matrix[base+j] = fullMatrix[i][j];
+		}
+		//Id of the tree node stored at each slot
+		int [] nodeIds = new int[n];
+		double [] totalDistance = new double[n];
+		for(int i=0;i<n;i++) {
+			nodeIds[i] = i;
+			for(int j=0;j<n;j++) {
+				if(i!=j) totalDistance[i] += getDistance(matrix, i, j);
 			}
-			
-						
-			nodesToAssign--;
-			
-			if(nodesToAssign > 2){
+		}
+		ForkJoinPool pool = null;
+		if(numThreads>1) pool = new ForkJoinPool(numThreads);
+		int nodesToAssign = n;
+		try {
+			while(nodesToAssign>3) {
+				int [] minPair;
+				if(pool==null) minPair = new MinimumSearchTask(matrix, totalDistance, nodesToAssign, 1, nodesToAssign).compute().getPair();
+				else minPair = pool.invoke(new MinimumSearchTask(matrix, totalDistance, nodesToAssign, 1, nodesToAssign)).getPair();
+				int rowMin = minPair[0];
+				int colMin = minPair[1];
+				double dMin = getDistance(matrix, rowMin, colMin);
 				//branch length estimation
-				double leftTreeDistance = (0.5f * iterableMatrix[rowMin][colMin]) + ((totalDistance[rowMin] - totalDistance[colMin] ) / (2 * (nodesToAssign - 1)));
-				double rightTreeDistance  = (0.5f * iterableMatrix[rowMin][colMin]) + ((totalDistance[colMin] - totalDistance[rowMin])/ (2 * (nodesToAssign - 1)));
-
-				//Central node join and newick formatting		
-				String nodeMergeId = "("+nodesList.get(rowMin) +":"+leftTreeDistance+","+ nodesList.get(colMin)+":"+rightTreeDistance+")";
-				
-				//Try to get back existing trees
-				Dendrogram leftTree = nodesMerged.get(nodesList.get(rowMin)); 
-				Dendrogram rightTree = nodesMerged.get(nodesList.get(colMin)); 
-				
-				//If trees not exist create new ones
-				if(leftTree == null){
-					leftTree = new Dendrogram(nodesList.get(rowMin));
-				}
-				
-				if(rightTree == null){
-					rightTree = new Dendrogram(nodesList.get(colMin));
-				}
-				
-				//Make a new tree with the two joined nodes
+				double leftTreeDistance = 0.5 * dMin + (totalDistance[colMin] - totalDistance[rowMin]) / (2 * (nodesToAssign - 2));
+				double rightTreeDistance = dMin - leftTreeDistance;
 				List<DendrogramEdge> children = new ArrayList<>();
-				children.add(new DendrogramEdge(1, null, leftTree));
-				children.add(new DendrogramEdge(1, null, rightTree));
-				njTree = new Dendrogram( nodeMergeId, children);			
-				nodesMerged.put(nodeMergeId, njTree);
-				
-				//Next iteration nodes positions
-				ArrayList<String> currentNodes = new ArrayList<>();
-				currentNodes.add(nodeMergeId);
-				for(int n=0;n<nodesList.size();n++){
-					if(n != rowMin && n != colMin){ //erase joined nodes from nodes list
-						currentNodes.add(nodesList.get(n));
-					}
-
+				children.add(new DendrogramEdge(leftTreeDistance, null, treeNodes.get(nodeIds[colMin])));
+				children.add(new DendrogramEdge(rightTreeDistance, null, treeNodes.get(nodeIds[rowMin])));
+				treeNodes.add(new Dendrogram("", children));
+				
+				//The new node takes the slot of colMin (the smallest slot). The last slot moves to rowMin
+				double newTotal = 0;
+				for(int k=0;k<nodesToAssign;k++) {
+					if(k==rowMin || k==colMin) continue;
+					double dik = getDistance(matrix, rowMin, k);
+					double djk = getDistance(matrix, colMin, k);
+					double duk = 0.5 * (dik + djk - dMin);
+					totalDistance[k] += duk - dik - djk;
+					newTotal += duk;
+					setDistance(matrix, colMin, k, duk);
 				}
-				
-				// distance matrix update
-				double updateDistanceMatrix[][] = new double[nodesToAssign][nodesToAssign];
-				
-				//adding new row, col and bringing back old distances
-				for(int i=1;i<nodesToAssign;i++){
-					for(int j=0;j<i;j++){
-						int index_i = nodesList.indexOf(currentNodes.get(i));
-						if(j==0){ //if new node, calculate distance
-							updateDistanceMatrix[j][i] = updateDistanceMatrix[i][j] = 0.5f * (iterableMatrix[rowMin][index_i]+iterableMatrix[colMin][index_i] - iterableMatrix[rowMin][colMin]);
-						} else { //else bring old ones
-							int index_j = nodesList.indexOf(currentNodes.get(j));
-							updateDistanceMatrix[j][i] = updateDistanceMatrix[i][j] = iterableMatrix[index_i][index_j];
-						}
-						
+				totalDistance[colMin] = newTotal;
+				nodeIds[colMin] = treeNodes.size()-1;
+				int last = nodesToAssign-1;
+				if(rowMin!=last) {
+					for(int k=0;k<last;k++) {
+						if(k!=rowMin) setDistance(matrix, rowMin, k, getDistance(matrix, last, k));
 					}
-					
+					totalDistance[rowMin] = totalDistance[last];
+					nodeIds[rowMin] = nodeIds[last];
 				}
-				
-			
-				nodesList= currentNodes;
-				
-				iterableMatrix = updateDistanceMatrix;
-				
-			} else { // FINAL JOIN ---------------------------------------------------------
-				
-				
-				double leftTreeDistance = (0.5f * iterableMatrix[1][2]) + (0.5f * (totalDistance[1] - totalDistance[2]));
-				double rightTreeDistance  = (0.5f * iterableMatrix[1][2]) + (0.5f * (totalDistance[2] - totalDistance[1]));
-				
-				double centralTreeDistance = 0.0f;
-				
-				//Calculate final distance between join node and the last two
-				if(rowMin!=0){
-					if(rowMin<colMin || colMin == 0){
-						centralTreeDistance = (0.5f * iterableMatrix[0][rowMin]) + (0.5f * (totalDistance[rowMin] - totalDistance[0]));
-					} else{
-						centralTreeDistance = (0.5f * iterableMatrix[0][colMin]) + (0.5f * (totalDistance[colMin] - totalDistance[0]));
+				nodesToAssign--;
+				if (progressNotifier!=null && !progressNotifier.keepRunning(n-nodesToAssign)) return null;
+			}
+		} finally {
+			if(pool!=null) pool.shutdown();
+		}
+		// FINAL JOIN. The remaining three nodes become children of the root
+		List<DendrogramEdge> children = new ArrayList<>();
+		double d01 = getDistance(matrix, 0, 1);
+		double d02 = getDistance(matrix, 0, 2);
+		double d12 = getDistance(matrix, 1, 2);
+		children.add(new DendrogramEdge(0.5 * (d01 + d02 - d12), null, treeNodes.get(nodeIds[0])));
+		children.add(new DendrogramEdge(0.5 * (d01 + d12 - d02), null, treeNodes.get(nodeIds[1])));
+		children.add(new DendrogramEdge(0.5 * (d02 + d12 - d01), null, treeNodes.get(nodeIds[2])));
+		return new Dendrogram("", children);
+	}
+	
+	private static int getRowStart(int i) {
+		return (int)((long)i*(i-1)/2);
+	}
+	
+	private static double getDistance(double [] matrix, int i, int j) {
+		if(i>j) return matrix[getRowStart(i)+j];
+		return matrix[getRowStart(j)+i];
+	}
+	
+	private static void setDistance(double [] matrix, int i, int j, double value) {
+		if(i>j) matrix[getRowStart(i)+j] = value;
+		else matrix[getRowStart(j)+i] = value;
+	}
+	
+	/**
+	 * Minimum of the Neighbor-Joining criterion within a range of rows of the packed matrix
+	 */
+	private static class MinimumSearchResult {
+		private int row = -1;
+		private int col = -1;
+		private double value = Double.POSITIVE_INFINITY;
+		
+		public int [] getPair() {
+			return new int [] {row, col};
+		}
+	}
+	
+	/**
+	 * Parallel reduction to find the pair of slots minimizing the Neighbor-Joining criterion.
+	 * Ranges of rows are split to have similar numbers of cells in each half
+	 */
+	private static class MinimumSearchTask extends RecursiveTask<MinimumSearchResult> {
+		private static final long serialVersionUID = 1L;
+		private static final int MIN_CELLS_TASK = 100000;
+		private double [] matrix;
+		private double [] totalDistance;
+		private int nodes;
+		private int firstRow;
+		private int lastRow;
+		
+		public MinimumSearchTask(double[] matrix, double[] totalDistance, int nodes, int firstRow, int lastRow) {
+			this.matrix = matrix;
+			this.totalDistance = totalDistance;
+			this.nodes = nodes;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+		}
+		
+		@Override
+		protected MinimumSearchResult compute() {
+			long cells = (long)getRowStart(lastRow) - getRowStart(firstRow);
+			if(cells > MIN_CELLS_TASK && lastRow-firstRow>1 && getPool()!=null) {
+				int middle = (int) Math.sqrt(0.5*((double)firstRow*firstRow+(double)lastRow*lastRow));
+				middle = Math.max(firstRow+1, Math.min(lastRow-1, middle));
+				MinimumSearchTask left = new MinimumSearchTask(matrix, totalDistance, nodes, firstRow, middle);
+				MinimumSearchTask right = new MinimumSearchTask(matrix, totalDistance, nodes, middle, lastRow);
+				left.fork();
+				MinimumSearchResult rightResult = right.compute();
+				MinimumSearchResult leftResult = left.join();
+				//Ties are resolved in favor of the first rows to keep results deterministic
+				if(rightResult.value < leftResult.value) return rightResult;
+				return leftResult;
+			}
+			MinimumSearchResult answer = new MinimumSearchResult();
+			double factor = nodes-2;
+			for(int i=firstRow;i<lastRow;i++) {
+				int base = getRowStart(i);
+				double rowBest = Double.POSITIVE_INFINITY;
+				int colBest = -1;
+				for(int j=0;j<i;j++) {
+					double q = factor*matrix[base+j] - totalDistance[j];
+					if(q<rowBest) {
+						rowBest = q;
+						colBest = j;
 					}
-				} else{
-					centralTreeDistance = (0.5f * iterableMatrix[0][colMin]) + (0.5f * (totalDistance[colMin] - totalDistance[0]));
 				}
-				
-							
-				String nodeMergeId = nodesList.get(0);
-				
-				// Newick format
-				Dendrogram leftTree = new Dendrogram("("+nodesList.get(2)+":"+rightTreeDistance+","+nodesList.get(1)+":"+leftTreeDistance+",");
-				Dendrogram rightTree = new Dendrogram(");\n");
-			
-				njTree = new Dendrogram(nodeMergeId+":"+centralTreeDistance);			
-
+				rowBest-=totalDistance[i];
+				if(rowBest<answer.value) {
+					answer.value = rowBest;
+					answer.row = i;
+					answer.col = colBest;
+				}
 			}
-			
+			return answer;
 		}
-
-		
-		return njTree;
 	}
-
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 }
-
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -38,6 +39,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
+import ngsep.main.PipelineMetrics;
 import ngsep.main.ProgressNotifier;
 import ngsep.math.NumberArrays;
 import ngsep.sequences.DNASequence;
@@ -75,6 +77,11 @@ public class MultisampleVariantsDetector implements PileupListener {
 	private double coveredGenomeSize = 0;
 	private long referenceGenomeSize = 0;
 	
+	//Throughput metrics
+	private PipelineMetrics metrics = new PipelineMetrics("MultisampleVariantsDetector");
+	private LongAdder pileupsCounter = metrics.getCounter("pileupPositions");
+	private LongAdder variantsCounter = metrics.getCounter("variants");
+	
 	private AlignmentsPileupGenerator generator = new AlignmentsPileupGenerator();
 	//Listeners
 	private IndelRealignerPileupListener indelRealigner = new IndelRealignerPileupListener();
@@ -132,6 +139,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 	public void setLog(Logger log) {
 		this.log = log;
 		generator.setLog(log);
+		metrics.setLog(log);
 	}
 
 	/**
@@ -148,6 +156,31 @@ public class MultisampleVariantsDetector implements PileupListener {
 		this.progressNotifier = progressNotifier;
 	}
 	
+	/**
+	 * @return the throughput metrics of the process
+	 */
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of seconds between log lines reporting throughput metrics
+	 */
+	public int getMetricsInterval() {
+		return metrics.getLogInterval();
+	}
+
+	/**
+	 * @param metricsInterval the number of seconds between log lines reporting throughput metrics. Zero disables the report
+	 */
+	public void setMetricsInterval(int metricsInterval) {
+		metrics.setLogInterval(metricsInterval);
+	}
+	
+	public void setMetricsInterval(Integer metricsInterval) {
+		this.setMetricsInterval(metricsInterval.intValue());
+	}
+	
 	/**
 	 * @return the alignmentFiles
 	 */
@@ -560,6 +593,18 @@ public class MultisampleVariantsDetector implements PileupListener {
 	public void findVariants() throws IOException {
 		printParameters();
 		if(genome==null) throw new IOException("The reference genome is mandatory");
+		metrics.setProgressNotifier(progressNotifier);
+		metrics.start();
+		try {
+			findVariantsGenome();
+		} finally {
+			metrics.stop();
+		}
+		log.info("Multisample Variants Detector Completed");
+	}
+	
+	private void findVariantsGenome() throws IOException {
+		long stageStart = System.nanoTime();
 		referenceGenomeSize = genome.getTotalLength();
 		QualifiedSequenceList sequences = genome.getSequencesMetadata();
 		indelRealigner.setGenome(genome);
@@ -583,7 +628,8 @@ public class MultisampleVariantsDetector implements PileupListener {
 			log.info("Loaded "+strs.size()+" input short tandem repeats");
 		}
 		log.info("Finding variants");
-		
+		metrics.getTimer("loadInputs").recordSince(stageStart);
+		stageStart = System.nanoTime();
 		generator.addListener(indelRealigner);
 		generator.addListener(this);
 		try {
@@ -596,7 +642,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 			if(outFile!=null) outFile.close();
 			dispose();
 		}
-		log.info("Multisample Variants Detector Completed");
+		metrics.getTimer("genotyping").recordSince(stageStart);
 	}
 
 	
@@ -627,6 +673,7 @@ public class MultisampleVariantsDetector implements PileupListener {
 	private List<GenomicVariant> seqInputVariants;
 	@Override
 	public void onPileup(PileupRecord pileup) {
+		pileupsCounter.increment();
 		GenomicVariant variant = null;
 		GenomicVariant inputVariant = null;
 		if(inputVariants.size()==0) {
@@ -658,10 +705,11 @@ public class MultisampleVariantsDetector implements PileupListener {
 		if(variant.isBiallelic()) record.addAnnotation(new GenomicVariantAnnotation(variant, GenomicVariantAnnotation.ATTRIBUTE_MAF, divStats.getMaf()));
 		
 		writer.printVCFRecord(record, outFile);
+		variantsCounter.increment();
 		coveredGenomeSize++;
-		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
+		if(coveredGenomeSize%10000==0) {
 			int progress = (int)Math.round(100.0*coveredGenomeSize/referenceGenomeSize);
-			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+			generator.setKeepRunning(metrics.keepRunning(progress));
 		}
 	}
 	
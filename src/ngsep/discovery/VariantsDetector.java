@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import ngsep.discovery.rd.ReadDepthBin;
@@ -35,6 +36,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
+import ngsep.main.PipelineMetrics;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.AbstractLimitedSequence;
 import ngsep.sequences.QualifiedSequence;
@@ -80,6 +82,7 @@ public class VariantsDetector implements PileupListener {
 	private long inputGenomeSize = 0;
 	private short minSVQuality = DEF_MINSVQUALITY;
 	private int maxPCTOverlapCNVs = 100;
+	private int numThreads = 1;
 	
 	//Parameter objects
 	private ReferenceGenome genome;
@@ -111,6 +114,11 @@ public class VariantsDetector implements PileupListener {
 	private double coveredGenomeSize = 0;
 	private long referenceGenomeSize = 0;
 	
+	//Throughput metrics
+	private PipelineMetrics metrics = new PipelineMetrics("VariantsDetector");
+	private LongAdder pileupsCounter = metrics.getCounter("pileupPositions");
+	private LongAdder variantsCounter = metrics.getCounter("variants");
+	
 	
 
 	/**
@@ -197,6 +205,12 @@ public class VariantsDetector implements PileupListener {
 			} else if("-algCNV".equals(args[i])) {
 				i++;
 				detector.setAlgCNV(args[i]);
+			} else if("-threads".equals(args[i])) {
+				i++;
+				detector.setNumThreads(args[i]);
+			} else if("-metricsInterval".equals(args[i])) {
+				i++;
+				detector.setMetricsInterval(args[i]);
 			} else if ("-maxPCTOverlapCNVs".equals(args[i])) {
 				i++;
 				detector.setMaxPCTOverlapCNVs(args[i]);
@@ -427,6 +441,35 @@ public class VariantsDetector implements PileupListener {
 	public void setBinSize(String value) {
 		setBinSize((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public int getMetricsInterval() {
+		return metrics.getLogInterval();
+	}
+
+	public void setMetricsInterval(int metricsInterval) {
+		metrics.setLogInterval(metricsInterval);
+	}
+	
+	public void setMetricsInterval(String value) {
+		setMetricsInterval((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 
 	public long getInputGenomeSize() {
 		return inputGenomeSize;
@@ -695,29 +738,43 @@ public class VariantsDetector implements PileupListener {
 		if(!runRDAnalysis) findNewCNVs = false;
 		printParameters();
 		validateParameters();
-		
+		metrics.setProgressNotifier(progressNotifier);
+		metrics.start();
+		try {
+			findVariants();
+		} finally {
+			metrics.stop();
+		}
+	}
+	
+	private void findVariants() throws IOException {
+		long stageStart = System.nanoTime();
 		if(genome==null) {
 			log.info("Loading reference sequence from file: "+referenceFile);
 			genome = new ReferenceGenome(referenceFile);
 		}
 		referenceGenomeSize = genome.getTotalLength();
 		log.info("Loaded "+genome.getNumSequences()+" sequences");
-		if(progressNotifier!=null && !progressNotifier.keepRunning(1)) return;  
+		metrics.getTimer("loadGenome").recordSince(stageStart);
+		if(!metrics.keepRunning(1)) return;  
 		calledSVs = new GenomicRegionSortedCollection<CalledGenomicVariant>(genome.getSequencesMetadata());
 		if (knownSVsFile!=null) {
 			calledSVs.addAll(svsFH.loadVariants(knownSVsFile));
 			log.info("Loaded "+calledSVs.size()+" input SVs");
 		}
 		if(findRepeats) {
+			stageStart = System.nanoTime();
 			log.info("Finding repeats using reads with multiple alignments");
 			List<CalledCNV> multipleMCnvs = mmRegsCalc.calculateMultipleMappingRegions(alignmentsFile);
 			log.info("Found "+multipleMCnvs.size()+" repeats");
 			calledSVs.addAll(multipleMCnvs);
 			log.info("Number of SVs after finding repeats: "+calledSVs.size());
+			metrics.getTimer("repeats").recordSince(stageStart);
 		}
-		if(progressNotifier!=null && !progressNotifier.keepRunning(4)) return;
+		if(!metrics.keepRunning(4)) return;
 		//Call CNVs based on read depth
 		if(runRDAnalysis) {
+			stageStart = System.nanoTime();
 			log.info("Running read depth (RD) analysis to identify/genotype CNVs");
 			List<CalledCNV> cnvsRD = runRDAnalysis();
 			if(cnvsRD !=null) {
@@ -725,23 +782,28 @@ public class VariantsDetector implements PileupListener {
 				calledSVs.addAll(cnvsRD);
 			}
 			log.info("Total number of SVs: "+calledSVs.size());
+			metrics.getTimer("readDepth").recordSince(stageStart);
 		}
-		if(progressNotifier!=null && !progressNotifier.keepRunning(10)) return;
+		if(!metrics.keepRunning(10)) return;
 		if(runRPAnalysis) {
+			stageStart = System.nanoTime();
 			log.info("Running read pair (RP) analysis to identify indels and inversions");
 			List<CalledGenomicVariant> svsRP = runRPAnalysis(); 
 			log.info("Found "+svsRP.size()+" new structural variants running the RP analysis");
 			calledSVs.addAll(svsRP);
 			log.info("Total number of SVs: "+calledSVs.size());
+			metrics.getTimer("readPairs").recordSince(stageStart);
 		}
-		if(progressNotifier!=null && !progressNotifier.keepRunning(15)) return;
+		if(!metrics.keepRunning(15)) return;
 		if(findSNVs) {
+			stageStart = System.nanoTime();
 			try {
 				findSNVS();
 			} finally {
 				if(outVars!=null) outVars.close();
 				dispose();
 			}
+			metrics.getTimer("snvsIndels").recordSince(stageStart);
 		}
 		if(outSVFilename!=null) {
 			log.info("Saving structural variants");
@@ -809,6 +871,7 @@ public class VariantsDetector implements PileupListener {
 		//Pass parameters
 		rdDistribution.setLog(this.getLog());
 		rdDistribution.setMinMQ(generator.getMinMQ());
+		rdDistribution.setNumThreads(numThreads);
 		
 		
 		log.info("Processing alignments file: "+alignmentsFile);
@@ -865,6 +928,7 @@ public class VariantsDetector implements PileupListener {
 		else rdAlgorithm.setGenomeSize(rdDistribution.getGenomeSize());
 		rdAlgorithm.setNormalPloidy(normalPloidy);
 		rdAlgorithm.setReadDepthDistribution(rdDistribution);
+		rdAlgorithm.setNumThreads(numThreads);
 		return rdAlgorithm.callCNVs();
 	}
 	
@@ -1025,6 +1089,7 @@ public class VariantsDetector implements PileupListener {
 	private void saveSequenceVariants(String sequenceName) {
 		List<CalledCNV> sequenceCNVs= selectCalledCNVs(calledSVs.getSequenceRegions(sequenceName)).asList();
 		List<CalledGenomicVariant> sequenceVariants = varListener.getCalledVariants();
+		variantsCounter.add(sequenceVariants.size());
 		boolean [] varInCNV = new boolean [sequenceVariants.size()]; 
 		intersectVariantsCNVs(sequenceCNVs,sequenceVariants,varInCNV);
 		if(outVars!=null) {
@@ -1090,9 +1155,10 @@ public class VariantsDetector implements PileupListener {
 	@Override
 	public void onPileup(PileupRecord pileup) {
 		coveredGenomeSize++;
-		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
+		pileupsCounter.increment();
+		if(coveredGenomeSize%10000==0) {
 			int progress = 15+(int)Math.round(85.0*coveredGenomeSize/referenceGenomeSize);
-			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+			generator.setKeepRunning(metrics.keepRunning(progress));
 		}
 	}
 
@@ -1145,6 +1211,7 @@ public class VariantsDetector implements PileupListener {
 		this.log = log;
 		generator.setLog(log);
 		rpAnalyzer.setLog(log);
+		metrics.setLog(log);
 	}
 
 	public GenomicRegionSortedCollection<CalledGenomicVariant> getCalledSVs() {
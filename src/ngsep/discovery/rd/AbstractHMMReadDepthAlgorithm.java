@@ -40,6 +40,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	private byte normalPloidy = 2;
 	private double changeProbability = 0.01;
+	private int numThreads = 1;
 	
 	
 	@Override
@@ -63,20 +64,34 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	public void setReadDepthDistribution(ReadDepthDistribution distribution) {
 		this.readDepthDistribution = distribution;
 	}
+	
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
 
 	@Override
 	public List<CalledCNV> callCNVs() {
 		List<CalledCNV> answer = new ArrayList<CalledCNV>();
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
-		log.info("Building HMM");
-		HMM hmm = buildHMM ();
-		for(String seqName:seqNames) {
+		//HMM objects keep internal buffers. Each thread builds its own instance
+		ThreadLocal<HMM> hmms = ThreadLocal.withInitial(() -> {
+			log.info("Building HMM");
+			return buildHMM();
+		});
+		List<List<CalledCNV>> cnvsSequences = SequencesParallelProcessor.process(seqNames, numThreads, (seqName) -> {
 			log.info("Calling CNVs for sequence "+seqName);
 			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
+			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmms.get()); 
 			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
-		}
+			return cnvsSeq;
+		});
+		for(List<CalledCNV> cnvsSeq:cnvsSequences) answer.addAll(cnvsSeq);
 		return answer;
 	}
 	
@@ -60,6 +60,10 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	
 	public static final double MAX_PVALUE_REGION=0.05;
+	//Math.exp returns zero for arguments below this value
+	private static final double MIN_EXP_ARGUMENT = -746;
+	
+	private int numThreads = 1;
 	
 	public static void main(String[] args) throws Exception {
 		CNVnatorReadDepthAlgorithm cnvNator = new CNVnatorReadDepthAlgorithm();
@@ -86,6 +90,9 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 				fileType = Integer.parseInt(args[i]);
 			} else if("-noGreedyMerge".equals(args[i])) {
 				cnvNator.greedyMergeLevels = false;
+			} else if("-threads".equals(args[i])) {
+				i++;
+				cnvNator.setNumThreads(Integer.parseInt(args[i]));
 			}
 			i++;
 		}
@@ -100,6 +107,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		if(fileType == 0) {
 			cnvNator.log.info("Loading bins");
 			cnvNator.rdDistribution = new ReadDepthDistribution(genome, ReadDepthDistribution.DEFAULT_BIN_SIZE);
+			cnvNator.rdDistribution.setNumThreads(cnvNator.numThreads);
 			cnvNator.log.info("Loaded bins. Genome size assembly: "+cnvNator.rdDistribution.getGenomeSize());
 			cnvNator.log.info("Processing alignments file: "+inFile);
 			cnvNator.rdDistribution.processAlignments(inFile);
@@ -155,36 +163,47 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private void calculatePartition (int range, boolean skipMasked) {
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
-		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+seqBins.size());
-			boolean [] mask = new boolean[seqBins.size()];
-			Arrays.fill(mask, false);
-			
-			for(int binBand=2;binBand<=range;binBand++) {
-				//Restore original RD values
-				for(int i=0;i<seqBins.size();i++) {
-					if(!mask[i]) {
-						ReadDepthBin bin = seqBins.get(i);
-						bin.setReadDepthLevel(bin.getCorrectedReadDepth());
-					}
-				}
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				updateMask(seqBins, mask);
-				if(binBand>=8) binBand++;
-				if(binBand>=16) binBand+=2;
-				if(binBand>=32) binBand+=4;
-				if(binBand>=64) binBand+=8;
-				if(binBand>=128) binBand+=16;
-				if(binBand>=256) binBand+=32;
-				if(binBand>=512) binBand+=64;
+		SequencesParallelProcessor.process(sequenceNames, numThreads, (seqName) -> {
+			calculatePartition(seqName, range, skipMasked);
+			return seqName;
+		});
+	}
+	private void calculatePartition (String seqName, int range, boolean skipMasked) {
+		List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+		log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+seqBins.size());
+		//Signal and levels are processed in flat arrays and copied back to the bins at the end
+		int n = seqBins.size();
+		double [] signal = new double[n];
+		double [] levels = new double[n];
+		for(int i=0;i<n;i++) {
+			ReadDepthBin bin = seqBins.get(i);
+			signal[i] = bin.getCorrectedReadDepth();
+			levels[i] = bin.getReadDepthLevel();
+		}
+		boolean [] mask = new boolean[n];
+		double [] gradients = new double[n];
+		double [] hrs = new double[n];
+		for(int binBand=2;binBand<=range;binBand++) {
+			//Restore original RD values
+			for(int i=0;i<n;i++) {
+				if(!mask[i]) levels[i] = signal[i];
 			}
+			calcLevels(levels, binBand, mask, skipMasked, gradients, hrs);
+			calcLevels(levels, binBand, mask, skipMasked, gradients, hrs);
+			calcLevels(levels, binBand, mask, skipMasked, gradients, hrs);
+			updateMask(signal, levels, mask);
+			if(binBand>=8) binBand++;
+			if(binBand>=16) binBand+=2;
+			if(binBand>=32) binBand+=4;
+			if(binBand>=64) binBand+=8;
+			if(binBand>=128) binBand+=16;
+			if(binBand>=256) binBand+=32;
+			if(binBand>=512) binBand+=64;
 		}
+		for(int i=0;i<n;i++) seqBins.get(i).setReadDepthLevel(levels[i]);
 	}
-	private void calcLevels(List<ReadDepthBin> seqBins, int binBand, boolean [] mask, boolean skipMasked) {
-		double [] gradients = new double[seqBins.size()];
+	private void calcLevels(double [] levels, int binBand, boolean [] mask, boolean skipMasked, double [] gradients, double [] hrs) {
+		int n = levels.length;
 		Arrays.fill(gradients, 0);
 		double inv2BinBand = 1.0/(binBand*binBand);
 		double mean4 = meanReadDepth/4;
@@ -195,66 +214,74 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		for(int i=0;i<expsWindow.length;i++) {
 			expsWindow[i] = i*Math.exp(-0.5*i*i*inv2BinBand);
 		}
-		double [] hrs = new double[seqBins.size()];
-		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
+		for(int b=0;b<n;b++) {
 			hrs[b] = sigma2;
-			if(binB.getReadDepthLevel() >= mean4) hrs[b] = ms2/binB.getReadDepthLevel();
+			if(levels[b] >= mean4) hrs[b] = ms2/levels[b];
 		}
 		//Calculate gradients
-		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
+		for(int b=0;b<n;b++) {
 			if(mask[b]) continue;
+			double levelB = levels[b];
+			double hrsB = hrs[b];
+			//Accumulated in a local variable in the same order of the pairwise updates
+			double gradientB = gradients[b];
 			int distance = 0;
-			for(int i=b+1;i<seqBins.size();i++) {
-				ReadDepthBin binI = seqBins.get(i);
+			for(int i=b+1;i<n;i++) {
 				if(mask[i]) continue;
 				distance++;
-				double difLevel = binI.getReadDepthLevel()-binB.getReadDepthLevel();
+				double difLevel = levels[i]-levelB;
 				double val = -0.5*difLevel*difLevel;
-				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+binB.getFirst()+" BinI: "+binI.getFirst()+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+binB.getReadDepthLevel()+" invB: "+hrs[b]+" ms2: "+ms2);
-				gradients[b] += expsWindow[distance]*Math.exp(val*hrs[b]);
-				gradients[i] -= expsWindow[distance]*Math.exp(val*hrs[i]);
+				double weight = expsWindow[distance];
+				gradientB += weight*exp(val*hrsB);
+				gradients[i] -= weight*exp(val*hrs[i]);
 				if(distance == window) break;
 			}
+			gradients[b] = gradientB;
 		}
 		//Average signal on each segment
-		for(int b=0;b<seqBins.size();b++) {
+		for(int b=0;b<n;b++) {
 			//Determine next segment
 			if(mask[b]) continue;
 			int bStart = b;
 			//Change from original implementation to disallow breaks due to gradients close to zero
 			if(skipMasked) {
-				while (b < seqBins.size() && (gradients[b] >= -minGradientValue || mask[b])) b++;
-				while (b < seqBins.size() && (gradients[b] <  minGradientValue || mask[b])) b++;
+				while (b < n && (gradients[b] >= -minGradientValue || mask[b])) b++;
+				while (b < n && (gradients[b] <  minGradientValue || mask[b])) b++;
 			} else {
-				while (b < seqBins.size() && gradients[b] >= -minGradientValue && !mask[b]) b++;
-				while (b < seqBins.size() && gradients[b] <  minGradientValue && !mask[b]) b++;
+				while (b < n && gradients[b] >= -minGradientValue && !mask[b]) b++;
+				while (b < n && gradients[b] <  minGradientValue && !mask[b]) b++;
 			}
 			int bStop = --b;
 			assert (bStart<=bStop);
 			//Calculate average signal for the segment
 			double nl = 0;
-			int n = 0;
-		    for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (mask[i]) continue;
-		    	nl += bin.getReadDepthLevel();
-		    	n++;
-		    }
-		    //Update with the average signal
-		    nl/=n;
+			int nBins = 0;
 			for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (!mask[i]) bin.setReadDepthLevel(nl);
-		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+bin.getFirst()+" Level: "+bin.getReadDepthLevel()+" mask: "+mask[i]+" gradient: "+gradients[i]);
-		    }
+				if (mask[i]) continue;
+				nl += levels[i];
+				nBins++;
+			}
+			//Update with the average signal
+			nl/=nBins;
+			for (int i = bStart;i <= bStop;i++) {
+				if (!mask[i]) levels[i] = nl;
+			}
 		}
 	}
+	/**
+	 * Exponential function for the gaussian kernel of the gradients. Arguments are never positive and
+	 * Math.exp returns zero below MIN_EXP_ARGUMENT, so the call is avoided for those values without changing results
+	 * @param x Argument of the exponential
+	 * @return double e^x
+	 */
+	private static double exp(double x) {
+		if(x < MIN_EXP_ARGUMENT) return 0;
+		return Math.exp(x);
+	}
 	
-	private void updateMask(List<ReadDepthBin> seqBins, boolean[] mask) {
+	private void updateMask(double [] signal, double [] levels, boolean[] mask) {
 		Arrays.fill(mask, false);
-		List<LevelRegion> regions = calculateRegions(seqBins);
+		List<LevelRegion> regions = calculateRegions(signal, levels);
 		for(int i=1;i<regions.size()-1;i++) {
 			LevelRegion rL = regions.get(i-1);
 			LevelRegion region = regions.get(i);
@@ -275,6 +302,17 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		
 	}
 	private List<LevelRegion> calculateRegions(List<ReadDepthBin> seqBins) {
+		int n = seqBins.size();
+		double [] signal = new double[n];
+		double [] levels = new double[n];
+		for(int i=0;i<n;i++) {
+			ReadDepthBin bin = seqBins.get(i);
+			signal[i] = bin.getCorrectedReadDepth();
+			levels[i] = bin.getReadDepthLevel();
+		}
+		return calculateRegions(signal, levels);
+	}
+	private List<LevelRegion> calculateRegions(double [] signal, double [] levels) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		double lastLevel = -1;
 		int first = 0;
@@ -282,20 +320,18 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		int nBins = 0;
 		double sum = 0;
 		double sum2 = 0;
-		for(int i=0;i<seqBins.size();i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(lastLevel != -1 && Math.abs(bin.getReadDepthLevel()-lastLevel)>=0.01) {
+		for(int i=0;i<levels.length;i++) {
+			if(lastLevel != -1 && Math.abs(levels[i]-lastLevel)>=0.01) {
 				regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 				first = i;
 				
 				sum = sum2 = nBins = 0;
 			}
-			double signal = bin.getCorrectedReadDepth(); 
-			sum+=signal;
-			sum2+=(signal*signal);
+			sum+=signal[i];
+			sum2+=(signal[i]*signal[i]);
 			nBins++;
 			last = i;
-			lastLevel = bin.getReadDepthLevel();
+			lastLevel = levels[i];
 		}
 		regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 		return regions;
@@ -380,28 +416,33 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private List<CalledCNV> makeCNVCallsPartition() {
 		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
-		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
-		for(String seqName:sequenceNames) {
+		List<List<CalledCNV>> cnvsSequences = SequencesParallelProcessor.process(sequenceNames, numThreads, (seqName) -> {
 			if(sequenceNames.size()<100) log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
-			
-			for(LevelRegion region:regions) {
-				double pValue = region.getPValue();
-				
-				if(pValue <= MAX_PVALUE_REGION) {
-					float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
-					GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
-					CalledCNV calledCNV = new CalledCNV(cnv,copies);
-					calledCNV.setSource(SOURCE_CNVNATOR);
-					calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
-					calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
-					cnvs.add(calledCNV);
-				}
+			return makeCNVCallsPartition(seqName);
+		});
+		for(List<CalledCNV> cnvsSeq:cnvsSequences) cnvs.addAll(cnvsSeq);
+		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
+		return cnvs;
+	}
+	
+	private List<CalledCNV> makeCNVCallsPartition(String seqName) {
+		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
+		double cut = meanReadDepth / (2*normalPloidy);
+		List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+		List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
+		for(LevelRegion region:regions) {
+			double pValue = region.getPValue();
+			if(pValue <= MAX_PVALUE_REGION) {
+				float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
+				GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
+				CalledCNV calledCNV = new CalledCNV(cnv,copies);
+				calledCNV.setSource(SOURCE_CNVNATOR);
+				calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
+				calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
+				cnvs.add(calledCNV);
 			}
 		}
-		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
 		return cnvs;
 	}
 	
@@ -676,6 +717,14 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	public void setGenomeSize(long genomeSize) {
 		this.genomeSize = genomeSize;
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
 	public Logger getLog() {
 		return log;
 	}
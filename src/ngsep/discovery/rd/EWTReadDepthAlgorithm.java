@@ -66,6 +66,7 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	private long genomeSize = 0;
 	private boolean merge = true;
 	private boolean filter = true;
+	private int numThreads = 1;
 	
 	//------------------------------------------------------------------
 	//								MAIN METHODS
@@ -75,7 +76,7 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	 * For calling CNVs using the EWT algorithm through the Command Line,
 	 * receives as input the reference FASTA file, the alignments in BAM format,
 	 * and the prefix for the output. Outputs a GFF file with CNVs information. 
-	 * @param args "--fpr <INT falsePositiveRate> -b <INT binSize> -p <INT ploidy> -noMerge -noFilter [Reference] [Alignments] [OutputPrefix]"
+	 * @param args "--fpr <INT falsePositiveRate> -b <INT binSize> -p <INT ploidy> -noMerge -noFilter -threads <INT numThreads> [Reference] [Alignments] [OutputPrefix]"
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
@@ -102,6 +103,10 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 			} else if ("-noFilter".equals(args[i])) {
 				ewt.setFilter(false);
 				ewt.log.info("Events will not be filtered for low difference with mean");
+			} else if ("-threads".equals(args[i])) {
+				i++;
+				ewt.setNumThreads(Integer.parseInt(args[i]));
+				ewt.log.info("Number of threads set to " + ewt.getNumThreads());
 			}
 			i++;
 		}
@@ -115,6 +120,7 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 		ewt.log.info( "Loaded genome reference. Sequences: " + genome.getNumSequences() );
 		ewt.log.info( "Dividing genome into " + ewt.binSize + "bp windows" );
 		ewt.readDepthDistribution = new ReadDepthDistribution( genome, ewt.binSize );
+		ewt.readDepthDistribution.setNumThreads( ewt.numThreads );
 		ewt.log.info( "Loading alignment file" );
 		ewt.readDepthDistribution.processAlignments(alignment);
 		ewt.log.info( "Processed alignment file: " + alignment );
@@ -152,28 +158,9 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 		log.info( "Transforming read depth to z-score" );
 		rdBinsToRDProb();
 		
-		// iterate over each chromosome
-		for ( String seqName : sequences.getNamesStringList() ) {
-			log.info( "Calling CNVs for sequence " + seqName );
-			
-			// get all bins in chromosome
-			List<RDbinProbabilities> seqProbs = probabilities.get(seqName);
-			int numProbs = seqProbs.size();
-			
-			// calculate N, and make intervals of all suggested lengths (2 <= l <= N)
-			double significance;																											
-			for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {				
-				//log.info( "Searching CNVs in " + l + "00bp-sized intervals" );
-				List<Interval> intervals = getIntervals(seqName, seqProbs, l);
-				for ( int i = 0 ; i < intervals.size() ; i++ ) {
-					
-					// test for duplications and deletions
-					Interval event = intervals.get(i);
-					if ( event.getMaxUpperProb() < significance ) detectedCNVs.add(event);
-					else if ( event.getMaxLowerProb() < significance ) detectedCNVs.add(event);
-				}
-			}
-		}
+		// iterate over each chromosome. Chromosomes are independent and can be processed in parallel
+		List<List<Interval>> eventsSequences = SequencesParallelProcessor.process(sequences.getNamesStringList(), numThreads, (seqName) -> detectEvents(seqName));
+		for ( List<Interval> eventsSeq : eventsSequences ) detectedCNVs.addAll(eventsSeq);
 		
 		// sort, filter, merge and output
 		log.info( detectedCNVs.size() + " total events detected by EWT algorithm" );
@@ -196,26 +183,63 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	 */
 	public void rdBinsToRDProb () {
 		probabilities = new TreeMap<String, List<RDbinProbabilities>>();
+		List<String> seqNames = sequences.getNamesStringList();
+		List<List<RDbinProbabilities>> probsSequences = SequencesParallelProcessor.process(seqNames, numThreads, (seqName) -> calculateProbabilities(seqName));
+		for ( int i = 0 ; i < seqNames.size() ; i++ ) {
+			probabilities.put(seqNames.get(i), probsSequences.get(i));
+		}
+	}
+	
+	/**
+	 * Calculates the probabilities of the bins of one sequence
+	 * @param seqName String, the name of the chromosome or scaffold
+	 * @return List bins of the sequence with their associated probabilities
+	 */
+	private List<RDbinProbabilities> calculateProbabilities ( String seqName ) {
+		List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
+		List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
+		
+		log.info( "normalizing read depth for bins in " + seqName );
+		for ( int i = 0 ; i < seqBins.size() ; i++ ) {
+			ReadDepthBin bin = seqBins.get(i);
 
-		// iterate over all the bins in the genome
-		for ( String seqName : sequences.getNamesStringList() ) {
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
-			
-			log.info( "normalizing read depth for bins in " + seqName );
-			for ( int i = 0 ; i < seqBins.size() ; i++ ) {
-				ReadDepthBin bin = seqBins.get(i);
-
-				// change the nature of each bin to its probability
-				RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
+			// change the nature of each bin to its probability
+			RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
 
-				// calculate Z-score and add to the new list
-				binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
-				seqProbs.add(binP);
+			// calculate Z-score and add to the new list
+			binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
+			seqProbs.add(binP);
+		}
+		return seqProbs;
+	}
+	
+	/**
+	 * Detects events in intervals of all the lengths tested for one sequence
+	 * @param seqName String, the name of the chromosome or scaffold
+	 * @return List intervals with significant upper or lower tail probabilities
+	 */
+	private List<Interval> detectEvents ( String seqName ) {
+		log.info( "Calling CNVs for sequence " + seqName );
+		List<Interval> detectedCNVs = new ArrayList<Interval>();
+		
+		// get all bins in chromosome
+		List<RDbinProbabilities> seqProbs = probabilities.get(seqName);
+		int numProbs = seqProbs.size();
+		
+		// calculate N, and make intervals of all suggested lengths (2 <= l <= N)
+		double significance;																											
+		for ( int l = 2 ; (significance = Math.pow( (falsePositiveRate / (numProbs / l)) , (1.0 / l) )) < 0.50  ; l++ ) {				
+			//log.info( "Searching CNVs in " + l + "00bp-sized intervals" );
+			List<Interval> intervals = getIntervals(seqName, seqProbs, l);
+			for ( int i = 0 ; i < intervals.size() ; i++ ) {
+				
+				// test for duplications and deletions
+				Interval event = intervals.get(i);
+				if ( event.getMaxUpperProb() < significance ) detectedCNVs.add(event);
+				else if ( event.getMaxLowerProb() < significance ) detectedCNVs.add(event);
 			}
-			
-			probabilities.put(seqName, seqProbs);
 		}
+		return detectedCNVs;
 	}
 	
 	/**
@@ -376,6 +400,14 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 	public void setFilter(boolean filter) {
 		this.filter = filter;
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
 	
 }
 	
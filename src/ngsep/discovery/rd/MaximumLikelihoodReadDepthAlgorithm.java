@@ -48,6 +48,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 	private byte normalPloidy = 2;
 	private double changeProbability = 0.01;
 	private HMM hmm;
+	private int numThreads = 1;
 
 	public Logger getLog() {
 		return log;
@@ -85,6 +86,16 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 	public void setReadDepthDistribution(ReadDepthDistribution distribution) {
 		this.readDepthDistribution = distribution;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	@Override
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
 
 
 	public List<CalledCNV> callCNVs() {
@@ -92,13 +103,15 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		List<String> seqNames = readDepthDistribution.getSequences().getNamesStringList();
 		log.info("Building HMM");
 		buildHMM();
-		for(String seqName:seqNames) {
+		//Emissions are calculated directly from the states, so the model can be shared by different threads
+		List<List<CalledCNV>> cnvsSequences = SequencesParallelProcessor.process(seqNames, numThreads, (seqName) -> {
 			log.info("Calling CNVs for sequence "+seqName);
 			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
 			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
 			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
-			answer.addAll(cnvsSeq);
-		}
+			return cnvsSeq;
+		});
+		for(List<CalledCNV> cnvsSeq:cnvsSequences) answer.addAll(cnvsSeq);
 		return answer;
 	}
 
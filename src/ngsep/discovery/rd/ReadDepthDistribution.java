@@ -19,18 +19,29 @@
  *******************************************************************************/
 package ngsep.discovery.rd;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -54,6 +65,11 @@ public class ReadDepthDistribution {
 	private double meanReadDepth=0;
 	private double sigmaReadDepth = 1;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int numThreads = 1;
+	
+	//Cache of GC content of the bins saved next to the reference genome
+	private static final String GC_CACHE_SUFFIX = ".gcbins";
+	private static final int GC_CACHE_MAGIC = 0x4e474743;
 	
 	
 	public Logger getLog() {
@@ -80,6 +96,19 @@ public class ReadDepthDistribution {
 	public void setMinMQ(int minMQ) {
 		this.minMQ = minMQ;
 	}
+	/**
+	 * @return the number of threads used to process indexed alignment files
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * @param numThreads the number of threads used to process indexed alignment files
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
 
 	public QualifiedSequenceList getSequences() {
 		return sequences;
@@ -139,59 +168,182 @@ public class ReadDepthDistribution {
 		genomeSize = genome.getTotalLength();
 		sequences = genome.getSequencesMetadata();
 		System.out.println("Number of sequences: "+sequences.size());
+		//GC content of the bins is calculated once for each reference and bin size
+		String cacheFile = null;
+		if(genome.getFilename()!=null) cacheFile = genome.getFilename()+GC_CACHE_SUFFIX+binSize;
+		Map<String,double []> gcContents = null;
+		if(cacheFile!=null) gcContents = loadGCContents(cacheFile, genome);
+		boolean saveCache = cacheFile!=null && gcContents==null;
+		if(gcContents==null) gcContents = new TreeMap<String, double[]>();
 		int n = genome.getNumSequences();
 		for(int h=0;h<n;h++) {
 			QualifiedSequence sequence = genome.getSequenceByIndex(h);
 			String seqName = sequence.getName();
-			List<ReadDepthBin> seqBins = new ArrayList<ReadDepthBin>(); 
+			double [] gcContentsSeq = gcContents.get(seqName);
+			if(gcContentsSeq==null) {
+				gcContentsSeq = calculateGCContents(sequence.getCharacters());
+				gcContents.put(seqName, gcContentsSeq);
+			}
+			List<ReadDepthBin> seqBins = new ArrayList<ReadDepthBin>(gcContentsSeq.length); 
 			bins.put(seqName, seqBins);
-			CharSequence sequenceChars = sequence.getCharacters();
-			int l = sequenceChars.length();
-			int end = l - l%binSize;
-			//Ignore the last basepairs to avoid going over the end of the chromosome
-			for(int i=0;i<end;i+=binSize) {
-				String binSequence = sequenceChars.subSequence(i, i+binSize).toString();
-				double gcContent = 0;
-				int nBases = 0;
-				for(int j=0;j<binSize;j++) {
-					char base = Character.toUpperCase(binSequence.charAt(j)); 
-					if(DNASequence.isInAlphabeth(base)) {
-						nBases++;
-						if(base == 'G' || base == 'C') {
-							gcContent++;
-						}
+			for(int i=0;i<gcContentsSeq.length;i++) {
+				seqBins.add(new ReadDepthBin(seqName, i*binSize+1, (i+1)*binSize,gcContentsSeq[i]));
+			}
+			//System.out.println("Sequence name: "+seqName+" Sequence length "+sequence.length+" end: "+end+" bins: "+seqBins.size());
+		}
+		if(saveCache) saveGCContents(cacheFile, genome, gcContents);
+	}
+	/**
+	 * Calculates the GC content of the bins of the given sequence 
+	 * @param sequenceChars Sequence to divide in bins
+	 * @return double [] GC content of each bin. -1 if the bin does not have valid bases
+	 */
+	private double [] calculateGCContents(CharSequence sequenceChars) {
+		int l = sequenceChars.length();
+		//Ignore the last basepairs to avoid going over the end of the chromosome
+		double [] answer = new double [l/binSize];
+		for(int b=0;b<answer.length;b++) {
+			int start = b*binSize;
+			double gcContent = 0;
+			int nBases = 0;
+			for(int j=start;j<start+binSize;j++) {
+				char base = Character.toUpperCase(sequenceChars.charAt(j)); 
+				if(DNASequence.isInAlphabeth(base)) {
+					nBases++;
+					if(base == 'G' || base == 'C') {
+						gcContent++;
 					}
 				}
-				if(nBases>0) {
-					gcContent/=nBases;
-				} else {
-					gcContent = -1;
-				}
-				seqBins.add(new ReadDepthBin(seqName, i+1, i+binSize,gcContent));
 			}
-			//System.out.println("Sequence name: "+seqName+" Sequence length "+sequence.length+" end: "+end+" bins: "+seqBins.size());
+			if(nBases>0) {
+				gcContent/=nBases;
+			} else {
+				gcContent = -1;
+			}
+			answer[b] = gcContent;
+		}
+		return answer;
+	}
+	/**
+	 * Loads the GC content of the bins from a cache file
+	 * @param cacheFile File with the GC content of the bins saved by a previous run
+	 * @param genome Reference genome. Names and lengths of sequences must match the cache
+	 * @return Map<String,double[]> GC content of the bins of each sequence. null if the file does not exist, is older than
+	 * the reference genome or it was calculated for a different genome or bin size
+	 */
+	private Map<String,double []> loadGCContents(String cacheFile, ReferenceGenome genome) {
+		File file = new File(cacheFile);
+		if(!file.exists() || file.lastModified()<new File(genome.getFilename()).lastModified()) return null;
+		Map<String,double []> answer = new TreeMap<String, double[]>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if(in.readInt()!=GC_CACHE_MAGIC || in.readInt()!=binSize) return null;
+			int n = in.readInt();
+			if(n!=genome.getNumSequences()) return null;
+			for(int h=0;h<n;h++) {
+				QualifiedSequence sequence = genome.getSequenceByIndex(h);
+				if(!sequence.getName().equals(in.readUTF()) || sequence.getLength()!=in.readInt()) return null;
+				double [] gcContentsSeq = new double[in.readInt()];
+				for(int i=0;i<gcContentsSeq.length;i++) gcContentsSeq[i] = in.readDouble();
+				answer.put(sequence.getName(), gcContentsSeq);
+			}
+		} catch (IOException e) {
+			log.warning("Error loading GC content of bins from file "+cacheFile+". GC content will be recalculated. Error: "+e.getMessage());
+			return null;
+		}
+		log.info("Loaded GC content of bins from file "+cacheFile);
+		return answer;
+	}
+	/**
+	 * Saves the GC content of the bins to avoid calculating it again in future runs with the same reference genome.
+	 * Errors are logged but do not stop the process
+	 * @param cacheFile File to save the GC contents
+	 * @param genome Reference genome
+	 * @param gcContents GC content of the bins of each sequence
+	 */
+	private void saveGCContents(String cacheFile, ReferenceGenome genome, Map<String,double []> gcContents) {
+		File file = new File(cacheFile);
+		File tmpFile = new File(cacheFile+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(GC_CACHE_MAGIC);
+			out.writeInt(binSize);
+			int n = genome.getNumSequences();
+			out.writeInt(n);
+			for(int h=0;h<n;h++) {
+				QualifiedSequence sequence = genome.getSequenceByIndex(h);
+				double [] gcContentsSeq = gcContents.get(sequence.getName());
+				out.writeUTF(sequence.getName());
+				out.writeInt(sequence.getLength());
+				out.writeInt(gcContentsSeq.length);
+				for(int i=0;i<gcContentsSeq.length;i++) out.writeDouble(gcContentsSeq[i]);
+			}
+		} catch (IOException e) {
+			log.warning("Can not save GC content of bins to file "+cacheFile+". Error: "+e.getMessage());
+			tmpFile.delete();
+			return;
+		}
+		//The file is renamed at the end to avoid loading incomplete files in concurrent runs
+		if(!tmpFile.renameTo(file)) {
+			log.warning("Can not save GC content of bins to file "+cacheFile);
+			tmpFile.delete();
 		}
 	}
 	public void processAlignments (String filename) throws IOException {
-		
-		
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename)) {
-			reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
-			reader.setLog(log);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			reader.setFilterFlags(filterFlags);
-			reader.setMinMQ(minMQ);
+		boolean indexed = false;
+		if(numThreads>1) {
+			try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename)) {
+				indexed = reader.isIndexed();
+			}
+			if(!indexed) log.info("Alignments file "+filename+" is not indexed. Alignments will be processed in a single thread");
+		}
+		if(indexed) processAlignmentsIndexed(filename);
+		else processAlignmentsSerial(filename);
+		//Set corrected depth back to raw depth
+		for(List<ReadDepthBin> binsSeq:bins.values()) {
+			for(ReadDepthBin bin:binsSeq) {
+				bin.setCorrectedReadDepth(bin.getRawReadDepth());
+			}
+		}
+		double sum = 0;
+		int n=0;
+		for(List<ReadDepthBin> binsSeq:bins.values()) {
+			for(ReadDepthBin bin:binsSeq) {
+				if(!bin.isInRepetitiveRegion()) {
+					sum+=bin.getRawReadDepth();
+					n++;
+				}
+			}
+		}
+		if(n==0 || sum/n <1) throw new IOException("The average coverage in unique regions ("+(sum/n)+") is too low for reliable CNV detection. "
+				+ "Check if the XS field is present for all alignments in the bam file and if so, use the option -ignoreXS. If the average genome-wide coverage is low, then skip detection of CNVs"); 
+	}
+	private ReadAlignmentFileReader openReader(String filename) throws IOException {
+		ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename);
+		reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
+		reader.setLog(log);
+		int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
+		reader.setFilterFlags(filterFlags);
+		reader.setMinMQ(minMQ);
+		return reader;
+	}
+	private void processAlignmentsSerial (String filename) throws IOException {
+		try (ReadAlignmentFileReader reader = openReader(filename)) {
 			Iterator<ReadAlignment> it = reader.iterator();
 			//Sequence under processing
+			String seqName = null;
+			List<ReadDepthBin> seqBins = null;
 			while(it.hasNext()) {
 				ReadAlignment aln = it.next();
 				boolean uniqueRead = aln.isUnique();
 				
 				int middle = aln.getFirst()+aln.getReadLength()/2;
-				List<ReadDepthBin> seqBins = bins.get(aln.getSequenceName());
+				//Alignments are sorted, so the bins only need to be looked up when the sequence changes
+				if(seqName==null || !seqName.equals(aln.getSequenceName())) {
+					seqName = aln.getSequenceName();
+					seqBins = bins.get(seqName);
+				}
 				if(seqBins==null) continue;
 				int binPos = middle/binSize;
-				if(seqBins!=null && seqBins.size()>binPos) {
+				if(seqBins.size()>binPos) {
 					ReadDepthBin bin = seqBins.get(binPos);
 					if(!uniqueRead) bin.setInRepetitiveRegion(true);
 					bin.addRead();
@@ -201,24 +353,79 @@ public class ReadDepthDistribution {
 				//if(totalReads%100000 == 0) log.info("Processing read: "+aln.getReadName()+". Location: "+aln.getSequenceName()+":"+aln.getFirst()+" flags: "+aln.getFlags()+". Unique: "+aln.isUnique()+". Bins size: "+seqBins.size()+" bin pos: "+binPos);
 			}
 		}
-		//Set corrected depth back to raw depth
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				bin.setCorrectedReadDepth(bin.getRawReadDepth());
+	}
+	/**
+	 * Processes the alignments of different sequences in parallel using the index of the alignments file.
+	 * Sequences are distributed in groups of similar total length. Each group is processed by one thread with its own
+	 * reader, counting reads in arrays that are added to the bins at the end
+	 * @param filename Indexed alignments file
+	 * @throws IOException If the file can not be read
+	 */
+	private void processAlignmentsIndexed (String filename) throws IOException {
+		List<String> seqNames = sequences.getNamesStringList();
+		//Longest sequences are assigned first to the group with the smallest total length
+		List<String> sortedNames = new ArrayList<String>(seqNames);
+		Collections.sort(sortedNames, (n1,n2)->Integer.compare(bins.get(n2).size(), bins.get(n1).size()));
+		List<List<String>> groups = new ArrayList<List<String>>();
+		long [] groupSizes = new long [numThreads];
+		for(int i=0;i<numThreads;i++) groups.add(new ArrayList<String>());
+		for(String seqName:sortedNames) {
+			int minGroup = 0;
+			for(int i=1;i<numThreads;i++) if(groupSizes[i]<groupSizes[minGroup]) minGroup = i;
+			groups.get(minGroup).add(seqName);
+			groupSizes[minGroup]+=bins.get(seqName).size();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<List<SequenceDepthCounts>>> results = new ArrayList<>();
+		try {
+			for(List<String> group:groups) {
+				if(group.size()==0) continue;
+				results.add(pool.submit(()->countReads(filename, group)));
+			}
+			for(Future<List<SequenceDepthCounts>> result:results) {
+				for(SequenceDepthCounts counts:result.get()) {
+					List<ReadDepthBin> seqBins = bins.get(counts.sequenceName);
+					for(int i=0;i<counts.reads.length;i++) {
+						ReadDepthBin bin = seqBins.get(i);
+						bin.setRawReadDepth(bin.getRawReadDepth()+counts.reads[i]);
+						if(counts.repetitive.get(i)) bin.setInRepetitiveRegion(true);
+					}
+					totalReads+=counts.totalReads;
+				}
 			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Processing of alignments interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
 		}
-		double sum = 0;
-		int n=0;
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				if(!bin.isInRepetitiveRegion()) {
-					sum+=bin.getRawReadDepth();
-					n++;
+		log.info("Processed "+totalReads+" alignments");
+	}
+	private List<SequenceDepthCounts> countReads(String filename, List<String> seqNames) throws IOException {
+		List<SequenceDepthCounts> answer = new ArrayList<SequenceDepthCounts>(seqNames.size());
+		try (ReadAlignmentFileReader reader = openReader(filename)) {
+			for(String seqName:seqNames) {
+				SequenceDepthCounts counts = new SequenceDepthCounts(seqName, bins.get(seqName).size());
+				Iterator<ReadAlignment> it = reader.query(seqName);
+				while(it.hasNext()) {
+					ReadAlignment aln = it.next();
+					int middle = aln.getFirst()+aln.getReadLength()/2;
+					int binPos = middle/binSize;
+					if(counts.reads.length>binPos) {
+						if(!aln.isUnique()) counts.repetitive.set(binPos);
+						counts.reads[binPos]++;
+					}
+					counts.totalReads++;
 				}
+				if(bins.size()<100) log.info("Processed "+counts.totalReads+" alignments for sequence "+seqName);
+				answer.add(counts);
 			}
 		}
-		if(n==0 || sum/n <1) throw new IOException("The average coverage in unique regions ("+(sum/n)+") is too low for reliable CNV detection. "
-				+ "Check if the XS field is present for all alignments in the bam file and if so, use the option -ignoreXS. If the average genome-wide coverage is low, then skip detection of CNVs"); 
+		return answer;
 	}
 	public void correctDepthByGCContent () {
 		int gcContentBins = 100;
@@ -392,3 +599,17 @@ public class ReadDepthDistribution {
 	}
 	
 }
+/**
+ * Read counts of the bins of one sequence calculated by one thread
+ */
+class SequenceDepthCounts {
+	final String sequenceName;
+	final int [] reads;
+	final BitSet repetitive;
+	long totalReads = 0;
+	SequenceDepthCounts(String sequenceName, int nBins) {
+		this.sequenceName = sequenceName;
+		reads = new int [nBins];
+		repetitive = new BitSet(nBins);
+	}
+}
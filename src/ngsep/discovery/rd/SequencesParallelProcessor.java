@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery.rd;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs a task for each sequence of the genome. Read depth algorithms process the bins of each
+ * sequence independently, so tasks for different sequences can run in parallel
+ * @author Jorge Duitama
+ */
+class SequencesParallelProcessor {
+	/**
+	 * Runs the given task for each sequence
+	 * @param sequenceNames Names of the sequences to process
+	 * @param numThreads Number of threads. If it is one, sequences are processed in the calling thread
+	 * @param task Task to run for each sequence. It should only modify data of the sequence received as parameter
+	 * @return List<T> Results of the task in the same order of the sequence names
+	 */
+	static <T> List<T> process(List<String> sequenceNames, int numThreads, Function<String, T> task) {
+		List<T> answer = new ArrayList<>(sequenceNames.size());
+		if(numThreads==1 || sequenceNames.size()<2) {
+			for(String seqName:sequenceNames) answer.add(task.apply(seqName));
+			return answer;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Results are retrieved in order. Pending tasks are limited to keep memory bounded
+		LinkedList<Future<T>> pending = new LinkedList<>();
+		try {
+			for(String seqName:sequenceNames) {
+				pending.add(pool.submit(() -> task.apply(seqName)));
+				if(pending.size()>=2*numThreads) answer.add(pending.removeFirst().get());
+			}
+			while(pending.size()>0) answer.add(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Processing of sequences interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+		return answer;
+	}
+}
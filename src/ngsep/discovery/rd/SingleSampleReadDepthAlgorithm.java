@@ -45,6 +45,11 @@ public interface SingleSampleReadDepthAlgorithm {
 	 * @param distribution New distribution
 	 */
 	public void setReadDepthDistribution(ReadDepthDistribution distribution);
+	/**
+	 * Changes the number of threads used to process different sequences
+	 * @param numThreads New number of threads
+	 */
+	public void setNumThreads(int numThreads);
 	/**
 	 * Runs the read depth algorithm to find CNVs
 	 * @return List<CalledCNV> CNVs identified by the algorithm
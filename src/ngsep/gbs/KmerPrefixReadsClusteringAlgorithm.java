@@ -35,6 +35,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
@@ -47,6 +48,7 @@ import ngsep.discovery.VariantPileupListener;
 import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
+import ngsep.main.PipelineMetrics;
 import ngsep.main.ProgressNotifier;
 import ngsep.math.NumberArrays;
 import ngsep.math.PhredScoreHelper;
@@ -124,6 +126,13 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	private int numTotalReads = 0;
 	private int numClusterdFilesI = 0;
 	
+	//Throughput metrics
+	private PipelineMetrics metrics = new PipelineMetrics("KmerPrefixReadsClustering");
+	private LongAdder kmerReadsCounter = metrics.getCounter("kmersMapReads");
+	private LongAdder clusteringReadsCounter = metrics.getCounter("clusteringReads");
+	private LongAdder clustersCounter = metrics.getCounter("processedClusters");
+	private LongAdder variantsCounter = metrics.getCounter("variants");
+	
 	public static void main(String[] args) throws Exception {
 		KmerPrefixReadsClusteringAlgorithm instance = new KmerPrefixReadsClusteringAlgorithm();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -146,6 +155,32 @@ public class KmerPrefixReadsClusteringAlgorithm {
 
 	public void setLog(Logger log) {
 		this.log = log;
+		metrics.setLog(log);
+	}
+	
+	/**
+	 * @return the throughput metrics of the process
+	 */
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of seconds between log lines reporting throughput metrics
+	 */
+	public int getMetricsInterval() {
+		return metrics.getLogInterval();
+	}
+	
+	/**
+	 * @param metricsInterval the number of seconds between log lines reporting throughput metrics. Zero disables the report
+	 */
+	public void setMetricsInterval(int metricsInterval) {
+		metrics.setLogInterval(metricsInterval);
+	}
+	
+	public void setMetricsInterval(String value) {
+		setMetricsInterval((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 
 	/**
@@ -168,30 +203,42 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	// TODO fix Large and Small cluster count. 
 	
 	public void run() throws IOException {
-		
-		processInfo.addTime(System.nanoTime(), "Load files start");
-		loadFilenamesAndSamples();
-		processInfo.addTime(System.nanoTime(), "Load files end");
-		processInfo.addTime(System.nanoTime(), "BuildKmersMap start");
-		log.info("Loaded "+filenamesBySampleId1.size()+" samples");
-		buildSamples();
-		buildKmersMap();
-		processInfo.addTime(System.nanoTime(), "BuildKmersMap end");
-		processInfo.addTime(System.nanoTime(), "Cluster reads start");
-		log.info("Built kmers map with "+kmersMap.size()+" clusters");
-		this.clusterSizes = new int[kmersMap.size()];
-		List<String> clusteredReadsFilenames = clusterReads();
-		printDistribution();
-		printStatistics("initial");
-		processInfo.addTime(System.nanoTime(), "Cluster reads end");
-		processInfo.addTime(System.nanoTime(), "Variant calling start");		
-//		List<String> clusteredReadsFilenames = debug();
-		this.numClusteredFiles = clusteredReadsFilenames.size();
-		log.info("Clustered reads");
-		callVariants(clusteredReadsFilenames);
-		processInfo.addTime(System.nanoTime(), "Variant calling end");
-		log.info("Called variants");
-		printStatistics("final");
+		metrics.setProgressNotifier(progressNotifier);
+		metrics.registerGauge("usedMemoryMB", () -> (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory())/(1024L * 1024L));
+		metrics.start();
+		try {
+			processInfo.addTime(System.nanoTime(), "Load files start");
+			loadFilenamesAndSamples();
+			processInfo.addTime(System.nanoTime(), "Load files end");
+			processInfo.addTime(System.nanoTime(), "BuildKmersMap start");
+			log.info("Loaded "+filenamesBySampleId1.size()+" samples");
+			long stageStart = System.nanoTime();
+			buildSamples();
+			buildKmersMap();
+			metrics.getTimer("buildKmersMap").recordSince(stageStart);
+			processInfo.addTime(System.nanoTime(), "BuildKmersMap end");
+			processInfo.addTime(System.nanoTime(), "Cluster reads start");
+			log.info("Built kmers map with "+kmersMap.size()+" clusters");
+			stageStart = System.nanoTime();
+			this.clusterSizes = new int[kmersMap.size()];
+			List<String> clusteredReadsFilenames = clusterReads();
+			metrics.getTimer("clusterReads").recordSince(stageStart);
+			printDistribution();
+			printStatistics("initial");
+			processInfo.addTime(System.nanoTime(), "Cluster reads end");
+			processInfo.addTime(System.nanoTime(), "Variant calling start");		
+//			List<String> clusteredReadsFilenames = debug();
+			this.numClusteredFiles = clusteredReadsFilenames.size();
+			log.info("Clustered reads");
+			stageStart = System.nanoTime();
+			callVariants(clusteredReadsFilenames);
+			metrics.getTimer("callVariants").recordSince(stageStart);
+			processInfo.addTime(System.nanoTime(), "Variant calling end");
+			log.info("Called variants");
+			printStatistics("final");
+		} finally {
+			metrics.stop();
+		}
 		log.info("Process finished");
 	}
 	
@@ -278,6 +325,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 				if(DNASequence.isDNA(prefix)) {
 					kmersMap.addOcurrance(new DNAShortKmer(prefix));
 					readCount++;
+					kmerReadsCounter.increment();
 				}
 			}
 		}
@@ -288,17 +336,22 @@ public class KmerPrefixReadsClusteringAlgorithm {
 	}
 	public List<String> clusterReads() throws IOException {
 		ClusteredReadsCache clusteredReadsCache = new ClusteredReadsCache(); 
-		for(String sampleId:filenamesBySampleId1.keySet()) {
-			String filename1 = filenamesBySampleId1.get(sampleId);
-			String filename2 = filenamesBySampleId2.get(sampleId);
-			if(filename2 == null) {
-				log.info("Clustering reads from " + filename1);
-				clusterReadsSingleFile (sampleId, filename1, clusteredReadsCache);
-			} else {
-				clusterReadsPairedEndFiles (sampleId, filename1, filename2, clusteredReadsCache);
+		metrics.registerGauge("cachedReads", clusteredReadsCache::getTotalReads);
+		try {
+			for(String sampleId:filenamesBySampleId1.keySet()) {
+				String filename1 = filenamesBySampleId1.get(sampleId);
+				String filename2 = filenamesBySampleId2.get(sampleId);
+				if(filename2 == null) {
+					log.info("Clustering reads from " + filename1);
+					clusterReadsSingleFile (sampleId, filename1, clusteredReadsCache);
+				} else {
+					clusterReadsPairedEndFiles (sampleId, filename1, filename2, clusteredReadsCache);
+				}
 			}
+			clusteredReadsCache.dump(outPrefix);
+		} finally {
+			metrics.removeGauge("cachedReads");
 		}
-		clusteredReadsCache.dump(outPrefix);
 		return clusteredReadsCache.getClusteredReadFiles();
 	}
 
@@ -309,6 +362,7 @@ public class KmerPrefixReadsClusteringAlgorithm {
 			Iterator<RawRead> reader = openFile.iterator();
 			while(reader.hasNext()) {
 				this.numTotalReads++;
+				clusteringReadsCounter.increment();
 				RawRead read = reader.next();
 				String s = read.getSequenceString();
 				if(DEF_START + kmerLength>s.length()) continue;
@@ -414,6 +468,8 @@ public class KmerPrefixReadsClusteringAlgorithm {
 				
 				List<VCFRecord> records = processCluster(nextCluster, header);
 				writer.printVCFRecords(records, outVariants);
+				clustersCounter.increment();
+				variantsCounter.add(records.size());
 				
 				if(nextCluster.getClusterNumber()%1000 == 0) {
 					System.out.println("Done with cluster " + nextCluster.getClusterNumber());
@@ -1,15 +1,10 @@
 package ngsep.genome;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
-import ngsep.alignments.ReadAlignment;
 import ngsep.sequences.FMIndex;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
@@ -27,7 +22,6 @@ public class AnnotatedReferenceGenome {
 	private QualifiedSequenceList sequencesMetadata;
 	private List<OrthologyUnit> orthologyUnitsList;
 	private GenomicRegionSortedCollection<OrthologyUnit> orthologyUnitsBySequence;
-	private Map<String, OrthologyUnit> orthologyUnitsMap;
 	private FMIndex indexOrthologyUnits;
 	
 	private GenomicRegionSortedCollection<OrthologyUnit> uniqueOrthologyUnitsBySequence;
@@ -50,7 +44,6 @@ public class AnnotatedReferenceGenome {
 	 */
 	private void extractOrthologyUnits() {
 		orthologyUnitsList = new ArrayList<>();
-		orthologyUnitsMap = new HashMap<>();
 		orthologyUnitsBySequence = new GenomicRegionSortedCollection<>(sequencesMetadata);
 		List<Transcript> allTranscripts = transcriptome.getAllTranscripts();
 		Gene lastGene = null; 
@@ -62,7 +55,6 @@ public class AnnotatedReferenceGenome {
 					OrthologyUnit unit = buildOrthologyUnitGene(lastGene, transcriptsGene);
 					if (unit!=null) {
 						orthologyUnitsList.add(unit);
-						orthologyUnitsMap.put(unit.getId(), unit);
 						orthologyUnitsBySequence.add(unit);
 					}
 				}
@@ -74,7 +66,6 @@ public class AnnotatedReferenceGenome {
 		OrthologyUnit unit = buildOrthologyUnitGene(lastGene, transcriptsGene);
 		if (unit!=null) {
 			orthologyUnitsList.add(unit);
-			orthologyUnitsMap.put(unit.getId(), unit);
 			orthologyUnitsBySequence.add(unit);
 		}
 	}
@@ -124,12 +115,19 @@ public class AnnotatedReferenceGenome {
 	}
 	
 	public void calculateParalogs(byte kmerSize, int minPctKmers) {
-		for (OrthologyUnit unit:orthologyUnitsList) {
-			//Orthology unit ids of similar proteins
-			Set<String> hits = findOrthologyUnits(indexOrthologyUnits, unit.getUnitSequence(), kmerSize, minPctKmers);
-			for(String paralogId:hits) {
-				if(!paralogId.equals(unit.getId())) {
-					OrthologyUnit paralog = orthologyUnitsMap.get(paralogId);
+		addParalogs(findHomologUnits(this, 0, orthologyUnitsList.size(), kmerSize, minPctKmers));
+	}
+	
+	/**
+	 * Adds the paralogs found with findHomologUnits querying this genome against itself and selects the unique orthology units
+	 * @param homologs Indexes of the homologs of each unit of this genome
+	 */
+	public void addParalogs(int [][] homologs) {
+		for (int i=0;i<homologs.length;i++) {
+			OrthologyUnit unit = orthologyUnitsList.get(i);
+			for(int paralogIdx:homologs[i]) {
+				OrthologyUnit paralog = orthologyUnitsList.get(paralogIdx);
+				if(paralog!=unit) {
 					unit.addParalog(paralog);
 					paralog.addParalog(unit);
 				}
@@ -145,42 +143,62 @@ public class AnnotatedReferenceGenome {
 		}
 	}
 	
-	private Set<String> findOrthologyUnits(FMIndex index, String searchSequence, byte kmerSize, int minPctKmers) {	
-		//Counts of k-mers mapping to each protein in the FM-index
-		Map<String,Integer> kmerSupportMap = new TreeMap<>();
+	/**
+	 * Finds the units of the given genome that are homologous to a range of units of this genome.
+	 * This method does not modify the orthology units, so it can be called concurrently by several threads
+	 * @param genome2 Genome to search for homologs. It can be this genome to search for paralogs
+	 * @param first Index of the first unit of this genome to query
+	 * @param last Index after the last unit of this genome to query
+	 * @param kmerSize Length of the k-mers used to query the index of genome2
+	 * @param minPctKmers Minimum percentage of k-mers of a unit supporting a homolog
+	 * @return int [][] Indexes in genome2 of the homologs of each queried unit. Homologs are sorted by unit id
+	 */
+	public int [][] findHomologUnits(AnnotatedReferenceGenome genome2, int first, int last, byte kmerSize, int minPctKmers) {
+		//Counts of k-mers mapping to each unit of genome2. Reused between queries
+		int [] kmerSupport = new int [genome2.orthologyUnitsList.size()];
+		int [][] answer = new int [last-first][];
+		for(int i=first;i<last;i++) {
+			answer[i-first] = genome2.findOrthologyUnits(orthologyUnitsList.get(i).getUnitSequence(), kmerSize, minPctKmers, kmerSupport);
+		}
+		return answer;
+	}
+	
+	private int [] findOrthologyUnits(String searchSequence, byte kmerSize, int minPctKmers, int [] kmerSupport) {
+		//Units with at least one supporting k-mer
+		int [] supported = new int [10];
+		int numSupported = 0;
 		int totalKmers = 0;
 		//Step 1: Generate k-mers to query the FM-Index looking for homologous transcripts to calculate the kmer counts
 		for(int i=0; i<searchSequence.length()-kmerSize+1; i+=kmerSize) {
 			String kmer = searchSequence.substring(i, i+kmerSize);
-			
-			List <ReadAlignment> kmerHits = index.search(kmer);
-			for(ReadAlignment alns:kmerHits) {
-				String name = alns.getSequenceName();
-				if(kmerSupportMap.containsKey(name))
-				{
-					int value = 1 + kmerSupportMap.get(name);
-					kmerSupportMap.put(name, value);
-				}
-				else
-				{
-					kmerSupportMap.put(name, 1);
+			//Units are indexed in the same order of the list of units
+			int [] kmerHits = indexOrthologyUnits.searchSequenceIndexes(kmer);
+			for(int unitIdx:kmerHits) {
+				if(kmerSupport[unitIdx]==0) {
+					if(numSupported==supported.length) supported = Arrays.copyOf(supported, 2*numSupported);
+					supported[numSupported] = unitIdx;
+					numSupported++;
 				}
+				kmerSupport[unitIdx]++;
 			}
 			totalKmers = totalKmers +1;
 		}
 
-		//Step 2: Fill list traversing the counts and choosing transcripts for which at least x% of the k-mers support the match
-		Set<String> answer = new TreeSet<>();
-		
-		for(Map.Entry<String,Integer> entry : kmerSupportMap.entrySet()) {
-			String name = entry.getKey();
-			double transcriptKmers = entry.getValue();
+		//Step 2: Choose units for which at least x% of the k-mers support the match. Counts are reset for the next query
+		List<Integer> selected = new ArrayList<>();
+		for(int j=0;j<numSupported;j++) {
+			int unitIdx = supported[j];
+			double transcriptKmers = kmerSupport[unitIdx];
+			kmerSupport[unitIdx] = 0;
 			double percent = (transcriptKmers/totalKmers)*100;
 			if(percent >= minPctKmers)
 			{
-				answer.add(name);
+				selected.add(unitIdx);
 			}
 		}
+		Collections.sort(selected, (i1,i2)->orthologyUnitsList.get(i1).getId().compareTo(orthologyUnitsList.get(i2).getId()));
+		int [] answer = new int [selected.size()];
+		for(int j=0;j<answer.length;j++) answer[j] = selected.get(j);
 		return answer;
 	}
 	
@@ -195,11 +213,18 @@ public class AnnotatedReferenceGenome {
 	 * @param genome2 to search for orthologs
 	 */
 	public void calculateOrthologs (AnnotatedReferenceGenome genome2, byte kmerSize, int minPctKmers) {
-		for (OrthologyUnit unit:orthologyUnitsList) {
-			//Orthology unit ids of similar proteins
-			Set<String> hits = findOrthologyUnits(genome2.indexOrthologyUnits, unit.getUnitSequence(), kmerSize, minPctKmers);
-			for(String orthologId:hits) {
-				OrthologyUnit ortholog = genome2.orthologyUnitsMap.get(orthologId);
+		addOrthologs(genome2, findHomologUnits(genome2, 0, orthologyUnitsList.size(), kmerSize, minPctKmers));
+	}
+	/**
+	 * Adds the orthologs found with findHomologUnits querying this genome against the given genome
+	 * @param genome2 Genome used to search for orthologs
+	 * @param homologs Indexes in genome2 of the homologs of each unit of this genome
+	 */
+	public void addOrthologs (AnnotatedReferenceGenome genome2, int [][] homologs) {
+		for (int i=0;i<homologs.length;i++) {
+			OrthologyUnit unit = orthologyUnitsList.get(i);
+			for(int orthologIdx:homologs[i]) {
+				OrthologyUnit ortholog = genome2.orthologyUnitsList.get(orthologIdx);
 				unit.addOrtholog(ortholog);
 				ortholog.addOrtholog(unit);
 			}
@@ -37,6 +37,10 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
@@ -58,6 +62,12 @@ public class GenomesAligner {
 	public static final byte DEF_KMER_SIZE = 10;
 	public static final int DEF_MIN_PCT_KMERS = 50;
 	public static final int DEF_MAX_HOMOLOGS_UNIT = 3;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_GAP_CHAIN = 0;
+	/**
+	 * Number of orthology units queried by each parallel task
+	 */
+	public static final int UNITS_PER_TASK = 200;
 
 
 	private Logger log = Logger.getLogger(GenomesAligner.class.getName());
@@ -69,6 +79,8 @@ public class GenomesAligner {
 	private byte kmerSize = DEF_KMER_SIZE;
 	private int minPctKmers = DEF_MIN_PCT_KMERS;
 	private int maxHomologsUnit = DEF_MAX_HOMOLOGS_UNIT;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxGapChain = DEF_MAX_GAP_CHAIN;
 
 	private List<List<OrthologyUnit>> orthologyUnitClusters=new ArrayList<>();
 
@@ -175,6 +187,41 @@ public class GenomesAligner {
 		setMaxHomologsUnit((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 
+	/**
+	 * @return the numThreads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the numThreads to set
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	/**
+	 * @return the maxGapChain
+	 */
+	public int getMaxGapChain() {
+		return maxGapChain;
+	}
+
+	/**
+	 * @param maxGapChain the maxGapChain to set
+	 */
+	public void setMaxGapChain(int maxGapChain) {
+		this.maxGapChain = maxGapChain;
+	}
+	public void setMaxGapChain(String value) {
+		setMaxGapChain((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public void loadGenome(String fileGenome, String fileTranscriptome) throws IOException {
 		ReferenceGenome genome = new ReferenceGenome(fileGenome);
 		log.info("Loaded genome "+fileGenome);
@@ -184,7 +231,9 @@ public class GenomesAligner {
 		log.info("Loaded transcriptome "+fileTranscriptome+ " number of transcripts: "+transcriptome.getAllTranscripts().size());
 		AnnotatedReferenceGenome annGenome = new AnnotatedReferenceGenome(genomes.size()+1, genome, transcriptome);
 		log.info("Genome: "+annGenome.getId()+" has "+annGenome.getOrthologyUnits().size()+" total orthology units. Calculating Paralogs");
-		annGenome.calculateParalogs(kmerSize, minPctKmers);
+		List<AnnotatedReferenceGenome[]> pairs = new ArrayList<>();
+		pairs.add(new AnnotatedReferenceGenome[] {annGenome, annGenome});
+		annGenome.addParalogs(findHomologUnits(pairs).get(0));
 		log.info("Paralogs found for Genome: "+annGenome.getId()+" Unique orthology units: "+annGenome.getUniqueOrthologyUnits().size());
 		genomes.add(annGenome);
 	}
@@ -192,11 +241,18 @@ public class GenomesAligner {
 
 	public void alignGenomes() {
 
+		List<AnnotatedReferenceGenome[]> pairs = new ArrayList<>();
 		for(int i=0;i<genomes.size();i++) {
 			for (int j=0;j<genomes.size();j++) {
-				if(i!=j) genomes.get(i).calculateOrthologs(genomes.get(j), kmerSize, minPctKmers);
+				if(i!=j) pairs.add(new AnnotatedReferenceGenome[] {genomes.get(i), genomes.get(j)});
 			}
 		}
+		//Searches run in parallel but orthologs are added in the same order for any number of threads
+		List<int [][]> homologsPairs = findHomologUnits(pairs);
+		for(int k=0;k<pairs.size();k++) {
+			AnnotatedReferenceGenome [] pair = pairs.get(k);
+			pair[0].addOrthologs(pair[1], homologsPairs.get(k));
+		}
 		calculateOrthologClusters();
 		if(genomes.size()<2) return;
 		// By now this is still done for two genomes
@@ -221,6 +277,54 @@ public class GenomesAligner {
 
 
 
+	/**
+	 * Finds the homologs of the units of the first genome of each pair among the units of the second genome of the pair.
+	 * Blocks of units of all pairs are queried in parallel. Each task returns the results for its own block, so no
+	 * synchronization is needed on the orthology units
+	 * @param pairs Pairs of genomes to compare
+	 * @return List<int [][]> Indexes of the homologs of each unit of the first genome of each pair in the second genome of the pair
+	 */
+	private List<int [][]> findHomologUnits(List<AnnotatedReferenceGenome[]> pairs) {
+		List<int [][]> answer = new ArrayList<>();
+		if(numThreads==1) {
+			for(AnnotatedReferenceGenome [] pair:pairs) {
+				answer.add(pair[0].findHomologUnits(pair[1], 0, pair[0].getOrthologyUnits().size(), kmerSize, minPctKmers));
+			}
+			return answer;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<List<Future<int [][]>>> tasksPairs = new ArrayList<>();
+			for(AnnotatedReferenceGenome [] pair:pairs) {
+				List<Future<int [][]>> tasks = new ArrayList<>();
+				int n = pair[0].getOrthologyUnits().size();
+				for(int first=0;first<n;first+=UNITS_PER_TASK) {
+					final int firstUnit = first;
+					final int lastUnit = Math.min(n, first+UNITS_PER_TASK);
+					tasks.add(pool.submit(() -> pair[0].findHomologUnits(pair[1], firstUnit, lastUnit, kmerSize, minPctKmers)));
+				}
+				tasksPairs.add(tasks);
+			}
+			for(int k=0;k<pairs.size();k++) {
+				int [][] homologs = new int [pairs.get(k)[0].getOrthologyUnits().size()][];
+				int first = 0;
+				for(Future<int [][]> task:tasksPairs.get(k)) {
+					int [][] block = task.get();
+					System.arraycopy(block, 0, homologs, first, block.length);
+					first+=block.length;
+				}
+				answer.add(homologs);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while searching orthology units", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error searching orthology units", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return answer;
+	}
+
 	private void calculateOrthologClusters() {
 		log.info("Clustering orthologs and paralogs");
 		orthologyUnitClusters=new ArrayList<>();
@@ -390,17 +494,96 @@ public class GenomesAligner {
 			//System.out.println("Positions [ "+i+"]:"+j);
 		}
 		// Run LCS
-
+		if(maxGapChain>0) {
+			double [] weights = new double [positions.length];
+			Arrays.fill(weights, 1);
+			return findWeightedChain(positions, weights, maxGapChain);
+		}
 		Set<Integer> lcs = findLCS(positions);
 		return lcs;
 	}
 
 	/**
-	 * Calculates the longest common subsequence (LCS) of sorted entries in the given indexes array using dynamic programming 
+	 * Calculates the longest common subsequence (LCS) of sorted entries in the given indexes array.
+	 * Because the entries are different positions, this is the longest increasing subsequence, which is calculated
+	 * by patience sorting in O(n log n) time and linear memory
 	 * @param indexesMap Indexes to find the LCS
 	 * @return SortedSet<Integer> Positions making the LCS
 	 */
 	public SortedSet<Integer> findLCS (int [] indexesMap) {
+		SortedSet<Integer> answer = new TreeSet<>();
+		int n = indexesMap.length;
+		//tails[k] is the smallest value ending an increasing subsequence of length k+1
+		int [] tails = new int [n];
+		//Length of the longest increasing subsequence ending at each position
+		int [] lengths = new int [n];
+		int maxLength = 0;
+		for(int i=0;i<n;i++) {
+			int value = indexesMap[i];
+			int lo = 0;
+			int hi = maxLength;
+			while(lo<hi) {
+				int mid = (lo+hi)>>>1;
+				if(tails[mid]<value) lo = mid+1;
+				else hi = mid;
+			}
+			tails[lo] = value;
+			lengths[i] = lo+1;
+			if(lo==maxLength) maxLength++;
+		}
+		//Traceback from the end choosing the last position that can continue the subsequence
+		int remaining = maxLength;
+		int bound = Integer.MAX_VALUE;
+		for(int i=n-1;i>=0 && remaining>0;i--) {
+			if(lengths[i]==remaining && indexesMap[i]<bound) {
+				answer.add(i);
+				remaining--;
+				bound = indexesMap[i];
+			}
+		}
+		return answer;
+	}
+	
+	/**
+	 * Calculates the chain of entries with the largest total weight such that positions and values of the chain are increasing
+	 * and consecutive entries in the chain differ by at most maxGap in both positions and values. This is useful to
+	 * select collinear blocks avoiding long jumps between distant regions
+	 * @param indexesMap Indexes to find the chain
+	 * @param weights Weight of each entry
+	 * @param maxGap Maximum difference allowed between consecutive entries of the chain
+	 * @return SortedSet<Integer> Positions making the chain
+	 */
+	public SortedSet<Integer> findWeightedChain (int [] indexesMap, double [] weights, int maxGap) {
+		SortedSet<Integer> answer = new TreeSet<>();
+		int n = indexesMap.length;
+		if(n==0) return answer;
+		double [] scores = new double [n];
+		int [] previous = new int [n];
+		int best = 0;
+		for(int i=0;i<n;i++) {
+			scores[i] = weights[i];
+			previous[i] = -1;
+			for(int k=i-1;k>=0 && i-k<=maxGap;k--) {
+				int diff = indexesMap[i]-indexesMap[k];
+				if(diff<=0 || diff>maxGap) continue;
+				if(scores[k]+weights[i]>scores[i]) {
+					scores[i] = scores[k]+weights[i];
+					previous[i] = k;
+				}
+			}
+			if(scores[i]>scores[best]) best = i;
+		}
+		for(int i=best;i>=0;i=previous[i]) answer.add(i);
+		return answer;
+	}
+
+	/**
+	 * Calculates the longest common subsequence (LCS) of sorted entries in the given indexes array using dynamic programming.
+	 * This implementation takes quadratic time and memory. It is kept as reference to compare with findLCS
+	 * @param indexesMap Indexes to find the LCS
+	 * @return SortedSet<Integer> Positions making the LCS
+	 */
+	public SortedSet<Integer> findLCSDynamicProgramming (int [] indexesMap) {
 		SortedSet<Integer> answer = new TreeSet<>();
 		int n = indexesMap.length;
 		int [] [] m = new int [n][n+1];
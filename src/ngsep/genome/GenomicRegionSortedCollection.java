@@ -33,9 +33,9 @@ import ngsep.sequences.QualifiedSequenceList;
 public class GenomicRegionSortedCollection<T extends GenomicRegion> implements Collection<T> {
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private Map<Integer,List<T>> regionsMap = new HashMap<Integer, List<T>>();
-	private Map<Integer,List<T>> longRegionsMap = new HashMap<Integer, List<T>>();
+	//Interval indexes per sequence. Built when the regions are sorted
+	private Map<Integer,RegionsIndex> indexesMap = new HashMap<Integer, RegionsIndex>();
 	private int size = 0;
-	private int numSpanningLong = 15;
 	private boolean sorted = true;
 	
 	
@@ -51,7 +51,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		this.sequences.addAll(sequences);
 		for(int i=0;i<this.sequences.size();i++) {	 
 			regionsMap.put(i, new ArrayList<T>());
-			longRegionsMap.put(i, new ArrayList<T>());
 		}
 	}
 	@Override
@@ -67,7 +66,6 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 			}
 			index = sequences.indexOf(seq.getName());
 			regionsMap.put(index, new ArrayList<T>());
-			longRegionsMap.put(index, new ArrayList<T>());
 		}
 		List<T> regions = regionsMap.get(index);
 		regions.add(e);
@@ -91,8 +89,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	public void clear() {
 		for(int index:regionsMap.keySet()) {
 			regionsMap.get(index).clear();
-			longRegionsMap.get(index).clear();
 		}
+		indexesMap.clear();
 		size = 0;
 		sorted = true;
 	}
@@ -125,9 +123,8 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		if(index<0) return false;
 		regions.remove(index);
 		size--;
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		index = GenomicRegionSortedCollection.indexOf (longRegions,gr);
-		if(index>=0) longRegions.remove(index);
+		//The index is rebuilt in the next query
+		indexesMap.remove(sequenceIndex);
 		return true;
 	}
 	@Override
@@ -151,11 +148,10 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		int remaining = n;
 		for(int i=0;i<sequences.size() && remaining > 0;i++) {
 			List<T> regions = regionsMap.get(i);
-			List<T> longRegions = longRegionsMap.get(i);
 			int nSeq = regions.size();
 			if(nSeq<=remaining) {
 				regions.clear();
-				longRegions.clear();
+				indexesMap.remove(i);
 				remaining -= nSeq;
 				size -= nSeq;
 			} else {
@@ -165,7 +161,7 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 				}
 				regions.clear();
 				regions.addAll(newRegions);
-				//Update long regions in the next sort
+				//Update the index in the next sort
 				sorted = false;
 				size-=remaining;
 				remaining = 0;
@@ -190,34 +186,42 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 	}
 	private void sort() {
 		if(!sorted) {
-			//System.out.println("Sorting "+regionsForward.size()+" regions");
-			//if(regionsForward.size()>0) System.out.println("Type: "+regionsForward.get(0).getClass().getName());
 			for(int index:regionsMap.keySet()) {
 				List<T> regions = regionsMap.get(index);
 				Collections.sort(regions,GenomicRegionPositionComparator.getInstance());
-				List<T> longRegions = longRegionsMap.get(index);
-				longRegions.clear();
-				for(int i=0;i<regions.size();i++) {
-					T r = regions.get(i);
-		 			//if(i<50) System.out.println("Seqname: "+r.getSequenceName()+". Start: "+r.getStart()+" end:"+r.getEnd());
-					int j=i+1;
-					for(;j<regions.size() && j<=i+numSpanningLong;j++) {
-						GenomicRegion r2 = regions.get(j);
-						if(r2.getFirst() > r.getLast()) {
-							break;
-						}
-					}
-					if(j>i+numSpanningLong) {
-						longRegions.add(r);
-					}
-				}
-				
+				indexesMap.put(index, new RegionsIndex(regions));
 			}
-			//System.out.println("Found "+longRegions.size()+" long regions");
 		}
 		sorted = true;
 	}
 	
+	/**
+	 * Retrieves the index of the regions of the given sequence, building it if needed 
+	 * @param sequenceIndex Index of the sequence
+	 * @return RegionsIndex Index of the regions. null if the sequence does not have regions
+	 */
+	private RegionsIndex getIndex(int sequenceIndex) {
+		sort();
+		RegionsIndex index = indexesMap.get(sequenceIndex);
+		if(index==null) {
+			List<T> regions = regionsMap.get(sequenceIndex);
+			if(regions==null) return null;
+			index = new RegionsIndex(regions);
+			indexesMap.put(sequenceIndex, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the sorted list of regions of the given sequence. The list should not be modified
+	 * @param sequenceIndex Index of the sequence
+	 * @return List<T> Regions in the given sequence sorted by position. null if the sequence does not have regions
+	 */
+	List<T> getSortedRegions(int sequenceIndex) {
+		sort();
+		return regionsMap.get(sequenceIndex);
+	}
+	
 	public QualifiedSequenceList getSequenceNames() {
 		return sequences;
 	}
@@ -241,40 +245,118 @@ public class GenomicRegionSortedCollection<T extends GenomicRegion> implements C
 		return findSpanningRegions(sequences.indexOf(sequenceName),first,last);
 	}
 	public GenomicRegionSortedCollection<T> findSpanningRegions(int sequenceIndex, int first, int last) {
-		GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
-		if(sequenceIndex <0 || sequenceIndex>sequences.size()) return answer;
+		final GenomicRegionSortedCollection<T> answer = new GenomicRegionSortedCollection<T>();
+		visitSpanningRegions(sequenceIndex, first, last, (r)->answer.add(r));
+		//Regions are visited in position order
+		answer.sorted = true;
+		return answer;
+	}
+	
+	/**
+	 * Visits the regions spanning the given interval in position order without creating intermediate collections
+	 * @param sequenceName Name of the sequence of the interval
+	 * @param first First position of the interval
+	 * @param last Last position of the interval
+	 * @param visitor Object receiving the regions spanning the interval
+	 */
+	public void visitSpanningRegions(String sequenceName, int first, int last, GenomicRegionVisitor<T> visitor) {
+		visitSpanningRegions(sequences.indexOf(sequenceName), first, last, visitor);
+	}
+	
+	/**
+	 * Visits the regions spanning the given interval in position order without creating intermediate collections
+	 * @param sequenceIndex Index of the sequence of the interval within the sequence names of this collection
+	 * @param first First position of the interval
+	 * @param last Last position of the interval
+	 * @param visitor Object receiving the regions spanning the interval
+	 */
+	public void visitSpanningRegions(int sequenceIndex, int first, int last, GenomicRegionVisitor<T> visitor) {
+		if(sequenceIndex <0 || sequenceIndex>=sequences.size()) return;
+		RegionsIndex index = getIndex(sequenceIndex);
+		if(index==null || index.size()==0) return;
+		index.visit(regionsMap.get(sequenceIndex), index.rootNode(), index.rootLevel, first, last, visitor);
+	}
+	
+	/**
+	 * Creates an object to answer queries sorted by sequence and position in a single pass over the regions.
+	 * This also builds the indexes of all sequences, so queries made after this call do not modify the collection
+	 * @return GenomicRegionSweep<T> New sweep over this collection
+	 */
+	public GenomicRegionSweep<T> createSweep() {
 		sort();
-		GenomicRegionSpanComparator spanCmp = GenomicRegionSpanComparator.getInstance();
-		GenomicRegion dummyRegion = new GenomicRegionImpl(sequences.get(sequenceIndex).getName(), first, first);
-		List<T> regions = regionsMap.get(sequenceIndex);
-		int index = Collections.binarySearch(regions, dummyRegion,GenomicRegionPositionComparator.getInstance());
-		int indexStart = index;
-		if(index<0) {
-			index = -index-1;
-		}
-		indexStart = Math.max(0,index - numSpanningLong);
+		for(int i=0;i<sequences.size();i++) getIndex(i);
+		return new GenomicRegionSweep<T>(this);
+	}
+	
+	/**
+	 * Implicit interval tree over the regions of one sequence sorted by first position.
+	 * Each element of the sorted array is a node. Leaves are at even positions and the node at position x
+	 * in level k has children at positions x-2^(k-1) and x+2^(k-1). Each node stores the maximum last position of its subtree
+	 */
+	private static class RegionsIndex {
+		private int [] firsts;
+		private int [] lasts;
+		private int [] maxLasts;
+		private int rootLevel = -1;
 		
-		for(int i=indexStart;i<regions.size();i++) {
-			T r = regions.get(i);
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0) {
-				answer.add(r);
-			} else if (cmp > 0) {
-				break;
+		public RegionsIndex (List<? extends GenomicRegion> regions) {
+			int n = regions.size();
+			firsts = new int[n];
+			lasts = new int[n];
+			maxLasts = new int[n];
+			for(int i=0;i<n;i++) {
+				GenomicRegion r = regions.get(i);
+				firsts[i] = r.getFirst();
+				lasts[i] = r.getLast();
+			}
+			if(n==0) return;
+			int lastIdx = 0;
+			int lastMax = 0;
+			for(int i=0;i<n;i+=2) {
+				lastIdx = i;
+				maxLasts[i] = lastMax = lasts[i];
 			}
+			int k;
+			for(k=1; (1L<<k)<=n; k++) {
+				int x = 1<<(k-1);
+				int i0 = (x<<1) - 1;
+				long step = ((long)x)<<2;
+				for(long i=i0;i<n;i+=step) {
+					int node = (int)i;
+					int maxLeft = maxLasts[node-x];
+					int maxRight = node+x<n?maxLasts[node+x]:lastMax;
+					maxLasts[node] = Math.max(lasts[node], Math.max(maxLeft, maxRight));
+				}
+				lastIdx = ((lastIdx>>k)&1)!=0?lastIdx-x:lastIdx+x;
+				if(lastIdx<n && maxLasts[lastIdx]>lastMax) lastMax = maxLasts[lastIdx];
+			}
+			rootLevel = k-1;
 		}
-		
-		//Look long regions
-		List<T> longRegions = longRegionsMap.get(sequenceIndex);
-		for(T r: longRegions) {
-			int cmp = spanCmp.compare(r,first, last);
-			if (cmp == 0 && !answer.contains(r)) {
-				answer.add(r);
-			} else if (cmp >0) {
-				break;
+		public int size() {
+			return firsts.length;
+		}
+		public int rootNode() {
+			return (1<<rootLevel)-1;
+		}
+		public <T extends GenomicRegion> void visit(List<T> regions, int node, int level, int first, int last, GenomicRegionVisitor<T> visitor) {
+			int n = firsts.length;
+			if(level<=3) {
+				//Small subtree. Linear scan
+				int i0 = (node>>level)<<level;
+				int i1 = Math.min(n, i0+(1<<(level+1))-1);
+				for(int i=i0;i<i1 && firsts[i]<=last;i++) {
+					if(first<=lasts[i]) visitor.visit(regions.get(i));
+				}
+				return;
+			}
+			int half = 1<<(level-1);
+			int left = node - half;
+			if(left>=n || maxLasts[left]>=first) visit(regions, left, level-1, first, last, visitor);
+			if(node<n && firsts[node]<=last) {
+				if(first<=lasts[node]) visitor.visit(regions.get(node));
+				visit(regions, node+half, level-1, first, last, visitor);
 			}
 		}
-		return answer;
 	}
 	
 	public List<T> asList() {
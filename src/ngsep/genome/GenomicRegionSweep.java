@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers overlap queries on a GenomicRegionSortedCollection for streams of queries sorted by sequence and first position.
+ * Regions are visited in a single pass over each sequence keeping only the regions that can still span future queries.
+ * Queries out of order are still answered correctly. In this case the sweep is restarted at the query position
+ * using the index of the collection
+ * @param <T> Type of the regions
+ */
+public class GenomicRegionSweep<T extends GenomicRegion> {
+	private GenomicRegionSortedCollection<T> collection;
+	private int sequenceIndex = -1;
+	private List<T> regions = null;
+	private int nextRegion = 0;
+	private int lastQueryFirst = 0;
+	private List<T> active = new ArrayList<T>();
+	
+	/**
+	 * Creates a new sweep over the given regions. The collection should not be modified while the sweep is used
+	 * @param collection Regions to query
+	 */
+	public GenomicRegionSweep(GenomicRegionSortedCollection<T> collection) {
+		this.collection = collection;
+	}
+	
+	/**
+	 * Visits the regions spanning the given query in position order
+	 * @param sequenceName Name of the sequence of the query
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Object receiving the regions spanning the query
+	 */
+	public void visitSpanningRegions(String sequenceName, int first, int last, GenomicRegionVisitor<T> visitor) {
+		visitSpanningRegions(collection.getSequenceNames().indexOf(sequenceName), first, last, visitor);
+	}
+	
+	/**
+	 * Visits the regions spanning the given query in position order
+	 * @param sequenceIdx Index of the sequence of the query in the sequence names of the collection
+	 * @param first First position of the query
+	 * @param last Last position of the query
+	 * @param visitor Object receiving the regions spanning the query
+	 */
+	public void visitSpanningRegions(int sequenceIdx, int first, int last, GenomicRegionVisitor<T> visitor) {
+		if(sequenceIdx<0) return;
+		if(sequenceIdx!=sequenceIndex || first<lastQueryFirst) {
+			//Restart the sweep for a new sequence or for a query located before the previous query
+			sequenceIndex = sequenceIdx;
+			regions = collection.getSortedRegions(sequenceIdx);
+			active.clear();
+			if(regions!=null) restart(first);
+		}
+		lastQueryFirst = first;
+		if(regions==null) return;
+		//Remove regions that end before the query. They can not span next queries
+		int j=0;
+		for(int i=0;i<active.size();i++) {
+			T r = active.get(i);
+			if(r.getLast()>=first) {
+				active.set(j, r);
+				j++;
+			}
+		}
+		while(active.size()>j) active.remove(active.size()-1);
+		//Add regions starting before the end of the query
+		while(nextRegion<regions.size()) {
+			T r = regions.get(nextRegion);
+			if(r.getFirst()>last) break;
+			if(r.getLast()>=first) active.add(r);
+			nextRegion++;
+		}
+		for(int i=0;i<active.size();i++) {
+			T r = active.get(i);
+			if(r.getFirst()>last) break;
+			visitor.visit(r);
+		}
+	}
+	
+	/**
+	 * Starts the sweep at the given position without visiting the regions located before it.
+	 * The regions spanning the position are retrieved from the index of the collection
+	 * @param first Position to start the sweep
+	 */
+	private void restart(int first) {
+		collection.visitSpanningRegions(sequenceIndex, first, first, active::add);
+		//Binary search of the first region starting after the given position
+		int lo = 0;
+		int hi = regions.size();
+		while(lo<hi) {
+			int mid = (lo+hi)>>>1;
+			if(regions.get(mid).getFirst()<=first) lo = mid+1;
+			else hi = mid;
+		}
+		nextRegion = lo;
+	}
+}
@@ -37,6 +37,7 @@ import ngsep.sequences.io.FastaSequencesHandler;
  */
 public class ReferenceGenome { 
 	private QualifiedSequenceList sequences;
+	private String filename;
 	/**
 	 * Creates a new ReferenceGenome with the given data
 	 * @param filename Name of the fasta file with the reference genome 
@@ -47,6 +48,7 @@ public class ReferenceGenome {
 		handler.setSequenceType(DNAMaskedSequence.class);
 		sequences = handler.loadSequences(filename);
 		sequences.setAllowChanges(false);
+		this.filename = filename;
 	}
 	/**
 	 * Creates a reference genome sequence with the given sequence
@@ -205,5 +207,11 @@ public class ReferenceGenome {
 	public List<String> getSequenceNamesStringList() {
 		return sequences.getNamesStringList();
 	}
+	/**
+	 * @return String Name of the fasta file from which the genome was loaded. null if the genome was not loaded from a file
+	 */
+	public String getFilename() {
+		return filename;
+	}
 
 }
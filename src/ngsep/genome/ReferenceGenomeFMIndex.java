@@ -158,6 +158,36 @@ public class ReferenceGenomeFMIndex implements Serializable {
 		return alignments;
 	}
 	
+	/**
+	 * Counts the occurrences of the given sequence in the index. This is much faster than the search methods
+	 * because positions are not calculated and alignments are not created
+	 * @param searchSequence sequence to search
+	 * @return int Number of exact matches of the given sequence to segments of sequences in this index
+	 */
+	public int count (String searchSequence) {
+		return count(searchSequence, false);
+	}
+	/**
+	 * Counts the occurrences of the given sequence in the index
+	 * @param searchSequence sequence to search
+	 * @param searchReverseComplement If true, the occurrences of the reverse complement are also counted
+	 * @return int Number of exact matches of the given sequence (and its reverse complement) to segments of sequences in this index
+	 */
+	public int count (String searchSequence, boolean searchReverseComplement) {
+		String searchUp = searchSequence.toUpperCase();
+		int answer = 0;
+		for (FMIndexSingleSequence idxSeq:internalIndexes.values()) {
+			answer+=idxSeq.count(searchUp);
+		}
+		if(searchReverseComplement) {
+			searchUp = DNAMaskedSequence.getReverseComplement(searchUp);
+			for (FMIndexSingleSequence idxSeq:internalIndexes.values()) {
+				answer+=idxSeq.count(searchUp);
+			}
+		}
+		return answer;
+	}
+	
 	/**
 	 * Return the subsequence of the indexed sequence between the given genomic coordinates
 	 * @param sequenceName Name of the sequence to search
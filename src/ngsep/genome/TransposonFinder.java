@@ -9,8 +9,11 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import ngsep.alignments.ReadAlignment;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.math.Distribution;
 import ngsep.sequences.DefaultKmersMapImpl;
@@ -40,14 +43,37 @@ public class TransposonFinder {
 
 	private boolean useSTRs;
 	
+	private int numThreads = 1;
+	
 	public void run() throws IOException {
 		
 		// Kmers per subsequence
 		int numSequences = genome.getNumSequences();
-		for (int i = 0; i < numSequences; i++) {
-			QualifiedSequence qs = genome.getSequenceByIndex(i);
-			CharSequence seq = qs.getCharacters();
-			processSequence(seq, qs.getName(), fm);			
+		if(numThreads==1) {
+			for (int i = 0; i < numSequences; i++) {
+				QualifiedSequence qs = genome.getSequenceByIndex(i);
+				CharSequence seq = qs.getCharacters();
+				processSequence(seq, qs.getName(), fm);			
+			}
+		} else {
+			// Sequences are scanned in parallel. Results are stored in the order of the genome
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			List<Future<List<Transposon>>> results = new ArrayList<>();
+			for (int i = 0; i < numSequences; i++) {
+				QualifiedSequence qs = genome.getSequenceByIndex(i);
+				results.add(pool.submit(() -> findRepetitiveRegions(qs.getCharacters(), qs.getName(), fm)));
+			}
+			try {
+				for (int i = 0; i < numSequences; i++) {
+					transposons.put(genome.getSequenceByIndex(i).getName(), results.get(i).get());
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while scanning sequences", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Error scanning sequences", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
 		}
 				
 		// Save the LTR in a text file
@@ -74,7 +100,20 @@ public class TransposonFinder {
 	 * @param fm FM index of the whole genome
 	 */
 	public void processSequence(CharSequence seq, String name, ReferenceGenomeFMIndex fm) {
+		transposons.put(name, findRepetitiveRegions(seq, name, fm));
+	}
+	
+	/**
+	 * Finds the over-represented regions of a sequence. The distribution of hits is updated at the end of the process, so this
+	 * method can be called by several threads
+	 * @param seq Actual sequence in the genome
+	 * @param name Name of the sequence
+	 * @param fm FM index of the whole genome
+	 * @return List<Transposon> Repetitive regions found in the sequence
+	 */
+	private List<Transposon> findRepetitiveRegions(CharSequence seq, String name, ReferenceGenomeFMIndex fm) {
 		System.out.printf("Processing Sequence %s \n", name);
+		Distribution sequenceHits = new Distribution(distrHits.getMinValueDistribution(), distrHits.getMaxValueDistribution(), distrHits.getBinLength());
 		List<Transposon> repetitiveRegions = new ArrayList();
 		boolean seen = false;
 		int count = 0; // Count of intermediate kmers that are not over-represented
@@ -89,28 +128,29 @@ public class TransposonFinder {
 		//Subsequence 20bp
 		for (int i = 0; i + lengthKmer < seq.length(); i+=10) {
 			CharSequence kmer = seq.subSequence(i, (i+lengthKmer));
-			List<ReadAlignment> hits = fm.search(kmer.toString());
-			distrHits.processDatapoint(hits.size());
+			// Only the number of hits is needed. Counting avoids to calculate the positions of the hits
+			int hits = fm.count(kmer.toString());
+			sequenceHits.processDatapoint(hits);
 			// If the kmer is more than the min hit size
-			if(hits.size() > minHitSize ) {
+			if(hits > minHitSize ) {
 				if(!seen) {
 					if(useSTRs && indexSTR < actSTRs.size()) {
 						GenomicRegion STR = actSTRs.get(indexSTR);
 						if(STR.getFirst() >  i || STR.getLast()<i) { //Check overlap 
 							// Is not a tandem repeat
-							actTransposon = new Transposon(name, i, (i+lengthKmer), "LTR", hits.size());
+							actTransposon = new Transposon(name, i, (i+lengthKmer), "LTR", hits);
 							seen = true;
 						}
 					}
 					else {
-						actTransposon = new Transposon(name, i, (i+lengthKmer), "LTR", hits.size());
+						actTransposon = new Transposon(name, i, (i+lengthKmer), "LTR", hits);
 						seen = true;						
 					}
 				}
 				else {
 					int actHits = actTransposon.getScore();
 					actTransposon.setLast((i+lengthKmer));
-					actTransposon.setScore(actHits + hits.size());
+					actTransposon.setScore(actHits + hits);
 					count = 0;
 				}
 			}
@@ -133,7 +173,8 @@ public class TransposonFinder {
 			}
 		}
 		System.out.printf("Found %d repetitive regions \n",repetitiveRegions.size());
-		transposons.put(name, repetitiveRegions);
+		distrHits.merge(sequenceHits);
+		return repetitiveRegions;
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -149,6 +190,7 @@ public class TransposonFinder {
 		instance.minHitSize = 10;
 		instance.transposons = new LinkedHashMap();
 		instance.useSTRs = false;
+		if(args.length>2) instance.numThreads = Integer.parseInt(args[2]);
 		// FM Index
 		instance.fm = new ReferenceGenomeFMIndex(instance.genome);
 		// Find transposable elements
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.gwas;
+
+import java.util.Arrays;
+import java.util.List;
+
+import JSci.maths.statistics.FDistribution;
+import ngsep.variants.CalledGenomicVariant;
+
+/**
+ * One-way ANOVA association tests between the genotypes of a variant and one or more phenotypes.
+ * Phenotypes are centered once at construction time and each test is calculated from the
+ * counts, sums and sums of squares of the phenotype values within each genotype group.
+ * Instances are immutable and can be shared by several threads as long as each thread uses its own
+ * {@link Workspace}
+ */
+public class AnovaAssociationEngine {
+
+	private List<String> phenotypeNames;
+	private int numSamples;
+	//Centered phenotype values per phenotype and per sample. NaN for missing values
+	private double [][] centeredValues;
+	private double [][] squaredValues;
+
+	/**
+	 * Creates a new engine for the given phenotypes
+	 * @param phenotypeNames Names of the phenotypes
+	 * @param phenotypeValues Values of each phenotype for each sample. Missing values should be Double.NaN
+	 */
+	public AnovaAssociationEngine(List<String> phenotypeNames, double[][] phenotypeValues) {
+		this.phenotypeNames = phenotypeNames;
+		int numPhenotypes = phenotypeValues.length;
+		if(numPhenotypes!=phenotypeNames.size()) throw new IllegalArgumentException("Number of phenotype names "+phenotypeNames.size()+" does not match number of phenotype columns: "+numPhenotypes);
+		numSamples = numPhenotypes>0?phenotypeValues[0].length:0;
+		centeredValues = new double[numPhenotypes][numSamples];
+		squaredValues = new double[numPhenotypes][numSamples];
+		for(int p=0;p<numPhenotypes;p++) {
+			double [] values = phenotypeValues[p];
+			if(values.length!=numSamples) throw new IllegalArgumentException("Phenotype "+phenotypeNames.get(p)+" has "+values.length+" values. Expected: "+numSamples);
+			double sum = 0;
+			int n = 0;
+			for(int i=0;i<numSamples;i++) {
+				if(Double.isNaN(values[i])) continue;
+				sum+=values[i];
+				n++;
+			}
+			double mean = n>0?sum/n:0;
+			for(int i=0;i<numSamples;i++) {
+				double c = values[i]-mean;
+				centeredValues[p][i] = c;
+				squaredValues[p][i] = c*c;
+			}
+		}
+	}
+
+	public List<String> getPhenotypeNames() {
+		return phenotypeNames;
+	}
+
+	public int getNumPhenotypes() {
+		return centeredValues.length;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Creates a workspace to calculate tests. Workspaces should not be shared between threads
+	 * @return Workspace new buffers to calculate tests
+	 */
+	public Workspace createWorkspace() {
+		return new Workspace();
+	}
+
+	/**
+	 * Encodes the genotype calls as dense group indexes in the workspace
+	 * @param calls Genotype calls for a variant
+	 * @param workspace Buffers to store the encoded genotypes
+	 * @return int Number of different genotypes observed. -1 if the genotypes can not be encoded
+	 */
+	public int encodeGenotypes(List<CalledGenomicVariant> calls, Workspace workspace) {
+		if(calls.size()!=numSamples) throw new IllegalArgumentException("Number of genotype calls "+calls.size()+" does not match number of phenotyped samples: "+numSamples);
+		int [] groups = workspace.groups;
+		long [] groupCodes = workspace.groupCodes;
+		int numGroups = 0;
+		for(int i=0;i<numSamples;i++) {
+			CalledGenomicVariant call = calls.get(i);
+			if(call.isUndecided()) {
+				groups[i] = -1;
+				continue;
+			}
+			//Genotypes are encoded as the set of called alleles
+			long code = 0;
+			for(byte idx:call.getIndexesCalledAlleles()) {
+				if(idx>=64) return -1;
+				code|=(1L<<idx);
+			}
+			int g;
+			for(g=0;g<numGroups && groupCodes[g]!=code;g++);
+			if(g==numGroups) {
+				if(numGroups==groupCodes.length) {
+					groupCodes = workspace.growGroups();
+				}
+				groupCodes[g] = code;
+				numGroups++;
+			}
+			groups[i] = g;
+		}
+		return numGroups;
+	}
+
+	/**
+	 * Calculates the p-values of the ANOVA F-test for the genotypes stored in the workspace
+	 * @param numGroups Number of genotype groups calculated by encodeGenotypes
+	 * @param workspace Buffers with the encoded genotypes
+	 * @param pValues Array to store the p-value for each phenotype. NaN if the test can not be performed
+	 */
+	public void calculatePValues(int numGroups, Workspace workspace, double [] pValues) {
+		int [] groups = workspace.groups;
+		int [] counts = workspace.counts;
+		double [] sums = workspace.sums;
+		for(int p=0;p<centeredValues.length;p++) {
+			double [] y = centeredValues[p];
+			double [] y2 = squaredValues[p];
+			if(numGroups<2) {
+				pValues[p] = Double.NaN;
+				continue;
+			}
+			for(int g=0;g<numGroups;g++) {
+				counts[g] = 0;
+				sums[g] = 0;
+			}
+			int n = 0;
+			double sum = 0;
+			double sumSquares = 0;
+			for(int i=0;i<numSamples;i++) {
+				int g = groups[i];
+				if(g<0) continue;
+				double v = y[i];
+				if(Double.isNaN(v)) continue;
+				counts[g]++;
+				sums[g]+=v;
+				sum+=v;
+				sumSquares+=y2[i];
+				n++;
+			}
+			int levels = 0;
+			double between = 0;
+			for(int g=0;g<numGroups;g++) {
+				if(counts[g]==0) continue;
+				levels++;
+				between+=sums[g]*sums[g]/counts[g];
+			}
+			double mean = (n>0)?sum/n:0;
+			double total = sumSquares - n*mean*mean;
+			double treatmentSumSquares = between - n*mean*mean;
+			double errorSumSquares = Math.max(0, total - treatmentSumSquares);
+			int dfTreatment = levels-1;
+			int dfError = n-levels;
+			if(dfTreatment<1 || dfError<1) {
+				pValues[p] = Double.NaN;
+				continue;
+			}
+			double treatmentMeanSquares = treatmentSumSquares/dfTreatment;
+			double errorMeanSquares = errorSumSquares/dfError;
+			if(errorMeanSquares==0) {
+				pValues[p] = treatmentMeanSquares>0?0:1;
+				continue;
+			}
+			FDistribution fdist = new FDistribution(dfTreatment, dfError);
+			pValues[p] = 1-fdist.cumulative(treatmentMeanSquares/errorMeanSquares);
+		}
+	}
+
+	/**
+	 * Reusable buffers to encode genotypes and calculate per group statistics
+	 */
+	public class Workspace {
+		private int [] groups = new int[numSamples];
+		private long [] groupCodes = new long[4];
+		private int [] counts = new int[4];
+		private double [] sums = new double[4];
+
+		private long [] growGroups() {
+			int n = 2*groupCodes.length;
+			groupCodes = Arrays.copyOf(groupCodes, n);
+			counts = new int[n];
+			sums = new double[n];
+			return groupCodes;
+		}
+	}
+}
@@ -24,14 +24,19 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
-import JSci.maths.statistics.FDistribution;
-import ngsep.math.FactorialAnova;
-import ngsep.variants.CalledGenomicVariant;
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.ProgressNotifier;
 import ngsep.variants.GenomicVariant;
-import ngsep.vcf.VCFFileHeader;
 import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFRecord;
 
@@ -41,43 +46,122 @@ import ngsep.vcf.VCFRecord;
  *
  */
 public class GeneralLinearModel {
+	
+	public static final int BATCH_SIZE = 1000;
+	
+	private Logger log = Logger.getLogger(GeneralLinearModel.class.getName());
+	private ProgressNotifier progressNotifier=null;
+	private int numThreads = 1;
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+	
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 
 	public static void main(String[] args) throws Exception {
 		GeneralLinearModel instance = new GeneralLinearModel();
-		instance.process (args[0], args[1], System.out);
+		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
+		String vcfFile = args[i++];
+		String phenotypesFile = args[i++];
+		instance.process (vcfFile, phenotypesFile, System.out);
 
 	}
 
+	/**
+	 * Runs an ANOVA test between the genotypes of each variant and each phenotype in the given file.
+	 * The VCF file is read once. Batches of records are distributed among the available threads
+	 * and the results are printed in the same order of the input file
+	 * @param vcfFile File with the genotype calls
+	 * @param phenotypesFile Comma separated file with one header line and one line per sample, in the same order of the VCF file.
+	 * Each column has the values for one phenotype
+	 * @param out Stream to print the p-values of each variant for each phenotype
+	 * @throws IOException If the files can not be read
+	 */
 	public void process(String vcfFile, String phenotypesFile, PrintStream out) throws IOException {
-		List<Double> phenotypes = readPhenotypes(phenotypesFile);
+		AnovaAssociationEngine engine = readPhenotypes(phenotypesFile);
+		log.info("Loaded "+engine.getNumPhenotypes()+" phenotypes for "+engine.getNumSamples()+" samples from "+phenotypesFile);
 		
-			
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<String>> pendingBatches = new LinkedList<>();
 		try (VCFFileReader reader = new VCFFileReader(vcfFile)){
-				
-			//Ids of the samples
+			reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
 			List<String> sampleIds = reader.getSampleIds();
-			//If you want the full header
-			VCFFileHeader header = reader.getHeader();
-			
+			if(sampleIds.size()!=engine.getNumSamples()) throw new IOException("Number of samples in VCF file "+sampleIds.size()+" does not match number of samples in phenotypes file "+engine.getNumSamples());
+			AnovaAssociationEngine.Workspace workspace = engine.createWorkspace();
 			Iterator<VCFRecord> it = reader.iterator();
+			List<VCFRecord> batch = new ArrayList<>(BATCH_SIZE);
+			int n = 0;
 			while(it.hasNext()) {
-				
-				VCFRecord record = it.next();
-				//Basic information from the variant
-				GenomicVariant variant = record.getVariant();
-				
-				List<CalledGenomicVariant> genotypeCalls = record.getCalls();
-				
-				List<String> encodedGenotypes = encodeGenotypes(genotypeCalls);
-				
-				// Create a new genotype object to run ANOVA.
-				FactorialAnova anova = new FactorialAnova(encodedGenotypes, phenotypes);
-				printSummary(variant, anova,out);
-			}	
-		}	
+				batch.add(it.next());
+				n++;
+				if(batch.size()==BATCH_SIZE || !it.hasNext()) {
+					if(pool==null) {
+						out.print(processBatch(engine, workspace, batch));
+					} else {
+						final List<VCFRecord> records = batch;
+						pendingBatches.add(pool.submit(() -> processBatch(engine, engine.createWorkspace(), records)));
+						//Keep a bounded number of batches in memory
+						while(pendingBatches.size()>2*numThreads) out.print(getResult(pendingBatches.removeFirst()));
+					}
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+				if (progressNotifier!=null && n%1000==0) {
+					int progress = n/1000;
+					if (!progressNotifier.keepRunning(progress)) break;
+				}
+			}
+			while(pendingBatches.size()>0) out.print(getResult(pendingBatches.removeFirst()));
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
+	
+	private String getResult (Future<String> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for association results", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error calculating association tests", e.getCause());
+		}
+	}
+	
+	private String processBatch(AnovaAssociationEngine engine, AnovaAssociationEngine.Workspace workspace, List<VCFRecord> batch) {
+		StringBuilder answer = new StringBuilder();
+		double [] pValues = new double[engine.getNumPhenotypes()];
+		for(VCFRecord record:batch) {
+			GenomicVariant variant = record.getVariant();
+			int numGroups = engine.encodeGenotypes(record.getCalls(), workspace);
+			if(numGroups<0) Arrays.fill(pValues, Double.NaN);
+			else engine.calculatePValues(numGroups, workspace, pValues);
+			answer.append(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast());
+			for(double pValue:pValues) answer.append("\t"+pValue);
+			answer.append("\n");
+		}
+		return answer.toString();
 	}
 
-	private List<Double> readPhenotypes(String phenotypesFile) throws IOException {
+	private AnovaAssociationEngine readPhenotypes(String phenotypesFile) throws IOException {
 		
         final String fileToParse = phenotypesFile;
          
@@ -85,8 +169,8 @@ public class GeneralLinearModel {
         final String DELIMITER = ",";
         
         //Initiailze headers and file info.
-        ArrayList<String> headers = new ArrayList<String>();
-        List<Double> phenotypes = new ArrayList<Double>();
+        List<String> headers = new ArrayList<String>();
+        List<double []> rows = new ArrayList<>();
         
         try (FileReader fr = new FileReader(fileToParse);
         	 BufferedReader fileReader = new BufferedReader(fr);)
@@ -106,38 +190,32 @@ public class GeneralLinearModel {
                 //Save the headers into an ArrayList
             	if(counter == 0) {
             		for(String token : tokens) {
-            			headers.add(token);
+            			headers.add(token.trim());
             		}
-            	} else {
-            		for(String token : tokens)
+            	} else if (line.trim().length()>0) {
+            		if(tokens.length>headers.size()) throw new IOException("Line "+(counter+1)+" of phenotypes file has more values than phenotype names");
+            		double [] values = new double[headers.size()];
+            		Arrays.fill(values, Double.NaN);
+            		for(int j=0;j<tokens.length;j++)
                     {	
-            			double phenotype = Double.valueOf(token);
-                        phenotypes.add(phenotype);
-                    }	
+            			String token = tokens[j].trim();
+            			//Empty and non numeric values are treated as missing data
+            			try {
+            				values[j] = Double.parseDouble(token);
+            			} catch (NumberFormatException e) {
+            				values[j] = Double.NaN;
+            			}
+                    }
+            		rows.add(values);
             	}
             	counter++;
             }
         }
-        
-		return phenotypes;
-	}
-
-	private List<String> encodeGenotypes(List<CalledGenomicVariant> genotypeCalls) {
-		List<String> allelesList = new ArrayList<String>();
-		for(int i=0;i<genotypeCalls.size();i++) {
-			CalledGenomicVariant genotypeCall = genotypeCalls.get(i);
-			String allele = String.join("", genotypeCall.getCalledAlleles());
-			allelesList.add(allele);
-		}
-
-		return allelesList;
-
-	}
-
-	private void printSummary(GenomicVariant variant, FactorialAnova anova, PrintStream out) {
-		double pValue = anova.getpValue();
-		FDistribution fdist = anova.getpFdist();
-		out.println(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast() + "\t" + pValue);
-		
+        double [][] columns = new double[headers.size()][rows.size()];
+        for(int i=0;i<rows.size();i++) {
+        	double [] values = rows.get(i);
+        	for(int j=0;j<values.length;j++) columns[j][i] = values[j];
+        }
+		return new AnovaAssociationEngine(headers, columns);
 	}
 }
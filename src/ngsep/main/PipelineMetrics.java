@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and stage timers describing the throughput of a long running process. Counters and timers
+ * can be updated from different threads with low overhead. While the process runs, metrics are published
+ * through JMX and optionally reported in a periodic log line. As a progress notifier, this object records
+ * the progress reported by the process and forwards it to the progress notifier of the caller, if any
+ * @author Jorge Duitama
+ *
+ */
+public class PipelineMetrics implements ProgressNotifier {
+	public static final String JMX_DOMAIN = "ngsep";
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+	private Logger log = Logger.getLogger(PipelineMetrics.class.getName());
+	private final String name;
+	private final DecimalFormat df = new DecimalFormat("0.0");
+	private ProgressNotifier progressNotifier = null;
+	private int logInterval = 0;
+
+	//Metrics are reported in the order in which they are registered
+	private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+	private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+	private final Map<String, StageTimer> timers = new LinkedHashMap<>();
+	private volatile int progress = -1;
+
+	//Running state
+	private int activeRuns = 0;
+	private long startTime;
+	private ScheduledExecutorService reporter;
+	private ObjectName mbeanName;
+	private final Map<String, Long> lastReportCounts = new HashMap<>();
+	private long lastReportTime;
+
+	/**
+	 * Creates a new set of metrics
+	 * @param name Name of the process. Used to identify the metrics in the log and in JMX
+	 */
+	public PipelineMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * @return the progress notifier receiving the progress reported to this object
+	 */
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+
+	/**
+	 * @param progressNotifier the progress notifier receiving the progress reported to this object
+	 */
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	/**
+	 * @return the number of seconds between log lines reporting the metrics. Zero if metrics are not reported periodically
+	 */
+	public int getLogInterval() {
+		return logInterval;
+	}
+
+	/**
+	 * @param logInterval the number of seconds between log lines reporting the metrics. Zero disables the periodic report
+	 */
+	public void setLogInterval(int logInterval) {
+		if(logInterval<0) throw new IllegalArgumentException("The interval to report metrics can not be negative. Value: "+logInterval);
+		this.logInterval = logInterval;
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it if it does not exist. Callers should keep the counter
+	 * to update it within loops
+	 * @param counterName Name of the counter
+	 * @return LongAdder Counter that can be updated concurrently
+	 */
+	public synchronized LongAdder getCounter(String counterName) {
+		return counters.computeIfAbsent(counterName, (n) -> new LongAdder());
+	}
+
+	/**
+	 * Registers a gauge that calculates a value when metrics are reported, such as the size of a queue
+	 * @param gaugeName Name of the gauge
+	 * @param gauge Function calculating the current value. It is called from the thread reporting the metrics
+	 */
+	public synchronized void registerGauge(String gaugeName, LongSupplier gauge) {
+		gauges.put(gaugeName, gauge);
+	}
+
+	/**
+	 * Removes the gauge with the given name. Gauges should be removed when the measured object is no longer valid
+	 * @param gaugeName Name of the gauge
+	 */
+	public synchronized void removeGauge(String gaugeName) {
+		gauges.remove(gaugeName);
+	}
+
+	/**
+	 * Returns the timer with the given name, creating it if it does not exist
+	 * @param timerName Name of the timer, usually the name of a stage of the process
+	 * @return StageTimer Timer that can be updated concurrently
+	 */
+	public synchronized StageTimer getTimer(String timerName) {
+		return timers.computeIfAbsent(timerName, (n) -> new StageTimer());
+	}
+
+	@Override
+	public boolean keepRunning(int progress) {
+		this.progress = progress;
+		if(progressNotifier==null) return true;
+		return progressNotifier.keepRunning(progress);
+	}
+
+	/**
+	 * Starts publishing metrics through JMX and in the log if a log interval is set. Calls can be nested.
+	 * Only the outermost call starts the publication
+	 */
+	public synchronized void start() {
+		activeRuns++;
+		if(activeRuns>1) return;
+		startTime = lastReportTime = System.nanoTime();
+		lastReportCounts.clear();
+		registerMBean();
+		if(logInterval>0) {
+			reporter = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread t = new Thread(r, name+"-metrics");
+				t.setDaemon(true);
+				return t;
+			});
+			reporter.scheduleAtFixedRate(() -> logPeriodicReport(), logInterval, logInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stops the publication of metrics started with the matching call to start. The outermost call logs a
+	 * summary of the metrics
+	 */
+	public synchronized void stop() {
+		if(activeRuns==0) return;
+		activeRuns--;
+		if(activeRuns>0) return;
+		if(reporter!=null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		unregisterMBean();
+		log.info(buildReport(false));
+	}
+
+	private synchronized void logPeriodicReport() {
+		//The report could be waiting while the last run stops
+		if(activeRuns>0) log.info(buildReport(true));
+	}
+
+	/**
+	 * Calculates the current values of the metrics. Timers produce two values, the total seconds and the number of calls
+	 * @return Map<String,Number> Current values by name of the metric
+	 */
+	public synchronized Map<String, Number> getValues() {
+		Map<String, Number> values = new LinkedHashMap<>();
+		if(activeRuns>0) values.put("elapsedSeconds", (System.nanoTime()-startTime)/1000000000.0);
+		if(progress>=0) values.put("progress", progress);
+		for(Map.Entry<String, LongAdder> entry:counters.entrySet()) values.put(entry.getKey(), entry.getValue().sum());
+		for(Map.Entry<String, LongSupplier> entry:gauges.entrySet()) values.put(entry.getKey(), entry.getValue().getAsLong());
+		for(Map.Entry<String, StageTimer> entry:timers.entrySet()) {
+			StageTimer timer = entry.getValue();
+			values.put(entry.getKey()+"Seconds", timer.getTotalSeconds());
+			values.put(entry.getKey()+"Calls", timer.getCount());
+		}
+		return values;
+	}
+
+	/**
+	 * Builds a single line with the values of the metrics
+	 * @param sinceLastReport If true, rates are calculated since the last periodic report. Otherwise, rates are calculated since the start
+	 * @return String report of the metrics
+	 */
+	private synchronized String buildReport(boolean sinceLastReport) {
+		long now = System.nanoTime();
+		double seconds = (now-(sinceLastReport?lastReportTime:startTime))/1000000000.0;
+		StringBuilder report = new StringBuilder("Metrics "+name+". Elapsed: "+df.format((now-startTime)/1000000000.0)+" s");
+		if(progress>=0) report.append(". Progress: "+progress);
+		for(Map.Entry<String, LongAdder> entry:counters.entrySet()) {
+			String counterName = entry.getKey();
+			long count = entry.getValue().sum();
+			long previous = 0;
+			if(sinceLastReport) {
+				Long lastCount = lastReportCounts.put(counterName, count);
+				if(lastCount!=null) previous = lastCount;
+			}
+			report.append(". "+counterName+": "+count);
+			if(seconds>0) report.append(" ("+df.format((count-previous)/seconds)+"/s)");
+		}
+		for(Map.Entry<String, LongSupplier> entry:gauges.entrySet()) {
+			report.append(". "+entry.getKey()+": "+entry.getValue().getAsLong());
+		}
+		for(Map.Entry<String, StageTimer> entry:timers.entrySet()) {
+			StageTimer timer = entry.getValue();
+			report.append(". "+entry.getKey()+": "+df.format(timer.getTotalSeconds())+" s in "+timer.getCount()+" calls");
+		}
+		if(sinceLastReport) lastReportTime = now;
+		return report.toString();
+	}
+
+	private void registerMBean() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbeanName = new ObjectName(JMX_DOMAIN+":type=PipelineMetrics,name="+ObjectName.quote(name)+",id="+NEXT_ID.incrementAndGet());
+			server.registerMBean(new MetricsMBean(), mbeanName);
+		} catch (JMException e) {
+			log.warning("Metrics of "+name+" could not be registered in JMX. "+e.getMessage());
+			mbeanName = null;
+		}
+	}
+
+	private void unregisterMBean() {
+		if(mbeanName==null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			log.warning("Metrics of "+name+" could not be unregistered from JMX. "+e.getMessage());
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * Accumulates the time spent in a stage of a process and the number of times that the stage was executed
+	 */
+	public static class StageTimer {
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAdder count = new LongAdder();
+
+		/**
+		 * Records one execution of the stage
+		 * @param nanos Time spent in nanoseconds
+		 */
+		public void record(long nanos) {
+			totalNanos.add(nanos);
+			count.increment();
+		}
+
+		/**
+		 * Records one execution of the stage that started at the given time
+		 * @param startNanos Start time of the stage obtained from System.nanoTime()
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime()-startNanos);
+		}
+
+		public double getTotalSeconds() {
+			return totalNanos.sum()/1000000000.0;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * Read only view of the metrics for JMX clients. Attributes are the current metrics
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Number value = getValues().get(attribute);
+			if(value==null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Number> values = getValues();
+			AttributeList answer = new AttributeList();
+			for(String attribute:attributes) {
+				Number value = values.get(attribute);
+				if(value!=null) answer.add(new Attribute(attribute, value));
+			}
+			return answer;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read only. Attribute: "+attribute.getName());
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			Map<String, Number> values = getValues();
+			MBeanAttributeInfo [] attributes = new MBeanAttributeInfo[values.size()];
+			int i=0;
+			for(Map.Entry<String, Number> entry:values.entrySet()) {
+				attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(), true, false, false);
+			}
+			return new MBeanInfo(PipelineMetrics.class.getName(), "Metrics of "+name, attributes, null, null, null);
+		}
+	}
+}
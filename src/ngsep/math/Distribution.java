@@ -79,6 +79,28 @@ public class Distribution {
 		}
 		
 	}
+	/**
+	 * Adds the data points of the given distribution to this distribution. This method is synchronized
+	 * so that threads can accumulate data points in their own distributions and then merge them in a shared distribution
+	 * @param other Distribution to merge. It must have the same range and bin length of this distribution
+	 */
+	public synchronized void merge(Distribution other) {
+		if(other.minValueDistribution!=minValueDistribution || other.maxValueDistribution!=maxValueDistribution || other.binLength!=binLength) {
+			throw new IllegalArgumentException("Distribution with range "+other.minValueDistribution+"-"+other.maxValueDistribution+" and bin length "+other.binLength+" can not be merged with distribution with range "+minValueDistribution+"-"+maxValueDistribution+" and bin length "+binLength);
+		}
+		sum+=other.sum;
+		sumSquare+=other.sumSquare;
+		count+=other.count;
+		if(other.minValueData < minValueData ) minValueData = other.minValueData;
+		if(other.maxValueData > maxValueData ) maxValueData = other.maxValueData;
+		for(int i=0;i<distribution.length;i++) {
+			if(other.distribution[i]==0) continue;
+			distribution[i]+=other.distribution[i];
+			if(maxIdx==-1 || distribution[maxIdx] < distribution[i] ) maxIdx = i;
+		}
+		outliersLess.addAll(other.outliersLess);
+		outliersMore.addAll(other.outliersMore);
+	}
 	public double getSum() {
 		return sum;
 	}
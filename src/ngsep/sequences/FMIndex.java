@@ -21,6 +21,7 @@ package ngsep.sequences;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -112,6 +113,53 @@ public class FMIndex implements Serializable
 		internalIndexes.add(index);
 		internalMetadata.add(internalIdxMetadata);
 	}
+	/**
+	 * Finds the indexes of the sequences having exact matches of the given sequence. This is faster than search
+	 * because alignments are not created and sequence names are not retrieved
+	 * @param searchSequence sequence to search
+	 * @return int [] Indexes of the sequences in the order that they were loaded. One index is reported for each match,
+	 * so indexes of sequences with more than one match are repeated
+	 */
+	public int [] searchSequenceIndexes (String searchSequence) {
+		return searchMatches(searchSequence, false);
+	}
+	/**
+	 * Finds the indexes of the sequences having exact matches of the given sequence and the start of each match.
+	 * Matches are reported in the same order as the alignments calculated by search but without creating objects per match
+	 * @param searchSequence sequence to search
+	 * @return int [] Pairs of values stored consecutively. For each match, the array has the index of the sequence
+	 * in the order that sequences were loaded, followed by the zero-based start of the match within the sequence
+	 */
+	public int [] searchSequenceIndexesAndOffsets (String searchSequence) {
+		return searchMatches(searchSequence, true);
+	}
+	private int [] searchMatches (String searchSequence, boolean includeOffsets) {
+		String searchUp = searchSequence.toUpperCase();
+		int l = searchSequence.length();
+		int valuesPerMatch = includeOffsets?2:1;
+		int [] answer = new int [0];
+		int n = 0;
+		for (int i=0;i<internalIndexes.size();i++)
+		{
+			FMIndexSingleSequence idxSeq = internalIndexes.get(i);
+			CombinedMultisequenceFMIndexMetadata metadata = internalMetadata.get(i);
+			Set<Integer> matches = idxSeq.search(searchUp);
+			if(matches.size()==0) continue;
+			if(answer.length<n+valuesPerMatch*matches.size()) answer = Arrays.copyOf(answer, n+valuesPerMatch*matches.size());
+			for (int internalPosMatch:matches)
+			{
+				int [] realData = metadata.getSequenceIdxAndStart(internalPosMatch);
+				if(realData==null) continue;
+				int first = internalPosMatch-realData[1];
+				//Matches spanning two sequences are not reported
+				if(first + l - 1>=sequenceLengths.get(realData[0])) continue;
+				answer[n++] = realData[0];
+				if(includeOffsets) answer[n++] = first;
+			}
+		}
+		if(n<answer.length) answer = Arrays.copyOf(answer, n);
+		return answer;
+	}
 	public List<ReadAlignment> search (String searchSequence) {
 		return search(searchSequence, 0, sequenceLengths.size());
 	}
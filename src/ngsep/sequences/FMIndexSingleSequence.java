@@ -221,6 +221,17 @@ public class FMIndexSingleSequence implements Serializable {
 		return getSequenceIndexes(range[0],range[1]);
 	}
 	
+	/**
+	 * Counts the occurrences of the given sequence without calculating their positions
+	 * @param searchSequence sequence to search
+	 * @return int Number of exact matches of the sequence in this index
+	 */
+	public int count(String searchSequence) {
+		int[] range = getRange(searchSequence);
+		if(range == null) return 0;
+		return range[1]-range[0]+1;
+	}
+	
 	/**
 	 * Looks for the range of row indexes in this index having matches to the given query
 	 * @param query sequence
@@ -23,7 +23,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -31,15 +38,19 @@ import ngsep.main.CommandsDescriptor;
 import ngsep.sequences.io.FastqFileReader;
 
 /**
- * 
+ * Corrects sequencing errors using the abundance of the k-mers of the reads. K-mers are counted in a
+ * packed k-mers table. Both the counting and the correction of reads can be performed in parallel
+ * processing batches of reads. Corrected reads are written in the same order of the input file 
  * @author Jorge Duitama
  *
  */
 public class FastqFileErrorCorrector {
+	public static final int READS_BATCH_SIZE = 10000;
 	private Logger log = Logger.getLogger(FastqFileErrorCorrector.class.getName());
-	private KmersMap kmersMap;
+	private PackedKmersMapImpl kmersMap;
 	private int kmerSize = KmersCounter.DEFAULT_KMER_SIZE;
 	private int minAbundance = 5;
+	private int numThreads = 1;
 	private int correctedErrors = 0;
 	/**
 	 * @return the minCount
@@ -61,6 +72,44 @@ public class FastqFileErrorCorrector {
 	public void setMinAbundance(Integer minAbundance) {
 		this.setMinAbundance(minAbundance.intValue());
 	}
+	
+	/**
+	 * @return the k-mer size
+	 */
+	public int getKmerSize() {
+		return kmerSize;
+	}
+
+	/**
+	 * @param kmerSize the k-mer size to set
+	 */
+	public void setKmerSize(int kmerSize) {
+		if(kmerSize<1 || kmerSize>PackedKmersMapImpl.MAX_KMER_LENGTH) throw new IllegalArgumentException("K-mer size must be between 1 and "+PackedKmersMapImpl.MAX_KMER_LENGTH+". Value: "+kmerSize);
+		this.kmerSize = kmerSize;
+	}
+	
+	public void setKmerSize(Integer kmerSize) {
+		this.setKmerSize(kmerSize.intValue());
+	}
+	
+	/**
+	 * @return the number of threads used to count k-mers and to correct reads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads used to count k-mers and to correct reads
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 
 	public static void main(String[] args) throws Exception {
 		FastqFileErrorCorrector instance = new FastqFileErrorCorrector();
@@ -73,62 +122,135 @@ public class FastqFileErrorCorrector {
 
 	public void process(String inFilename, String outFilename) throws IOException {
 		correctedErrors = 0;
-		System.out.println("Calculating k-mers map from: "+inFilename);
-		KmersCounter counter = new KmersCounter();
-		counter.setLog(log);
-		counter.setKmerSize(kmerSize);
-		counter.processFile(inFilename);
-		kmersMap = counter.getKmersMap();
-		log.info("Filtering from "+kmersMap.size()+" k-mers by minimum abundance: "+minAbundance);
-		kmersMap.filterKmers(minAbundance);
-		log.info("The Map now has "+kmersMap.size()+" k-mers");
-		kmersMap = counter.getKmersMap();
-		kmerSize = counter.getKmerSize();
-		System.out.println("Extracted "+kmersMap.size()+" filtered k-mers from: "+inFilename);
-		System.out.println("Processing file: "+inFilename);
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			System.out.println("Calculating k-mers map from: "+inFilename);
+			kmersMap = new PackedKmersMapImpl(kmerSize);
+			countKmers(inFilename, pool);
+			log.info("Filtering from "+kmersMap.size()+" k-mers by minimum abundance: "+minAbundance);
+			kmersMap.filterKmers(minAbundance);
+			log.info("The Map now has "+kmersMap.size()+" k-mers");
+			System.out.println("Extracted "+kmersMap.size()+" filtered k-mers from: "+inFilename);
+			System.out.println("Processing file: "+inFilename);
+			correctReads(inFilename, outFilename, pool);
+		} catch (InterruptedException e) {
+			throw new IOException("Error correction interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+		System.out.println("Corrected "+correctedErrors+" potential errors. Output written to "+outFilename);
+	}
+	
+	private void countKmers(String inFilename, ExecutorService pool) throws IOException, InterruptedException, ExecutionException {
+		//Pending tasks are limited to keep memory bounded
+		LinkedList<Future<?>> pending = new LinkedList<>();
+		try (FastqFileReader reader = new FastqFileReader(inFilename)) {
+			Iterator<RawRead> it = reader.iterator();
+			while (it.hasNext()) {
+				List<RawRead> batch = loadBatch(it);
+				if(pool==null) {
+					countKmers(batch);
+					continue;
+				}
+				pending.add(pool.submit(() -> countKmers(batch)));
+				if(pending.size()>=2*numThreads) pending.removeFirst().get();
+			}
+			while(pending.size()>0) pending.removeFirst().get();
+		}
+	}
+	
+	private void countKmers(List<RawRead> reads) {
+		for(RawRead read:reads) kmersMap.countSequenceKmers(read.getCharacters());
+	}
+	
+	private void correctReads(String inFilename, String outFilename, ExecutorService pool) throws IOException, InterruptedException, ExecutionException {
+		//Batches are written in the order of the input file
+		LinkedList<List<RawRead>> pendingBatches = new LinkedList<>();
+		LinkedList<Future<Integer>> pending = new LinkedList<>();
 		try (FastqFileReader reader = new FastqFileReader(inFilename);
 			 OutputStream os = new GZIPOutputStream(new FileOutputStream(outFilename));
 			 PrintStream out = new PrintStream(os)) {
 			Iterator<RawRead> it = reader.iterator();
 			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead (read);
-				read.save(out);
+				List<RawRead> batch = loadBatch(it);
+				if(pool==null) {
+					correctedErrors+=correctReads(batch);
+					for(RawRead read:batch) read.save(out);
+					continue;
+				}
+				pendingBatches.add(batch);
+				pending.add(pool.submit(() -> correctReads(batch)));
+				if(pending.size()>=2*numThreads) {
+					correctedErrors+=pending.removeFirst().get();
+					for(RawRead read:pendingBatches.removeFirst()) read.save(out);
+				}
+			}
+			while(pending.size()>0) {
+				correctedErrors+=pending.removeFirst().get();
+				for(RawRead read:pendingBatches.removeFirst()) read.save(out);
 			}
 		}
-		System.out.println("Corrected "+correctedErrors+" potential errors. Output written to "+outFilename);
+	}
+	
+	private List<RawRead> loadBatch(Iterator<RawRead> it) {
+		List<RawRead> batch = new ArrayList<>(READS_BATCH_SIZE);
+		while(it.hasNext() && batch.size()<READS_BATCH_SIZE) batch.add(it.next());
+		return batch;
+	}
+	
+	private int correctReads(List<RawRead> reads) {
+		int corrections = 0;
+		for(RawRead read:reads) corrections+=correctRead(read);
+		return corrections;
 	}
 
 	public void processRead(RawRead read) {
+		correctedErrors+=correctRead(read);
+	}
+	
+	/**
+	 * Corrects the errors of the given read. Performs up to three rounds of correction, making at most
+	 * one correction between each pair of consecutive k-mers with high abundance in each round
+	 * @param read Read to correct
+	 * @return int Number of corrected errors
+	 */
+	private int correctRead(RawRead read) {
+		char [] readChars = read.getCharacters().toString().toCharArray();
+		int corrections = 0;
 		for(int h=0;h<3;h++) {
-			String readStr = read.getCharacters().toString();
-			char [] readChars = readStr.toCharArray();
-			CharSequence [] readKmers = KmersCounter.extractKmers(readStr, kmerSize , true);
-			int [] readKmerCounts = new int [readKmers.length];
-			
-			for(int i=0;i<readKmers.length;i++) {
-				CharSequence kmer = readKmers[i];
-				if (kmer==null) readKmerCounts[i] = 0;
-				else {
-					readKmerCounts[i] = kmersMap.getCount(kmer);
-				}
-			}
+			int [] readKmerCounts = getKmerCounts(readChars);
 			int lastRepresented= -1;
 			boolean corrected = false;
-			for(int i=0;i<readKmers.length;i++) {
+			for(int i=0;i<readKmerCounts.length;i++) {
 				if(readKmerCounts[i] >= minAbundance) {
-					if(i-1!=lastRepresented) {
-						corrected = corrected || correctErrors (readChars,lastRepresented,i);
+					if(i-1!=lastRepresented && !corrected) {
+						corrected = correctErrors (readChars,lastRepresented,i);
 					}
 					lastRepresented = i;
 				}
 			}
-			corrected = corrected || correctErrors (readChars,lastRepresented,readChars.length);
+			if(!corrected) corrected = correctErrors (readChars,lastRepresented,readChars.length);
 			if (corrected) {
+				corrections++;
 				read.setCharacters(new String(readChars));
 			} else break;
 		}
-		
+		return corrections;
+	}
+	
+	private int [] getKmerCounts(char [] readChars) {
+		if(readChars.length<kmerSize) return new int[0];
+		int [] readKmerCounts = new int [readChars.length-kmerSize+1];
+		for(int i=0;i<readKmerCounts.length;i++) {
+			long code = PackedKmersMapImpl.encode(readChars, i, kmerSize);
+			if(code>=0) readKmerCounts[i] = kmersMap.getCount(code);
+		}
+		return readKmerCounts;
 	}
 
 	private boolean correctErrors(char [] readChars, int lastRepresented, int nextRepresented) {
@@ -157,21 +279,17 @@ public class FastqFileErrorCorrector {
 		}
 		if(bestI>=0) {
 			readChars[bestI] = bestBP;
-			correctedErrors++;
 			return true;
 		}
 		return false;
 	}
 
 	private double getScore(char[] readChars, int first, int last) {
-		CharSequence [] readKmers = KmersCounter.extractKmers(new String (readChars), kmerSize , first, last, true);
 		double score = 0;
-		for(int i=first;i<=last&& i<readKmers.length;i++) {
-			CharSequence kmer = readKmers[i];
-			if (kmer!=null) {
-				int count = kmersMap.getCount(kmer);
-				score+=count;
-			}
+		int lastKmerStart = Math.min(last, readChars.length-kmerSize);
+		for(int i=first;i<=lastKmerStart;i++) {
+			long code = PackedKmersMapImpl.encode(readChars, i, kmerSize);
+			if (code>=0) score+=kmersMap.getCount(code);
 		}
 		return score;
 	}
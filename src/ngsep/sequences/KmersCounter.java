@@ -91,6 +91,7 @@ public class KmersCounter {
 	public void setKmerSize(int kmerSize) {
 		this.kmerSize = kmerSize;
 		if(kmerSize<=15) kmersMap = new ByteArrayKmersMapImpl((byte) kmerSize);
+		else if (kmerSize<=PackedKmersMapImpl.MAX_KMER_LENGTH) kmersMap = new PackedKmersMapImpl(kmerSize);
 		else kmersMap = new DefaultKmersMapImpl();
 	}
 	public void setKmerSize(Integer kmerSize) {
@@ -225,6 +226,10 @@ public class KmersCounter {
 			log.warning("Sequence "+seq+" smaller than k-mer size");
 			return;
 		}
+		if(kmersMap instanceof PackedKmersMapImpl) {
+			((PackedKmersMapImpl)kmersMap).countSequenceKmers(seq);
+			return;
+		}
 		//TODO: Create option to process non DNA k-mers
 		CharSequence [] kmers = extractKmers(seq, kmerSize, true);
 		for(CharSequence kmer:kmers) {
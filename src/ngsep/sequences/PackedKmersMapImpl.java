@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequences;
+
+import ngsep.math.Distribution;
+
+/**
+ * K-mers map for DNA k-mers of up to 31 bp. Each k-mer is encoded in two bits per base as a long number
+ * with the same encoding used by DNAShortKmer. Codes and counts are stored in primitive arrays using open
+ * addressing with linear probing. The table is divided in shards to allow concurrent insertions from
+ * different threads. Queries do not synchronize and hence they should be performed after insertions finish
+ * @author Jorge Duitama
+ *
+ */
+public class PackedKmersMapImpl implements KmersMap {
+	public static final int MAX_KMER_LENGTH = 31;
+	private static final int SHARD_BITS = 6;
+	private static final int NUM_SHARDS = 1<<SHARD_BITS;
+	private static final int INITIAL_SHARD_CAPACITY = 1024;
+
+	private final int kmerLength;
+	private final long kmerMask;
+	//Codes are stored adding one to distinguish empty slots
+	private final long [][] keys = new long [NUM_SHARDS][];
+	private final int [][] counts = new int [NUM_SHARDS][];
+	//Number of used slots per shard, including k-mers removed by filtering
+	private final int [] usedSlots = new int [NUM_SHARDS];
+	//Number of k-mers with positive count per shard
+	private final int [] shardSizes = new int [NUM_SHARDS];
+	private final Object [] locks = new Object [NUM_SHARDS];
+
+	public PackedKmersMapImpl(int kmerLength) {
+		if(kmerLength<1 || kmerLength>MAX_KMER_LENGTH) throw new IllegalArgumentException("K-mer length must be between 1 and "+MAX_KMER_LENGTH+". Value: "+kmerLength);
+		this.kmerLength = kmerLength;
+		this.kmerMask = (1L<<(2*kmerLength))-1;
+		for(int i=0;i<NUM_SHARDS;i++) {
+			keys[i] = new long[INITIAL_SHARD_CAPACITY];
+			counts[i] = new int[INITIAL_SHARD_CAPACITY];
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return int Length of the k-mers stored in this map
+	 */
+	public int getKmerLength() {
+		return kmerLength;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(int i=0;i<NUM_SHARDS;i++) size+=shardSizes[i];
+		return size;
+	}
+
+	@Override
+	public int getCount(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		long code = encode(kmer.toString(), 0, kmerLength);
+		if(code<0) return 0;
+		return getCount(code);
+	}
+
+	/**
+	 * Returns the count of the k-mer with the given code
+	 * @param code Two bits per base encoding of the k-mer
+	 * @return int Count of the k-mer. Zero if the k-mer is not in the map
+	 */
+	public int getCount(long code) {
+		long hash = hash(code);
+		int shard = (int)(hash>>>(64-SHARD_BITS));
+		long [] shardKeys = keys[shard];
+		int mask = shardKeys.length-1;
+		long key = code+1;
+		for(int i=(int)hash & mask;;i=(i+1)&mask) {
+			long k = shardKeys[i];
+			if(k==key) return counts[shard][i];
+			if(k==0) return 0;
+		}
+	}
+
+	@Override
+	public void addOcurrance(CharSequence kmer) {
+		if(kmer.length()!=kmerLength) throw new IllegalArgumentException("Unexpected length for query: "+kmer+" expected: "+kmerLength);
+		long code = encode(kmer.toString(), 0, kmerLength);
+		if(code<0) throw new IllegalArgumentException("K-mer "+kmer+" has characters not supported by this map");
+		addOcurrance(code);
+	}
+
+	/**
+	 * Adds one occurrence of the k-mer with the given code
+	 * @param code Two bits per base encoding of the k-mer
+	 */
+	public void addOcurrance(long code) {
+		long hash = hash(code);
+		int shard = (int)(hash>>>(64-SHARD_BITS));
+		synchronized (locks[shard]) {
+			add(shard, hash, code+1);
+		}
+	}
+
+	/**
+	 * Counts the DNA k-mers of the given sequence. K-mers including characters different than A,C,G or T are ignored.
+	 * This method can be called concurrently from different threads
+	 * @param seq Sequence to extract the k-mers
+	 */
+	public void countSequenceKmers(CharSequence seq) {
+		int n = seq.length();
+		if(n<kmerLength) return;
+		long [] codes = new long [n-kmerLength+1];
+		int numCodes = 0;
+		long code = 0;
+		int validLength = 0;
+		for(int i=0;i<n;i++) {
+			int baseCode = getBaseCode(seq.charAt(i));
+			if(baseCode<0) {
+				validLength = 0;
+				continue;
+			}
+			code = ((code<<2) | baseCode) & kmerMask;
+			validLength++;
+			if(validLength>=kmerLength) codes[numCodes++] = code;
+		}
+		addOcurrances(codes, numCodes);
+	}
+
+	/**
+	 * Adds one occurrence for each of the given codes. Codes are grouped by shard to lock each shard once
+	 * @param codes Codes of the k-mers to add
+	 * @param n Number of codes to add from the beginning of the array
+	 */
+	public void addOcurrances(long [] codes, int n) {
+		long [] hashes = new long [n];
+		int [] shardStarts = new int [NUM_SHARDS+1];
+		for(int i=0;i<n;i++) {
+			hashes[i] = hash(codes[i]);
+			shardStarts[(int)(hashes[i]>>>(64-SHARD_BITS))+1]++;
+		}
+		for(int s=0;s<NUM_SHARDS;s++) shardStarts[s+1]+=shardStarts[s];
+		long [] sortedCodes = new long [n];
+		long [] sortedHashes = new long [n];
+		int [] next = new int [NUM_SHARDS];
+		System.arraycopy(shardStarts, 0, next, 0, NUM_SHARDS);
+		for(int i=0;i<n;i++) {
+			int j = next[(int)(hashes[i]>>>(64-SHARD_BITS))]++;
+			sortedCodes[j] = codes[i];
+			sortedHashes[j] = hashes[i];
+		}
+		for(int s=0;s<NUM_SHARDS;s++) {
+			if(shardStarts[s]==shardStarts[s+1]) continue;
+			synchronized (locks[s]) {
+				for(int i=shardStarts[s];i<shardStarts[s+1];i++) add(s, sortedHashes[i], sortedCodes[i]+1);
+			}
+		}
+	}
+
+	private void add(int shard, long hash, long key) {
+		long [] shardKeys = keys[shard];
+		int mask = shardKeys.length-1;
+		int i=(int)hash & mask;
+		while(shardKeys[i]!=0 && shardKeys[i]!=key) i=(i+1)&mask;
+		if(shardKeys[i]==0) {
+			shardKeys[i] = key;
+			usedSlots[shard]++;
+		}
+		int count = counts[shard][i];
+		if(count==0) shardSizes[shard]++;
+		if(count<Integer.MAX_VALUE) counts[shard][i] = count+1;
+		if(2*usedSlots[shard]>shardKeys.length) resize(shard);
+	}
+
+	private void resize(int shard) {
+		long [] oldKeys = keys[shard];
+		int [] oldCounts = counts[shard];
+		long [] newKeys = new long [2*oldKeys.length];
+		int [] newCounts = new int [newKeys.length];
+		int mask = newKeys.length-1;
+		int used = 0;
+		for(int j=0;j<oldKeys.length;j++) {
+			//Filtered k-mers are not copied
+			if(oldKeys[j]==0 || oldCounts[j]==0) continue;
+			int i = (int)hash(oldKeys[j]-1) & mask;
+			while(newKeys[i]!=0) i=(i+1)&mask;
+			newKeys[i] = oldKeys[j];
+			newCounts[i] = oldCounts[j];
+			used++;
+		}
+		keys[shard] = newKeys;
+		counts[shard] = newCounts;
+		usedSlots[shard] = used;
+	}
+
+	@Override
+	public void filterKmers(int minAbundance) {
+		for(int s=0;s<NUM_SHARDS;s++) {
+			synchronized (locks[s]) {
+				int [] shardCounts = counts[s];
+				for(int i=0;i<shardCounts.length;i++) {
+					if(shardCounts[i]>0 && shardCounts[i]<minAbundance) {
+						shardCounts[i] = 0;
+						shardSizes[s]--;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public Distribution calculateAbundancesDistribution() {
+		Distribution dist = new Distribution(1, 200, 1);
+		for(int s=0;s<NUM_SHARDS;s++) {
+			for(int count:counts[s]) {
+				if(count>0) dist.processDatapoint(count);
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * Encodes the k-mer starting at the given position using two bits per base
+	 * @param seq Sequence to extract the k-mer
+	 * @param start First position of the k-mer
+	 * @param length Length of the k-mer. It must be less or equal than 31
+	 * @return long Code of the k-mer. -1 if the k-mer has characters different than A,C,G or T
+	 */
+	public static long encode(CharSequence seq, int start, int length) {
+		long code = 0;
+		for(int i=start;i<start+length;i++) {
+			int baseCode = getBaseCode(seq.charAt(i));
+			if(baseCode<0) return -1;
+			code = (code<<2) | baseCode;
+		}
+		return code;
+	}
+
+	/**
+	 * Encodes the k-mer starting at the given position using two bits per base
+	 * @param seq Characters of the sequence to extract the k-mer
+	 * @param start First position of the k-mer
+	 * @param length Length of the k-mer. It must be less or equal than 31
+	 * @return long Code of the k-mer. -1 if the k-mer has characters different than A,C,G or T
+	 */
+	public static long encode(char [] seq, int start, int length) {
+		long code = 0;
+		for(int i=start;i<start+length;i++) {
+			int baseCode = getBaseCode(seq[i]);
+			if(baseCode<0) return -1;
+			code = (code<<2) | baseCode;
+		}
+		return code;
+	}
+
+	private static int getBaseCode(char base) {
+		switch (base) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': return 3;
+		default: return -1;
+		}
+	}
+
+	private static long hash(long code) {
+		//Finalizer of the 64 bits murmur hash to spread codes over shards and slots
+		long h = code;
+		h ^= h>>>33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h>>>33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h>>>33;
+		return h;
+	}
+}
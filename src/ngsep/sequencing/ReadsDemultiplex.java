@@ -30,11 +30,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.PipelineMetrics;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.DegenerateSequence;
 import ngsep.sequences.RawRead;
@@ -74,6 +76,14 @@ public class ReadsDemultiplex {
 	private int tooShort = 0;
 	private Map<String,Integer> counts;
 	
+	//Throughput metrics
+	private PipelineMetrics metrics = new PipelineMetrics("ReadsDemultiplex");
+	private LongAdder fragmentsCounter = metrics.getCounter("fragments");
+	private LongAdder savedCounter = metrics.getCounter("savedFragments");
+	private LongAdder notFoundCounter = metrics.getCounter("barcodeNotFound");
+	private LongAdder tooShortCounter = metrics.getCounter("tooShort");
+	private long fileStartTime;
+	
 
 	public static void main(String[] args) throws Exception {
 		ReadsDemultiplex instance = new ReadsDemultiplex();
@@ -101,21 +111,28 @@ public class ReadsDemultiplex {
 	}
 
 	public void demultiplexGroup() throws IOException {
-		for(SequencingLane lane:lanes) {
-			barcodeMap = lane.getBarcodeMap();
-			List<String> filesForward = lane.getFilesForward();
-			List<String> filesReverse = lane.getFilesReverse();
-			for(int i=0;i<filesForward.size();i++) {
-				String filename1 = filesForward.get(i);
-				String filename2 = filesReverse.get(i);
-				if(filename2==null) demultiplex(filename1);
-				else demultiplex(filename1, filename2);
+		//Metrics are reported for the whole group of files
+		metrics.start();
+		try {
+			for(SequencingLane lane:lanes) {
+				barcodeMap = lane.getBarcodeMap();
+				List<String> filesForward = lane.getFilesForward();
+				List<String> filesReverse = lane.getFilesReverse();
+				for(int i=0;i<filesForward.size();i++) {
+					String filename1 = filesForward.get(i);
+					String filename2 = filesReverse.get(i);
+					if(filename2==null) demultiplex(filename1);
+					else demultiplex(filename1, filename2);
+				}
 			}
+		} finally {
+			metrics.stop();
 		}
 	}
 
 	public void setProgressNotifier(ProgressNotifier progressNotifier) { 
 		this.progressNotifier = progressNotifier;
+		metrics.setProgressNotifier(progressNotifier);
 	}
 	
 	public ProgressNotifier getProgressNotifier() {
@@ -128,6 +145,32 @@ public class ReadsDemultiplex {
 
 	public void setLog(Logger log) {
 		this.log = log;
+		metrics.setLog(log);
+	}
+	
+	/**
+	 * @return the throughput metrics of the process
+	 */
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of seconds between log lines reporting throughput metrics
+	 */
+	public int getMetricsInterval() {
+		return metrics.getLogInterval();
+	}
+
+	/**
+	 * @param metricsInterval the number of seconds between log lines reporting throughput metrics. Zero disables the report
+	 */
+	public void setMetricsInterval(int metricsInterval) {
+		metrics.setLogInterval(metricsInterval);
+	}
+	
+	public void setMetricsInterval(Integer metricsInterval) {
+		this.setMetricsInterval(metricsInterval.intValue());
 	}
 
 	
@@ -279,6 +322,7 @@ public class ReadsDemultiplex {
 				s.flush();
 				s.close();
 			}
+			stopMetrics();
 		}
 		printStatistics();
 	}
@@ -298,6 +342,7 @@ public class ReadsDemultiplex {
 				s.flush();
 				s.close();
 			}
+			stopMetrics();
 		}
 		printStatistics();
 	}
@@ -307,6 +352,13 @@ public class ReadsDemultiplex {
 		total = 0;
 		notFound = 0;
 		tooShort = 0;
+		fileStartTime = System.nanoTime();
+		metrics.start();
+	}
+	
+	private void stopMetrics() {
+		metrics.getTimer("demultiplexFile").recordSince(fileStartTime);
+		metrics.stop();
 	}
 	
 	private void printStatistics() {
@@ -329,9 +381,11 @@ public class ReadsDemultiplex {
 	 */
 	private void processRead(RawRead read, Map<String, PrintStream> outFiles) throws IOException {
 		total++;
+		fragmentsCounter.increment();
 		String [] barcodeData = barcodeMap.getSampleIdByRead(read.getSequenceString());
 		if (barcodeData == null) {
 			notFound++;
+			notFoundCounter.increment();
 		} else {
 			int barcodeLength = barcodeData[1].length();
 			//Trim barcode
@@ -348,11 +402,13 @@ public class ReadsDemultiplex {
 					outFiles.put(sampleId, out);
 				}
 				read.save(out);
+				savedCounter.increment();
 				Integer count = counts.get(sampleId);
 				if(count==null) counts.put(sampleId, 1);
 				else counts.put(sampleId, count+1);
 			} else {
 				tooShort++;
+				tooShortCounter.increment();
 			}
 		}
 	}
@@ -362,9 +418,9 @@ public class ReadsDemultiplex {
 	 * @return boolean true if the process should keep running
 	 */
 	private boolean keepRunning() {
-		if (progressNotifier!=null && total%10000==0) {
+		if (total%10000==0) {
 			int progress = (int) (total/10000);
-			return progressNotifier.keepRunning(progress);
+			return metrics.keepRunning(progress);
 		}
 		return true;
 	}
@@ -408,6 +464,7 @@ public class ReadsDemultiplex {
 				s.flush();
 				s.close();
 			}
+			stopMetrics();
 		}
 		printStatistics();
 	}
@@ -434,6 +491,7 @@ public class ReadsDemultiplex {
 				s.flush();
 				s.close();
 			}
+			stopMetrics();
 		}
 		printStatistics();
 	}
@@ -448,6 +506,7 @@ public class ReadsDemultiplex {
 	 */
 	private void demultiplexReadPair(RawRead read1, RawRead read2, Map<String, PrintStream> outFiles1, Map<String, PrintStream> outFiles2) throws IOException {
 		total++;
+		fragmentsCounter.increment();
 		String [] barcodeData;
 		if(dualBarcode) {
 			barcodeData = barcodeMap.getSampleIdByReadPair(read1.getSequenceString(), read2.getSequenceString());
@@ -457,6 +516,7 @@ public class ReadsDemultiplex {
 		}
 		if (barcodeData == null) {
 			notFound++;
+			notFoundCounter.increment();
 			return;
 		}
 		//Trim barcode
@@ -484,11 +544,13 @@ public class ReadsDemultiplex {
 			}
 			read1.save(out1);
 			read2.save(out2);
+			savedCounter.increment();
 			Integer count = counts.get(sampleId);
 			if(count==null) counts.put(sampleId, 1);
 			else counts.put(sampleId, count+1);
 		} else {
 			tooShort++;
+			tooShortCounter.increment();
 		}
 	}
 	
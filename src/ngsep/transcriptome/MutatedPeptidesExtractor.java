@@ -13,6 +13,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.DNASequence;
 import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
+import ngsep.transcriptome.io.TranscriptomeBinaryFileHandler;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.CalledSNV;
 import ngsep.variants.GenomicVariant;
@@ -38,7 +39,11 @@ public class MutatedPeptidesExtractor {
 		String vcfFile = args[0];
 		String transcriptomeMap = args[1];
 		String referenceFile = args[2];
-		instance.loadTranscriptome(transcriptomeMap, new ReferenceGenome(referenceFile));
+		if(TranscriptomeBinaryFileHandler.isBinaryTranscriptome(transcriptomeMap)) {
+			instance.loadBinaryTranscriptome(transcriptomeMap);
+		} else {
+			instance.loadTranscriptome(transcriptomeMap, new ReferenceGenome(referenceFile));
+		}
 		instance.findMutatedPeptides(vcfFile, System.out);
 	}
 	
@@ -127,6 +132,12 @@ public class MutatedPeptidesExtractor {
 		transcriptome.fillSequenceTranscripts(genome, log);
 	}
 	
+	public void loadBinaryTranscriptome(String binaryTranscriptome) throws IOException {
+		TranscriptomeBinaryFileHandler handler = new TranscriptomeBinaryFileHandler();
+		handler.setLog(log);
+		transcriptome = handler.load(binaryTranscriptome);
+	}
+	
 	public void findMutatedPeptides (String vcfFile, PrintStream out) throws IOException  {
 		
 		try (VCFFileReader reader = new VCFFileReader(vcfFile)){
@@ -31,6 +31,7 @@ import java.util.logging.Logger;
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
+import ngsep.genome.GenomicRegionSweep;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.QualifiedSequence;
@@ -193,6 +194,15 @@ public class Transcriptome {
 		}
 		return null;
 	}
+	/**
+	 * Creates an object to query transcripts for variants sorted by position.
+	 * Creating the sweep also finishes building the transcripts index. After this call, queries do not
+	 * modify the transcriptome and can be performed concurrently
+	 * @return GenomicRegionSweep<Transcript> New sweep over the transcripts of this transcriptome
+	 */
+	public GenomicRegionSweep<Transcript> createTranscriptsSweep() {
+		return sortedTranscripts.createSweep();
+	}
 	public List<Transcript> getAllTranscripts () {
 		return sortedTranscripts.asList();
 	}
@@ -203,11 +213,27 @@ public class Transcriptome {
 	 * @return List<GenomicVariantAnnotation> Functional annotations of the effect of the alternative alleles 
 	 */
 	public List<VariantFunctionalAnnotation> calculateAnnotations(GenomicVariant variant, VariantAnnotationParameters parameters) {
+		return calculateAnnotations(variant, parameters, null);
+	}
+	/**
+	 * Calculates the annotations for the given variant based on their alternative alleles.
+	 * This method can be called by several threads as long as the transcriptome is not modified and
+	 * each thread uses its own sweep
+	 * @param variant Genomic variant to annotate
+	 * @param parameters Object with the parameters to perform the annotation
+	 * @param sweep Sweep created with createTranscriptsSweep to reuse the transcripts found for previous variants.
+	 * Useful when variants are sorted by position. If null, transcripts are queried from the index
+	 * @return List<GenomicVariantAnnotation> Functional annotations of the effect of the alternative alleles 
+	 */
+	public List<VariantFunctionalAnnotation> calculateAnnotations(GenomicVariant variant, VariantAnnotationParameters parameters, GenomicRegionSweep<Transcript> sweep) {
 		List<VariantFunctionalAnnotation> annotations = new ArrayList<>();
 		int offsetUpstream = parameters.getOffsetUpstream();
 		int offsetDownstream = parameters.getOffsetDownstream();
 		int maxOffset = Math.max(offsetUpstream, offsetDownstream);
-		for(Transcript t:getTranscripts(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset)) {
+		List<Transcript> transcripts = new ArrayList<>();
+		if(sweep!=null) sweep.visitSpanningRegions(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset, transcripts::add);
+		else sortedTranscripts.visitSpanningRegions(variant.getSequenceName(), variant.getFirst()-maxOffset, variant.getLast()+maxOffset, transcripts::add);
+		for(Transcript t:transcripts) {
 			//if(variant.getFirst()==1096) System.err.println("Transcript: "+t.getId()+". Coding: "+t.isCoding()+". Reverse: "+t.isNegativeStrand()+" at "+t.getSequenceName()+": "+t.getFirst()+"-"+t.getLast());
 			TranscriptSegment segmentStart = t.getTranscriptSegmentByAbsolutePosition(variant.getFirst());
 			TranscriptSegment segmentEnd = t.getTranscriptSegmentByAbsolutePosition(variant.getLast());
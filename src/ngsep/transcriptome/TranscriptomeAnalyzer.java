@@ -37,6 +37,7 @@ import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.FastaSequencesHandler;
 import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
+import ngsep.transcriptome.io.TranscriptomeBinaryFileHandler;
 
 /**
  * @author Tatiana Garcia
@@ -110,10 +111,17 @@ public class TranscriptomeAnalyzer {
 		
 		QualifiedSequenceList sequenceNames= genome.getSequencesMetadata();
 		//Load transcriptome
-		GFF3TranscriptomeHandler gff3Handler = new GFF3TranscriptomeHandler(sequenceNames);
-		gff3Handler.setLog(log);
-		Transcriptome transcriptome = gff3Handler.loadMap(transcriptomeFile); 			
-		transcriptome.fillSequenceTranscripts(genome, log);
+		Transcriptome transcriptome;
+		if(TranscriptomeBinaryFileHandler.isBinaryTranscriptome(transcriptomeFile)) {
+			TranscriptomeBinaryFileHandler binaryHandler = new TranscriptomeBinaryFileHandler();
+			binaryHandler.setLog(log);
+			transcriptome = binaryHandler.load(transcriptomeFile);
+		} else {
+			GFF3TranscriptomeHandler gff3Handler = new GFF3TranscriptomeHandler(sequenceNames);
+			gff3Handler.setLog(log);
+			transcriptome = gff3Handler.loadMap(transcriptomeFile); 			
+			transcriptome.fillSequenceTranscripts(genome, log);
+		}
 
 		Map<String,Gene> visitedGenes = new HashMap<>();
 		List<GenomicRegion> allRawExons = new ArrayList<GenomicRegion>();
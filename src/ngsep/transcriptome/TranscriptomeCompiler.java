@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.transcriptome;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import ngsep.genome.ReferenceGenome;
+import ngsep.main.CommandsDescriptor;
+import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
+import ngsep.transcriptome.io.TranscriptomeBinaryFileHandler;
+
+/**
+ * Program that loads a transcriptome in GFF3 format, calculates the cDNA sequences from the reference genome
+ * and saves the result in binary format. Binary transcriptomes can be used instead of the GFF3 file
+ * by the functional annotator, the transcriptome analyzer and the mutated peptides extractor
+ * @author Jorge Duitama
+ */
+public class TranscriptomeCompiler {
+	private Logger log = Logger.getLogger(TranscriptomeCompiler.class.getName());
+
+	public static void main(String[] args) throws Exception {
+		TranscriptomeCompiler instance = new TranscriptomeCompiler();
+		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
+		String genomeFile = args[i++];
+		String transcriptomeMap = args[i++];
+		String outputFile = args[i++];
+		instance.compile(genomeFile, transcriptomeMap, outputFile);
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public void compile(String genomeFile, String transcriptomeMap, String outputFile) throws IOException {
+		log.info("Loading genome from file "+genomeFile);
+		ReferenceGenome genome = new ReferenceGenome(genomeFile);
+		log.info("Loading transcriptome from file "+transcriptomeMap);
+		GFF3TranscriptomeHandler handler = new GFF3TranscriptomeHandler(genome.getSequencesMetadata());
+		handler.setLog(log);
+		Transcriptome transcriptome = handler.loadMap(transcriptomeMap);
+		transcriptome.fillSequenceTranscripts(genome, log);
+		log.info("Saving binary transcriptome in "+outputFile);
+		TranscriptomeBinaryFileHandler binaryHandler = new TranscriptomeBinaryFileHandler();
+		binaryHandler.setLog(log);
+		binaryHandler.save(transcriptome, outputFile);
+		log.info("Process completed");
+	}
+}
@@ -63,6 +63,7 @@ public class VariantFunctionalAnnotationType {
 	private boolean coding;
 	
 	private static Map<String, Integer> annotationPriorities = null;
+	private static List<VariantFunctionalAnnotationType> typesByPriority = null;
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesByName = null;
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesByNgsep2Name = null;
 	private static Map<String, VariantFunctionalAnnotationType> annotationTypesBySOAccession = null;
@@ -104,6 +105,7 @@ public class VariantFunctionalAnnotationType {
 		annotationTypesByName = new HashMap<>();
 		annotationTypesByNgsep2Name = new HashMap<>();
 		annotationTypesBySOAccession = new HashMap<>();
+		typesByPriority = types;
 		for(int i=0;i<types.size();i++) {
 			VariantFunctionalAnnotationType type = types.get(i);
 			annotationPriorities.put(type.getName(), i);
@@ -145,6 +147,26 @@ public class VariantFunctionalAnnotationType {
 		if(answer == null) answer = getTypeByNgsep2Name(key);
 		return answer;
 	}
+	/**
+	 * Returns the index of the type with the given name. Indexes follow the priority of the types
+	 * and go from zero to the number of supported types minus one
+	 * @param name Name of the type
+	 * @return int Index of the type. -1 if the name does not correspond to a supported type
+	 */
+	public static int getTypeIndex(String name) {
+		if(annotationTypesByName==null) loadTypes();
+		Integer index = annotationPriorities.get(name);
+		if(index==null) return -1;
+		return index;
+	}
+	/**
+	 * @param index Index of the type
+	 * @return VariantFunctionalAnnotationType Type with the given index
+	 */
+	public static VariantFunctionalAnnotationType getTypeByIndex(int index) {
+		if(annotationTypesByName==null) loadTypes();
+		return typesByPriority.get(index);
+	}
 	public static int getNumberSupportedTypes () {
 		if(annotationTypesByName==null) loadTypes();
 		return annotationTypesByName.size();
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.transcriptome.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import ngsep.sequences.DNAMaskedSequence;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
+import ngsep.transcriptome.Gene;
+import ngsep.transcriptome.Transcript;
+import ngsep.transcriptome.TranscriptSegment;
+import ngsep.transcriptome.Transcriptome;
+
+/**
+ * Saves and loads transcriptomes in a compact binary format. The file includes the sequence names,
+ * a table of genes, the transcripts sorted by sequence and position, a table with the segments of all transcripts
+ * and the cDNA sequences of the transcripts. Because segment boundaries, coding offsets and cDNA sequences are
+ * already calculated, loading a binary transcriptome does not require to parse the annotation nor to load the reference genome.
+ * The file is memory mapped for reading
+ * @author Jorge Duitama
+ */
+public class TranscriptomeBinaryFileHandler {
+	private static final byte [] MAGIC = "NGSEPTX".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+
+	private Logger log = Logger.getLogger(TranscriptomeBinaryFileHandler.class.getName());
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * Checks if the given file has been created with the save method of this class
+	 * @param filename Name of the file to check
+	 * @return boolean true if the file starts with the header of binary transcriptomes
+	 * @throws IOException If the file can not be read
+	 */
+	public static boolean isBinaryTranscriptome(String filename) throws IOException {
+		byte [] start = new byte[MAGIC.length];
+		try (FileInputStream in = new FileInputStream(filename)) {
+			int n = 0;
+			while(n<start.length) {
+				int r = in.read(start, n, start.length-n);
+				if(r<0) return false;
+				n+=r;
+			}
+		}
+		return Arrays.equals(start, MAGIC);
+	}
+
+	/**
+	 * Saves the given transcriptome in binary format
+	 * @param transcriptome Transcriptome to save. cDNA sequences should be already filled to avoid loading the genome again
+	 * @param filename Name of the output file
+	 * @throws IOException If the file can not be written
+	 */
+	public void save(Transcriptome transcriptome, String filename) throws IOException {
+		QualifiedSequenceList sequenceNames = transcriptome.getSequenceNames();
+		List<Gene> genes = transcriptome.getAllGenes();
+		List<Transcript> transcripts = transcriptome.getAllTranscripts();
+		Map<String,Integer> geneIndexes = new HashMap<>();
+		for(int i=0;i<genes.size();i++) geneIndexes.put(genes.get(i).getId(), i);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1<<16))) {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sequenceNames.size());
+			for(QualifiedSequence seq:sequenceNames) {
+				writeString(out, seq.getName());
+				out.writeInt(seq.getLength());
+			}
+			out.writeInt(genes.size());
+			for(Gene g:genes) {
+				writeString(out, g.getId());
+				writeString(out, g.getName());
+				out.writeInt(sequenceNames.indexOf(g.getSequenceName()));
+				out.writeInt(g.getFirst());
+				out.writeInt(g.getLast());
+				out.writeBoolean(g.isNegativeStrand());
+				writeStringsList(out, g.getOntologyTerms());
+				writeStringsList(out, g.getDatabaseReferences());
+			}
+			//Transcripts in position order. Segments are stored in a separate table to read them in blocks
+			out.writeInt(transcripts.size());
+			int totalSegments = 0;
+			for(Transcript t:transcripts) {
+				writeString(out, t.getId());
+				writeString(out, t.getStatus());
+				Integer geneIdx = geneIndexes.get(t.getGeneId());
+				if(geneIdx==null) throw new IOException("Gene "+t.getGeneId()+" of transcript "+t.getId()+" not found");
+				out.writeInt(geneIdx);
+				out.writeInt(sequenceNames.indexOf(t.getSequenceName()));
+				out.writeInt(t.getFirst());
+				out.writeInt(t.getLast());
+				out.writeBoolean(t.isNegativeStrand());
+				out.writeInt(t.getTranscriptSegments().size());
+				totalSegments+=t.getTranscriptSegments().size();
+			}
+			out.writeInt(totalSegments);
+			for(Transcript t:transcripts) {
+				for(TranscriptSegment segment:t.getTranscriptSegments()) {
+					out.writeInt(segment.getFirst());
+					out.writeInt(segment.getLast());
+					out.writeByte(segment.getStatus());
+					out.writeByte(segment.getFirstCodonPositionOffset());
+				}
+			}
+			int withoutSequence = 0;
+			for(Transcript t:transcripts) {
+				DNAMaskedSequence cdna = t.getCDNASequence();
+				if(cdna==null) {
+					out.writeInt(-1);
+					withoutSequence++;
+				} else {
+					byte [] bytes = cdna.toString().getBytes(StandardCharsets.US_ASCII);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+			if(withoutSequence>0) log.warning("Saved "+withoutSequence+" transcripts without cDNA sequence");
+		}
+	}
+
+	/**
+	 * Loads a transcriptome saved in binary format
+	 * @param filename Name of the binary file
+	 * @return Transcriptome Transcriptome stored in the file including cDNA sequences
+	 * @throws IOException If the file can not be read or if it does not have the expected format
+	 */
+	public Transcriptome load(String filename) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+			 FileChannel channel = file.getChannel()) {
+			if(channel.size()>Integer.MAX_VALUE) throw new IOException("Binary transcriptome at "+filename+" is too large to be mapped: "+channel.size()+" bytes");
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return load(buffer, filename);
+		}
+	}
+
+	private Transcriptome load(ByteBuffer buffer, String filename) throws IOException {
+		byte [] start = new byte[MAGIC.length];
+		if(buffer.remaining()<MAGIC.length+4) throw new IOException("File "+filename+" is not a binary transcriptome");
+		buffer.get(start);
+		if(!Arrays.equals(start, MAGIC)) throw new IOException("File "+filename+" is not a binary transcriptome");
+		int version = buffer.getInt();
+		if(version!=VERSION) throw new IOException("Unsupported version "+version+" of binary transcriptome "+filename+". Expected: "+VERSION);
+		int numSequences = buffer.getInt();
+		QualifiedSequenceList sequenceNames = new QualifiedSequenceList();
+		for(int i=0;i<numSequences;i++) {
+			QualifiedSequence seq = new QualifiedSequence(readString(buffer));
+			seq.setLength(buffer.getInt());
+			sequenceNames.add(seq);
+		}
+		int numGenes = buffer.getInt();
+		Gene [] genes = new Gene[numGenes];
+		for(int i=0;i<numGenes;i++) {
+			String id = readString(buffer);
+			String name = readString(buffer);
+			String sequenceName = sequenceNames.get(buffer.getInt()).getName();
+			int first = buffer.getInt();
+			int last = buffer.getInt();
+			boolean negativeStrand = buffer.get()!=0;
+			genes[i] = new Gene(id, name, sequenceName, first, last, negativeStrand);
+			genes[i].setOntologyTerms(readStringsList(buffer));
+			genes[i].setDatabaseReferences(readStringsList(buffer));
+		}
+		int numTranscripts = buffer.getInt();
+		Transcript [] transcripts = new Transcript[numTranscripts];
+		int [] numSegments = new int[numTranscripts];
+		for(int i=0;i<numTranscripts;i++) {
+			String id = readString(buffer);
+			String status = readString(buffer);
+			Gene gene = genes[buffer.getInt()];
+			String sequenceName = sequenceNames.get(buffer.getInt()).getName();
+			int first = buffer.getInt();
+			int last = buffer.getInt();
+			boolean negativeStrand = buffer.get()!=0;
+			Transcript t = new Transcript(id, sequenceName, first, last, negativeStrand);
+			t.setStatus(status);
+			t.setGene(gene);
+			transcripts[i] = t;
+			numSegments[i] = buffer.getInt();
+		}
+		buffer.getInt();
+		for(int i=0;i<numTranscripts;i++) {
+			Transcript t = transcripts[i];
+			List<TranscriptSegment> segments = new ArrayList<>(numSegments[i]);
+			for(int j=0;j<numSegments[i];j++) {
+				TranscriptSegment segment = new TranscriptSegment(t, buffer.getInt(), buffer.getInt());
+				segment.setStatus(buffer.get());
+				segment.setFirstCodonPositionOffset(buffer.get());
+				segments.add(segment);
+			}
+			t.setTranscriptSegments(segments);
+		}
+		Transcriptome answer = new Transcriptome(sequenceNames);
+		byte [] sequenceBytes = new byte[0];
+		for(int i=0;i<numTranscripts;i++) {
+			Transcript t = transcripts[i];
+			int length = buffer.getInt();
+			if(length>=0) {
+				if(sequenceBytes.length<length) sequenceBytes = new byte[Math.max(length, 2*sequenceBytes.length)];
+				buffer.get(sequenceBytes, 0, length);
+				t.setCDNASequence(new DNAMaskedSequence(new String(sequenceBytes, 0, length, StandardCharsets.US_ASCII)));
+			}
+			//Transcripts are stored sorted, so adding them keeps the collection sorted
+			answer.addTranscript(t);
+		}
+		log.info("Loaded "+numGenes+" genes and "+numTranscripts+" transcripts from binary transcriptome "+filename);
+		return answer;
+	}
+
+	private void writeString(DataOutputStream out, String value) throws IOException {
+		if(value==null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private void writeStringsList(DataOutputStream out, List<String> values) throws IOException {
+		if(values==null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.size());
+		for(String value:values) writeString(out, value);
+	}
+
+	private String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length<0) return null;
+		byte [] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private List<String> readStringsList(ByteBuffer buffer) {
+		int size = buffer.getInt();
+		if(size<0) return null;
+		List<String> answer = new ArrayList<>(size);
+		for(int i=0;i<size;i++) answer.add(readString(buffer));
+		return answer;
+	}
+}
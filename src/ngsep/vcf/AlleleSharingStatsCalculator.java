@@ -14,6 +14,10 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
@@ -35,6 +39,13 @@ public class AlleleSharingStatsCalculator {
 	
 	private Logger log = Logger.getLogger(AlleleSharingStatsCalculator.class.getName());
 	
+	//Genotypes of biallelic variants are packed using two bits per variant. The low bit is set for
+	//homozygous reference calls and the high bit is set for homozygous alternative calls
+	private static final int VARIANTS_PER_WORD = 32;
+	private static final long LOW_BITS_MASK = 0x5555555555555555L;
+	//Number of samples in each tile of the matrix of pairwise differences
+	private static final int TILE_SIZE = 64;
+	
 	private List<Sample> samplesDB = new ArrayList<Sample>();
 	private Transcriptome transcriptome; 
 	private boolean includeIntrons = false;
@@ -42,8 +53,10 @@ public class AlleleSharingStatsCalculator {
 	private int stepSize =10000;
 	private Set<String> samplesG1;
 	private Set<String> samplesG2;
+	private int numThreads = 1;
 	
 	private ProgressNotifier progressNotifier=null;
+	private ExecutorService pool = null;
 	
 	public static void main(String[] args) throws Exception {
 		if (args.length == 0 || args[0].equals("-h") || args[0].equals("--help")){
@@ -66,6 +79,9 @@ public class AlleleSharingStatsCalculator {
 			} else if ("-s".equals(args[i])) {
 				i++;
 				instance.stepSize = Integer.parseInt(args[i]);
+			} else if ("-threads".equals(args[i])) {
+				i++;
+				instance.setNumThreads(Integer.parseInt(args[i]));
 			} else if ("-".equals(args[i])) {
 				systemInput=true;
 				i++;
@@ -119,6 +135,15 @@ public class AlleleSharingStatsCalculator {
 		this.stepSize = stepSize;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+
 	public boolean isIncludeIntrons() {
 		return includeIntrons;
 	}
@@ -170,8 +195,14 @@ public class AlleleSharingStatsCalculator {
 	}
 	public Map<String, List<Double>> calculateSharingStatistics(VCFFileReader in) throws IOException  {
 		in.setLog(log);
-		if(transcriptome!=null) return calculateSharingStatisticsByGene(in);
-		else return calculateSharingStatisticsByWindow(in);
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			if(transcriptome!=null) return calculateSharingStatisticsByGene(in);
+			else return calculateSharingStatisticsByWindow(in);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+			pool = null;
+		}
 	}
 
 	public Map<String, List<Double>> calculateSharingStatisticsByWindow(VCFFileReader in) throws IOException {
@@ -325,16 +356,28 @@ public class AlleleSharingStatsCalculator {
 	}
 	private List<Double> calculateSharingStatisticsRegion(List<VCFRecord> regionVars, List<String> sampleIds, int regionLength) {
 		int nSamples = sampleIds.size();
+		boolean [] inG1 = new boolean [nSamples];
+		boolean [] inG2 = new boolean [nSamples];
+		for(int i=0;i<nSamples;i++) {
+			inG1[i] = samplesG1.contains(sampleIds.get(i));
+			inG2[i] = samplesG2.contains(sampleIds.get(i));
+		}
 		int [][] sampleDifferences = new int [nSamples][nSamples];
 		resetDifferences(sampleDifferences);
 		int [] segregatingSites = new int [3];
 		Arrays.fill(segregatingSites, 0);
+		int numWords = (regionVars.size()+VARIANTS_PER_WORD-1)/VARIANTS_PER_WORD;
+		long [] packedGenotypes = new long [nSamples*numWords];
+		byte [] codes = new byte [nSamples];
 		int nVars = 0;
+		int nPacked = 0;
 		for(VCFRecord record: regionVars) {
-			updateCounts(record,sampleIds,sampleDifferences,segregatingSites);
+			if(packGenotypes(record, inG1, inG2, codes, packedGenotypes, numWords, nPacked, segregatingSites)) nPacked++;
+			else updateCounts(record,inG1,inG2,sampleDifferences,segregatingSites);
 			nVars++;
 		}
-		return calculateStatistics(sampleIds, sampleDifferences, nVars, segregatingSites, regionLength);
+		if(nPacked>0) countPackedDifferences(packedGenotypes, (nPacked+VARIANTS_PER_WORD-1)/VARIANTS_PER_WORD, numWords, sampleDifferences);
+		return calculateStatistics(sampleIds, inG1, inG2, sampleDifferences, nVars, segregatingSites, regionLength);
 	}
 
 	public void resetDifferences(int[][] sampleDifferences) {
@@ -344,7 +387,108 @@ public class AlleleSharingStatsCalculator {
 			}
 		}
 	}
-	private void updateCounts(VCFRecord record, List<String> sampleIds, int[][] sampleDifferences, int [] segregatingSites ) {
+	/**
+	 * Packs the genotype calls of the given record in the bits of the given variant index and updates the segregating sites.
+	 * Only records in which every homozygous call has the first or the second allele and these alleles are different can be packed
+	 * @param record Record to pack
+	 * @param inG1 Tells which samples belong to the first group
+	 * @param inG2 Tells which samples belong to the second group
+	 * @param codes Buffer to store the two bit code of each sample
+	 * @param packedGenotypes Packed genotypes. The words of each sample are stored contiguously
+	 * @param numWords Number of words for each sample
+	 * @param variantIdx Index of the variant within the packed variants
+	 * @param segregatingSites Counts of segregating sites within the first group, within the second group and between groups
+	 * @return boolean true if the record could be packed, false otherwise
+	 */
+	private boolean packGenotypes(VCFRecord record, boolean [] inG1, boolean [] inG2, byte [] codes, long [] packedGenotypes, int numWords, int variantIdx, int [] segregatingSites) {
+		String [] alleles = record.getVariant().getAlleles();
+		if(alleles.length>1 && alleles[0].equals(alleles[1])) return false;
+		List<CalledGenomicVariant> calls = record.getCalls();
+		for(int i=0;i<calls.size();i++) {
+			byte [] calledAlleles = calls.get(i).getIndexesCalledAlleles();
+			codes[i] = 0;
+			if(calledAlleles.length!=1) continue;
+			if(calledAlleles[0]>1) return false;
+			codes[i] = (byte)(calledAlleles[0]+1);
+		}
+		int word = variantIdx/VARIANTS_PER_WORD;
+		int shift = 2*(variantIdx%VARIANTS_PER_WORD);
+		boolean refG1 = false, altG1 = false, refG2 = false, altG2 = false;
+		for(int i=0;i<calls.size();i++) {
+			byte code = codes[i];
+			if(code==0) continue;
+			packedGenotypes[i*numWords+word] |= ((long)code)<<shift;
+			if(inG1[i]) {
+				if(code==1) refG1 = true;
+				else altG1 = true;
+			}
+			if(inG2[i]) {
+				if(code==1) refG2 = true;
+				else altG2 = true;
+			}
+		}
+		if(refG1 && altG1) segregatingSites[0]++;
+		if(refG2 && altG2) segregatingSites[1]++;
+		if((refG1 && altG2) || (altG1 && refG2)) segregatingSites[2]++;
+		return true;
+	}
+	/**
+	 * Adds the differences between the packed genotypes of each pair of samples. Rows of tiles of the matrix are processed in parallel
+	 * @param packedGenotypes Packed genotypes. The words of each sample are stored contiguously
+	 * @param usedWords Number of words with packed variants
+	 * @param numWords Number of words allocated for each sample
+	 * @param sampleDifferences Matrix of differences to update
+	 */
+	private void countPackedDifferences(long [] packedGenotypes, int usedWords, int numWords, int [][] sampleDifferences) {
+		int nSamples = sampleDifferences.length;
+		if(pool==null || nSamples<=TILE_SIZE) {
+			for(int first=0;first<nSamples;first+=TILE_SIZE) {
+				countPackedDifferencesTileRow(packedGenotypes, usedWords, numWords, first, Math.min(nSamples, first+TILE_SIZE), sampleDifferences);
+			}
+			return;
+		}
+		List<Future<?>> tasks = new ArrayList<>();
+		for(int first=0;first<nSamples;first+=TILE_SIZE) {
+			int start = first;
+			int end = Math.min(nSamples, first+TILE_SIZE);
+			tasks.add(pool.submit(() -> countPackedDifferencesTileRow(packedGenotypes, usedWords, numWords, start, end, sampleDifferences)));
+		}
+		try {
+			for(Future<?> task:tasks) task.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Calculation of pairwise differences interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+	/**
+	 * Adds the differences between the samples in the given range and the samples with larger indexes.
+	 * Only cells (i,j) and (j,i) with i in the given range are modified, so different rows can be processed in parallel
+	 */
+	private void countPackedDifferencesTileRow(long [] packedGenotypes, int usedWords, int numWords, int first, int last, int [][] sampleDifferences) {
+		int nSamples = sampleDifferences.length;
+		for(int firstColumn=first;firstColumn<nSamples;firstColumn+=TILE_SIZE) {
+			int lastColumn = Math.min(nSamples, firstColumn+TILE_SIZE);
+			for(int i=first;i<last;i++) {
+				int offset1 = i*numWords;
+				for(int j=Math.max(i+1, firstColumn);j<lastColumn;j++) {
+					int offset2 = j*numWords;
+					int diffs = 0;
+					for(int w=0;w<usedWords;w++) {
+						long g1 = packedGenotypes[offset1+w];
+						long g2 = packedGenotypes[offset2+w];
+						//Homozygous reference in one sample and homozygous alternative in the other
+						diffs += Long.bitCount(((g1 & (g2>>>1)) | ((g1>>>1) & g2)) & LOW_BITS_MASK);
+					}
+					sampleDifferences[i][j]+=diffs;
+					sampleDifferences[j][i]+=diffs;
+				}
+			}
+		}
+	}
+	private void updateCounts(VCFRecord record, boolean [] inG1, boolean [] inG2, int[][] sampleDifferences, int [] segregatingSites ) {
 		List<CalledGenomicVariant> calls = record.getCalls();
 		boolean variableG1 = false;
 		boolean variableG2 = false;
@@ -352,15 +496,13 @@ public class AlleleSharingStatsCalculator {
 		for(int i=0;i<calls.size();i++) {
 			CalledGenomicVariant v1 = calls.get(i);
 			String [] alleles1 = v1.getCalledAlleles();
-			String sampleId1 = sampleIds.get(i);
-			boolean s1G1 = samplesG1.contains(sampleId1);
-			boolean s1G2 = samplesG2.contains(sampleId1);
+			boolean s1G1 = inG1[i];
+			boolean s1G2 = inG2[i];
 			for(int j=i+1;j<calls.size();j++) {
 				CalledGenomicVariant v2 = calls.get(j);
 				String [] alleles2 = v2.getCalledAlleles();
-				String sampleId2 = sampleIds.get(j);
-				boolean s2G1 = samplesG1.contains(sampleId2);
-				boolean s2G2 = samplesG2.contains(sampleId2);
+				boolean s2G1 = inG1[j];
+				boolean s2G2 = inG2[j];
 				int diffs = countDifferences (alleles1,alleles2);
 				sampleDifferences[i][j]+=diffs;
 				sampleDifferences[j][i]+=diffs;
@@ -383,7 +525,7 @@ public class AlleleSharingStatsCalculator {
 		if(alleles1.length==1 && alleles2.length==1 && !alleles1[0].equals(alleles2[0])) return 1;
 		return 0;
 	}
-	private List<Double> calculateStatistics(List<String> sampleIds,int[][] sampleDifferences, int nVars, int [] segregatingSites, int regionLength) {
+	private List<Double> calculateStatistics(List<String> sampleIds, boolean [] inG1, boolean [] inG2, int[][] sampleDifferences, int nVars, int [] segregatingSites, int regionLength) {
 		double avgDiffsG1=0;
 		double avgDiffsG2=0;
 		double avgDiffsBetween=0;
@@ -397,14 +539,12 @@ public class AlleleSharingStatsCalculator {
 		int numPairsBetween = 0;
 		
 		for(int i=0;i<sampleIds.size();i++) {
-			String sampleId1 = sampleIds.get(i);
-			boolean s1G1 = samplesG1.contains(sampleId1);
-			boolean s1G2 = samplesG2.contains(sampleId1);
+			boolean s1G1 = inG1[i];
+			boolean s1G2 = inG2[i];
 			boolean s1G = s1G1 || s1G2;
 			for(int j=i+1;j<sampleIds.size();j++) {
-				String sampleId2 = sampleIds.get(j);
-				boolean s2G1 = samplesG1.contains(sampleId2);
-				boolean s2G2 = samplesG2.contains(sampleId2);
+				boolean s2G1 = inG1[j];
+				boolean s2G2 = inG2[j];
 				boolean s2G = s2G1 || s2G2;
 				int diffsPair = sampleDifferences[i][j];
 				avgDiffsTotal+=diffsPair;
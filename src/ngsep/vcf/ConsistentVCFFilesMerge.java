@@ -19,17 +19,29 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import htsjdk.tribble.readers.TabixReader;
 import ngsep.genome.GenomicRegionComparator;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.SimpleSequenceListLoader;
@@ -43,6 +55,7 @@ import ngsep.variants.Sample;
 
 public class ConsistentVCFFilesMerge {
 	private ProgressNotifier progressNotifier=null;
+	private int numThreads = 1;
 	private Logger log = Logger.getLogger(ConsistentVCFFilesMerge.class.getName());
 	
 	
@@ -67,9 +80,10 @@ public class ConsistentVCFFilesMerge {
 			return;
 		}
 		ConsistentVCFFilesMerge merge = new ConsistentVCFFilesMerge();
-		String sequencesFile = args[0];
+		int i = CommandsDescriptor.getInstance().loadOptions(merge, args);
+		String sequencesFile = args[i++];
 		List<String> vcfFiles = new ArrayList<String>();
-		for(int i=1;i<args.length;i++) {
+		for(;i<args.length;i++) {
 			vcfFiles.add(args[i]);
 		}
 		SimpleSequenceListLoader listHandler = new SimpleSequenceListLoader();
@@ -89,27 +103,179 @@ public class ConsistentVCFFilesMerge {
 	}
 
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+
 	public void mergeFiles(QualifiedSequenceList sequenceNames, List<String> vcfFiles, PrintStream out) throws IOException {
-		VCFFileWriter writer = new VCFFileWriter();
+		if(numThreads>1) {
+			//Without indexes each sequence query reads the files from the start
+			if(areIndexed(vcfFiles)) {
+				mergeFilesBySequence(sequenceNames, vcfFiles, out);
+				return;
+			}
+			log.warning("Some input files are not compressed with bgzip and indexed with tabix. Merging files with one thread");
+		}
 		List<VCFFileReader> readers = new ArrayList<VCFFileReader>();
 		List<Iterator<VCFRecord>> iterators = new ArrayList<Iterator<VCFRecord>>();
 		VCFFileHeader outHeader = VCFFileHeader.makeDefaultEmptyHeader();
-		VCFRecord [] calls = new VCFRecord [vcfFiles.size()];
 		int [] samplesPerFile = new int[vcfFiles.size()];
+		try {
+			for(int i=0;i<vcfFiles.size();i++) {
+				VCFFileReader reader = new VCFFileReader(vcfFiles.get(i));
+				reader.setLog(log);
+				readers.add(reader);
+				addFilesamples(reader,outHeader);
+				samplesPerFile[i] = reader.getHeader().getSamples().size();
+				iterators.add(reader.iterator());
+			}
+			VCFFileWriter writer = new VCFFileWriter();
+			writer.printHeader(outHeader, out);
+			mergeRecords(sequenceNames, iterators, samplesPerFile, outHeader, out, progressNotifier);
+			out.flush();
+		} finally {
+			for(VCFFileReader reader:readers) reader.close();
+		}
+	}
+	
+	private boolean areIndexed(List<String> vcfFiles) throws IOException {
+		for(String filename:vcfFiles) {
+			try (VCFFileReader reader = new VCFFileReader(filename)) {
+				if(!reader.isIndexed()) return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Merges the records of each sequence independently in a pool of threads. The output of each sequence is saved
+	 * in a temporary file and the files are copied to the output following the order of the sequences.
+	 * Only variants within the given sequences are merged.
+	 * @param sequenceNames Sequences to merge
+	 * @param vcfFiles Files to merge. They must be compressed with bgzip and indexed with tabix to retrieve
+	 * the records of each sequence
+	 * @param out Output stream
+	 * @throws IOException If the files can not be read or the temporary files can not be written
+	 */
+	private void mergeFilesBySequence(QualifiedSequenceList sequenceNames, List<String> vcfFiles, PrintStream out) throws IOException {
+		VCFFileHeader outHeader = VCFFileHeader.makeDefaultEmptyHeader();
+		int [] samplesPerFile = new int[vcfFiles.size()];
+		Set<String> names = new HashSet<String>(sequenceNames.getNamesStringList());
 		for(int i=0;i<vcfFiles.size();i++) {
-			VCFFileReader reader = new VCFFileReader(vcfFiles.get(i));
-			reader.setLog(log);
-			readers.add(reader);
-			addFilesamples(reader,outHeader);
-			samplesPerFile[i] = reader.getHeader().getSamples().size();
-			Iterator<VCFRecord> it = reader.iterator();
+			String filename = vcfFiles.get(i);
+			try (VCFFileReader reader = new VCFFileReader(filename)) {
+				addFilesamples(reader,outHeader);
+				samplesPerFile[i] = reader.getHeader().getSamples().size();
+			}
+			TabixReader index = new TabixReader(filename);
+			for(String seqName:index.getChromosomes()) {
+				if(!names.contains(seqName)) log.warning("Sequence "+seqName+" of file "+filename+" is not in the sequences list. Variants in this sequence will not be merged");
+			}
+			index.close();
+		}
+		log.info("Merging "+sequenceNames.size()+" sequences using "+numThreads+" threads");
+		VCFFileWriter writer = new VCFFileWriter();
+		writer.printHeader(outHeader, out);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Results are retrieved in the order of the sequences. Pending tasks are limited to keep bounded the number of temporary files
+		LinkedList<Future<File>> pending = new LinkedList<>();
+		int n = 0;
+		try {
+			for(String seqName:sequenceNames.getNamesStringList()) {
+				pending.add(pool.submit(() -> mergeSequence(seqName, sequenceNames, vcfFiles, samplesPerFile, outHeader)));
+				if(pending.size()>=2*numThreads) {
+					copyAndDelete(pending.removeFirst().get(), out);
+					n++;
+					if (progressNotifier!=null && !progressNotifier.keepRunning(n)) return;
+				}
+			}
+			while(pending.size()>0) {
+				copyAndDelete(pending.removeFirst().get(), out);
+				n++;
+				if (progressNotifier!=null && !progressNotifier.keepRunning(n)) return;
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Merge of VCF files interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdownNow();
+			//Remove temporary files of tasks not processed
+			for(Future<File> f:pending) {
+				if(!f.isDone() || f.isCancelled()) continue;
+				try {
+					f.get().delete();
+				} catch (ExecutionException|InterruptedException e) {
+					//The task failed before creating a file
+				}
+			}
+			out.flush();
+		}
+	}
+	
+	private File mergeSequence(String seqName, QualifiedSequenceList sequenceNames, List<String> vcfFiles, int [] samplesPerFile, VCFFileHeader outHeader) throws IOException {
+		List<VCFFileReader> readers = new ArrayList<VCFFileReader>();
+		List<Iterator<VCFRecord>> iterators = new ArrayList<Iterator<VCFRecord>>();
+		File outFile = File.createTempFile("merge_"+seqName.replaceAll("[^A-Za-z0-9_.-]", "_")+"_", ".vcf");
+		//Files of tasks still running when the process is stopped are removed at exit
+		outFile.deleteOnExit();
+		try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outFile)))) {
+			for(String filename:vcfFiles) {
+				VCFFileReader reader = new VCFFileReader(filename);
+				reader.setLog(log);
+				readers.add(reader);
+				iterators.add(reader.query(seqName));
+			}
+			mergeRecords(sequenceNames, iterators, samplesPerFile, outHeader, out, null);
+		} catch (IOException|RuntimeException e) {
+			outFile.delete();
+			throw e;
+		} finally {
+			for(VCFFileReader reader:readers) reader.close();
+		}
+		log.info("Merged variants of sequence "+seqName);
+		return outFile;
+	}
+	
+	private void copyAndDelete(File file, PrintStream out) throws IOException {
+		Files.copy(file.toPath(), out);
+		file.delete();
+	}
+	
+	/**
+	 * Merges the records of the given iterators and prints the records having at least one decided genotype call
+	 * @param sequenceNames Sorted sequence names
+	 * @param iterators Iterators over the records to merge, sorted by sequence and position
+	 * @param samplesPerFile Number of samples of each iterator
+	 * @param outHeader Header of the merged records
+	 * @param out Output stream
+	 * @param notifier Object to report progress. It can be null
+	 * @return boolean true if the process finished, false if it was stopped by the progress notifier
+	 */
+	private boolean mergeRecords(QualifiedSequenceList sequenceNames, List<Iterator<VCFRecord>> iterators, int [] samplesPerFile, VCFFileHeader outHeader, PrintStream out, ProgressNotifier notifier) {
+		VCFFileWriter writer = new VCFFileWriter();
+		VCFRecord [] calls = new VCFRecord [iterators.size()];
+		for(int i=0;i<iterators.size();i++) {
+			Iterator<VCFRecord> it = iterators.get(i);
 			if(it.hasNext()) calls[i] = it.next();
 			else calls[i] = null;
-			iterators.add(it);
 		}
 		GenomicVariantStrictComparator comparator = new GenomicVariantStrictComparator(new GenomicRegionComparator(sequenceNames));
 		comparator.setLog(log);
-		writer.printHeader(outHeader, out);
 		int n=0;
 		while (true){
 			VCFRecord record = createNextRecord(iterators,calls,samplesPerFile,comparator,outHeader);
@@ -125,17 +291,12 @@ public class ConsistentVCFFilesMerge {
 				writer.printVCFRecord(record, out);
 			}
 			n++;
-			if (progressNotifier!=null && n%1000==0) {
+			if (notifier!=null && n%1000==0) {
 				int progress = n/1000;
-				if (!progressNotifier.keepRunning(progress)) {
-					for(VCFFileReader reader:readers) reader.close();
-					out.flush();
-					return;
-				}
+				if (!notifier.keepRunning(progress)) return false;
 			}
 		}
-		for(VCFFileReader reader:readers) reader.close();
-		
+		return true;
 	}
 	private void addFilesamples(VCFFileReader reader, VCFFileHeader outHeader) {
 		VCFFileHeader inHeader = reader.getHeader();
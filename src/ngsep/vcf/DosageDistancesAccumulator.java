@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ngsep.variants.CalledGenomicVariant;
+
+/**
+ * Accumulates pairwise absolute dosage differences between samples over blocks of variants.
+ * Only the upper triangle of the matrix is stored and updated. Each block is processed
+ * in square tiles of samples that are distributed over a fork/join pool. Because tiles are disjoint,
+ * each tile writes directly in its own cells and no synchronization is needed
+ */
+public class DosageDistancesAccumulator {
+	public static final int DEF_BLOCK_SIZE = 512;
+	public static final int DEF_TILE_SIZE = 128;
+
+	private int numSamples;
+	private int blockSize = DEF_BLOCK_SIZE;
+	private int tileSize = DEF_TILE_SIZE;
+	private int numThreads = 1;
+
+	//Sample-major dosages of the current block. Position s*blockSize+v has the dosage of sample s for variant v
+	private float [] block;
+	private int variantsInBlock = 0;
+
+	//Packed upper triangle (excluding diagonal) of sums and counts
+	private double [] sums;
+	private int [] counts;
+
+	private ForkJoinPool pool = null;
+
+	/**
+	 * Creates a new accumulator with default block and tile sizes
+	 * @param numSamples Number of samples. Dimension of the distance matrix
+	 * @param numThreads Number of threads to use
+	 */
+	public DosageDistancesAccumulator(int numSamples, int numThreads) {
+		this(numSamples, numThreads, DEF_BLOCK_SIZE, DEF_TILE_SIZE);
+	}
+	/**
+	 * Creates a new accumulator
+	 * @param numSamples Number of samples. Dimension of the distance matrix
+	 * @param numThreads Number of threads to use
+	 * @param blockSize Number of variants buffered before updating the distances
+	 * @param tileSize Number of samples per side of each tile of the matrix
+	 */
+	public DosageDistancesAccumulator(int numSamples, int numThreads, int blockSize, int tileSize) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		if(blockSize<1) throw new IllegalArgumentException("Block size must be positive. Value: "+blockSize);
+		if(tileSize<1) throw new IllegalArgumentException("Tile size must be positive. Value: "+tileSize);
+		this.numSamples = numSamples;
+		this.numThreads = numThreads;
+		this.blockSize = blockSize;
+		this.tileSize = tileSize;
+		long cells = (long)numSamples*(numSamples-1)/2;
+		if(cells>Integer.MAX_VALUE) throw new IllegalArgumentException("Too many samples to build a distance matrix: "+numSamples);
+		block = new float[numSamples*blockSize];
+		sums = new double[(int)cells];
+		counts = new int[(int)cells];
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Adds the dosages of the samples for a new variant. Missing dosages should be encoded as CalledGenomicVariant.GENOTYPE_UNDECIDED
+	 * @param dosages Dosages of the samples. The array is copied so it can be reused by the caller
+	 */
+	public void addVariant(float [] dosages) {
+		if(dosages.length!=numSamples) throw new IllegalArgumentException("Number of dosages: "+dosages.length+" does not match number of samples: "+numSamples);
+		for(int s=0;s<numSamples;s++) {
+			block[s*blockSize+variantsInBlock] = dosages[s];
+		}
+		variantsInBlock++;
+		if(variantsInBlock==blockSize) flush();
+	}
+
+	/**
+	 * Updates the distances with the variants currently stored in the block
+	 */
+	public void flush() {
+		if(variantsInBlock==0) return;
+		List<TileTask> tasks = new ArrayList<>();
+		for(int firstRow=0;firstRow<numSamples;firstRow+=tileSize) {
+			for(int firstCol=firstRow;firstCol<numSamples;firstCol+=tileSize) {
+				tasks.add(new TileTask(firstRow, firstCol, variantsInBlock));
+			}
+		}
+		if(numThreads==1) {
+			for(TileTask t:tasks) t.compute();
+		} else {
+			if(pool==null) pool = new ForkJoinPool(numThreads);
+			pool.invoke(new TilesListTask(tasks));
+		}
+		variantsInBlock = 0;
+	}
+
+	/**
+	 * Processes the pending variants, releases the thread pool and builds the full symmetric matrix
+	 * with the average absolute differences between samples
+	 * @return double [][] Distance matrix. Cells for pairs of samples without shared genotyped variants are zero
+	 */
+	public double [][] calculateDistances () {
+		flush();
+		if(pool!=null) {
+			pool.shutdown();
+			pool = null;
+		}
+		double [][] answer = new double[numSamples][numSamples];
+		for(int j=0;j<numSamples;j++) {
+			int offset = getRowOffset(j);
+			for(int k=j+1;k<numSamples;k++) {
+				int idx = offset+k;
+				if(counts[idx]>0) {
+					double d = sums[idx]/counts[idx];
+					answer[j][k] = d;
+					answer[k][j] = d;
+				}
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Calculates the offset of a row such that offset+k is the index of the cell (j,k) in the packed arrays
+	 * @param j Row of the matrix
+	 * @return int offset of the row
+	 */
+	private int getRowOffset(int j) {
+		return (int)((long)j*numSamples - (long)j*(j+1)/2 - j - 1);
+	}
+
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int firstRow;
+		private int firstCol;
+		private int n;
+
+		public TileTask(int firstRow, int firstCol, int n) {
+			this.firstRow = firstRow;
+			this.firstCol = firstCol;
+			this.n = n;
+		}
+
+		@Override
+		protected void compute() {
+			int lastRow = Math.min(firstRow+tileSize, numSamples);
+			int lastCol = Math.min(firstCol+tileSize, numSamples);
+			for(int j=firstRow;j<lastRow;j++) {
+				int offset = getRowOffset(j);
+				int rowJ = j*blockSize;
+				for(int k=Math.max(firstCol, j+1);k<lastCol;k++) {
+					int rowK = k*blockSize;
+					double sum = sums[offset+k];
+					int count = counts[offset+k];
+					for(int v=0;v<n;v++) {
+						float dj = block[rowJ+v];
+						float dk = block[rowK+v];
+						if(dj==CalledGenomicVariant.GENOTYPE_UNDECIDED || dk==CalledGenomicVariant.GENOTYPE_UNDECIDED) continue;
+						sum+=Math.abs(dj-dk);
+						count++;
+					}
+					sums[offset+k] = sum;
+					counts[offset+k] = count;
+				}
+			}
+		}
+	}
+
+	private class TilesListTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<TileTask> tasks;
+		public TilesListTask(List<TileTask> tasks) {
+			this.tasks = tasks;
+		}
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import ngsep.variants.CalledGenomicVariant;
+
+/**
+ * Temporary file storing a matrix of genotype calls with two bits per call.
+ * Variants are added one at a time and are stored in tiles of consecutive variants.
+ * Within each tile the codes are stored by sample, so that the calls of one sample
+ * can be retrieved by reading one segment per tile. This allows to transpose large matrices
+ * keeping in memory only one tile while the matrix is built
+ */
+public class GenotypeCodesMatrixFile implements Closeable {
+	public static final byte CODE_UNDECIDED = 0;
+	public static final byte CODE_HOMOZYGOUS_REFERENCE = 1;
+	public static final byte CODE_HETEROZYGOUS = 2;
+	public static final byte CODE_HOMOZYGOUS_ALTERNATIVE = 3;
+
+	/**
+	 * Maximum number of bytes of the tile kept in memory while the matrix is built
+	 */
+	public static final int MAX_TILE_BYTES = 16*1024*1024;
+
+	private File file;
+	private RandomAccessFile raFile;
+	private int numSamples;
+	private int variantsPerTile;
+	private int bytesPerSampleTile;
+	private byte [] tile;
+	private int variantsInTile = 0;
+	private int numTiles = 0;
+	private int numVariants = 0;
+	private boolean writing = true;
+
+	/**
+	 * Creates a new matrix in a temporary file
+	 * @param directory Directory to create the temporary file. If null, the default temporary directory is used
+	 * @param numSamples Number of samples
+	 * @throws IOException If the temporary file can not be created
+	 */
+	public GenotypeCodesMatrixFile(File directory, int numSamples) throws IOException {
+		this.numSamples = numSamples;
+		int bytes = Math.max(1, MAX_TILE_BYTES/Math.max(1, numSamples));
+		bytesPerSampleTile = Math.min(bytes, 1024*1024);
+		variantsPerTile = 4*bytesPerSampleTile;
+		tile = new byte[numSamples*bytesPerSampleTile];
+		file = File.createTempFile("ngsepGenotypes", ".bin", directory);
+		file.deleteOnExit();
+		raFile = new RandomAccessFile(file, "rw");
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getNumVariants() {
+		return numVariants;
+	}
+
+	/**
+	 * @return int Number of bytes needed to store the codes of one sample for all variants
+	 */
+	public int getBytesPerSample() {
+		return numTiles*bytesPerSampleTile;
+	}
+
+	/**
+	 * Calculates the code of a genotype call
+	 * @param call Genotype call
+	 * @return byte Code for the call
+	 */
+	public static byte encode (CalledGenomicVariant call) {
+		if(call.isUndecided()) return CODE_UNDECIDED;
+		if(call.isHeterozygous()) return CODE_HETEROZYGOUS;
+		if(call.isHomozygousReference()) return CODE_HOMOZYGOUS_REFERENCE;
+		return CODE_HOMOZYGOUS_ALTERNATIVE;
+	}
+
+	/**
+	 * Adds the calls of a new variant
+	 * @param calls Genotype calls for the variant, one per sample
+	 * @throws IOException If the tile can not be written
+	 */
+	public void addVariant (List<CalledGenomicVariant> calls) throws IOException {
+		if(!writing) throw new IllegalStateException("Variants can not be added after the matrix is finished");
+		if(calls.size()!=numSamples) throw new IOException("Number of calls "+calls.size()+" does not match the number of samples: "+numSamples);
+		int byteIdx = variantsInTile>>2;
+		int shift = 2*(variantsInTile&3);
+		for(int i=0;i<numSamples;i++) {
+			int code = encode(calls.get(i));
+			tile[i*bytesPerSampleTile+byteIdx] |= (code<<shift);
+		}
+		variantsInTile++;
+		numVariants++;
+		if(variantsInTile==variantsPerTile) writeTile();
+	}
+
+	private void writeTile() throws IOException {
+		raFile.write(tile);
+		numTiles++;
+		variantsInTile = 0;
+		Arrays.fill(tile, (byte)0);
+	}
+
+	/**
+	 * Writes the last tile and prepares the matrix to be read
+	 * @throws IOException If the last tile can not be written
+	 */
+	public void finish() throws IOException {
+		if(!writing) return;
+		if(variantsInTile>0) writeTile();
+		tile = null;
+		writing = false;
+	}
+
+	/**
+	 * Calculates the number of samples that can be loaded at once within the given number of bytes
+	 * @param maxBytes Maximum memory to use
+	 * @return int Number of samples. At least one
+	 */
+	public int getSamplesPerBlock(long maxBytes) {
+		long bytesSample = Math.max(1, getBytesPerSample());
+		return (int)Math.max(1, Math.min(numSamples, maxBytes/bytesSample));
+	}
+
+	/**
+	 * Loads the codes of consecutive samples. Codes of each sample are stored in the given buffers
+	 * in variants order and can be retrieved with the method getCode
+	 * @param firstSample Index of the first sample to load
+	 * @param buffers Buffers to store the codes. One buffer is filled per sample. Each buffer should have
+	 * at least getBytesPerSample() bytes
+	 * @param numLoad Number of samples to load
+	 * @throws IOException If the file can not be read
+	 */
+	public void loadSamples(int firstSample, byte [][] buffers, int numLoad) throws IOException {
+		finish();
+		byte [] segment = new byte[numLoad*bytesPerSampleTile];
+		long tileBytes = (long)numSamples*bytesPerSampleTile;
+		for(int t=0;t<numTiles;t++) {
+			raFile.seek(t*tileBytes+(long)firstSample*bytesPerSampleTile);
+			raFile.readFully(segment);
+			for(int i=0;i<numLoad;i++) {
+				System.arraycopy(segment, i*bytesPerSampleTile, buffers[i], t*bytesPerSampleTile, bytesPerSampleTile);
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the code of a variant from the codes of one sample
+	 * @param sampleCodes Codes loaded with loadSamples
+	 * @param variantIdx Index of the variant
+	 * @return byte Code of the call
+	 */
+	public static byte getCode(byte [] sampleCodes, int variantIdx) {
+		return (byte)((sampleCodes[variantIdx>>2]>>(2*(variantIdx&3)))&3);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raFile.close();
+		file.delete();
+	}
+}
@@ -24,18 +24,20 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
-import ngsep.genome.GenomicRegionSpanComparator;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
-import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 import ngsep.sequences.io.SimpleSequenceListLoader;
 import ngsep.variants.GenomicVariant;
@@ -44,6 +46,9 @@ import ngsep.variants.SNV;
 
 public class IndividualSampleVariantsMerge {
 	
+	//Number of processed variants between calls to the progress notifier
+	public static final int PROGRESS_STEP = 100000;
+	
 	private ProgressNotifier progressNotifier=null;
 	private Logger log = Logger.getLogger(IndividualSampleVariantsMerge.class.getName());
 	
@@ -62,8 +67,7 @@ public class IndividualSampleVariantsMerge {
 		SimpleSequenceListLoader seqNameHandler = new SimpleSequenceListLoader();
 		QualifiedSequenceList sequenceNames = seqNameHandler.loadSequences(sequenceNamesFile);
 		
-		GenomicRegionSortedCollection<GenomicVariant> variants = merger.mergeVariants(files,sequenceNames);
-		merger.printVariants(outFile, variants);
+		merger.mergeVariants(files, sequenceNames, outFile);
 	}
 
 	public ProgressNotifier getProgressNotifier() {
@@ -81,106 +85,218 @@ public class IndividualSampleVariantsMerge {
 	public void setLog(Logger log) {
 		this.log = log;
 	}
+	
+	/**
+	 * Merges the variants of the given files and writes the merged variants to the given output file
+	 * @param files VCF files to merge. Each file must be sorted following the order of the given sequence names
+	 * @param sequenceNames Sorted sequence names
+	 * @param outFile Output VCF file
+	 * @throws IOException If the files can not be read or written
+	 */
+	public void mergeVariants(List<String> files, QualifiedSequenceList sequenceNames, String outFile) throws IOException {
+		VCFFileWriter writer = new VCFFileWriter();
+		try (PrintStream out = new PrintStream(outFile)) {
+			VCFFileHeader header = VCFFileHeader.makeDefaultEmptyHeader();
+			writer.printHeader(header,out);
+			mergeVariants(files, sequenceNames, (variant) -> {
+				VCFRecord record = new VCFRecord(variant, VCFRecord.DEF_FORMAT_ARRAY_NONE, new ArrayList<>(), header);
+				writer.printVCFRecord(record, out);
+			});
+		}
+	}
 
 	public GenomicRegionSortedCollection<GenomicVariant> mergeVariants(List<String> files, QualifiedSequenceList sequenceNames) throws IOException {
-		log.info("Loading and merging variants");
-		GenomicRegionComparator comparator = new GenomicRegionComparator(sequenceNames);
 		GenomicRegionSortedCollection<GenomicVariant> variants = new GenomicRegionSortedCollection<GenomicVariant>(sequenceNames);
-		List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample = new ArrayList<GenomicRegionSortedCollection<GenomicVariant>>();
-		int n=0;
-		for(String f:files) {
-			log.info("Merging variants from file: "+f); 
-			List <GenomicVariant> sampleVariants = VCFFileReader.loadVariants(f,true);
-			log.info("Loaded "+sampleVariants.size()+" variants");
-			consolidatedPerSample.add(mergeVariants (variants,sampleVariants,comparator));
-			log.info("Merged variants from file: "+f+". Total variants: "+variants.size());
-			n++;
-			if (progressNotifier!=null) {
-				if (!progressNotifier.keepRunning(n)) return new GenomicRegionSortedCollection<GenomicVariant>();
-			}
-		}
-		log.info("Merging variants in the same location");
-		variants = mergeOverlappingVariants(variants,consolidatedPerSample);
-		log.info("Variants after last merging: "+variants.size());
+		if(!mergeVariants(files, sequenceNames, (variant)->variants.add(variant))) return new GenomicRegionSortedCollection<GenomicVariant>();
 		return variants;
 	}
 	
-	private GenomicRegionSortedCollection<GenomicVariant> mergeVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List <GenomicVariant> sampleVariants, GenomicRegionComparator comparator ) throws IOException {
-		List<GenomicVariant> answerList = new ArrayList<GenomicVariant>();
-		List<GenomicVariant> variantsList = variants.asList();
-		int i=0;
-		int j=0;
-		while(j<sampleVariants.size()) {
-			GenomicVariant c2 = sampleVariants.get(j);
-			if(i<variantsList.size()) {
-				GenomicVariant c1 = variantsList.get(i);
-				int cmp = comparator.compare(c1, c2);
-				if(cmp<0) {
-					i++;
-				} else if (cmp==0) {
-					boolean add = true;
-					for(int k=i;k<variantsList.size();k++) {
-						GenomicVariant c3 = variantsList.get(k);
-						int cmp2 = comparator.compare(c3, c2);
-						if(cmp2==0 && c3.isCompatible(c2)) {
-							add = false;
-							if(c3.getVariantQS()<c2.getVariantQS()) c3.setVariantQS(c2.getVariantQS());
-							answerList.add(c3);
-							break;
-						} else if (cmp2!=0) {
-							break;
-						}
-					}
-					if(add) {
-						variants.add(c2);
-						answerList.add(c2);
+	/**
+	 * Merges the variants of the given files in a single pass keeping all files open. Variants are retrieved in
+	 * genomic order from the files and consolidated in groups of overlapping variants. Only the current group is kept
+	 * in memory
+	 * @param files VCF files to merge. Each file must be sorted following the order of the given sequence names
+	 * @param sequenceNames Sorted sequence names
+	 * @param consumer Receives the merged variants in genomic order
+	 * @return boolean true if the process finished, false if it was stopped by the progress notifier
+	 * @throws IOException If the files can not be read
+	 */
+	private boolean mergeVariants(List<String> files, QualifiedSequenceList sequenceNames, Consumer<GenomicVariant> consumer) throws IOException {
+		log.info("Merging variants from "+files.size()+" files");
+		//Sequences not present in the given list are added at the end as they are found
+		QualifiedSequenceList sequences = new QualifiedSequenceList();
+		sequences.addAll(sequenceNames);
+		List<SampleVariantsReader> readers = new ArrayList<SampleVariantsReader>(files.size());
+		try {
+			PriorityQueue<SampleVariantsReader> queue = new PriorityQueue<SampleVariantsReader>(Math.max(1, files.size()));
+			for(int i=0;i<files.size();i++) {
+				SampleVariantsReader reader = new SampleVariantsReader(files.get(i), i, sequences);
+				readers.add(reader);
+				if(reader.next()) queue.add(reader);
+			}
+			log.info("Opened "+readers.size()+" files");
+			OverlappingVariantsCluster cluster = new OverlappingVariantsCluster();
+			//Distinct variants starting at the current position
+			List<GenomicVariant> positionVariants = new ArrayList<GenomicVariant>();
+			int n = 0;
+			while(queue.size()>0) {
+				SampleVariantsReader reader = queue.poll();
+				GenomicVariant variant = reader.getVariant();
+				if(cluster.size()>0 && (cluster.getSequenceIndex()!=reader.getSequenceIndex() || cluster.getLast()<variant.getFirst())) {
+					cluster.flush(consumer);
+				}
+				if(positionVariants.size()>0) {
+					GenomicVariant lastVar = positionVariants.get(0);
+					if(lastVar.getFirst()!=variant.getFirst() || !lastVar.getSequenceName().equals(variant.getSequenceName())) positionVariants.clear();
+				}
+				GenomicVariant consolidated = null;
+				for(GenomicVariant c3:positionVariants) {
+					if(c3.getLast()==variant.getLast() && c3.isCompatible(variant)) {
+						consolidated = c3;
+						if(c3.getVariantQS()<variant.getVariantQS()) c3.setVariantQS(variant.getVariantQS());
+						break;
 					}
-					i++;
-					j++;
-				} else {
-					variants.add(c2);
-					answerList.add(c2);
-					j++;
 				}
-			} else {
-				variants.add(c2);
-				answerList.add(c2);
-				j++;
+				if(consolidated==null) {
+					consolidated = variant;
+					positionVariants.add(variant);
+					cluster.addVariant(reader.getSequenceIndex(), variant);
+				}
+				cluster.addSampleVariant(reader.getSampleIndex(), consolidated);
+				if(reader.next()) queue.add(reader);
+				n++;
+				if(n%PROGRESS_STEP == 0) {
+					log.info("Processed "+n+" variants. Last location: "+variant.getSequenceName()+":"+variant.getFirst());
+					if (progressNotifier!=null && !progressNotifier.keepRunning(n/PROGRESS_STEP)) return false;
+				}
 			}
+			if(cluster.size()>0) cluster.flush(consumer);
+			log.info("Processed "+n+" variants");
+		} finally {
+			for(SampleVariantsReader reader:readers) reader.close();
 		}
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(variants.getSequenceNames());
-		answer.addAll(answerList);
-		return answer;
+		return true;
 	}
-
-	private GenomicRegionSortedCollection<GenomicVariant> mergeOverlappingVariants(GenomicRegionSortedCollection<GenomicVariant> variants,List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
-		QualifiedSequenceList names = variants.getSequenceNames();
-		GenomicRegionSortedCollection<GenomicVariant> answer = new GenomicRegionSortedCollection<GenomicVariant>(names);
-		for(QualifiedSequence seq:names) {
-			GenomicRegionSortedCollection<GenomicVariant> seqVariants = variants.getSequenceRegions(seq.getName());
-			List<GenomicVariant> overlappingVariants = new ArrayList<GenomicVariant>();
-			int first = -1;
-			int last = -1;
-			for(GenomicVariant variant:seqVariants) {
-				//System.out.println("Next Variant "+variant.getSequenceName()+":"+variant.getFirst()+" "+variant.getReference()+" "+variant.getAlleles()[1]);
-				if(overlappingVariants.size() > 0 && !GenomicRegionSpanComparator.getInstance().span(variant, first, last)) {
-					answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
-					overlappingVariants.clear();
+	
+	/**
+	 * Reader of the variants of one sample that checks that variants are sorted
+	 */
+	private class SampleVariantsReader implements Comparable<SampleVariantsReader> {
+		private String filename;
+		private int sampleIndex;
+		private QualifiedSequenceList sequences;
+		private VCFFileReader in;
+		private Iterator<VCFRecord> it;
+		private GenomicVariant variant;
+		private int sequenceIndex = -1;
+		
+		public SampleVariantsReader(String filename, int sampleIndex, QualifiedSequenceList sequences) throws IOException {
+			this.filename = filename;
+			this.sampleIndex = sampleIndex;
+			this.sequences = sequences;
+			in = new VCFFileReader(filename);
+			in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			it = in.iterator();
+		}
+		/**
+		 * Loads the next variant of the file
+		 * @return boolean true if a new variant was loaded, false if the file does not have more variants
+		 * @throws IOException If the variants of the file are not sorted
+		 */
+		public boolean next() throws IOException {
+			while(it.hasNext()) {
+				GenomicVariant nextVariant = it.next().getVariant();
+				//Reference sites of gVCF files are not included
+				if(nextVariant.getAlleles().length<2) continue;
+				int nextSeqIdx = sequences.indexOf(nextVariant.getSequenceName());
+				if(nextSeqIdx<0) nextSeqIdx = sequences.indexOf(sequences.addOrLookupName(nextVariant.getSequenceName()));
+				if(variant!=null && (nextSeqIdx<sequenceIndex || (nextSeqIdx==sequenceIndex && nextVariant.getFirst()<variant.getFirst()))) {
+					throw new IOException("Variants in file "+filename+" are not sorted. Variant at "+nextVariant.getSequenceName()+":"+nextVariant.getFirst()+" found after variant at "+variant.getSequenceName()+":"+variant.getFirst());
 				}
-				overlappingVariants.add(variant);
-				if(overlappingVariants.size()==1) {
-					first = variant.getFirst();
-					last = variant.getLast();
-				} else if(last<variant.getLast()) last =variant.getLast();
+				variant = nextVariant;
+				sequenceIndex = nextSeqIdx;
+				return true;
 			}
-			if(overlappingVariants.size() > 0) {
-				answer.addAll(mergeOverlappingVariants(overlappingVariants,first,last,consolidatedPerSample));
+			variant = null;
+			return false;
+		}
+		public GenomicVariant getVariant() {
+			return variant;
+		}
+		public int getSequenceIndex() {
+			return sequenceIndex;
+		}
+		public int getSampleIndex() {
+			return sampleIndex;
+		}
+		public void close() throws IOException {
+			in.close();
+		}
+		@Override
+		public int compareTo(SampleVariantsReader o) {
+			if(sequenceIndex!=o.sequenceIndex) return sequenceIndex - o.sequenceIndex;
+			int cmp = GenomicRegionPositionComparator.getInstance().compare(variant, o.variant);
+			if(cmp!=0) return cmp;
+			return sampleIndex - o.sampleIndex;
+		}
+	}
+	
+	/**
+	 * Group of overlapping variants in the same sequence. Keeps the distinct variants and the variants of each sample
+	 */
+	private class OverlappingVariantsCluster {
+		private int sequenceIndex = -1;
+		private int first;
+		private int last;
+		private List<GenomicVariant> variants = new ArrayList<GenomicVariant>();
+		private Map<Integer,List<GenomicVariant>> variantsPerSample = new TreeMap<Integer, List<GenomicVariant>>();
+		
+		public int size() {
+			return variants.size();
+		}
+		public int getSequenceIndex() {
+			return sequenceIndex;
+		}
+		public int getLast() {
+			return last;
+		}
+		public void addVariant(int sequenceIndex, GenomicVariant variant) {
+			if(variants.size()==0) {
+				this.sequenceIndex = sequenceIndex;
+				first = variant.getFirst();
+				last = variant.getLast();
+			} else if(last<variant.getLast()) last = variant.getLast();
+			variants.add(variant);
+		}
+		public void addSampleVariant(int sampleIndex, GenomicVariant variant) {
+			List<GenomicVariant> sampleVariants = variantsPerSample.get(sampleIndex);
+			if(sampleVariants==null) {
+				sampleVariants = new ArrayList<GenomicVariant>();
+				variantsPerSample.put(sampleIndex, sampleVariants);
 			}
+			sampleVariants.add(variant);
+		}
+		/**
+		 * Merges the variants in this cluster, sends the merged variants to the given consumer and clears the cluster
+		 * @param consumer Object receiving the merged variants
+		 */
+		public void flush(Consumer<GenomicVariant> consumer) {
+			List<GenomicVariant> merged = variants;
+			if(variants.size()>1) {
+				//Only the start is guaranteed to be sorted within each file
+				Collections.sort(variants,GenomicRegionPositionComparator.getInstance());
+				List<List<GenomicVariant>> sortedVariantsPerSample = new ArrayList<List<GenomicVariant>>(variantsPerSample.values());
+				for(List<GenomicVariant> sampleVariants:sortedVariantsPerSample) Collections.sort(sampleVariants,GenomicRegionPositionComparator.getInstance());
+				merged = mergeOverlappingVariants(variants, first, last, sortedVariantsPerSample);
+			}
+			for(GenomicVariant variant:merged) consumer.accept(variant);
+			variants = new ArrayList<GenomicVariant>();
+			variantsPerSample.clear();
 		}
-		return answer;
 	}
+	
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample ) {
+	private List<GenomicVariant> mergeOverlappingVariants(List<GenomicVariant> overlappingVariants, int first, int last, List<List<GenomicVariant>> consolidatedPerSample ) {
 		if(overlappingVariants.size()<=1) return overlappingVariants;
 		log.info("Merging "+overlappingVariants.size()+" overlapping variants at "+overlappingVariants.get(0).getSequenceName()+": "+first+"-"+last);
 		List<GenomicVariant> answer = new ArrayList<GenomicVariant>();
@@ -254,7 +370,8 @@ public class IndividualSampleVariantsMerge {
 	}
 	
 	//PRE: list is not empty and only have overlapping variants in the same sequence; first is the start of the first variant
-	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, List<GenomicRegionSortedCollection<GenomicVariant>> consolidatedPerSample) {
+	//consolidatedPerSample has for each sample the sorted list of its variants within the region
+	private GenomicVariant buildMultiallelicIndel(List<GenomicVariant> overlappingVariants, int first, int last, List<List<GenomicVariant>> consolidatedPerSample) {
 		log.info("Creating multiallelic indel");
 		String reference = buildReferenceFromVariants (overlappingVariants,first);
 		String seqName = overlappingVariants.get(0).getSequenceName();
@@ -266,15 +383,14 @@ public class IndividualSampleVariantsMerge {
 			type = GenomicVariantImpl.mergeType(type, var.getType());
 		}
 		//Create one mutated allele per sample assuming that all alternative alleles appear at the same haplotype
-		for(GenomicRegionSortedCollection<GenomicVariant> varsSample:consolidatedPerSample) {
-			GenomicRegionSortedCollection<GenomicVariant> sampleVarsRegion = varsSample.findSpanningRegions(seqName, first, last);
+		for(List<GenomicVariant> sampleVarsRegion:consolidatedPerSample) {
 			int nVarsReg = sampleVarsRegion.size(); 
 			//log.info("Creating allele from "+sampleVarsRegion.size()+" sample variants");
 			if(nVarsReg>1 ) {
 				String allele = makeAlternativeAllele(reference, first, sampleVarsRegion);
 				if(allele!=null) sortedAlleles.add(allele);
 			} else if (nVarsReg==1) {
-				GenomicVariant varSample = sampleVarsRegion.asList().get(0);
+				GenomicVariant varSample = sampleVarsRegion.get(0);
 				String [] varAlleles = varSample.getAlleles();
 				for(int i=1;i<varAlleles.length;i++) {
 					String allele = makeAlternativeAllele(reference, first, varAlleles[i], varSample.getFirst(),varSample.getLast());
@@ -310,7 +426,7 @@ public class IndividualSampleVariantsMerge {
 		return answer.toString();
 	}
 
-	private String makeAlternativeAllele(String reference, int first, GenomicRegionSortedCollection<GenomicVariant> variants) {
+	private String makeAlternativeAllele(String reference, int first, List<GenomicVariant> variants) {
 		if(variants==null || variants.size()==0) return null;
 		StringBuilder answer = new StringBuilder();
 		int next = first;
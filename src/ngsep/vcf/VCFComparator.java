@@ -27,6 +27,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.ReferenceGenome;
@@ -45,12 +49,36 @@ import ngsep.variants.GenomicVariant;
 public class VCFComparator {
 	private Logger log = Logger.getLogger(VCFComparator.class.getName());
 	private ProgressNotifier progressNotifier=null;
+	
+	//Codes of the genotype calls
+	private static final byte CODE_UNDECIDED = 0;
+	private static final byte CODE_HETEROZYGOUS = 1;
+	private static final byte CODE_HOMOZYGOUS_REFERENCE = 2;
+	private static final byte CODE_HOMOZYGOUS_ALTERNATIVE = 3;
+	//Differences indexed by (code1<<2) | code2
+	private static final int [] HETEROZYGOUS_DIFFS = new int [16];
+	private static final int [] HOMOZYGOUS_DIFFS = new int [16];
+	static {
+		for(int c1 = CODE_HETEROZYGOUS;c1<=CODE_HOMOZYGOUS_ALTERNATIVE;c1++) {
+			for(int c2 = CODE_HETEROZYGOUS;c2<=CODE_HOMOZYGOUS_ALTERNATIVE;c2++) {
+				if(c1==CODE_HETEROZYGOUS || c2==CODE_HETEROZYGOUS) {
+					if(c1!=c2) HETEROZYGOUS_DIFFS[(c1<<2) | c2] = 1;
+				} else if ((c1==CODE_HOMOZYGOUS_REFERENCE) != (c2==CODE_HOMOZYGOUS_REFERENCE)) {
+					HOMOZYGOUS_DIFFS[(c1<<2) | c2] = 1;
+				}
+			}
+		}
+	}
+	//Number of matching records compared by each batch
+	private static final int BATCH_SIZE = 1000;
+	
 	// Sequence names
 	private ReferenceGenome genome;
 	// Genotyped filter
 	private double minPCTGenotyped = 50;
 	// Differences filter
 	private double maxPCTDiffs = 5;
+	private int numThreads = 1;
 	
 	private List<String> samples1;
 	private List<String> samples2;
@@ -62,6 +90,13 @@ public class VCFComparator {
 	private int [] [] homozygousDiffs;
 	private int [] [] heterozygousDiffs;
 	
+	//Genotype codes of the matching records waiting to be compared
+	private List<byte []> batchCodes1;
+	private List<byte []> batchCodes2;
+	//Tasks comparing the previous batch
+	private List<Future<?>> batchTasks = new ArrayList<>();
+	private ExecutorService pool;
+	
 
 	public static void main(String[] args) throws Exception {
 		VCFComparator instance = new VCFComparator();
@@ -123,6 +158,19 @@ public class VCFComparator {
 	
 
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+
 	public ReferenceGenome getGenome() {
 		return genome;
 	}
@@ -133,9 +181,16 @@ public class VCFComparator {
 	}
 
 
+	/**
+	 * Compares the genotype calls of two VCF files walking both files in order. Matching records are
+	 * compared in batches that can be processed in parallel while the next batch is read
+	 * @param vcf1 First VCF file
+	 * @param vcf2 Second VCF file
+	 * @throws IOException If any of the files can not be read
+	 */
 	public void calculateDifferences(String vcf1, String vcf2) throws IOException {
 		AlleleCompatibilityGenomicVariantComparator comparator = new AlleleCompatibilityGenomicVariantComparator(genome);
-		boolean debug = false;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
 		try (VCFFileReader in1 = new VCFFileReader(vcf1);
 			 VCFFileReader in2 = new VCFFileReader(vcf2);){ 
 			if(log!=null) {
@@ -156,10 +211,8 @@ public class VCFComparator {
 			// Iterator VCF files
 			Iterator<VCFRecord> it1 = in1.iterator();
 			Iterator<VCFRecord> it2 = in2.iterator();
-			VCFRecord r1 = null;
-			VCFRecord r2 = null;
-			if(it1.hasNext()) r1 = it1.next();
-			if(it2.hasNext()) r2 = it2.next();
+			VCFRecord r1 = it1.hasNext()?it1.next():null;
+			VCFRecord r2 = it2.hasNext()?it2.next():null;
 			int n=0;
 			while (r1!=null && r2!=null) {
 				GenomicVariant g1 = r1.getVariant();
@@ -168,43 +221,35 @@ public class VCFComparator {
 				if(cmp < 0) {
 					processSingleRecord(r1,1);
 					n++;
-					if(it1.hasNext()) r1 = it1.next();
-					else {
-						processSingleRecord(r2,2);
-						break;
-					}
+					r1 = it1.hasNext()?it1.next():null;
 				} else if (cmp>0) {
 					processSingleRecord(r2,2);
-					if(debug) throw new RuntimeException("Variant at "+r2.getSequenceName()+":"+r2.getFirst()+"-"+r2.getLast()+" not found in first file. Next var f1 at "+r1.getSequenceName()+":"+r1.getFirst()+"-"+r1.getLast());
-					if(it2.hasNext()) r2 = it2.next();
-					else {
-						processSingleRecord(r1,1);
-						break;
-					}
+					r2 = it2.hasNext()?it2.next():null;
 				} else {
 					n++;
-					processSingleRecord(r1,1);
-					processSingleRecord(r2,2);
-					compareRecords(r1,r2);
-					if(it1.hasNext()) r1 = it1.next();
-					else break;
-					if(it2.hasNext()) r2 = it2.next();
-					else break;
+					compareRecords(processSingleRecord(r1,1),processSingleRecord(r2,2));
+					r1 = it1.hasNext()?it1.next():null;
+					r2 = it2.hasNext()?it2.next():null;
 				}
 				if (progressNotifier!=null && n%1000==0 && !progressNotifier.keepRunning(n/1000) ) return;
 			}
-			while(it1.hasNext()) {
-				r1 = it1.next();
+			while(r1!=null) {
 				processSingleRecord(r1,1);
 				n++;
 				if (progressNotifier!=null && n%1000==0 && !progressNotifier.keepRunning(n/1000) ) return;
+				r1 = it1.hasNext()?it1.next():null;
 			}
-			while(it2.hasNext()) {
-				r2 = it2.next();
+			while(r2!=null) {
 				processSingleRecord(r2,2);
 				n++;
 				if (progressNotifier!=null && n%1000==0 && !progressNotifier.keepRunning(n/1000) ) return;
+				r2 = it2.hasNext()?it2.next():null;
 			}
+			compareBatch();
+			waitBatchTasks();
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+			pool = null;
 		}
 		
 	}
@@ -224,40 +269,107 @@ public class VCFComparator {
 				homozygousDiffs[i][j] = 0;
 			}
 		}
-		
+		batchCodes1 = new ArrayList<>(BATCH_SIZE);
+		batchCodes2 = new ArrayList<>(BATCH_SIZE);
+		batchTasks.clear();
 	}
 
-	private void processSingleRecord(VCFRecord r, int fileId) {
+	/**
+	 * Updates the genotyped counts of the samples of the given file with the calls of the given record
+	 * @param r Record to process
+	 * @param fileId Id of the file (1 or 2)
+	 * @return byte [] Codes of the genotype calls of the record
+	 */
+	private byte [] processSingleRecord(VCFRecord r, int fileId) {
 		List<CalledGenomicVariant> calls = r.getCalls();
+		byte [] codes = new byte [calls.size()];
 		for(int i=0;i<calls.size();i++) {
 			CalledGenomicVariant call = calls.get(i);
-			if(!call.isUndecided()) {
-				if(fileId == 1) genotypedF1[i]++;
-				else genotypedF2[i]++;
+			if(call.isUndecided()) {
+				codes[i] = CODE_UNDECIDED;
+				continue;
 			}
+			if(fileId == 1) genotypedF1[i]++;
+			else genotypedF2[i]++;
+			if(call.isHeterozygous()) codes[i] = CODE_HETEROZYGOUS;
+			else if (call.isHomozygousReference()) codes[i] = CODE_HOMOZYGOUS_REFERENCE;
+			else codes[i] = CODE_HOMOZYGOUS_ALTERNATIVE;
 		}
-		
+		return codes;
 	}
 
-	private void compareRecords(VCFRecord r1, VCFRecord r2) {
-		List<CalledGenomicVariant> calls1 = r1.getCalls();
-		List<CalledGenomicVariant> calls2 = r2.getCalls();
-		for(int i=0;i<calls1.size();i++) {
-			CalledGenomicVariant call1 = calls1.get(i);
-			if(call1.isUndecided()) continue;
-			for(int j=0;j<calls2.size();j++) {
-				CalledGenomicVariant call2 = calls2.get(j);
-				if(call2.isUndecided()) continue;
-				genotypedBothFiles[i][j]++;
-				if(call1.isHeterozygous() || call2.isHeterozygous()) {
-					if(call1.isHeterozygous()!=call2.isHeterozygous()) {
-						heterozygousDiffs[i][j]++;
-					}
-				} else if (call1.isHomozygousReference()!=call2.isHomozygousReference()) {
-					homozygousDiffs[i][j]++;
+	private void compareRecords(byte [] codes1, byte [] codes2) throws IOException {
+		batchCodes1.add(codes1);
+		batchCodes2.add(codes2);
+		if(batchCodes1.size()==BATCH_SIZE) compareBatch();
+	}
+	
+	/**
+	 * Compares the current batch of matching records. Comparison of the previous batch must finish first
+	 * because tasks of different batches update the same counts. If more than one thread is available,
+	 * the samples of the first file are distributed between tasks and this method returns without waiting
+	 * @throws IOException If the comparison of the previous batch fails
+	 */
+	private void compareBatch() throws IOException {
+		waitBatchTasks();
+		if(batchCodes1.size()==0) return;
+		List<byte []> codes1 = batchCodes1;
+		List<byte []> codes2 = batchCodes2;
+		int nSamples1 = samples1.size();
+		if(pool==null || nSamples1<2) {
+			compareBatch(codes1, codes2, 0, nSamples1);
+		} else {
+			int chunkSize = (nSamples1+numThreads-1)/numThreads;
+			for(int first=0;first<nSamples1;first+=chunkSize) {
+				int start = first;
+				int end = Math.min(nSamples1, first+chunkSize);
+				batchTasks.add(pool.submit(() -> compareBatch(codes1, codes2, start, end)));
+			}
+		}
+		batchCodes1 = new ArrayList<>(BATCH_SIZE);
+		batchCodes2 = new ArrayList<>(BATCH_SIZE);
+	}
+	
+	private void waitBatchTasks() throws IOException {
+		try {
+			for(Future<?> task:batchTasks) task.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Comparison of genotype calls interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			batchTasks.clear();
+		}
+	}
+
+	/**
+	 * Compares the calls of the given samples of the first file against all samples of the second file
+	 * @param codes1 Codes of the calls of the first file for each matching record
+	 * @param codes2 Codes of the calls of the second file for each matching record
+	 * @param first First sample of the first file to compare
+	 * @param last Limit of the samples of the first file to compare (exclusive)
+	 */
+	private void compareBatch(List<byte []> codes1, List<byte []> codes2, int first, int last) {
+		for(int i=first;i<last;i++) {
+			int [] genotypedBothRow = genotypedBothFiles[i];
+			int [] heterozygousDiffsRow = heterozygousDiffs[i];
+			int [] homozygousDiffsRow = homozygousDiffs[i];
+			for(int k=0;k<codes1.size();k++) {
+				int code1 = codes1.get(k)[i];
+				if(code1==CODE_UNDECIDED) continue;
+				byte [] recordCodes2 = codes2.get(k);
+				for(int j=0;j<recordCodes2.length;j++) {
+					int code2 = recordCodes2[j];
+					if(code2==CODE_UNDECIDED) continue;
+					int idx = (code1<<2) | code2;
+					genotypedBothRow[j]++;
+					heterozygousDiffsRow[j]+=HETEROZYGOUS_DIFFS[idx];
+					homozygousDiffsRow[j]+=HOMOZYGOUS_DIFFS[idx];
 				}
 			}
-		}	
+		}
 	}
 	
 	public void printReport(PrintStream out) {
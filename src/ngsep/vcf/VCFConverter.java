@@ -19,9 +19,14 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -32,8 +37,6 @@ import java.util.logging.Logger;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
 import ngsep.sequences.DNAMaskedSequence;
-import ngsep.sequences.QualifiedSequence;
-import ngsep.sequences.io.FastaSequencesHandler;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.SNV;
@@ -43,6 +46,10 @@ import ngsep.variants.io.SimpleSamplesFileHandler;
 public class VCFConverter {
 	
 	public static final String COMMAND_NAME = "ConvertVCF";
+	/**
+	 * Maximum memory used to load genotype codes of blocks of samples from the temporary matrix
+	 */
+	public static final long MAX_BYTES_SAMPLES_BLOCK = 64*1024*1024;
 	private Logger log = Logger.getLogger(VCFConverter.class.getName());
 	private boolean printStructure = false;
 	private boolean printrrBLUP = false;
@@ -140,10 +147,19 @@ public class VCFConverter {
 		PrintStream outHapmap = null;
 		PrintStream outJoinMap = null;
 		PrintStream outTreemix = null;
-		//Load the matrix if at least one format need the matrix to be transposed
-		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printEmma || printPlink || printHaploview || printPowerMarker || printFlapjack || printEigensoft || printDarwin;
+		PrintStream outEmma = null;
+		PrintStream outEigensoftGenotypes = null;
+		PrintStream outEigensoftSNPs = null;
+		PrintStream outFlapjackMap = null;
+		PrintStream outPowerMarkerSNPs = null;
+		PrintStream outPlinkMap = null;
+		PrintStream outHaploviewInfo = null;
+		PrintStream outDarwinSNPs = null;
+		//Build the genotypes matrix if at least one format need the matrix to be transposed
+		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printPlink || printHaploview || printPowerMarker || printFlapjack || printDarwin;
 		boolean loadMatrixSeqName = printPhase;
-		List<List<CalledGenomicVariant>> callsPerVariant = new ArrayList<List<CalledGenomicVariant>>();
+		GenotypeCodesMatrixFile matrix = null;
+		StoredVariantsInfo variantsInfo = new StoredVariantsInfo();
 		List<String> sampleIds = null;
 		try {
 			reader = new VCFFileReader(vcfFile);
@@ -152,6 +168,10 @@ public class VCFConverter {
 			VCFFileHeader header = reader.getHeader();
 			sampleIds = header.getSampleIds();
 			Iterator<VCFRecord> it = reader.iterator();
+			if(loadMatrix || loadMatrixSeqName) {
+				File outDir = new File(prefix).getAbsoluteFile().getParentFile();
+				matrix = new GenotypeCodesMatrixFile(outDir, sampleIds.size());
+			}
 			//Print header for formats that do not need transposition
 			if(printMatrix) {
 				outMatrix = new PrintStream(prefix+"_genotypes.txt");
@@ -186,65 +206,197 @@ public class VCFConverter {
 				outJoinMap=new PrintStream(prefix+"_joinmap.txt");
 				printJoinMapHeader(sampleIds, outJoinMap, ip1, ip2);		
 			}
+			//Variant oriented files of formats that need transposition
+			if(printEmma) outEmma = new PrintStream(prefix+"_emma.in");
+			if(printEigensoft) {
+				outEigensoftGenotypes = new PrintStream(prefix+"_eigensoft.geno");
+				outEigensoftSNPs = new PrintStream(prefix+"_eigensoft.snp");
+			}
+			if(printFlapjack) {
+				outFlapjackMap = new PrintStream(prefix+"_flapjack.map");
+				outFlapjackMap.println("# fjFile = MAP");
+			}
+			if(printPowerMarker) outPowerMarkerSNPs = new PrintStream(prefix+"_powermarker.snp");
+			if(printPlink) outPlinkMap = new PrintStream(prefix+".map");
+			if(printHaploview) outHaploviewInfo = new PrintStream(prefix+".info");
+			if(printDarwin) outDarwinSNPs = new PrintStream(prefix+"_Darwin.snp");
 					
 			int n=0;
 			while(it.hasNext()) {
 				VCFRecord record = it.next();
+				GenomicVariant variant = record.getVariant();
 				List<CalledGenomicVariant> calls = record.getCalls();
-				//Adds the calls for the new variant if needed
-				if(loadMatrix) callsPerVariant.add(calls);
+				//Adds the calls for the new variant to the matrix if needed
 				//PHASE converter. Loads the variants only for the sequence name requested by the user
-				else if (loadMatrixSeqName && record.getVariant().getSequenceName().equals(sequenceName)) callsPerVariant.add(calls); 
+				if(loadMatrix || (loadMatrixSeqName && variant.getSequenceName().equals(sequenceName))) {
+					int idxVariant = matrix.getNumVariants();
+					matrix.addVariant(calls);
+					variantsInfo.addVariant(variant, loadMatrixSeqName && variant.getSequenceName().equals(sequenceName));
+					if(outDarwinSNPs!=null) outDarwinSNPs.println((idxVariant+1)+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+					if(variant.isBiallelic()) {
+						int snpId = variantsInfo.getNumBiallelic();
+						if(outFlapjackMap!=null) outFlapjackMap.println("Marker"+snpId+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+						if(outPowerMarkerSNPs!=null) outPowerMarkerSNPs.println(snpId+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+						if(variant.isSNV()) {
+							if(outPlinkMap!=null) printPlinkMap(variant, variantsInfo.getPlinkChrNumber(), outPlinkMap, true);
+							if(outHaploviewInfo!=null) printPlinkMap(variant, variantsInfo.getPlinkChrNumber(), outHaploviewInfo, false);
+						}
+					}
+				}
 				//Print genotypes for the current variant for formats that do not need transposition
 				if(outMatrix!=null)printGenotypesMatrix(record,outMatrix);
 				if(outHapmap!=null)printHapmap(record,outHapmap);
-				if(outTreemix!=null && record.getVariant().isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
+				if(outTreemix!=null && variant.isBiallelic()) printTreeMix(groupsWithSampleIdxs,calls,outTreemix);
 				if(outJoinMap!=null)printJoinMap(record, outJoinMap, ip1, ip2);
+				if(outEmma!=null && variant.isBiallelic()) printEmma(calls, outEmma);
+				if(outEigensoftGenotypes!=null && variant.isBiallelic()) printEigensoft(variant, calls, variantsInfo, outEigensoftGenotypes, outEigensoftSNPs);
 				n++;
 				if (progressNotifier!=null && n%1000==0) {
 					int progress = n/1000;
 					if (!progressNotifier.keepRunning(progress)) {
+						if(matrix!=null) matrix.close();
 						return;
 					}
 				}
 			}
+			if (outEigensoftGenotypes!=null) {
+				PrintStream outInd = new PrintStream(prefix+"_eigensoft.ind");
+				for(String sampleId:sampleIds) {
+					outInd.printf("%39s U Control\n", sampleId);
+				}
+				outInd.flush();
+				outInd.close();
+			}
+		} catch (IOException|RuntimeException e) {
+			if(matrix!=null) matrix.close();
+			throw e;
 		} finally {
 			if(reader!=null) reader.close();
-			if(outMatrix!=null) {
-				outMatrix.flush();
-				outMatrix.close();
+			closeStreams(outMatrix, outHapmap, outTreemix, outJoinMap, outEmma, outEigensoftGenotypes, outEigensoftSNPs, outFlapjackMap, outPowerMarkerSNPs, outPlinkMap, outHaploviewInfo, outDarwinSNPs);
+		}
+		
+		if(matrix==null) return;
+		try {
+			matrix.finish();
+			System.out.println("Loaded "+matrix.getNumVariants()+" calls");
+			//Print formats that require transposition
+			printTransposedFormats(sampleIds, matrix, variantsInfo, prefix);
+		} finally {
+			matrix.close();
+		}
+	}
+	
+	private void closeStreams(PrintStream... streams) {
+		for(PrintStream out:streams) {
+			if(out==null) continue;
+			out.flush();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Prints the formats oriented by samples reading the genotype codes of blocks of samples from the matrix
+	 * @param sampleIds Ids of the samples
+	 * @param matrix Matrix with the genotype codes
+	 * @param variantsInfo Information of the variants stored in the matrix
+	 * @param prefix Prefix of the output files
+	 * @throws IOException If the matrix can not be read or the files can not be written
+	 */
+	private void printTransposedFormats(List<String> sampleIds, GenotypeCodesMatrixFile matrix, StoredVariantsInfo variantsInfo, String prefix) throws IOException {
+		int numVariants = matrix.getNumVariants();
+		if(printPhase && variantsInfo.getNumPhase()==0) throw new IOException("No biallelic variants found for the given sequence name");
+		if(printrrBLUP) {
+			PrintStream outS = new PrintStream(prefix+"_rrBLUP_samples.txt");
+			for(String sampleId:sampleIds) {
+				outS.println(sampleId);
+			}
+			outS.flush();
+			outS.close();
+		}
+		PrintStream outFasta = null;
+		PrintStream outDarwin = null;
+		PrintStream outStructure = null;
+		PrintStream outrrBLUP = null;
+		PrintStream outSpagedi = null;
+		PrintStream outPed = null;
+		PrintStream outPowerMarker = null;
+		PrintStream outFlapjack = null;
+		PrintStream outPhase = null;
+		try {
+			if(printFasta) outFasta = openBufferedStream(prefix+"_aln.fa");
+			if(printDarwin) {
+				outDarwin = openBufferedStream(prefix+"_Darwin.in");
+				outDarwin.println(sampleIds.size()+"\t"+(2*numVariants));
+				outDarwin.print("N");
+				for(int i=1;i<=numVariants;i++) outDarwin.print("\t"+i+"\t"+i);
+				outDarwin.println();
+			}
+			if(printStructure) outStructure = openBufferedStream(prefix+"_structure.in");
+			if(printrrBLUP) outrrBLUP = openBufferedStream(prefix+"_rrBLUP.in");
+			if(printSpagedi) {
+				outSpagedi = openBufferedStream(prefix+"_spagedi.in");
+				outSpagedi.println(""+sampleIds.size()+"\t0\t0\t"+numVariants+"\t1\t2");
+				outSpagedi.println("0");
+				outSpagedi.print("Ind");
+				for(int i=0;i<numVariants;i++) {
+					outSpagedi.print("\tSNP_"+(i+1));
+				}
+				outSpagedi.println();
 			}
-			if(outHapmap!=null) {
-				outHapmap.flush();
-				outHapmap.close();
+			//The PLINK and Haploview formats share the ped file
+			if(printPlink || printHaploview) outPed = openBufferedStream(prefix+".ped");
+			if(printPowerMarker) {
+				outPowerMarker = openBufferedStream(prefix+"_powermarker.in");
+				outPowerMarker.print("Sample");
+				for(int i=1;i<=variantsInfo.getNumBiallelic();i++) outPowerMarker.print("\t"+i+"\t"+i);
+				outPowerMarker.println();
 			}
-			if (outTreemix!=null) {
-				outTreemix.flush();
-				outTreemix.close();
+			if(printFlapjack) {
+				outFlapjack = openBufferedStream(prefix+"_flapjack.gen");
+				outFlapjack.println("# fjFile = GENOTYPE");
+				for(int i=1;i<=variantsInfo.getNumBiallelic();i++) outFlapjack.print("\tMarker"+i);
+				outFlapjack.println();
 			}
-			if (outJoinMap!=null) {
-				outJoinMap.flush();
-				outJoinMap.close();
+			if(printPhase) {
+				outPhase = openBufferedStream(prefix+"_"+sequenceName+"_phase.inp");
+				int nSites = variantsInfo.getNumPhase();
+				outPhase.println(sampleIds.size());
+				outPhase.println(nSites);
+				outPhase.print("P");
+				for(int i=0;i<nSites;i++) outPhase.print(" "+variantsInfo.getPhasePosition(i));
+				outPhase.println();
+				for(int i=0;i<nSites;i++) outPhase.print("S");
+				outPhase.println();
 			}
+			//Load blocks of samples to limit memory usage and reads to the matrix
+			int numSamples = sampleIds.size();
+			int samplesPerBlock = matrix.getSamplesPerBlock(MAX_BYTES_SAMPLES_BLOCK);
+			byte [][] codes = new byte[samplesPerBlock][matrix.getBytesPerSample()];
+			for(int first=0;first<numSamples;first+=samplesPerBlock) {
+				int numLoad = Math.min(samplesPerBlock, numSamples-first);
+				matrix.loadSamples(first, codes, numLoad);
+				for(int i=0;i<numLoad;i++) {
+					String sampleId = sampleIds.get(first+i);
+					byte [] sampleCodes = codes[i];
+					if(outFasta!=null) printFasta(sampleId, sampleCodes, numVariants, variantsInfo, outFasta);
+					if(outDarwin!=null) printDarwin(sampleId, sampleCodes, numVariants, outDarwin);
+					if(outStructure!=null) printStructure(sampleId, sampleCodes, numVariants, variantsInfo, outStructure);
+					if(outrrBLUP!=null) printrrBLUP(sampleCodes, numVariants, variantsInfo, outrrBLUP);
+					if(outSpagedi!=null) printSpagedi(sampleId, sampleCodes, numVariants, variantsInfo, outSpagedi);
+					if(outPed!=null) printPlink(sampleId, sampleCodes, numVariants, variantsInfo, outPed);
+					if(outPowerMarker!=null) printPowerMarker(sampleId, sampleCodes, numVariants, variantsInfo, outPowerMarker);
+					if(outFlapjack!=null) printFlapjack(sampleId, sampleCodes, numVariants, variantsInfo, outFlapjack);
+					if(outPhase!=null) printPhase(sampleId, sampleCodes, numVariants, variantsInfo, outPhase);
+				}
+			}
+			if(outSpagedi!=null) outSpagedi.println("END");
+		} finally {
+			closeStreams(outFasta, outDarwin, outStructure, outrrBLUP, outSpagedi, outPed, outPowerMarker, outFlapjack, outPhase);
 		}
-		
-		
-		
-		if(!loadMatrix && !loadMatrixSeqName) return;
-		System.out.println("Loaded "+callsPerVariant.size()+" calls");
-		//Print formats that require transposition
-		if(printFasta) printFasta(sampleIds,callsPerVariant,prefix+"_aln.fa");
-		if(printDarwin)printDarwin(sampleIds, callsPerVariant, prefix);
-		if(printStructure) printStructure(sampleIds,callsPerVariant,prefix+"_structure.in");
-		if(printrrBLUP) printrrBLUP(sampleIds,callsPerVariant,prefix);
-		if(printSpagedi) printSpagedi(sampleIds, callsPerVariant, prefix+"_spagedi.in");
-		if(printEmma) printEmma(callsPerVariant, prefix+"_emma.in");
-		if(printPlink) printPlink(sampleIds,callsPerVariant,prefix,true);
-		if(printHaploview) printPlink(sampleIds,callsPerVariant,prefix,false);
-		if(printPowerMarker) printPowerMarker(sampleIds,callsPerVariant,prefix);
-		if(printFlapjack) printFlapjack(sampleIds,callsPerVariant,prefix);
-		if(printEigensoft) printEigensoft(sampleIds,callsPerVariant,prefix);
-		if(printPhase) printPhase(sampleIds,callsPerVariant,prefix+"_"+sequenceName+"_phase.inp");
+	}
+	
+	private PrintStream openBufferedStream(String filename) throws IOException {
+		return new PrintStream(new BufferedOutputStream(new FileOutputStream(filename), 1<<16));
 	}
 	
 	public Logger getLog() {
@@ -447,220 +599,105 @@ public class VCFConverter {
 		this.idParent2 = idParent2;
 	}
 
-	private void printFlapjack(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		PrintStream outMap = new PrintStream(outPrefix+"_flapjack.map");
-		PrintStream outGenotypes = new PrintStream(outPrefix+"_flapjack.gen");
-		outMap.println("# fjFile = MAP");
-		outGenotypes.println("# fjFile = GENOTYPE");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				
-				String [] alleles = calledVar.getCalledAlleles(); 
-				String allele = "-";
-				if(!calledVar.isUndecided()) {
-					if(alleles.length>=2) {
-						allele = ""+alleles[0]+"/"+alleles[1];
-					} else {
-						allele = ""+alleles[0];
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					String markerId = "Marker"+snpId;
-					outMap.println(markerId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					outGenotypes.print("\t"+markerId);
-					snpId++;
-				}
+	private void printFlapjack(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(sampleId);
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			byte code = GenotypeCodesMatrixFile.getCode(codes, j);
+			String allele = "-";
+			if(code == GenotypeCodesMatrixFile.CODE_HETEROZYGOUS) {
+				allele = ""+variantsInfo.getReference(j)+"/"+variantsInfo.getAlternative(j);
+			} else if (code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_REFERENCE) {
+				allele = variantsInfo.getReference(j);
+			} else if (code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_ALTERNATIVE) {
+				allele = variantsInfo.getAlternative(j);
 			}
+			out.print("\t"+allele);
 		}
-		outGenotypes.println();
-		for(int i=0;i<sequences.length;i++) {
-			outGenotypes.println(sequences[i].toString());
-		}
-		outMap.flush();
-		outMap.close();
-		outGenotypes.flush();
-		outGenotypes.close();	
+		out.println();
 	}
 	
-	private void printPowerMarker(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		PrintStream out = new PrintStream(outPrefix+"_powermarker.in");
-		PrintStream outSNPs = new PrintStream(outPrefix+"_powermarker.snp");
-		out.print("Sample");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
-			}
+	private void printPowerMarker(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(sampleId);
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			out.print("\t");
+			out.print(encodeAlleles(GenotypeCodesMatrixFile.getCode(codes, j), "-9\t-9", "0\t0", "0\t1", "1\t1"));
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
-		outSNPs.flush();
-		outSNPs.close();
-		
 	}
-	private void printPlink(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix, boolean includeChrInMap) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i)+"\t"+sampleIds.get(i)+"\t0\t0\t0\t0");
-		PrintStream outMap;
-		if(includeChrInMap) outMap = new PrintStream(prefix+".map");
-		else outMap = new PrintStream(prefix+".info");
-		String currentChr = null;
-		int chrN = 0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()==0) continue;
-			CalledGenomicVariant firstCall = callsVariant.get(0);
-			if(!firstCall.isBiallelic() || !firstCall.isSNV() ) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				if(i==0) {
-					String seqName = calledVar.getSequenceName();
-					if(!seqName.equals(currentChr)) {
-						chrN++;
-						currentChr = seqName;
-					}
-					if(includeChrInMap) outMap.print(""+chrN+"\t");
-					outMap.println(calledVar.getSequenceName()+"_"+calledVar.getFirst()+"\t"+calledVar.getFirst());
-				}
-				String [] calledAlleles = calledVar.getCalledAlleles(); 
-				String allele = "0 0";
-				if(!calledVar.isUndecided()) {
-					if(calledAlleles.length>=2) {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[1];
-					} else {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[0];
-					}
-				}
-				sequences[i].append("\t"+allele);
-			}
-		}
-		outMap.flush();
-		outMap.close();
-		PrintStream out = new PrintStream(prefix+".ped");
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
-		
+	
+	private void printPlinkMap(GenomicVariant variant, int chrN, PrintStream outMap, boolean includeChrInMap) {
+		if(includeChrInMap) outMap.print(""+chrN+"\t");
+		outMap.println(variant.getSequenceName()+"_"+variant.getFirst()+"\t"+variant.getFirst());
 	}
-	private void printEigensoft(List<String> sampleIds, List<List<CalledGenomicVariant>> selectedCalls, String outPrefix) throws IOException {
-		PrintStream outGenotype = new PrintStream(outPrefix+"_eigensoft.geno");
-		PrintStream outSNP = new PrintStream(outPrefix+"_eigensoft.snp");
-		int chrNum = 0;
-		String lastChr = "";
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) outGenotype.print("9");
-				else if (calledVar.isHomozygousReference()) outGenotype.print("2");
-				else if (calledVar.isHeterozygous()) outGenotype.print("1");
-				else outGenotype.print("0");
-				if(i==0) {
-					if(!lastChr.equals(calledVar.getSequenceName())) {
-						chrNum++;
-						lastChr = calledVar.getSequenceName();
-					}
-					outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",calledVar.getSequenceName()+"_"+calledVar.getFirst(),chrNum,calledVar.getFirst(),calledVar.getReference(),calledVar.getAlleles()[1]);
-				}
+	
+	private void printPlink(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(sampleId+"\t"+sampleId+"\t0\t0\t0\t0");
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j) || !variantsInfo.isSNV(j)) continue;
+			byte code = GenotypeCodesMatrixFile.getCode(codes, j);
+			String allele = "0 0";
+			if(code == GenotypeCodesMatrixFile.CODE_HETEROZYGOUS) {
+				allele = ""+variantsInfo.getReference(j)+" "+variantsInfo.getAlternative(j);
+			} else if (code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_REFERENCE) {
+				allele = ""+variantsInfo.getReference(j)+" "+variantsInfo.getReference(j);
+			} else if (code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_ALTERNATIVE) {
+				allele = ""+variantsInfo.getAlternative(j)+" "+variantsInfo.getAlternative(j);
 			}
-			outGenotype.println();
+			out.print("\t"+allele);
 		}
-		outGenotype.flush();
-		outGenotype.close();
-		outSNP.flush();
-		outSNP.close();
-		PrintStream outInd = new PrintStream(outPrefix+"_eigensoft.ind");
-		for(String sampleId:sampleIds) {
-			outInd.printf("%39s U Control\n", sampleId);
+		out.println();
+	}
+	private void printEigensoft(GenomicVariant variant, List<CalledGenomicVariant> calls, StoredVariantsInfo variantsInfo, PrintStream outGenotype, PrintStream outSNP) {
+		for(int i=0;i<calls.size();i++) {
+			CalledGenomicVariant calledVar = calls.get(i);
+			if(calledVar.isUndecided()) outGenotype.print("9");
+			else if (calledVar.isHomozygousReference()) outGenotype.print("2");
+			else if (calledVar.isHeterozygous()) outGenotype.print("1");
+			else outGenotype.print("0");
 		}
-		outInd.flush();
-		outInd.close();
-	}
-	private void printEmma(List<List<CalledGenomicVariant>> selectedCalls, String outFile) throws IOException {
-		PrintStream out = new PrintStream(outFile);
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				if(i>0) out.print("\t");
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) out.print("NA");
-				else if (calledVar.isHomozygousReference()) out.print("0");
-				else if (calledVar.isHeterozygous()) out.print("0.5");
-				else out.print("1");
-			}
-			out.println();
+		if(calls.size()>0) {
+			int chrNum = variantsInfo.updateEigensoftChrNumber(variant.getSequenceName());
+			outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",variant.getSequenceName()+"_"+variant.getFirst(),chrNum,variant.getFirst(),variant.getReference(),variant.getAlleles()[1]);
 		}
-		out.flush();
-		out.close();
-		
+		outGenotype.println();
 	}
-	private void printSpagedi(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "0,0";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "1,2";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1,1";
-					} else {
-						allele = "2,2";
-					}
-				}
-				sequences[i].append("\t"+allele);
-			}
-		}
-		PrintStream out = new PrintStream(outFile);
-		out.println(""+sampleIds.size()+"\t0\t0\t"+calls.size()+"\t1\t2");
-		out.println("0");
-		out.print("Ind");
-		for(int i=0;i<calls.size();i++) {
-			out.print("\tSNP_"+(i+1));
+	private void printEmma(List<CalledGenomicVariant> varCalls, PrintStream out) {
+		for(int i=0;i<varCalls.size();i++) {
+			if(i>0) out.print("\t");
+			CalledGenomicVariant calledVar =varCalls.get(i);
+			if(calledVar.isUndecided()) out.print("NA");
+			else if (calledVar.isHomozygousReference()) out.print("0");
+			else if (calledVar.isHeterozygous()) out.print("0.5");
+			else out.print("1");
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
+	}
+	private void printSpagedi(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(sampleId);
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			out.print("\t");
+			out.print(encodeAlleles(GenotypeCodesMatrixFile.getCode(codes, j), "0,0", "1,1", "1,2", "2,2"));
 		}
-		out.println("END");
-		out.flush();
-		out.close();
+		out.println();
+	}
+	
+	/**
+	 * Selects the text representing a genotype code
+	 * @param code Genotype code
+	 * @param undecided Text for undecided genotypes
+	 * @param homoRef Text for homozygous reference genotypes
+	 * @param heterozygous Text for heterozygous genotypes
+	 * @param homoAlt Text for homozygous alternative genotypes
+	 * @return String text for the given code
+	 */
+	private String encodeAlleles(byte code, String undecided, String homoRef, String heterozygous, String homoAlt) {
+		if(code == GenotypeCodesMatrixFile.CODE_HETEROZYGOUS) return heterozygous;
+		if(code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_REFERENCE) return homoRef;
+		if(code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_ALTERNATIVE) return homoAlt;
+		return undecided;
 	}
 	
 	private void printMatrixHeader(List<String> sampleIds, PrintStream out) {
@@ -730,148 +767,59 @@ public class VCFConverter {
 		out.println();	
 	}
 		
-	private void printStructure(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9 -9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0 1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0 0";
-					} else {
-						allele = "1 1";
-					}
-				}
-				sequences[i].append(" "+allele);
-			}
+	private void printStructure(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(sampleId);
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			out.print(" ");
+			out.print(encodeAlleles(GenotypeCodesMatrixFile.getCode(codes, j), "-9 -9", "0 0", "0 1", "1 1"));
 		}
-		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
+		out.println();
 	}
 	
-	private void printrrBLUP(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix) throws IOException {
-		String outFile = prefix+"_rrBLUP.in";
-		String outSamples = prefix+"_rrBLUP_samples.txt";
-		PrintStream outS = new PrintStream(outSamples);
-		for(String sampleId:sampleIds) {
-			outS.println(sampleId);
-		}
-		outS.flush();
-		outS.close();
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "NA";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1";
-					} else {
-						allele = "-1";
-					}
-				}
-				if(i>=0) sequences[i].append(" ");
-				sequences[i].append(allele);
-			}
+	private void printrrBLUP(byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			out.print(" ");
+			out.print(encodeAlleles(GenotypeCodesMatrixFile.getCode(codes, j), "NA", "1", "0", "-1"));
 		}
-		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
+		out.println();
 	}
 	
-	private void printFasta(List<String> sampleIds, List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String [] alleles = calledVar.getAlleles();
-				char call = 'N';
-				if(calledVar.isHomozygousReference()) {
-					call = alleles[0].charAt(0);
-				} else if (calledVar.isHomozygous()) {
-					call = alleles[1].charAt(0);
-				} 
-				sequences[i].append(call);
+	private void printFasta(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.print(">");
+		out.println(sampleId);
+		int lineLength = 0;
+		for(int j=0;j<numVariants;j++) {
+			if(!variantsInfo.isBiallelic(j)) continue;
+			byte code = GenotypeCodesMatrixFile.getCode(codes, j);
+			char call = 'N';
+			if(code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_REFERENCE) {
+				call = variantsInfo.getReference(j).charAt(0);
+			} else if (code == GenotypeCodesMatrixFile.CODE_HOMOZYGOUS_ALTERNATIVE) {
+				call = variantsInfo.getAlternative(j).charAt(0);
+			}
+			out.print(DNAMaskedSequence.BASES.indexOf(call)>=0?call:'N');
+			lineLength++;
+			if(lineLength==100) {
+				out.println();
+				lineLength = 0;
 			}
 		}
-		FastaSequencesHandler handler = new FastaSequencesHandler();
-		List<QualifiedSequence> seqsList = new ArrayList<QualifiedSequence>();
-		for(int i=0;i<sequences.length;i++) {
-			String seqId = sampleIds.get(i);
-			DNAMaskedSequence seq = new DNAMaskedSequence(sequences[i].toString());
-			seqsList.add(new QualifiedSequence(seqId, seq));
-		}
-		PrintStream out = new PrintStream(outFile);
-		handler.saveSequences(seqsList, out, 100);
-		out.flush();
-		out.close();
+		if(lineLength>0) out.println();
 	}
 	
-	private void printPhase(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[2*sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		StringBuilder linePositions = new StringBuilder("P");
-		int nSites =0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			GenomicVariant variant = callsVariant.get(0);
-			if(!variant.getSequenceName().equals(sequenceName)) continue;
-			nSites++;
-			linePositions.append(" "+variant.getFirst());
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele1 = "?";
-				String allele2 = "?";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele1 = "0";
-						allele2 = "1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele1 = "0";
-						allele2 = "0";
-					} else {
-						allele1 = "1";
-						allele2 = "1";
-					}
-				}
-				sequences[2*i].append(allele1);
-				sequences[2*i+1].append(allele2);
+	private void printPhase(String sampleId, byte [] codes, int numVariants, StoredVariantsInfo variantsInfo, PrintStream out) {
+		out.println("#"+sampleId);
+		for(int allele=0;allele<2;allele++) {
+			for(int j=0;j<numVariants;j++) {
+				if(!variantsInfo.isPhase(j)) continue;
+				byte code = GenotypeCodesMatrixFile.getCode(codes, j);
+				if(allele==0) out.print(encodeAlleles(code, "?", "0", "0", "1"));
+				else out.print(encodeAlleles(code, "?", "0", "1", "1"));
 			}
+			out.println();
 		}
-		if(nSites==0) throw new IOException("No biallelic variants found for the given sequence name");
-		PrintStream out = new PrintStream(outFile);
-		out.println(sampleIds.size());
-		out.println(nSites);
-		out.println(linePositions);
-		for(int i=0;i<nSites;i++) out.print("S");
-		out.println();
-		for(int i=0;i<sampleIds.size();i++) {
-			out.println("#"+sampleIds.get(i));
-			out.println(sequences[2*i].toString());
-			out.println(sequences[2*i+1].toString());
-		}
-		out.flush();
-		out.close();
 	}
 	
 	private void printTreeMixHeader(Set<String> groups, PrintStream out) throws IOException {
@@ -911,43 +859,13 @@ public class VCFConverter {
 
 	
 	
-	private void printDarwin(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		PrintStream out = new PrintStream(outPrefix+"_Darwin.in");
-		PrintStream outSNPs = new PrintStream(outPrefix+"_Darwin.snp");
-		out.println(sampleIds.size()+"\t"+(2*calls.size()));
-		out.print("N");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
-			}
+	private void printDarwin(String sampleId, byte [] codes, int numVariants, PrintStream out) {
+		out.print(sampleId);
+		for(int j=0;j<numVariants;j++) {
+			out.print("\t");
+			out.print(encodeAlleles(GenotypeCodesMatrixFile.getCode(codes, j), "-9\t-9", "0\t0", "0\t1", "1\t1"));
 		}
 		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
-		outSNPs.flush();
-		outSNPs.close();
 	}
 	
 	
@@ -1034,4 +952,97 @@ public class VCFConverter {
 		this.populationFile = populationFile;
 	}
 	
+
+	/**
+	 * Compact information of the variants stored in the genotypes matrix. Alleles of
+	 * SNVs are stored as single bytes. Only alleles of other biallelic variants are stored as strings
+	 */
+	private class StoredVariantsInfo {
+		private int numVariants = 0;
+		private int numBiallelic = 0;
+		private BitSet biallelic = new BitSet();
+		private BitSet snvs = new BitSet();
+		private BitSet phase = new BitSet();
+		private byte [] references = new byte[1024];
+		private byte [] alternatives = new byte[1024];
+		private Map<Integer, String[]> otherAlleles = new HashMap<>();
+		private int [] phasePositions = new int[1024];
+		private int numPhase = 0;
+		private String lastPlinkChr = null;
+		private int plinkChrN = 0;
+		private String lastEigensoftChr = "";
+		private int eigensoftChrN = 0;
+		
+		public void addVariant(GenomicVariant variant, boolean inPhaseSequence) {
+			int idx = numVariants;
+			if(variant.isBiallelic()) {
+				biallelic.set(idx);
+				numBiallelic++;
+				String [] alleles = variant.getAlleles();
+				while(idx>=references.length) {
+					references = Arrays.copyOf(references, 2*references.length);
+					alternatives = Arrays.copyOf(alternatives, 2*alternatives.length);
+				}
+				if(alleles[0].length()==1 && alleles[1].length()==1) {
+					references[idx] = (byte)alleles[0].charAt(0);
+					alternatives[idx] = (byte)alleles[1].charAt(0);
+				} else {
+					otherAlleles.put(idx, new String[] {alleles[0],alleles[1]});
+				}
+				if(variant.isSNV()) {
+					snvs.set(idx);
+					String seqName = variant.getSequenceName();
+					if(!seqName.equals(lastPlinkChr)) {
+						plinkChrN++;
+						lastPlinkChr = seqName;
+					}
+				}
+				if(inPhaseSequence) {
+					phase.set(idx);
+					if(numPhase==phasePositions.length) phasePositions = Arrays.copyOf(phasePositions, 2*phasePositions.length);
+					phasePositions[numPhase] = variant.getFirst();
+					numPhase++;
+				}
+			}
+			numVariants++;
+		}
+		public int getNumBiallelic() {
+			return numBiallelic;
+		}
+		public int getNumPhase() {
+			return numPhase;
+		}
+		public int getPhasePosition(int i) {
+			return phasePositions[i];
+		}
+		public int getPlinkChrNumber() {
+			return plinkChrN;
+		}
+		public int updateEigensoftChrNumber(String seqName) {
+			if(!lastEigensoftChr.equals(seqName)) {
+				eigensoftChrN++;
+				lastEigensoftChr = seqName;
+			}
+			return eigensoftChrN;
+		}
+		public boolean isBiallelic(int idx) {
+			return biallelic.get(idx);
+		}
+		public boolean isSNV(int idx) {
+			return snvs.get(idx);
+		}
+		public boolean isPhase(int idx) {
+			return phase.get(idx);
+		}
+		public String getReference(int idx) {
+			String [] alleles = otherAlleles.get(idx);
+			if(alleles!=null) return alleles[0];
+			return String.valueOf((char)references[idx]);
+		}
+		public String getAlternative(int idx) {
+			String [] alleles = otherAlleles.get(idx);
+			if(alleles!=null) return alleles[1];
+			return String.valueOf((char)alternatives[idx]);
+		}
+	}
 }
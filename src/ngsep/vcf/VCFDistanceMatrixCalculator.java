@@ -30,6 +30,7 @@ public class VCFDistanceMatrixCalculator {
 	private int ploidy = 2;
 	private int matrixType = 0;
 	private int distanceSource = DISTANCE_SOURCE_GENOTYPES_SIMPLE;
+	private int numThreads = 1;
 
 	public Logger getLog() {
 		return log;
@@ -60,6 +61,8 @@ public class VCFDistanceMatrixCalculator {
 	
 	 /**
 	  * Process a vcf file to generate a SNVs distance matrix.
+	  * The VCF file is read only once. Dosages are buffered in blocks of variants and
+	  * the upper triangle of the matrix is updated by tiles using the given number of threads
 	  * @param vcfFile VCF filename.
 	  * @throws IOException
 	  */
@@ -72,8 +75,7 @@ public class VCFDistanceMatrixCalculator {
 			Iterator<VCFRecord> iteratorRecords = vcfFileReader.iterator();
 			samples = vcfFileReader.getHeader().getSampleIds();
 			numSamples = samples.size();
-			distanceMatrix = new double[numSamples][numSamples];
-			int genotypePerSamplesComparison[][] = new int[numSamples][numSamples];
+			DosageDistancesAccumulator accumulator = new DosageDistancesAccumulator(numSamples, numThreads);
 			
 			int n = ploidy;
 			if(n<2){
@@ -86,67 +88,22 @@ public class VCFDistanceMatrixCalculator {
 			for(int y=0; y <= n;y++){
 				ploidyLevels[y] = (1.0f/n) * y;
 			}
-			
+			float numericGenotypes[] = new float[numSamples];
+			int processed = 0;
 			//Iterate over every variant in VCF file
 			while(iteratorRecords.hasNext()){
 				VCFRecord vcfRecord = iteratorRecords.next();
-				GenomicVariant var = vcfRecord.getVariant();
-				String [] alleles = var.getAlleles();
-					
-				List<CalledGenomicVariant> genotypeCalls = vcfRecord.getCalls();
-				float numericGenotypes[] = new float[genotypeCalls.size()];
-				Arrays.fill(numericGenotypes, CalledSNV.GENOTYPE_UNDECIDED);
-		    	//Calculate dosage for each sample
-		    	for (int i=0;i<genotypeCalls.size();i++) {
-		    		CalledGenomicVariant call = genotypeCalls.get(i);
-		    		if(call.isUndecided()) continue;
-		    		if(distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE) {
-		    			byte [] idxCalledAlleles = call.getIndexesCalledAlleles();
-		    			//TODO: Improve for heterozygous in multiallelic
-		    			if (idxCalledAlleles.length==1) numericGenotypes[i] = idxCalledAlleles[0];
-		    			else numericGenotypes[i] = (idxCalledAlleles[0]+idxCalledAlleles[1])/alleles.length;
-		    		} else if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) {
-		    			byte [] acn = call.getAllelesCopyNumber();
-		    			numericGenotypes[i] = 0;
-		    			for(int j=0;j<acn.length;j++) {
-		    				numericGenotypes[i]+=j*acn[j];
-		    			}
-		    			numericGenotypes[i]/=2.0;
-		    		} else if(distanceSource == DISTANCE_SOURCE_COPY_NUMBER) {
-		    			numericGenotypes[i] = call.getCopyNumber();
-		    		} else if(distanceSource == DISTANCE_SOURCE_ALLELE_DEPTH) {
-		    			if(!var.isBiallelic()) continue;
-		    			VariantCallReport report = call.getCallReport();
-		    			if(report == null) continue;
-		    			float countRef = report.getCount(alleles[0]);
-			    		float countAlt = report.getCount(alleles[1]);
-			    		//Depends of ploidy assign a value to dosage
-			    		if((countRef + countAlt) > 0){
-			    			float dosage = countRef / (countRef + countAlt);
-					    	numericGenotypes[i] = roundToArray(dosage, ploidyLevels);
-		    			}
-		    		}
-		    	}
-		    	
-		    	//calculate distance samples x samples for all SNVs
-		    	for(int j=0;j<numSamples;j++){
-		    		for(int k=0;k<numSamples;k++){
-		    			if(numericGenotypes[j]==CalledSNV.GENOTYPE_UNDECIDED || numericGenotypes[k]==CalledSNV.GENOTYPE_UNDECIDED ) continue;
-		    			//distance between pair of genotypes for a single variant
-	    			    distanceMatrix[j][k] += Math.abs(numericGenotypes[j]-numericGenotypes[k]);
-	    				//matrix needed to save value by how divide
-	    				genotypePerSamplesComparison[j][k]++;
-			    	}
-		    	}		    	
+				calculateDosages(vcfRecord, ploidyLevels, numericGenotypes);
+				//distances for this variant are calculated by blocks of variants
+				accumulator.addVariant(numericGenotypes);
+				processed++;
+				if (progressNotifier!=null && processed%1000==0) {
+					int progress = processed/1000;
+					if (!progressNotifier.keepRunning(progress)) break;
+				}
 			}
 			//Normalize genetic distance value depending number of samples x samples per Variant found genotyped (Omit missing values)
-			for(int j=0;j<numSamples;j++){
-	    		for(int k=0;k<numSamples;k++){
-					if(genotypePerSamplesComparison[j][k] > 0){
-						distanceMatrix[j][k] = distanceMatrix[j][k]/genotypePerSamplesComparison[j][k];
-					}
-		    	}
-	    	}
+			distanceMatrix = accumulator.calculateDistances();
 		}
 		
 		
@@ -159,6 +116,50 @@ public class VCFDistanceMatrixCalculator {
 	
 	}
 	 
+	/**
+	 * Calculates the dosage of each sample for the given record according to the distance source
+	 * @param vcfRecord Record to process
+	 * @param ploidyLevels Valid dosage values used for the allele depth source
+	 * @param numericGenotypes Array to store the dosages. Undecided calls are set to CalledSNV.GENOTYPE_UNDECIDED
+	 */
+	private void calculateDosages(VCFRecord vcfRecord, float [] ploidyLevels, float [] numericGenotypes) {
+		GenomicVariant var = vcfRecord.getVariant();
+		String [] alleles = var.getAlleles();
+			
+		List<CalledGenomicVariant> genotypeCalls = vcfRecord.getCalls();
+		Arrays.fill(numericGenotypes, CalledSNV.GENOTYPE_UNDECIDED);
+		//Calculate dosage for each sample
+		for (int i=0;i<genotypeCalls.size();i++) {
+			CalledGenomicVariant call = genotypeCalls.get(i);
+			if(call.isUndecided()) continue;
+			if(distanceSource == DISTANCE_SOURCE_GENOTYPES_SIMPLE) {
+				byte [] idxCalledAlleles = call.getIndexesCalledAlleles();
+				//TODO: Improve for heterozygous in multiallelic
+				if (idxCalledAlleles.length==1) numericGenotypes[i] = idxCalledAlleles[0];
+				else numericGenotypes[i] = (idxCalledAlleles[0]+idxCalledAlleles[1])/alleles.length;
+			} else if(distanceSource == DISTANCE_SOURCE_GENOTYPES_COPY_NUMBER) {
+				byte [] acn = call.getAllelesCopyNumber();
+				numericGenotypes[i] = 0;
+				for(int j=0;j<acn.length;j++) {
+					numericGenotypes[i]+=j*acn[j];
+				}
+				numericGenotypes[i]/=2.0;
+			} else if(distanceSource == DISTANCE_SOURCE_COPY_NUMBER) {
+				numericGenotypes[i] = call.getCopyNumber();
+			} else if(distanceSource == DISTANCE_SOURCE_ALLELE_DEPTH) {
+				if(!var.isBiallelic()) continue;
+				VariantCallReport report = call.getCallReport();
+				if(report == null) continue;
+				float countRef = report.getCount(alleles[0]);
+				float countAlt = report.getCount(alleles[1]);
+				//Depends of ploidy assign a value to dosage
+				if((countRef + countAlt) > 0){
+					float dosage = countRef / (countRef + countAlt);
+					numericGenotypes[i] = roundToArray(dosage, ploidyLevels);
+				}
+			}
+		}
+	}
 
 	/**
 	  * Assign real dosage value depending of ploidy.
@@ -211,4 +212,13 @@ public class VCFDistanceMatrixCalculator {
 	public void setDistanceSource(Integer distanceSource) {
 		this.setDistanceSource(distanceSource.intValue());
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 }
@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -35,6 +36,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
+import htsjdk.tribble.readers.TabixReader;
 import ngsep.main.io.ConcatGZIPInputStream;
 import ngsep.main.io.ParseUtils;
 import ngsep.sequences.DNASequence;
@@ -63,6 +65,9 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	
 	
 	private BufferedReader in;
+	private File file;
+	//Index for queries by sequence name
+	private TabixReader tabixReader = null;
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private VCFFileHeader header = new VCFFileHeader();
 	
@@ -109,7 +114,33 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 
 	@Override
 	public void close() throws IOException {
-		in.close();		
+		in.close();
+		if(tabixReader!=null) tabixReader.close();
+	}
+	
+	/**
+	 * @return boolean true if the file is compressed with bgzip and has a tabix index with the same name plus the extension .tbi
+	 */
+	public boolean isIndexed() {
+		return file!=null && file.getName().endsWith(".gz") && new File(file.getPath()+".tbi").exists();
+	}
+	
+	/**
+	 * Iterates over the records of the given sequence using the tabix index of the file
+	 * @param sequenceName Name of the sequence to query
+	 * @return Iterator<VCFRecord> Iterator over the records of the given sequence
+	 * @throws IOException If the file can not be read
+	 * @throws IllegalStateException If the file is not compressed with bgzip and indexed with tabix
+	 */
+	public Iterator<VCFRecord> query(String sequenceName) throws IOException {
+		if(!isIndexed()) throw new IllegalStateException("Queries are only supported for files compressed with bgzip and indexed with tabix");
+		if(tabixReader == null) tabixReader = new TabixReader(file.getPath());
+		int tid = tabixReader.chr2tid(sequenceName);
+		if(tid<0) return Collections.emptyIterator();
+		//Query by id because names with ':' would be parsed as regions
+		TabixReader.Iterator it = tabixReader.query(tid, 0, Integer.MAX_VALUE);
+		if(it == null) return Collections.emptyIterator();
+		return new VCFFileIterator(()->it.next());
 	}
 	
 	
@@ -122,23 +153,27 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
         if (currentIterator != null) {
             throw new IllegalStateException("Iteration in progress");
         }
-        currentIterator = new VCFFileIterator(); 
+        currentIterator = new VCFFileIterator(()->in.readLine()); 
 		return currentIterator;
 	}
 	
 	private void init (InputStream stream, File file) throws IOException {
 		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
-		if(file!=null) {
-			stream = new FileInputStream(file);
-			if(file.getName().endsWith(".gz")) {
-				stream = new ConcatGZIPInputStream(stream);
-			}
-		}
+		this.file = file;
+		if(file!=null) stream = openFile(file);
 		in = new BufferedReader(new InputStreamReader(stream));
 		String samplesLine = loadHeader();
 		header.loadSampleIds(samplesLine);
 	}
 	
+	private static InputStream openFile(File file) throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if(file.getName().endsWith(".gz")) {
+			stream = new ConcatGZIPInputStream(stream);
+		}
+		return stream;
+	}
+	
 	private String loadHeader() throws IOException {
 		String line = in.readLine();
 		while(line!=null && line.startsWith("##")) {
@@ -610,9 +645,18 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return header;
 	}
 
+	private interface LineSource {
+		/**
+		 * @return String next line. null if there are no more lines
+		 * @throws IOException If the line can not be read
+		 */
+		public String nextLine() throws IOException;
+	}
 	private class VCFFileIterator implements Iterator<VCFRecord> {
+		private LineSource source;
 		private VCFRecord nextRecord;
-		public VCFFileIterator() {
+		public VCFFileIterator(LineSource source) {
+			this.source = source;
 			nextRecord = loadRecord();
 		}
 		@Override
@@ -632,7 +676,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			String line;
 			while(true) {
 				try {
-					line = in.readLine();
+					line = source.nextLine();
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
@@ -35,6 +35,8 @@ import ngsep.variants.Sample;
 import ngsep.variants.VariantCallReport;
 
 public class VCFFileWriter {
+	//DecimalFormat is not thread safe. Each thread printing records uses its own copy
+	private static final ThreadLocal<DecimalFormat> ENGLISHFMT = ThreadLocal.withInitial(() -> (DecimalFormat) ParseUtils.ENGLISHFMT.clone());
 	
 	public void printVCFRecords (List<VCFRecord> records, PrintStream out) {
 		for(VCFRecord record:records) {
@@ -104,7 +106,7 @@ public class VCFFileWriter {
 	}
 	private void printInfoField(List<GenomicVariantAnnotation> info, PrintStream out) {
 		out.print("\t");
-		DecimalFormat fmt = ParseUtils.ENGLISHFMT;
+		DecimalFormat fmt = ENGLISHFMT.get();
 		boolean printed = false;
 		for(GenomicVariantAnnotation ann:info) {
 			Object value = ann.getValue();
@@ -220,7 +222,7 @@ public class VCFFileWriter {
 						if(report!=null && report.logConditionalsPresent()) {
 							logCond = report.getLogConditionalProbability(alleles[i], alleles[j]);
 						}
-						out.print(ParseUtils.ENGLISHFMT.format(logCond));
+						out.print(ENGLISHFMT.get().format(logCond));
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_GQ) {
@@ -274,7 +276,7 @@ public class VCFFileWriter {
 					out.print(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(ParseUtils.ENGLISHFMT.format(cnv.getNumCopies()));
+				out.print(ENGLISHFMT.get().format(cnv.getNumCopies()));
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTADF) {
 				//Num tandem duplication fragments
 				if(cnv==null) {
@@ -19,21 +19,31 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import ngsep.genome.GenomicRegionSweep;
 import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.ProgressNotifier;
+import ngsep.transcriptome.Transcript;
 import ngsep.transcriptome.Transcriptome;
 import ngsep.transcriptome.VariantAnnotationParameters;
 import ngsep.transcriptome.VariantFunctionalAnnotation;
 import ngsep.transcriptome.VariantFunctionalAnnotationType;
 import ngsep.transcriptome.io.GFF3TranscriptomeHandler;
+import ngsep.transcriptome.io.TranscriptomeBinaryFileHandler;
 import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantAnnotation;
 
@@ -43,11 +53,13 @@ import ngsep.variants.GenomicVariantAnnotation;
  *
  */
 public class VCFFunctionalAnnotator {
+	public static final int BATCH_SIZE = 1000;
 	private Logger log = Logger.getLogger(VCFFunctionalAnnotator.class.getName());
 	private Transcriptome transcriptome;
 	private VariantAnnotationParameters parameters = new VariantAnnotationParameters();
 	
 	private ProgressNotifier progressNotifier=null;
+	private int numThreads = 1;
 	
 	public static void main(String[] args) throws Exception {
 		VCFFunctionalAnnotator annotator = new VCFFunctionalAnnotator();
@@ -56,7 +68,12 @@ public class VCFFunctionalAnnotator {
 		String transcriptomeMap = args[i++];
 		String sequenceFasta = args[i++]; 
 		
-		annotator.loadMap(transcriptomeMap, new ReferenceGenome(sequenceFasta));
+		if(TranscriptomeBinaryFileHandler.isBinaryTranscriptome(transcriptomeMap)) {
+			//Binary transcriptomes already include the cDNA sequences
+			annotator.loadBinaryMap(transcriptomeMap);
+		} else {
+			annotator.loadMap(transcriptomeMap, new ReferenceGenome(sequenceFasta));
+		}
 		annotator.annotate(variantsFile, System.out);
 	}	
 	public int getOffsetUpstream() {
@@ -163,6 +180,17 @@ public class VCFFunctionalAnnotator {
 		this.log = log;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
+
 	public ProgressNotifier getProgressNotifier() {
 		return progressNotifier;
 	}
@@ -183,36 +211,101 @@ public class VCFFunctionalAnnotator {
 		transcriptome = handler.loadMap(transcriptomeMap);
 		transcriptome.fillSequenceTranscripts(genome, log);
 	}
+	/**
+	 * Loads a transcriptome saved with the TranscriptomeCompiler
+	 * @param binaryTranscriptome File with the transcriptome in binary format
+	 * @throws IOException If the file can not be read
+	 */
+	public void loadBinaryMap(String binaryTranscriptome) throws IOException {
+		TranscriptomeBinaryFileHandler handler = new TranscriptomeBinaryFileHandler();
+		handler.setLog(log);
+		transcriptome = handler.load(binaryTranscriptome);
+	}
+	/**
+	 * Annotates the variants in the given file. If more than one thread is used, records are annotated
+	 * in batches by a pool of threads and printed in the same order of the input file
+	 * @param variantsFile VCF file with the variants to annotate
+	 * @param out Stream to print the annotated variants
+	 * @throws IOException If the file can not be read
+	 */
 	public void annotate(String variantsFile,PrintStream out) throws IOException {
+		//Creating the sweep finishes building the transcripts index before the threads start
+		GenomicRegionSweep<Transcript> sweep = transcriptome.createTranscriptsSweep();
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		LinkedList<Future<ByteArrayOutputStream>> pendingBatches = new LinkedList<>();
 		try (VCFFileReader in = new VCFFileReader(variantsFile)){
 			VCFFileWriter writer = new VCFFileWriter(); 
 			in.setLog(log);
 			writer.printHeader(in.getHeader(),out);
 			Iterator<VCFRecord> it = in.iterator();
+			List<VCFRecord> batch = new ArrayList<>(BATCH_SIZE);
 			int n=0;
 			while (it.hasNext()) {
 				VCFRecord record = it.next();
-				if(record.getVariant().getAlleles().length>=2) annotate(record);
-				writer.printVCFRecord(record, out);
+				if(pool==null) {
+					if(record.getVariant().getAlleles().length>=2) annotate(record, sweep);
+					writer.printVCFRecord(record, out);
+				} else {
+					batch.add(record);
+					if(batch.size()==BATCH_SIZE || !it.hasNext()) {
+						final List<VCFRecord> records = batch;
+						pendingBatches.add(pool.submit(() -> annotateBatch(records, writer)));
+						//Keep a bounded number of batches in memory
+						while(pendingBatches.size()>2*numThreads) getResult(pendingBatches.removeFirst()).writeTo(out);
+						batch = new ArrayList<>(BATCH_SIZE);
+					}
+				}
 				n++;
 				if (progressNotifier!=null && n%1000==0) {
 					int progress = n/1000;
 					if (!progressNotifier.keepRunning(progress)) {
+						pendingBatches.clear();
 						out.flush();
 						return;
 					}
 				}
 			}
+			while(pendingBatches.size()>0) getResult(pendingBatches.removeFirst()).writeTo(out);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
 		out.flush();
 	}
+	
+	private ByteArrayOutputStream getResult (Future<ByteArrayOutputStream> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for annotated variants", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error annotating variants", e.getCause());
+		}
+	}
+	
+	private ByteArrayOutputStream annotateBatch(List<VCFRecord> batch, VCFFileWriter writer) {
+		//Each batch uses its own sweep. Transcripts are reused between consecutive records of the batch
+		GenomicRegionSweep<Transcript> sweep = transcriptome.createTranscriptsSweep();
+		ByteArrayOutputStream answer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(answer);
+		for(VCFRecord record:batch) {
+			if(record.getVariant().getAlleles().length>=2) annotate(record, sweep);
+			writer.printVCFRecord(record, out);
+		}
+		out.flush();
+		return answer;
+	}
 
 	public void annotate(VCFRecord record) {
+		annotate(record, null);
+	}
+	
+	private void annotate(VCFRecord record, GenomicRegionSweep<Transcript> sweep) {
 		GenomicVariant v = record.getVariant();
-		List<VariantFunctionalAnnotation> annotations = transcriptome.calculateAnnotations(v, parameters);
+		List<VariantFunctionalAnnotation> annotations = transcriptome.calculateAnnotations(v, parameters, sweep);
 		if(annotations.size()>0) {
-			Collections.sort(annotations,VariantFunctionalAnnotationType.getPriorityComparator());
-			VariantFunctionalAnnotation ann = annotations.get(0);
+			//Only the first annotation with the highest priority is reported. No need to sort the whole list
+			VariantFunctionalAnnotation ann = Collections.min(annotations,VariantFunctionalAnnotationType.getPriorityComparator());
 			record.addAnnotation(new GenomicVariantAnnotation(v, GenomicVariantAnnotation.ATTRIBUTE_TRANSCRIPT_ANNOTATION, ann.getTypeName()));
 			if(ann.getTranscript()!=null) {
 				record.addAnnotation(new GenomicVariantAnnotation(v, GenomicVariantAnnotation.ATTRIBUTE_TRANSCRIPT_ID, ann.getTranscript().getId()));
@@ -23,11 +23,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.main.CommandsDescriptor;
@@ -51,7 +58,10 @@ public class VCFSummaryStatisticsCalculator {
 	private ProgressNotifier progressNotifier=null;
 
 	private static final String [] VARIANT_CATEGORIES= {"Biallelic SNVs","Biallelic Indels","Biallelic STRs","Other biallelic","Multiallelic SNVs","Multiallelic Indels","Multiallelic STRs","Other Multiallelic"};
+	//Number of records processed by each task in multithreaded mode
+	private static final int BATCH_SIZE = 1000;
 	private int minSamplesGenotyped = 20;
+	private int numThreads = 1;
 	private List<String> sampleIds;
 	//Counts for the summary section
 	private VariantsBasicCounts [] summaryCounts = new VariantsBasicCounts[VARIANT_CATEGORIES.length];
@@ -89,6 +99,16 @@ public class VCFSummaryStatisticsCalculator {
 	public void setMinSamplesGenotyped(Integer minSamplesGenotyped) {
 		this.setMinSamplesGenotyped(minSamplesGenotyped.intValue());
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 	
 	/**
 	 * @param args
@@ -125,6 +145,11 @@ public class VCFSummaryStatisticsCalculator {
 		in.setLoadMode(VCFFileReader.LOAD_MODE_COPY_NUMBER);
 		List<String> sampleIds = in.getHeader().getSampleIds();
 		initStatistics(sampleIds);
+		if(numThreads>1) {
+			if(runStatisticsParallel(in)) printStatistics(out);
+			else out.flush();
+			return;
+		}
 		Iterator<VCFRecord> it = in.iterator();
 		int n=0;
 		while(it.hasNext()) {
@@ -141,6 +166,99 @@ public class VCFSummaryStatisticsCalculator {
 		}
 		printStatistics(out);
 	}
+	
+	/**
+	 * Calculates the statistics processing batches of records in parallel. Each thread accumulates
+	 * statistics in its own calculator. Thread calculators are merged in this calculator at the end
+	 * @param in Reader of the VCF file
+	 * @return boolean true if all records were processed, false if the process was stopped by the progress notifier
+	 * @throws IOException If the file can not be read or the processing of a batch fails
+	 */
+	private boolean runStatisticsParallel(VCFFileReader in) throws IOException {
+		//Types are loaded before starting threads because loading is not thread safe
+		VariantFunctionalAnnotationType.getNumberSupportedTypes();
+		List<VCFSummaryStatisticsCalculator> threadCalculators = Collections.synchronizedList(new ArrayList<>());
+		ThreadLocal<VCFSummaryStatisticsCalculator> calculators = ThreadLocal.withInitial(() -> {
+			VCFSummaryStatisticsCalculator calculator = new VCFSummaryStatisticsCalculator();
+			calculator.setLog(log);
+			calculator.setMinSamplesGenotyped(minSamplesGenotyped);
+			calculator.initStatistics(sampleIds);
+			threadCalculators.add(calculator);
+			return calculator;
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		//Pending batches are limited to keep memory bounded
+		LinkedList<Future<?>> pending = new LinkedList<>();
+		boolean completed = true;
+		try {
+			Iterator<VCFRecord> it = in.iterator();
+			List<VCFRecord> batch = new ArrayList<>(BATCH_SIZE);
+			int n=0;
+			while(it.hasNext()) {
+				batch.add(it.next());
+				n++;
+				if(batch.size()==BATCH_SIZE) {
+					submitBatch(pool, pending, batch, calculators);
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+				if (progressNotifier!=null && n%1000==0) {
+					int progress = n/1000;
+					if (!progressNotifier.keepRunning(progress)) {
+						completed = false;
+						break;
+					}
+				}
+			}
+			if(completed && batch.size()>0) submitBatch(pool, pending, batch, calculators);
+			while(pending.size()>0) pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IOException("Calculation of statistics interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+		if(!completed) return false;
+		for(VCFSummaryStatisticsCalculator calculator:threadCalculators) merge(calculator);
+		return true;
+	}
+	private void submitBatch(ExecutorService pool, LinkedList<Future<?>> pending, List<VCFRecord> batch, ThreadLocal<VCFSummaryStatisticsCalculator> calculators) throws InterruptedException, ExecutionException {
+		pending.add(pool.submit(() -> {
+			VCFSummaryStatisticsCalculator calculator = calculators.get();
+			for(VCFRecord record:batch) calculator.processRecord(record);
+		}));
+		if(pending.size()>=2*numThreads) pending.removeFirst().get();
+	}
+	
+	/**
+	 * Adds the statistics accumulated by the given calculator to the statistics of this calculator
+	 * @param other Calculator to merge. It must be initialized with the same samples of this calculator
+	 */
+	private void merge(VCFSummaryStatisticsCalculator other) {
+		for(int i=0;i<VARIANT_CATEGORIES.length;i++) {
+			summaryCounts[i].merge(other.summaryCounts[i]);
+			totalGenotypeCalls[i] += other.totalGenotypeCalls[i];
+			mafDistribution[i].merge(other.mafDistribution[i]);
+			genotypedAccessionsDistribution[i].merge(other.genotypedAccessionsDistribution[i]);
+			for(int j=0;j<countsPerSample[i].length;j++) {
+				countsPerSample[i][j].merge(other.countsPerSample[i][j]);
+			}
+		}
+		mergeDistributions(mafDistAnnBiallelicSNVs, other.mafDistAnnBiallelicSNVs);
+		mergeDistributions(mafDistAnnBiallelicNonSNVs, other.mafDistAnnBiallelicNonSNVs);
+	}
+	private void mergeDistributions(Map<String, Distribution> distributions, Map<String, Distribution> otherDistributions) {
+		for(Map.Entry<String, Distribution> entry:otherDistributions.entrySet()) {
+			Distribution d = distributions.get(entry.getKey());
+			if(d==null) {
+				d = new Distribution(0, 0.5, 0.01);
+				distributions.put(entry.getKey(), d);
+			}
+			d.merge(entry.getValue());
+		}
+	}
 
 	private void initStatistics(List<String> sampleIds) {
 		this.sampleIds = sampleIds;
@@ -189,12 +307,13 @@ public class VCFSummaryStatisticsCalculator {
 		
 		boolean isTransition = isBiallelicSNV && (var instanceof SNV) && ((SNV)var).isTransition();
 		VariantFunctionalAnnotation annotation = record.getNGSEPFunctionalAnnotation();
+		int annotationIdx = VariantsBasicCounts.getAnnotationIndex(annotation);
 		
 		int populationStatus = 0;
 		if(varCalls.size()==0) {
 			//Variant without population information
 			genotypedAccessionsDistribution[idxVarType].processDatapoint(0);
-			summaryCounts[idxVarType].processGenotypeCall(VariantsBasicCounts.GENOTYPE_STATUS_HOMOALT, isTransition, annotation, populationStatus);
+			summaryCounts[idxVarType].processGenotypeCall(VariantsBasicCounts.GENOTYPE_STATUS_HOMOALT, isTransition, annotationIdx, populationStatus);
 			return;
 		}
 		
@@ -232,7 +351,7 @@ public class VCFSummaryStatisticsCalculator {
 			}
 		}
 				
-		summaryCounts[idxVarType].processGenotypeCall(VariantsBasicCounts.GENOTYPE_STATUS_HOMOALT, isTransition, annotation, populationStatus);
+		summaryCounts[idxVarType].processGenotypeCall(VariantsBasicCounts.GENOTYPE_STATUS_HOMOALT, isTransition, annotationIdx, populationStatus);
 		//Update counts per sample
 		for(int i=0;i<varCalls.size();i++) {
 			CalledGenomicVariant call = varCalls.get(i);
@@ -256,7 +375,7 @@ public class VCFSummaryStatisticsCalculator {
 				//if(call.getFirst()==181922)System.err.println("Call: "+i+" MAF: "+maf+". MAF idx: "+mafIdx+" wtIdx: "+wtIdx+" AC: "+alleleCounts[0]+" - "+ alleleCounts[1]+" called: "+calledAlleles[0]+" hetero: "+ (calledAlleles.length>1)+ " ploidy a1: "+allelesCN[0]+" status: "+popStatusSample);
 				//if(isBiallelicSNV && calledAlleles.length>0)System.out.println("MAF: "+maf+". MAF idx: "+mafIdx+" AC: "+alleleCounts[0]+" - "+ alleleCounts[1]+" called: "+calledAlleles[0]+" hetero: "+ (calledAlleles.length>1)+ " ploidy a1: "+calledAllelePloidies[0]+" status: "+populationStatus);
 			}
-			countsPerSample[idxVarType][i].processGenotypeCall(genotypeStatus, isTransition, annotation, popStatusSample);	
+			countsPerSample[idxVarType][i].processGenotypeCall(genotypeStatus, isTransition, annotationIdx, popStatusSample);	
 		}
 		
 	}
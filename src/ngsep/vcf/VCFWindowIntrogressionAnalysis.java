@@ -27,11 +27,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
@@ -80,8 +82,12 @@ public class VCFWindowIntrogressionAnalysis {
 	private int minScore = DEF_MIN_SCORE;
 	private boolean printVCF = false;
 	private boolean printUnassigned = false;
+	private int numThreads = 1;
 	
-	private Queue<WindowScores> currentWindows = new LinkedList<WindowScores>();
+	//Genotypes of the last variants. Windows are scored when the buffer holds their last variant
+	private GenotypeCodesWindowBuffer windowBuffer;
+	private int numVariantsSequence = 0;
+	private ExecutorService pool = null;
 	private int [][] assignmentStats;
 	private Introgression [] currentIntrogressions;
 	private List<Introgression> sequenceIntrogressions;
@@ -203,6 +209,16 @@ public class VCFWindowIntrogressionAnalysis {
 	public void setPrintUnassigned(Boolean printUnassigned) {
 		this.setPrintUnassigned(printUnassigned.booleanValue());
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("The number of threads must be positive. Value: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(Integer numThreads) {
+		this.setNumThreads(numThreads.intValue());
+	}
 	public static void main(String[] args) throws Exception {
 		VCFWindowIntrogressionAnalysis instance = new VCFWindowIntrogressionAnalysis();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -244,6 +260,7 @@ public class VCFWindowIntrogressionAnalysis {
 		try (PrintStream outAssignments = new PrintStream(outPrefix+"_assignments.txt");
 			 PrintStream outIntrogressions = new PrintStream(outPrefix+"_introgressions.txt");
 			 PrintStream outStatistics = new PrintStream(outPrefix+"_assignmentStats.txt");) {
+			if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
 			
 			
 			VCFFileHeader header = reader.getHeader();
@@ -270,6 +287,7 @@ public class VCFWindowIntrogressionAnalysis {
 			}
 			printHeaderIntrogressions(groupIdsList,outIntrogressions);
 			int nG = groupIds.size();
+			windowBuffer = new GenotypeCodesWindowBuffer(windowSize, nSamples, nG, matchScore, mismatchScore);
 			assignmentStats = new int [nSamples][nG+3];
 			NumberArrays.initializeIntMatrix(assignmentStats);
 			
@@ -280,18 +298,17 @@ public class VCFWindowIntrogressionAnalysis {
 			int [] numUndecided = new int [nG];
 			Arrays.fill(numUndecided, 0);
 			int n=0;
-			int numVarsLastWindow=0;
+			//Windows start every step discriminative variants within each sequence
+			int step = windowSize-overlap;
 			Iterator<VCFRecord> it = reader.iterator();
 			while(it.hasNext()) {
 				VCFRecord record = it.next();
 				boolean seqChange = !record.getSequenceName().equals(currentSeqName);
 				if(seqChange) {
-					processWindows(samples, groupIdsList, true, outAssignments);
+					finishSequence();
 					processSequenceIntrogressions(outIntrogressions,groupIdsReverseIdxMap);
 					currentSeqName = record.getSequenceName();
 					log.info("Starting sequence: "+currentSeqName);
-					numVarsLastWindow = 0;
-					currentWindows.add(new WindowScores(currentSeqName, nSamples, nG));
 				}
 				GenomicVariant var = record.getVariant();
 				if(!var.isBiallelic()) continue;
@@ -322,15 +339,14 @@ public class VCFWindowIntrogressionAnalysis {
 					if(cv.isUndecided()) numUndecided[i]++;
 					else if (cv.isHeterozygous()) numHeterozygous[i]++;
 				}
-				for(WindowScores window:currentWindows) {
-					window.addVariant(var, varCalls, groupCalls, matchScore, mismatchScore);
+				windowBuffer.addVariant(var, varCalls, groupCalls);
+				numVariantsSequence++;
+				int windowStart = numVariantsSequence-windowSize;
+				if(windowStart==0 || (windowStart>0 && step>0 && windowStart%step==0)) {
+					processWindow(calculateWindowScores(), samples, groupIdsList, outAssignments);
 				}
-				numVarsLastWindow++;
-				processWindows(samples, groupIdsList, false, outAssignments);
-				if(numVarsLastWindow+overlap==windowSize) {
-					log.finest("Starting window after "+numVarsLastWindow+" biallelic discriminative variants in the last window. Last variant pos: "+var.getFirst()+". Number of windows: "+currentWindows.size());
-					currentWindows.add(new WindowScores(var.getSequenceName(), nSamples, nG));
-					numVarsLastWindow = 0;
+				if(step>0 && numVariantsSequence%step==0) {
+					log.finest("Starting window after "+numVariantsSequence+" biallelic discriminative variants in the sequence. Last variant pos: "+var.getFirst());
 				}
 				if(outVCF!=null) writer.printVCFRecord(record, outVCF);
 				n++;
@@ -341,11 +357,13 @@ public class VCFWindowIntrogressionAnalysis {
 					}
 				}
 			}
-			processWindows(samples, groupIdsList, true, outAssignments);
+			finishSequence();
 			processSequenceIntrogressions(outIntrogressions, groupIdsReverseIdxMap);
 			printReport(samples,groupIdsList,numDiscriminative,numHeterozygous,numUndecided,outStatistics);
 		} finally {
 			if(outVCF!=null) outVCF.close();
+			if(pool!=null) pool.shutdownNow();
+			pool = null;
 		}
 	}
 	private void printHeaderAssignments(List<Sample> samples, PrintStream outAssignments) {
@@ -365,22 +383,49 @@ public class VCFWindowIntrogressionAnalysis {
 		
 		
 	}
-	private void processWindows(List<Sample> samples, List<String> groupIdsList, boolean seqEnd ,PrintStream outAssignments) {
-		while(currentWindows.size()>0) {
-			WindowScores window = currentWindows.peek();
-			if(window.getNumVariants()==windowSize) {
-				processWindow(window,samples, groupIdsList, outAssignments);
-			} else if (!seqEnd) {
-				return;
+	/**
+	 * Calculates the scores of the window made of the variants currently stored in the buffer.
+	 * If more than one thread is available, different ranges of samples are scored in parallel
+	 * @return WindowScores Scores of each sample against each group
+	 * @throws IOException If the calculation is interrupted
+	 */
+	private WindowScores calculateWindowScores() throws IOException {
+		int nSamples = windowBuffer.getNumSamples();
+		int [] countsGenotyped = new int [nSamples];
+		int [][] scores = new int [nSamples][windowBuffer.getNumGroups()];
+		if(pool==null || nSamples<2) {
+			windowBuffer.calculateScores(0, nSamples, countsGenotyped, scores);
+		} else {
+			int chunkSize = (nSamples+numThreads-1)/numThreads;
+			List<Future<?>> tasks = new ArrayList<>(numThreads);
+			for(int first=0;first<nSamples;first+=chunkSize) {
+				int start = first;
+				int end = Math.min(nSamples, start+chunkSize);
+				tasks.add(pool.submit(() -> windowBuffer.calculateScores(start, end, countsGenotyped, scores)));
+			}
+			try {
+				for(Future<?> task:tasks) task.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Calculation of window scores interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new IOException(cause);
 			}
-			currentWindows.remove();
 		}
-		if(seqEnd) {
-			for(int i=0;i<currentIntrogressions.length;i++) {
-				if(currentIntrogressions[i]!=null) {
-					sequenceIntrogressions.add(currentIntrogressions[i]);
-					currentIntrogressions[i] = null;
-				}
+		return new WindowScores(windowBuffer.getSequenceName(), windowBuffer.getFirst(), windowBuffer.getLast(), windowBuffer.getNumVariants(), countsGenotyped, scores);
+	}
+	/**
+	 * Discards the variants of the current sequence and moves the current introgressions to the list of
+	 * introgressions of the sequence. Incomplete windows at the end of the sequence are not processed
+	 */
+	private void finishSequence() {
+		windowBuffer.clear();
+		numVariantsSequence = 0;
+		for(int i=0;i<currentIntrogressions.length;i++) {
+			if(currentIntrogressions[i]!=null) {
+				sequenceIntrogressions.add(currentIntrogressions[i]);
+				currentIntrogressions[i] = null;
 			}
 		}
 	}
@@ -569,37 +614,17 @@ public class VCFWindowIntrogressionAnalysis {
 class WindowScores implements GenomicRegion {
 	private int [] countsGenotyped;
 	private int [][] scores;
-	private int numVariants = 0;
+	private int numVariants;
 	private String sequenceName;
-	private int first=-1;
-	private int last=-1;
-	public WindowScores (String sequenceName, int numSamples, int numGroups) {
+	private int first;
+	private int last;
+	public WindowScores (String sequenceName, int first, int last, int numVariants, int [] countsGenotyped, int [][] scores) {
 		this.sequenceName = sequenceName;
-		countsGenotyped = new int [numSamples];
-		Arrays.fill(countsGenotyped, 0);
-		this.scores = new int [numSamples][numGroups];
-		NumberArrays.initializeIntMatrix(this.scores);
-	}
-	public void addVariant(GenomicVariant var, List<CalledGenomicVariant> callsSamples, List<CalledGenomicVariant> callsGroups, int matchScore, int mismatchScore) {
-		for(int i=0;i<countsGenotyped.length;i++) {
-			if(!callsSamples.get(i).isUndecided()) countsGenotyped[i]++;
-		}
-		for(int i=0;i<scores.length;i++) {
-			for(int j=0;j<scores[i].length;j++) {
-				scores[i][j] += getScore(callsSamples.get(i),callsGroups.get(j),matchScore,mismatchScore);
-			}
-		}
-		if(first == -1 || first > var.getFirst() ) first = var.getFirst();
-		if(last == -1 || last < var.getLast() ) last = var.getLast();
-		numVariants++;
-	}
-	private int getScore(CalledGenomicVariant call1, CalledGenomicVariant call2, int matchScore, int mismatchScore) {
-		if(call1.isUndecided() || call2.isUndecided()) return 0;
-		byte [] a1 = call1.getIndexesCalledAlleles();
-		byte [] a2 = call2.getIndexesCalledAlleles();
-		if(a1.length>1 || a2.length>1) return 0;
-		if(a1[0]==a2[0]) return matchScore;
-		return mismatchScore;
+		this.first = first;
+		this.last = last;
+		this.numVariants = numVariants;
+		this.countsGenotyped = countsGenotyped;
+		this.scores = scores;
 	}
 	public int getNumVariants() {
 		return numVariants;
@@ -640,6 +665,131 @@ class WindowScores implements GenomicRegion {
 		return false;
 	}
 }
+/**
+ * Ring buffer with compact genotype codes of the last discriminative variants of a sequence.
+ * Codes are stored per sample (and per group) in contiguous arrays so that the scores of a sample
+ * against each group can be calculated walking a few bytes instead of the calls of each variant
+ * @author Jorge Duitama
+ */
+class GenotypeCodesWindowBuffer {
+	public static final byte CODE_UNDECIDED = 0;
+	public static final byte CODE_HETEROZYGOUS = 1;
+	public static final byte CODE_HOMOZYGOUS_REFERENCE = 2;
+	public static final byte CODE_HOMOZYGOUS_ALTERNATIVE = 3;
+	
+	private final int capacity;
+	private final int numSamples;
+	private final int numGroups;
+	//Codes of sample i for the variant in slot t are located at i*capacity+t
+	private final byte [] sampleCodes;
+	private final byte [] groupCodes;
+	private final int [] firsts;
+	private final int [] lasts;
+	//Scores indexed by (sampleCode<<2) | groupCode
+	private final int [] scoresTable = new int [16];
+	private String sequenceName;
+	private int numAdded = 0;
+	
+	public GenotypeCodesWindowBuffer (int capacity, int numSamples, int numGroups, int matchScore, int mismatchScore) {
+		this.capacity = capacity;
+		this.numSamples = numSamples;
+		this.numGroups = numGroups;
+		sampleCodes = new byte [numSamples*capacity];
+		groupCodes = new byte [numGroups*capacity];
+		firsts = new int [capacity];
+		lasts = new int [capacity];
+		for(byte c1 = CODE_HOMOZYGOUS_REFERENCE;c1<=CODE_HOMOZYGOUS_ALTERNATIVE;c1++) {
+			for(byte c2 = CODE_HOMOZYGOUS_REFERENCE;c2<=CODE_HOMOZYGOUS_ALTERNATIVE;c2++) {
+				scoresTable[(c1<<2) | c2] = (c1==c2)?matchScore:mismatchScore;
+			}
+		}
+	}
+	/**
+	 * Adds a variant to the buffer replacing the oldest variant if the buffer is full
+	 * @param var Variant to add
+	 * @param callsSamples Calls of the samples for the variant
+	 * @param callsGroups Calls of the groups for the variant
+	 */
+	public void addVariant(GenomicVariant var, List<CalledGenomicVariant> callsSamples, List<CalledGenomicVariant> callsGroups) {
+		int slot = numAdded%capacity;
+		for(int i=0;i<numSamples;i++) {
+			sampleCodes[i*capacity+slot] = getCode(callsSamples.get(i));
+		}
+		for(int j=0;j<numGroups;j++) {
+			groupCodes[j*capacity+slot] = getCode(callsGroups.get(j));
+		}
+		firsts[slot] = var.getFirst();
+		lasts[slot] = var.getLast();
+		sequenceName = var.getSequenceName();
+		numAdded++;
+	}
+	private static byte getCode(CalledGenomicVariant call) {
+		if(call.isUndecided()) return CODE_UNDECIDED;
+		byte [] alleles = call.getIndexesCalledAlleles();
+		if(alleles.length>1) return CODE_HETEROZYGOUS;
+		if(alleles[0]==0) return CODE_HOMOZYGOUS_REFERENCE;
+		return CODE_HOMOZYGOUS_ALTERNATIVE;
+	}
+	/**
+	 * Removes all variants from the buffer
+	 */
+	public void clear() {
+		numAdded = 0;
+		sequenceName = null;
+	}
+	/**
+	 * Calculates the number of genotyped variants and the scores against each group for a range of samples
+	 * considering the variants currently stored in the buffer
+	 * @param firstSample First sample to process
+	 * @param lastSample Limit of the samples to process (exclusive)
+	 * @param countsGenotyped Array to store the number of genotyped variants of each sample
+	 * @param scores Matrix to store the scores of each sample against each group
+	 */
+	public void calculateScores(int firstSample, int lastSample, int [] countsGenotyped, int [][] scores) {
+		int n = getNumVariants();
+		for(int i=firstSample;i<lastSample;i++) {
+			int offset = i*capacity;
+			int genotyped = 0;
+			for(int t=0;t<n;t++) {
+				if(sampleCodes[offset+t]!=CODE_UNDECIDED) genotyped++;
+			}
+			countsGenotyped[i] = genotyped;
+			int [] sampleScores = scores[i];
+			for(int j=0;j<numGroups;j++) {
+				int groupOffset = j*capacity;
+				int score = 0;
+				for(int t=0;t<n;t++) {
+					score+=scoresTable[(sampleCodes[offset+t]<<2) | groupCodes[groupOffset+t]];
+				}
+				sampleScores[j] = score;
+			}
+		}
+	}
+	public int getNumSamples() {
+		return numSamples;
+	}
+	public int getNumGroups() {
+		return numGroups;
+	}
+	public int getNumVariants() {
+		return Math.min(numAdded, capacity);
+	}
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	public int getFirst() {
+		int n = getNumVariants();
+		int first = -1;
+		for(int t=0;t<n;t++) if(first==-1 || first>firsts[t]) first = firsts[t];
+		return first;
+	}
+	public int getLast() {
+		int n = getNumVariants();
+		int last = -1;
+		for(int t=0;t<n;t++) if(last==-1 || last<lasts[t]) last = lasts[t];
+		return last;
+	}
+}
 class Introgression extends GenomicRegionImpl {
 	private Sample sample;
 	private String foreignGroup;
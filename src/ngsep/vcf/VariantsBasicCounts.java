@@ -19,7 +19,6 @@
  *******************************************************************************/
 package ngsep.vcf;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import ngsep.transcriptome.VariantFunctionalAnnotation;
@@ -45,9 +44,10 @@ public class VariantsBasicCounts {
 	private int homozygousAlternativeTransitions = 0;
 	private int heterozygousTransitions = 0;
 	
-	private Map<String, Integer> totalCountsPerAnnotation = new HashMap<>();
-	private Map<String, Integer> hetCountsPerAnnotation = new HashMap<>();
-	private Map<String, Integer> transitionCountsPerAnnotation = new HashMap<>();
+	//Counts per annotation are indexed by the priority index of the annotation type
+	private int [] totalCountsPerAnnotation = new int [VariantFunctionalAnnotationType.getNumberSupportedTypes()];
+	private int [] hetCountsPerAnnotation = new int [totalCountsPerAnnotation.length];
+	private int [] transitionCountsPerAnnotation = new int [totalCountsPerAnnotation.length];
 	
 	private int genotypedPopCounts = 0;
 	private int rareAllele = 0;
@@ -55,22 +55,31 @@ public class VariantsBasicCounts {
 	
 	
 	public void processGenotypeCall (int genotypingStatus, boolean isTransition, VariantFunctionalAnnotation annotation, int populationStatus) {
+		processGenotypeCall(genotypingStatus, isTransition, getAnnotationIndex(annotation), populationStatus);
+	}
+	
+	/**
+	 * Processes a genotype call given the index of the annotation type
+	 * @param genotypingStatus Status of the genotype call
+	 * @param isTransition Tells if the variant is a transition
+	 * @param annotationIdx Index of the annotation type calculated with getAnnotationIndex. -1 if the variant is not annotated
+	 * @param populationStatus Status of the alleles called in the population
+	 */
+	public void processGenotypeCall (int genotypingStatus, boolean isTransition, int annotationIdx, int populationStatus) {
 		if(genotypingStatus != GENOTYPE_STATUS_UNDECIDED) {
 			genotyped++;
 			if(genotypingStatus!=GENOTYPE_STATUS_HOMOREF) {
 				nonReference++;
-				String key = null;
-				if(annotation!=null) key = annotation.getTypeName();
-				add1(totalCountsPerAnnotation,key);
+				if(annotationIdx>=0) totalCountsPerAnnotation[annotationIdx]++;
 				if(isTransition) {
 					transitions++;
-					add1(transitionCountsPerAnnotation,key);
+					if(annotationIdx>=0) transitionCountsPerAnnotation[annotationIdx]++;
 				}
 				
 				if(genotypingStatus==GENOTYPE_STATUS_HETEROZYGOUS) {
 					heterozygous++;
 					if(isTransition) heterozygousTransitions++;
-					add1(hetCountsPerAnnotation,key);
+					if(annotationIdx>=0) hetCountsPerAnnotation[annotationIdx]++;
 				} else {
 					homozygousAlternative++;
 					if(isTransition) homozygousAlternativeTransitions++;
@@ -82,12 +91,35 @@ public class VariantsBasicCounts {
 		}
 	}
 
-	private static void add1(Map<String, Integer> countsMap, String key) {
-		if(key==null) return;
-		Integer count = countsMap.get(key);
-		if(count == null) count = 0;
-		count++;
-		countsMap.put(key, count);
+	/**
+	 * @param annotation Functional annotation of a variant. It can be null
+	 * @return int Index of the type of the given annotation. -1 if the annotation is null or its type is not supported
+	 */
+	public static int getAnnotationIndex(VariantFunctionalAnnotation annotation) {
+		if(annotation==null) return -1;
+		return VariantFunctionalAnnotationType.getTypeIndex(annotation.getTypeName());
+	}
+	
+	/**
+	 * Adds the counts of the given object to the counts of this object
+	 * @param other Counts to add
+	 */
+	public void merge(VariantsBasicCounts other) {
+		genotyped += other.genotyped;
+		nonReference += other.nonReference;
+		homozygousAlternative += other.homozygousAlternative;
+		heterozygous += other.heterozygous;
+		transitions += other.transitions;
+		homozygousAlternativeTransitions += other.homozygousAlternativeTransitions;
+		heterozygousTransitions += other.heterozygousTransitions;
+		for(int i=0;i<totalCountsPerAnnotation.length;i++) {
+			totalCountsPerAnnotation[i] += other.totalCountsPerAnnotation[i];
+			hetCountsPerAnnotation[i] += other.hetCountsPerAnnotation[i];
+			transitionCountsPerAnnotation[i] += other.transitionCountsPerAnnotation[i];
+		}
+		genotypedPopCounts += other.genotypedPopCounts;
+		rareAllele += other.rareAllele;
+		uniqueAllele += other.uniqueAllele;
 	}
 
 
@@ -122,11 +154,11 @@ public class VariantsBasicCounts {
 		return getCount(transitionCountsPerAnnotation, annotation);
 	}
 	
-	private static int getCount (Map<String, Integer> countsMap, String key) {
+	private static int getCount (int [] counts, String key) {
 		if(key==null) return 0;
-		Integer count = countsMap.get(key);
-		if(count==null) return 0;
-		return count;
+		int idx = VariantFunctionalAnnotationType.getTypeIndex(key);
+		if(idx<0) return 0;
+		return counts[idx];
 	}
 
 	public int getGenotypedPopCounts() {
@@ -188,11 +220,11 @@ public class VariantsBasicCounts {
 		count += getHeterozygousCount(VariantFunctionalAnnotationType.ANNOTATION_EXONIC_SPLICE_REGION);
 		return count;
 	}
-	private static int getCodingCount(Map<String, Integer> countsMap) {
+	private static int getCodingCount(int [] counts) {
 		int answer = 0;
-		for(Map.Entry<String, Integer> entry:countsMap.entrySet()) {
-			if(VariantFunctionalAnnotationType.isTypeCoding(entry.getKey())) {
-				answer+= entry.getValue();
+		for(int i=0;i<counts.length;i++) {
+			if(VariantFunctionalAnnotationType.getTypeByIndex(i).isCoding()) {
+				answer+= counts[i];
 			}
 		}
 		return answer;
@@ -206,6 +238,15 @@ public class VariantsBasicCounts {
 		}
 		return answer;
 	}
+	private static int getNonSynonymousCount(int [] counts) {
+		int answer = 0;
+		for(int i=0;i<counts.length;i++) {
+			if(VariantFunctionalAnnotationType.isTypeNonSynonymous(VariantFunctionalAnnotationType.getTypeByIndex(i).getName())) {
+				answer+= counts[i];
+			}
+		}
+		return answer;
+	}
 	
 	public double getTrTvRatio() {
 		int transversions = nonReference-transitions;